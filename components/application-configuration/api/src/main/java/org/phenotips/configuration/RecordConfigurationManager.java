@@ -44,8 +44,21 @@
      *
      * @param recordType an identifier for the type of record whose configuration is requested, such as {@code patient}
      *            or {@code family}
-     * @return a valid configuration, may be empty if no sections can be displayed
+     * @return a valid configuration, may be empty if no sections can be displayed; the configuration may be shared with
+     *         other callers, so it must not be modified
      * @since 1.4
      */
     RecordConfiguration getConfiguration(String recordType);
+
+    /**
+     * Identifies the version of the {@link RecordConfiguration} that {@link #getConfiguration(String)} returns in the
+     * current context. The version changes whenever the configuration may change, so clients can keep a copy of the
+     * configuration for as long as the version stays the same.
+     *
+     * @param recordType an identifier for the type of record whose configuration is requested, such as {@code patient}
+     *            or {@code family}
+     * @return an opaque version stamp, or {@code null} if the configuration cannot be versioned and must not be kept
+     * @since 1.4
+     */
+    String getConfigurationVersion(String recordType);
 }
@@ -21,9 +21,29 @@
 import org.phenotips.configuration.RecordConfigurationManager;
 import org.phenotips.configuration.spi.RecordConfigurationModule;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.localization.LocalizationContext;
+import org.xwiki.model.ModelContext;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.uiextension.UIExtension;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -32,18 +52,27 @@
 import org.slf4j.Logger;
 
 /**
- * Default implementation for the {@link RecordConfigurationManager} component.
+ * Default implementation for the {@link RecordConfigurationManager} component. Assembled configurations are cached for
+ * each record type, wiki, language, and combination of {@link RecordConfigurationModule#getCacheKey(String) module
+ * keys}. Since the module keys identify the documents the modules read, such as the bound study, changes to those
+ * documents lead to new keys; changes to the available sections, fields, or modules discard all the cached
+ * configurations.
  *
  * @version $Id$
  * @since 1.0M9
  */
 @Component
 @Singleton
-public class DefaultRecordConfigurationManager implements RecordConfigurationManager
+public class DefaultRecordConfigurationManager implements RecordConfigurationManager, Initializable
 {
     /** The label for record of type "patient". */
     private static final String PATIENT_RECORD_LABEL = "patient";
 
+    /** The maximum number of assembled configurations kept in memory. */
+    private static final int CACHE_CAPACITY = 500;
+
+    private static final char KEY_SEPARATOR = '|';
+
     /** Logging helper. */
     @Inject
     private Logger logger;
@@ -51,25 +80,155 @@ public class DefaultRecordConfigurationManager implements RecordConfigurationMan
     @Inject
     private Provider<List<RecordConfigurationModule>> modules;
 
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Used for discarding cached configurations when sections, fields or modules change. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** Provides the current wiki. */
+    @Inject
+    private ModelContext modelContext;
+
+    /** Provides the current language. */
+    @Inject
+    private LocalizationContext localizationContext;
+
+    /**
+     * Changes whenever the available sections, fields or modules change; part of all the cache keys and version stamps.
+     * Starts from the current time, so that versions from before a restart are not reused.
+     */
+    private final AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+
+    private Cache<RecordConfiguration> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewLocalCache(
+                new LRUCacheConfiguration("recordConfigurations", CACHE_CAPACITY));
+        } catch (CacheException ex) {
+            throw new InitializationException("Failed to create cache", ex);
+        }
+        this.observationManager.addListener(new ConfigurationInvalidator());
+    }
+
     @Override
     public RecordConfiguration getConfiguration(String recordType)
     {
-        RecordConfiguration config = new DefaultRecordConfiguration();
+        List<RecordConfigurationModule> activeModules = getModules(recordType);
+        String key = getCacheKey(recordType, activeModules);
+        if (key == null) {
+            return assemble(activeModules);
+        }
+        RecordConfiguration config = this.cache.get(key);
+        if (config == null) {
+            config = assemble(activeModules);
+            if (config != null) {
+                this.cache.set(key, config);
+            }
+        }
+        return config;
+    }
+
+    @Override
+    public String getConfigurationVersion(String recordType)
+    {
+        String key = getCacheKey(recordType, getModules(recordType));
+        if (key == null) {
+            return null;
+        }
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    @Override
+    public RecordConfiguration getActiveConfiguration()
+    {
+        return getConfiguration(PATIENT_RECORD_LABEL);
+    }
+
+    private List<RecordConfigurationModule> getModules(String recordType)
+    {
+        List<RecordConfigurationModule> result = new LinkedList<>();
         for (RecordConfigurationModule service : this.modules.get()) {
             try {
                 if (service.supportsRecordType(recordType)) {
-                    config = service.process(config);
+                    result.add(service);
                 }
             } catch (Exception ex) {
                 this.logger.warn("Failed to read the record configuration: {}", ex.getMessage());
             }
         }
+        return result;
+    }
+
+    private RecordConfiguration assemble(List<RecordConfigurationModule> activeModules)
+    {
+        RecordConfiguration config = new DefaultRecordConfiguration();
+        for (RecordConfigurationModule service : activeModules) {
+            try {
+                config = service.process(config);
+            } catch (Exception ex) {
+                this.logger.warn("Failed to read the record configuration: {}", ex.getMessage());
+            }
+        }
         return config;
     }
 
-    @Override
-    public RecordConfiguration getActiveConfiguration()
+    /**
+     * Identifies the configuration that the active modules would assemble in the current context.
+     *
+     * @param recordType the type of record whose configuration is requested
+     * @param activeModules the modules supporting the record type, in the order in which they are invoked
+     * @return a string key, or {@code null} if one of the modules doesn't support caching
+     */
+    private String getCacheKey(String recordType, List<RecordConfigurationModule> activeModules)
     {
-        return getConfiguration(PATIENT_RECORD_LABEL);
+        EntityReference currentEntity = this.modelContext.getCurrentEntityReference();
+        StringBuilder key = new StringBuilder();
+        key.append(this.generation.get()).append(KEY_SEPARATOR).append(recordType)
+            .append(KEY_SEPARATOR).append(currentEntity == null ? "" : currentEntity.getRoot().getName())
+            .append(KEY_SEPARATOR).append(this.localizationContext.getCurrentLocale());
+        for (RecordConfigurationModule service : activeModules) {
+            try {
+                String moduleKey = service.getCacheKey(recordType);
+                if (moduleKey == null) {
+                    return null;
+                }
+                key.append(KEY_SEPARATOR).append(service.getClass().getName()).append('=').append(moduleKey);
+            } catch (Exception ex) {
+                this.logger.warn("Failed to identify the record configuration: {}", ex.getMessage());
+                return null;
+            }
+        }
+        return key.toString();
+    }
+
+    /** Discards all the cached configurations when sections, fields, or configuration modules change. */
+    private final class ConfigurationInvalidator implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "record-configuration-invalidator";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(UIExtension.class),
+                new ComponentDescriptorRemovedEvent(UIExtension.class),
+                new ComponentDescriptorAddedEvent(RecordConfigurationModule.class),
+                new ComponentDescriptorRemovedEvent(RecordConfigurationModule.class));
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            DefaultRecordConfigurationManager.this.generation.incrementAndGet();
+            DefaultRecordConfigurationManager.this.cache.removeAll();
+        }
     }
 }
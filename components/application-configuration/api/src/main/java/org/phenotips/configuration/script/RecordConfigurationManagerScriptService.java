@@ -68,4 +68,18 @@ public RecordConfiguration getConfiguration(String recordType)
     {
         return this.configuration.getConfiguration(recordType);
     }
+
+    /**
+     * Identifies the version of the {@link RecordConfiguration} active for the current user on a specific record type,
+     * which clients can use to decide whether a copy of the configuration they already have is still valid.
+     *
+     * @param recordType an identifier for the type of record whose configuration is requested, such as {@code patient}
+     *            or {@code family}
+     * @return an opaque version stamp, or {@code null} if the configuration must not be kept by clients
+     * @since 1.4
+     */
+    public String getConfigurationVersion(String recordType)
+    {
+        return this.configuration.getConfigurationVersion(recordType);
+    }
 }
@@ -62,4 +62,21 @@
      * @return true iff this module supports the specified record type, false otherwise
      */
     boolean supportsRecordType(String recordType);
+
+    /**
+     * Identifies the data that {@link #process(RecordConfiguration)} depends on in the current context, besides the
+     * record type, the current wiki and language, and the available sections and fields. Assembled configurations are
+     * cached for each combination of keys returned by the active modules, so the key must change whenever the changes
+     * done by this module would be different, for example by including the reference and version of the documents
+     * that it reads.
+     *
+     * @param recordType the type of record whose configuration is requested
+     * @return a short string, empty if the changes done by this module don't depend on the context, or {@code null} if
+     *         they cannot be identified, in which case the configuration is assembled again on each request; the base
+     *         implementation returns {@code null}
+     */
+    default String getCacheKey(String recordType)
+    {
+        return null;
+    }
 }
@@ -21,15 +21,25 @@
 import org.phenotips.configuration.RecordConfigurationManager;
 import org.phenotips.configuration.spi.RecordConfigurationModule;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.uiextension.UIExtension;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Provider;
 
@@ -37,13 +47,18 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -75,12 +90,30 @@
     @Mock
     private Provider<List<RecordConfigurationModule>> modules;
 
+    @Mock
+    private Cache<RecordConfiguration> cache;
+
+    private Map<String, RecordConfiguration> cachedEntries = new HashMap<>();
+
     private List<RecordConfigurationModule> moduleList;
 
     @Before
     public void setup() throws Exception
     {
         MockitoAnnotations.initMocks(this);
+        when(this.cache.get(anyString()))
+            .thenAnswer(invocation -> this.cachedEntries.get(invocation.getArguments()[0]));
+        doAnswer(invocation -> this.cachedEntries.put((String) invocation.getArguments()[0],
+            (RecordConfiguration) invocation.getArguments()[1])).when(this.cache)
+                .set(anyString(), any(RecordConfiguration.class));
+        doAnswer(invocation -> {
+            this.cachedEntries.clear();
+            return null;
+        }).when(this.cache).removeAll();
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        doReturn(this.cache).when(cacheManager).createNewLocalCache(any(CacheConfiguration.class));
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+
         Type listType = new DefaultParameterizedType(null, List.class,
             RecordConfigurationModule.class);
         Type providerType = new DefaultParameterizedType(null, Provider.class, listType);
@@ -167,4 +200,80 @@ public void getActiveConfigurationReturnsPatientRecordConfiguration() throws Exc
         when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
         Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getActiveConfiguration());
     }
+
+    @Test
+    public void configurationIsAssembledOnceForTheSameModuleKeys() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.getCacheKey(PATIENT_LABEL)).thenReturn("");
+        when(this.moduleTwo.getCacheKey(PATIENT_LABEL)).thenReturn("Studies.Study1@1.1");
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+        when(this.moduleTwo.process(this.config)).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        Assert.assertSame(this.config, manager.getConfiguration(PATIENT_LABEL));
+        Assert.assertSame(this.config, manager.getConfiguration(PATIENT_LABEL));
+        Assert.assertEquals(manager.getConfigurationVersion(PATIENT_LABEL),
+            manager.getConfigurationVersion(PATIENT_LABEL));
+        verify(this.moduleOne, times(1)).process(any(RecordConfiguration.class));
+        verify(this.moduleTwo, times(1)).process(this.config);
+    }
+
+    @Test
+    public void configurationIsAssembledAgainWhenModuleKeysChange() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        RecordConfiguration other = Mockito.mock(RecordConfiguration.class);
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config, other);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        when(this.moduleOne.getCacheKey(PATIENT_LABEL)).thenReturn("Studies.Study1@1.1");
+        Assert.assertSame(this.config, manager.getConfiguration(PATIENT_LABEL));
+        String version = manager.getConfigurationVersion(PATIENT_LABEL);
+
+        when(this.moduleOne.getCacheKey(PATIENT_LABEL)).thenReturn("Studies.Study1@2.1");
+        Assert.assertSame(other, manager.getConfiguration(PATIENT_LABEL));
+        Assert.assertNotEquals(version, manager.getConfigurationVersion(PATIENT_LABEL));
+    }
+
+    @Test
+    public void configurationIsNotCachedWhenAModuleHasNoKey() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.getCacheKey(PATIENT_LABEL)).thenReturn("");
+        when(this.moduleTwo.getCacheKey(PATIENT_LABEL)).thenReturn(null);
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+        when(this.moduleTwo.process(this.config)).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+        manager.getConfiguration(PATIENT_LABEL);
+        Assert.assertNull(manager.getConfigurationVersion(PATIENT_LABEL));
+        verify(this.moduleOne, times(2)).process(any(RecordConfiguration.class));
+    }
+
+    @Test
+    public void sectionChangesDiscardCachedConfigurations() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.getCacheKey(PATIENT_LABEL)).thenReturn("");
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+        String version = manager.getConfigurationVersion(PATIENT_LABEL);
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class), Mockito.atLeastOnce())
+            .addListener(listener.capture());
+        listener.getValue().onEvent(new ComponentDescriptorAddedEvent(UIExtension.class), null, null);
+
+        manager.getConfiguration(PATIENT_LABEL);
+        Assert.assertNotEquals(version, manager.getConfigurationVersion(PATIENT_LABEL));
+        verify(this.moduleOne, times(2)).process(any(RecordConfiguration.class));
+    }
 }
@@ -61,4 +61,12 @@ public void getConfigurationForwardsCalls() throws ComponentLookupException
         when(config.getConfiguration("patient")).thenReturn(c);
         Assert.assertSame(c, this.mocker.getComponentUnderTest().getConfiguration("patient"));
     }
+
+    @Test
+    public void getConfigurationVersionForwardsCalls() throws ComponentLookupException
+    {
+        RecordConfigurationManager config = this.mocker.getInstance(RecordConfigurationManager.class);
+        when(config.getConfigurationVersion("patient")).thenReturn("v1");
+        Assert.assertEquals("v1", this.mocker.getComponentUnderTest().getConfigurationVersion("patient"));
+    }
 }
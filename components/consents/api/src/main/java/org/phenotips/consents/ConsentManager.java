@@ -96,6 +96,23 @@
      */
     boolean setPatientConsents(Patient patient, Iterable<String> consents);
 
+    /**
+     * Same as {@link #setPatientConsents(Patient, Iterable)}, but the patient document may be left unsaved, so that the
+     * consents are stored together with other changes to the patient record. The default implementation, kept for
+     * managers written before this method was added, always saves the patient document right away.
+     *
+     * @param patient record in which consents will be granted
+     * @param consents list of consent ids
+     * @param saveDocument {@code true} if the patient document should be saved right away, {@code false} if the caller
+     *            takes care of saving it
+     * @return {@code true} if the operation was successful, otherwise {@code false}
+     * @since 1.4
+     */
+    default boolean setPatientConsents(Patient patient, Iterable<String> consents, boolean saveDocument)
+    {
+        return setPatientConsents(patient, consents);
+    }
+
     /**
      * Checks if a specific consent is given for the patient record. If consentId is not configured
      * in the system returns {@code false} regardless of patient consent status.
@@ -17,6 +17,7 @@
  */
 package org.phenotips.consents.internal;
 
+import org.phenotips.Constants;
 import org.phenotips.configuration.RecordConfiguration;
 import org.phenotips.configuration.RecordElement;
 import org.phenotips.configuration.RecordSection;
@@ -26,6 +27,10 @@
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 
 import java.util.Collections;
 import java.util.List;
@@ -36,6 +41,9 @@
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
  * Implementation of {@link RecordConfiguration} that disables all elements that require a consent which hasn't been
@@ -53,6 +61,10 @@ public class ConsentsRecordConfigurationModule implements RecordConfigurationMod
 
     private static final String[] SUPPORTED_RECORD_TYPES = new String[] { PATIENT_TYPE_LABEL };
 
+    /** The document where the consents are configured. */
+    private static final EntityReference CONSENTS_CONFIGURATION =
+        new EntityReference("Consents", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+
     @Inject
     private PatientRepository patients;
 
@@ -62,6 +74,13 @@ public class ConsentsRecordConfigurationModule implements RecordConfigurationMod
     @Inject
     private ConsentAuthorizer consentAuthorizer;
 
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<EntityReference> resolver;
+
+    @Inject
+    private Logger logger;
+
     @Override
     public RecordConfiguration process(RecordConfiguration config)
     {
@@ -125,4 +144,30 @@ public boolean supportsRecordType(String recordType)
     {
         return ArrayUtils.contains(SUPPORTED_RECORD_TYPES, recordType);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The configuration depends on the consents granted in the current patient record and on the configured consents,
+     * so the key is the reference and version of the current document, along with the version of the consents
+     * configuration.
+     * </p>
+     */
+    @Override
+    public String getCacheKey(String recordType)
+    {
+        DocumentReference current = this.dab.getCurrentDocumentReference();
+        if (current == null) {
+            return "";
+        }
+        try {
+            XWikiDocument record = (XWikiDocument) this.dab.getDocument(current);
+            XWikiDocument configuration =
+                (XWikiDocument) this.dab.getDocument(this.resolver.resolve(CONSENTS_CONFIGURATION));
+            return current + "@" + record.getVersion() + "," + configuration.getVersion();
+        } catch (Exception ex) {
+            this.logger.warn("Failed to read the consents of [{}]: {}", current, ex.getMessage());
+        }
+        return null;
+    }
 }
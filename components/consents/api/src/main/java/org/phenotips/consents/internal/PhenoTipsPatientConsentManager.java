@@ -328,12 +328,20 @@ private Set<String> readConsentIdsFromPatientDoc(Patient patient)
 
     @Override
     public boolean setPatientConsents(Patient patient, Iterable<String> consents)
+    {
+        return setPatientConsents(patient, consents, true);
+    }
+
+    @Override
+    public boolean setPatientConsents(Patient patient, Iterable<String> consents, boolean saveDocument)
     {
         try {
             List<Consent> existingConsents = this.selectFromSystem(consents);
             SaveablePatientConsentHolder holder = this.getPatientConsentHolder(patient);
             holder.setConsents(convertToIds(existingConsents));
-            holder.save();
+            if (saveDocument) {
+                holder.save();
+            }
             return true;
         } catch (Exception ex) {
             this.logger.error("Could not update consents in patient record {}. {}", patient, ex.getMessage());
@@ -27,6 +27,8 @@
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.uiextension.UIExtension;
 import org.xwiki.uiextension.UIExtensionFilter;
@@ -42,6 +44,8 @@
 import org.junit.Test;
 import org.mockito.internal.stubbing.answers.ReturnsArgumentAt;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -228,4 +232,32 @@ public void supportsRecordTypeReturnsFalseIfNullOrEmpty() throws ComponentLookup
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(null));
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(""));
     }
+
+    @Test
+    public void cacheKeyIdentifiesTheRecordAndConsentsVersions() throws Exception
+    {
+        DocumentReference record = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReference consents = new DocumentReference("xwiki", "PhenoTips", "Consents");
+        DocumentAccessBridge dab = this.mocker.getInstance(DocumentAccessBridge.class);
+        DocumentReferenceResolver<EntityReference> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        XWikiDocument recordDocument = mock(XWikiDocument.class);
+        XWikiDocument consentsDocument = mock(XWikiDocument.class);
+        when(dab.getCurrentDocumentReference()).thenReturn(record);
+        when(resolver.resolve(any(EntityReference.class))).thenReturn(consents);
+        when(dab.getDocument(record)).thenReturn(recordDocument);
+        when(dab.getDocument(consents)).thenReturn(consentsDocument);
+        when(recordDocument.getVersion()).thenReturn("7.1");
+        when(consentsDocument.getVersion()).thenReturn("2.1");
+
+        Assert.assertEquals(record + "@7.1,2.1", this.mocker.getComponentUnderTest().getCacheKey(PATIENT_LABEL));
+    }
+
+    @Test
+    public void cacheKeyIsEmptyWithoutACurrentDocument() throws ComponentLookupException
+    {
+        DocumentAccessBridge dab = this.mocker.getInstance(DocumentAccessBridge.class);
+        when(dab.getCurrentDocumentReference()).thenReturn(null);
+        Assert.assertEquals("", this.mocker.getComponentUnderTest().getCacheKey(PATIENT_LABEL));
+    }
 }
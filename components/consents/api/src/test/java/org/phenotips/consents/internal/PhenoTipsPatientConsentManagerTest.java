@@ -54,10 +54,12 @@
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -437,4 +439,25 @@ public void testSettingConsentsOnARecordWithNonExistentConsents() throws Excepti
         verify(idsHolder, times(1)).set(eq("granted"), eq(existingIds), eq(context));
         verify(wiki, times(1)).saveDocument(eq(patientDoc), anyString(), eq(true), eq(context));
     }
+
+    @Test
+    public void testSettingConsentsOnARecordWithoutSaving() throws Exception
+    {
+        BaseObject idsHolder = mock(BaseObject.class);
+        Patient patient = mock(Patient.class);
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki wiki = mock(XWiki.class);
+        XWikiDocument patientDoc = mock(XWikiDocument.class);
+
+        this.setUpSettingConsents(idsHolder, patient, patientDoc, context, wiki);
+
+        List<String> granted = new LinkedList<>();
+        granted.add(ConsentConfigurationMocks.TEST_ID1);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().setPatientConsents(patient, granted, false));
+
+        verify(idsHolder, times(1)).set(eq("granted"), eq(granted), eq(context));
+        verify(wiki, never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+    }
 }
@@ -18,6 +18,7 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -33,7 +34,6 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -63,12 +63,31 @@
 @Component
 public class DefaultDiagnosisService implements DiagnosisService, Initializable
 {
+    /** Diseases whose name starts with *, +, or ^ are not suggested. */
+    private static final Pattern EXCLUDED_NAMES = Pattern.compile("^[*+^]");
+
+    /** The prefix of the OMIM vocabulary. */
+    private static final String OMIM_PREFIX = "MIM";
+
+    /** The prefix of the BOQA identifiers of OMIM diseases, not used by the OMIM vocabulary index. */
+    private static final String OMIM_ID_PREFIX = OMIM_PREFIX + ':';
+
+    /** The maximum number of diseases resolved in one request, well below the Solr limit on boolean clauses. */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /** How many extra candidates are resolved, to make up for the diseases that cannot be suggested. */
+    private static final int CANDIDATE_MARGIN = 10;
+
+    /** The number of workers used by BOQA for computing the marginals of a single query. */
+    private static final int MARGINAL_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     @Inject
     private Logger logger;
 
     private BOQA boqa;
 
-    private Map<Integer, ByteString> omimMap;
+    /** The OMIM identifier of each BOQA item, indexed by the item index, or {@code null} for non-OMIM items. */
+    private String[] omimIds;
 
     @Inject
     private VocabularyManager vocabulary;
@@ -115,12 +134,16 @@ public void initialize() throws InitializationException
 
         this.boqa.setup(this.utils.getGraph(), this.utils.getDataAssociation());
 
-        // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa
+        // Set up our index -> OMIM identifier mapping by flipping the OMIM -> Index mapping in boqa
         Set<Map.Entry<ByteString, Integer>> omimtonum = this.boqa.item2Index.entrySet();
-        this.omimMap = new HashMap<>(omimtonum.size());
+        this.omimIds = new String[omimtonum.size()];
 
         for (Map.Entry<ByteString, Integer> item : omimtonum) {
-            this.omimMap.put(item.getValue(), item.getKey());
+            String termId = String.valueOf(item.getKey());
+            // Only OMIM diseases are suggested; strip the 'O' in "OMIM"
+            if ("OMIM".equals(StringUtils.substringBefore(termId, ":"))) {
+                this.omimIds[item.getValue()] = termId.substring(1);
+            }
         }
     }
 
@@ -139,53 +162,141 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
             searchIsEmpty = !addTermAndAncestors(t, o) && searchIsEmpty;
         }
 
-        if (searchIsEmpty) {
+        if (searchIsEmpty || limit <= 0) {
             return Collections.emptyList();
         }
 
-        // Get marginals
-        final BOQA.Result res = this.boqa.assignMarginals(o, false, 1);
+        // Get marginals, letting BOQA split the diseases between several workers
+        final BOQA.Result res = this.boqa.assignMarginals(o, false, MARGINAL_THREADS);
+        final double[] scores = new double[res.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = res.getMarginal(i);
+        }
 
-        // All of this is sorting diseases by marginals
-        Integer[] order = new Integer[res.size()];
-        for (int i = 0; i < order.length; i++) {
-            order[i] = i;
+        // Only the best candidates are ranked and resolved; the window is widened only if too many are discarded
+        List<VocabularyTerm> results = new ArrayList<>(limit);
+        int processed = 0;
+        int window = limit + CANDIDATE_MARGIN;
+        while (results.size() < limit) {
+            int[] candidates = selectTop(scores, window);
+            addResults(Arrays.copyOfRange(candidates, processed, candidates.length), limit, results);
+            if (candidates.length < window) {
+                break;
+            }
+            processed = candidates.length;
+            window *= 2;
         }
 
-        Arrays.sort(order, new Comparator<Integer>()
-        {
-            @Override
-            public int compare(Integer o1, Integer o2)
-            {
-                if (res.getMarginal(o1) < res.getMarginal(o2)) {
-                    return 1;
-                }
-                if (res.getMarginal(o1) > res.getMarginal(o2)) {
-                    return -1;
-                }
-                return 0;
+        this.logger.debug(String.valueOf(results));
+
+        return results;
+    }
+
+    /**
+     * Selects the OMIM diseases with the highest scores, using a bounded min-heap. Ties are broken by the disease
+     * index, so that a smaller selection is always a prefix of a larger one.
+     *
+     * @param scores the marginal score of each disease, indexed by the BOQA item index
+     * @param k the maximum number of diseases to select
+     * @return the indexes of the selected diseases, best first
+     */
+    private int[] selectTop(double[] scores, int k)
+    {
+        int[] heap = new int[k];
+        int size = 0;
+        int items = Math.min(scores.length, this.omimIds.length);
+        for (int i = 0; i < items; i++) {
+            if (this.omimIds[i] == null) {
+                // ignore non-OMIM diseases (BOQA has ORPHANET and DECIPHER as well)
+                continue;
             }
-        });
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (isWorse(heap[0], i, scores)) {
+                heap[0] = i;
+                siftDown(heap, size, scores);
+            }
+        }
+        // Empty the heap from the worst to the best
+        int[] result = new int[size];
+        for (int n = size - 1; n >= 0; n--) {
+            result[n] = heap[0];
+            heap[0] = heap[n];
+            siftDown(heap, n, scores);
+        }
+        return result;
+    }
 
-        // Get top limit results
-        List<VocabularyTerm> results = new ArrayList<>();
-        for (int id : order) {
-            if (results.size() >= limit) {
+    /** Whether disease {@code a} ranks below disease {@code b}. */
+    private static boolean isWorse(int a, int b, double[] scores)
+    {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+    }
+
+    private static void siftUp(int[] heap, int position, double[] scores)
+    {
+        int child = position;
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!isWorse(heap[child], heap[parent], scores)) {
                 break;
             }
+            swap(heap, child, parent);
+            child = parent;
+        }
+    }
 
-            String termId = String.valueOf(this.omimMap.get(id));
-            String vocabularyId = StringUtils.substringBefore(termId, ":");
-
-            // ignore non-OMIM diseases (BOQA has ORPHANET and DECIPHER as well)
-            if (!"OMIM".equals(vocabularyId)) {
-                continue;
+    private static void siftDown(int[] heap, int size, double[] scores)
+    {
+        int parent = 0;
+        while (true) {
+            int worst = parent;
+            int left = 2 * parent + 1;
+            int right = left + 1;
+            if (left < size && isWorse(heap[left], heap[worst], scores)) {
+                worst = left;
+            }
+            if (right < size && isWorse(heap[right], heap[worst], scores)) {
+                worst = right;
             }
+            if (worst == parent) {
+                return;
+            }
+            swap(heap, parent, worst);
+            parent = worst;
+        }
+    }
 
-            // Strip 'O' in "OMIM"
-            termId = termId.substring(1);
+    private static void swap(int[] heap, int i, int j)
+    {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
 
-            VocabularyTerm term = this.vocabulary.resolveTerm(termId);
+    /**
+     * Resolves the given candidate diseases in batched vocabulary requests, and adds the suitable ones to the results,
+     * in order, until the limit is reached.
+     *
+     * @param candidates the BOQA indexes of the candidate diseases, best first
+     * @param limit the maximum number of results
+     * @param results the results list to fill
+     */
+    private void addResults(int[] candidates, int limit, List<VocabularyTerm> results)
+    {
+        List<String> termIds = new ArrayList<>(candidates.length);
+        for (int candidate : candidates) {
+            termIds.add(this.omimIds[candidate]);
+        }
+        Map<String, VocabularyTerm> terms = resolveTerms(termIds);
+
+        for (String termId : termIds) {
+            if (results.size() >= limit) {
+                break;
+            }
+
+            VocabularyTerm term = terms.get(termId);
 
             if (term == null) {
                 this.logger.warn(String.format(
@@ -194,18 +305,44 @@ public int compare(Integer o1, Integer o2)
             }
 
             // Do not suggest diseases that start with *, +, and ^
-            Pattern pattern = Pattern.compile("[*+^]");
-            if (pattern.matcher(term.getName().substring(0, 1)).matches()) {
+            if (EXCLUDED_NAMES.matcher(StringUtils.defaultString(term.getName())).find()) {
                 continue;
             }
 
             results.add(term);
-
         }
+    }
 
-        this.logger.debug(String.valueOf(results));
-
-        return results;
+    /**
+     * Resolves the given OMIM diseases, in batches small enough for the vocabulary index to accept.
+     *
+     * @param termIds the prefixed BOQA identifiers of the diseases, e.g. {@code MIM:100050}
+     * @return the resolved terms, keyed by the requested identifier; unknown diseases are missing from the map
+     */
+    private Map<String, VocabularyTerm> resolveTerms(List<String> termIds)
+    {
+        Map<String, VocabularyTerm> result = new HashMap<>();
+        Vocabulary omim = this.vocabulary.getVocabulary(OMIM_PREFIX);
+        if (omim == null) {
+            for (String termId : termIds) {
+                result.put(termId, this.vocabulary.resolveTerm(termId));
+            }
+            return result;
+        }
+        for (int start = 0; start < termIds.size(); start += MAX_BATCH_SIZE) {
+            // The OMIM index stores the bare MIM numbers
+            Map<String, String> requested = new HashMap<>();
+            for (String termId : termIds.subList(start, Math.min(termIds.size(), start + MAX_BATCH_SIZE))) {
+                requested.put(StringUtils.removeStart(termId, OMIM_ID_PREFIX), termId);
+            }
+            for (VocabularyTerm term : omim.getTerms(requested.keySet())) {
+                String termId = requested.get(StringUtils.removeStart(term.getId(), OMIM_ID_PREFIX));
+                if (termId != null) {
+                    result.put(termId, term);
+                }
+            }
+        }
+        return result;
     }
 
     private boolean addTermAndAncestors(Term t, Observations o)
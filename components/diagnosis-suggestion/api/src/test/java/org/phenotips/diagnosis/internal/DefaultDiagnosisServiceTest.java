@@ -18,6 +18,7 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -30,10 +31,16 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
@@ -41,11 +48,16 @@
 
 import sonumina.boqa.calculation.BOQA;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -63,11 +75,12 @@
     public final MockitoComponentMockingRule<Utils> workingUtils =
         new MockitoComponentMockingRule<>(BoqaUtils.class);
 
+    /** The largest batch of identifiers requested from the OMIM vocabulary. */
+    private int largestBatch;
+
     @Test
     public void returnsCorrectDiagnosis() throws ComponentLookupException, IOException, InterruptedException
     {
-        String tempDir = System.getProperty("java.io.tmpdir");
-
         /** This test is prone to outdated ontologies. */
         List<List<String>> phenotypes = new LinkedList<>();
         List<List<String>> disorderIds = new LinkedList<>();
@@ -75,26 +88,82 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         disorderIds.add(Arrays.asList(new String[0]));
         phenotypes.add(
             Arrays.asList("HP:0000028", "HP:0000049", "HP:0000202", "HP:0000204", "HP:0000316", "HP:0001869"));
-        disorderIds.add(Arrays.asList("MIM:100050"));
+        disorderIds.add(Arrays.asList("100050"));
         phenotypes.add(
             Arrays.asList("HP:0000707", "HP:0001939", "HP:0003811"));
-        disorderIds.add(Arrays.asList("MIM:306300"));
+        disorderIds.add(Arrays.asList("306300"));
         phenotypes.add(Arrays.asList("HP:0001417", "HP:0001287"));
-        disorderIds.add(Arrays.asList("MIM:308250"));
+        disorderIds.add(Arrays.asList("308250"));
         /* Harder tests */
         phenotypes.add(Arrays.asList("HP:0001419", "HP:0001939", "HP:0001005"));
-        disorderIds.add(Arrays.asList("MIM:308600"));
+        disorderIds.add(Arrays.asList("308600"));
         phenotypes.add(Arrays.asList("HP:0011495", "HP:0000502", "HP:0001005", "HP:0000534"));
-        disorderIds.add(Arrays.asList("MIM:308800"));
+        disorderIds.add(Arrays.asList("308800"));
         /* An empty/invalid HPO term will fail to find a boqa index and should be handled correctly */
         phenotypes.add(Arrays.asList("HP:"));
         disorderIds.add(Arrays.asList(new String[0]));
         phenotypes.add(
             Arrays.asList("HP:0000028", "HP:0000049", "HP:", "HP:0000202", "HP:0000204", "HP:0000316", "HP:0001869"));
-        disorderIds.add(Arrays.asList("MIM:100050"));
+        disorderIds.add(Arrays.asList("100050"));
 
         int invalidPhenotypes = 2;
 
+        DiagnosisService diagnosisService = setUpService();
+        VocabularyManager vocabulary = this.mocker.getInstance(VocabularyManager.class);
+        Vocabulary omim = vocabulary.getVocabulary("MIM");
+
+        int limit = 3;
+        int i = 0;
+        List<String> nonstandardPhenotypeSet = new LinkedList<>();
+        nonstandardPhenotypeSet.add("Non-standard term");
+        for (List<String> phenotypeSet : phenotypes) {
+            List<VocabularyTerm> diagnoses =
+                diagnosisService.getDiagnosis(phenotypeSet, nonstandardPhenotypeSet, limit);
+            List<String> diagnosisIds = new LinkedList<>();
+            for (VocabularyTerm diagnosis : diagnoses) {
+                diagnosisIds.add(diagnosis.getId());
+            }
+            assertTrue(diagnosisIds.containsAll(disorderIds.get(i)));
+            assertTrue(diagnosisIds.size() <= limit);
+            i++;
+        }
+        // All the candidates of a query are resolved at once
+        verify(omim, times(i - invalidPhenotypes)).getTerms(anyCollectionOf(String.class));
+        verify(vocabulary, never()).resolveTerm(anyString());
+    }
+
+    @Test
+    public void resolvesManyDiagnosesInBoundedBatches() throws ComponentLookupException, IOException,
+        InterruptedException
+    {
+        DiagnosisService diagnosisService = setUpService();
+        VocabularyManager vocabulary = this.mocker.getInstance(VocabularyManager.class);
+        Vocabulary omim = vocabulary.getVocabulary("MIM");
+
+        int limit = 1200;
+        List<VocabularyTerm> diagnoses = diagnosisService.getDiagnosis(
+            Arrays.asList("HP:0000028", "HP:0000049", "HP:0000202"), Collections.<String>emptyList(), limit);
+
+        assertEquals(limit, diagnoses.size());
+        Set<String> diagnosisIds = new HashSet<>();
+        for (VocabularyTerm diagnosis : diagnoses) {
+            assertFalse(diagnosis.getId().startsWith("MIM:"));
+            diagnosisIds.add(diagnosis.getId());
+        }
+        assertEquals(limit, diagnosisIds.size());
+        assertTrue(this.largestBatch <= 500);
+        verify(omim, atLeast(3)).getTerms(anyCollectionOf(String.class));
+        verify(vocabulary, never()).resolveTerm(anyString());
+    }
+
+    /**
+     * Sets up the diagnosis service with the real BOQA data, and an OMIM vocabulary which, like the real index, only
+     * knows the bare MIM numbers.
+     */
+    private DiagnosisService setUpService() throws ComponentLookupException, IOException, InterruptedException
+    {
+        String tempDir = System.getProperty("java.io.tmpdir");
+
         VocabularyManager vocabulary = this.mocker.getInstance(VocabularyManager.class);
         Environment env = this.mocker.getInstance(Environment.class);
         Utils utils = this.mocker.getInstance(Utils.class);
@@ -114,39 +183,34 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         doReturn(tempSpy).when(utilsEnv).getTemporaryDirectory();
         workingUtilsComponent.loadDataFiles(vocabularyPath, annotationPath);
 
-        doAnswer(new Answer<VocabularyTerm>()
+        Vocabulary omim = mock(Vocabulary.class);
+        doReturn(omim).when(vocabulary).getVocabulary("MIM");
+        doAnswer(new Answer<Set<VocabularyTerm>>()
         {
             @Override
-            public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
+            public Set<VocabularyTerm> answer(InvocationOnMock invocationOnMock) throws Throwable
             {
-                String id = (String) invocationOnMock.getArguments()[0];
-                VocabularyTerm term = mock(VocabularyTerm.class);
-                doReturn(id).when(term).getId();
-                doReturn("test").when(term).getName();
-                return term;
+                Collection<?> ids = (Collection<?>) invocationOnMock.getArguments()[0];
+                DefaultDiagnosisServiceTest.this.largestBatch =
+                    Math.max(DefaultDiagnosisServiceTest.this.largestBatch, ids.size());
+                Set<VocabularyTerm> terms = new LinkedHashSet<>();
+                for (Object id : ids) {
+                    if (!StringUtils.isNumeric((String) id)) {
+                        continue;
+                    }
+                    VocabularyTerm term = mock(VocabularyTerm.class);
+                    doReturn(id).when(term).getId();
+                    doReturn("test").when(term).getName();
+                    terms.add(term);
+                }
+                return terms;
             }
-        }).when(vocabulary).resolveTerm(anyString());
+        }).when(omim).getTerms(anyCollectionOf(String.class));
 
         doReturn(tempSpy).when(env).getTemporaryDirectory();
         doReturn(workingUtilsComponent.getGraph()).when(utils).getGraph();
         doReturn(workingUtilsComponent.getDataAssociation()).when(utils).getDataAssociation();
-        DiagnosisService diagnosisService = this.mocker.getComponentUnderTest();
-
-        int limit = 3;
-        int i = 0;
-        List<String> nonstandardPhenotypeSet = new LinkedList<>();
-        nonstandardPhenotypeSet.add("Non-standard term");
-        for (List<String> phenotypeSet : phenotypes) {
-            List<VocabularyTerm> diagnoses =
-                diagnosisService.getDiagnosis(phenotypeSet, nonstandardPhenotypeSet, limit);
-            List<String> diagnosisIds = new LinkedList<>();
-            for (VocabularyTerm diagnosis : diagnoses) {
-                diagnosisIds.add(diagnosis.getId());
-            }
-            assertTrue(diagnosisIds.containsAll(disorderIds.get(i)));
-            i++;
-        }
-        verify(vocabulary, times(limit * (i - invalidPhenotypes))).resolveTerm(anyString());
+        return this.mocker.getComponentUnderTest();
     }
 
     private File stream2file(InputStream in) throws IOException
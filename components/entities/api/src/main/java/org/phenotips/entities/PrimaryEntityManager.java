@@ -23,6 +23,7 @@
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
@@ -97,6 +98,19 @@
      */
     Iterator<E> getAll();
 
+    /**
+     * Retrieves the entities stored in the specified documents. This is equivalent to calling
+     * {@link #get(DocumentReference)} for each reference, but entities are loaded lazily, several at a time, which is
+     * faster for large collections.
+     *
+     * @param references references to the {@link PrimaryEntity#getDocumentReference() documents where the entities are
+     *            stored}; partial references are resolved relative to the {@link #getDataSpace() data space}
+     * @return an iterator returning one item for each reference, in the same order, with {@code null} items for the
+     *         documents that don't contain a proper entity
+     * @since 1.4
+     */
+    Iterator<E> getAll(Collection<? extends EntityReference> references);
+
     /**
      * Deletes an entity.
      *
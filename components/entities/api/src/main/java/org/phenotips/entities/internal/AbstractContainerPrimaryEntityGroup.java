@@ -79,7 +79,6 @@ protected AbstractContainerPrimaryEntityGroup(XWikiDocument document)
     @Override
     public Collection<E> getMembersOfType(EntityReference type)
     {
-        Collection<E> result = new LinkedList<>();
         try {
             StringBuilder hql = new StringBuilder();
             hql.append("select distinct binding.name from BaseObject binding, StringProperty groupReference");
@@ -100,13 +99,11 @@ public Collection<E> getMembersOfType(EntityReference type)
             q.bindValue("selfReference", getFullSerializer().serialize(getDocumentReference()));
             q.bindValue("entityType", getLocalSerializer().serialize(type));
             List<String> memberIds = q.execute();
-            for (String memberId : memberIds) {
-                result.add(this.membersManager.get(memberId));
-            }
+            return loadMembers(memberIds);
         } catch (QueryException ex) {
             this.logger.warn("Failed to query members: {}", ex.getMessage());
         }
-        return result;
+        return new LinkedList<>();
     }
 
     @Override
@@ -25,13 +25,17 @@
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.stability.Unstable;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -73,13 +77,16 @@
 {
     protected final PrimaryEntityManager<E> membersManager;
 
+    /** Resolves the identifiers of the members into document references. */
+    private final DocumentReferenceResolver<String> memberResolver;
+
     protected AbstractPrimaryEntityGroup(XWikiDocument document)
     {
         super(document);
 
+        ComponentManager cm = ComponentManagerRegistry.getContextComponentManager();
         PrimaryEntityManager<E> manager = null;
         if (getMemberType() != null) {
-            ComponentManager cm = ComponentManagerRegistry.getContextComponentManager();
             String[] possibleRoles = new String[3];
             possibleRoles[0] = getLocalSerializer().serialize(getMemberType());
             possibleRoles[1] = getMemberType().getName();
@@ -97,6 +104,14 @@ protected AbstractPrimaryEntityGroup(XWikiDocument document)
                 + " certain group operations will fail", getMemberType());
         }
         this.membersManager = manager;
+
+        DocumentReferenceResolver<String> resolver = null;
+        try {
+            resolver = cm.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        } catch (ComponentLookupException ex) {
+            this.logger.error("Failed to access the reference resolver: {}", ex.getMessage(), ex);
+        }
+        this.memberResolver = resolver;
     }
 
     @Override
@@ -108,7 +123,6 @@ public Collection<E> getMembers()
     @Override
     public Collection<E> getMembersOfType(EntityReference type)
     {
-        Collection<E> result = new LinkedList<>();
         try {
             StringBuilder hql = new StringBuilder();
             hql.append("select distinct binding.name from BaseObject binding, StringProperty groupReference");
@@ -131,13 +145,11 @@ public Collection<E> getMembersOfType(EntityReference type)
                 q.bindValue("entityType", getLocalSerializer().serialize(type));
             }
             List<String> memberIds = q.execute();
-            for (String memberId : memberIds) {
-                result.add(this.membersManager.get(memberId));
-            }
+            return loadMembers(memberIds);
         } catch (QueryException ex) {
             this.logger.warn("Failed to query members: {}", ex.getMessage());
         }
-        return result;
+        return new LinkedList<>();
     }
 
     @Override
@@ -184,6 +196,30 @@ public boolean removeMember(E member)
         return false;
     }
 
+    /**
+     * Loads the members with the given identifiers in chunks, through {@link PrimaryEntityManager#getAll(Collection)},
+     * instead of loading each member on its own.
+     *
+     * @param memberIds the identifiers of the members, i.e. the serialized references of their documents
+     * @return a new modifiable list, with {@code null} items for the members that cannot be loaded
+     */
+    protected List<E> loadMembers(List<String> memberIds)
+    {
+        List<E> result = new LinkedList<>();
+        if (this.memberResolver == null) {
+            return result;
+        }
+        List<DocumentReference> references = new ArrayList<>(memberIds.size());
+        for (String memberId : memberIds) {
+            references.add(this.memberResolver.resolve(memberId, this.membersManager.getDataSpace()));
+        }
+        Iterator<E> members = this.membersManager.getAll(references);
+        while (members.hasNext()) {
+            result.add(members.next());
+        }
+        return result;
+    }
+
     protected QueryManager getQueryManager()
     {
         try {
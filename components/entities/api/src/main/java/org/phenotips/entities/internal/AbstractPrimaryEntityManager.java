@@ -23,11 +23,15 @@
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
@@ -37,9 +41,18 @@
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -68,7 +81,8 @@
  * {@code PhenoTips.DiseaseStudyClass} the prefix will be {@code DS}; override {@link #getIdPrefix()} to change this
  * behavior</li>
  * <li>the number is a 0-padded 7 digit number, starting at {@code 0000001} and automatically incremented for each new
- * entity created</li>
+ * entity created; numbers are reserved in blocks, so the {@link #getLastUsedId() last used number} is only looked up
+ * once per block, and entities can be created concurrently</li>
  * </ul>
  * </li>
  * </ul>
@@ -80,6 +94,19 @@
 @Unstable("New class and interface added in 1.3")
 public abstract class AbstractPrimaryEntityManager<E extends PrimaryEntity> implements PrimaryEntityManager<E>
 {
+    /** The number of identifiers reserved at once, see {@link #getNextDocument()}. */
+    private static final int ID_BLOCK_SIZE = 100;
+
+    /** The number of entities loaded together, see {@link #getAll(Collection)}. */
+    private static final int BULK_LOAD_CHUNK_SIZE = 100;
+
+    /**
+     * Hands out the identifiers for new entities, one allocator for each XClass, in each wiki. Shared by all the
+     * managers, since several managers may create entities of the same type, for example a basic and an extended
+     * family manager.
+     */
+    private static final ConcurrentMap<DocumentReference, EntityIdAllocator> ID_ALLOCATORS = new ConcurrentHashMap<>();
+
     /** Logging helper object. */
     @Inject
     protected Logger logger;
@@ -111,6 +138,17 @@
     @Named("local")
     protected EntityReferenceSerializer<String> localSerializer;
 
+    /** Used for discarding cached type descriptors when their XClass is deleted. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The XClass, identifier prefix and data space of the managed entities, resolved once for each wiki. */
+    private final ConcurrentMap<String, EntityTypeDescriptor> descriptors = new ConcurrentHashMap<>();
+
+    /** Whether the listener discarding cached type descriptors is registered. */
+    private final AtomicBoolean descriptorListenerRegistered = new AtomicBoolean();
+
+
     /** The concrete {@link PrimaryEntity} instance class being managed. */
     private Class<? extends E> eclass;
 
@@ -124,7 +162,7 @@ public E create()
     }
 
     @Override
-    public synchronized E create(DocumentReference creator)
+    public E create(DocumentReference creator)
     {
         try {
             XWikiContext context = this.xcontextProvider.get();
@@ -157,7 +195,7 @@ public synchronized E create(DocumentReference creator)
     @Override
     public E get(String id)
     {
-        return get(this.stringResolver.resolve(id, getDataSpace()));
+        return get(this.stringResolver.resolve(id, getDescriptor().dataSpace));
     }
 
     @Override
@@ -189,7 +227,7 @@ public E getByName(String name)
                 "select doc.fullName from Document doc, doc.object("
                     + this.localSerializer.serialize(getEntityXClassReference())
                     + ") as entity where doc.space = :space and doc.title = :name",
-                Query.XWQL).bindValue("space", this.getDataSpace().getName()).bindValue("name", name);
+                Query.XWQL).bindValue("space", getDescriptor().dataSpace.getName()).bindValue("name", name);
             List<String> docNames = q.execute();
             for (String docName : docNames) {
                 return get(docName);
@@ -220,6 +258,24 @@ public Iterator<E> getAll()
         return Collections.emptyIterator();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Entities are loaded in chunks: for each chunk, a single query finds which of the documents hold an entity of the
+     * managed type, and only those documents are loaded, through {@link #get(DocumentReference)}.
+     * </p>
+     */
+    @Override
+    public Iterator<E> getAll(Collection<? extends EntityReference> references)
+    {
+        List<DocumentReference> documents = new ArrayList<>(references.size());
+        EntityReference dataSpace = getDescriptor().dataSpace;
+        for (EntityReference reference : references) {
+            documents.add(this.referenceResolver.resolve(reference, dataSpace));
+        }
+        return new ChunkedPrimaryEntityIterator<>(documents, BULK_LOAD_CHUNK_SIZE, this::filterEntityDocuments, this);
+    }
+
     @Override
     public boolean delete(E entity)
     {
@@ -252,30 +308,84 @@ public E load(DocumentModelBridge document) throws IllegalArgumentException
     /**
      * Gets a reference to the next document that can be used for a newly created entity. It uses {@link #getIdPrefix()
      * a short prefix} and {@link #getLastUsedId() a sequence number} for the document name, and {@link #getDataSpace()
-     * a space that can be configured by subclases}.
+     * a space that can be configured by subclases}. Sequence numbers are handed out from blocks reserved in memory,
+     * shared by all the managers of the same XClass, so concurrent calls get different documents without locking.
      *
      * @return a reference for a new document
      */
     protected DocumentReference getNextDocument()
     {
         String prefix = getIdPrefix();
-        long id = getLastUsedId();
+        EntityReference dataSpace = getDescriptor().dataSpace;
+        EntityIdAllocator allocator = ID_ALLOCATORS.computeIfAbsent(getEntityXClassReference(),
+            xclass -> new EntityIdAllocator(ID_BLOCK_SIZE, this::getLastUsedId));
         DocumentReference newDoc;
         do {
             newDoc = this.referenceResolver.resolve(new EntityReference(
-                prefix + String.format("%07d", ++id), EntityType.DOCUMENT, getDataSpace()));
+                prefix + String.format("%07d", allocator.next()), EntityType.DOCUMENT, dataSpace));
         } while (this.bridge.exists(newDoc));
         return newDoc;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The base implementation derives the prefix from the XClass named by the {@code @Named} annotation, so it should
+     * be overridden along with {@link #getEntityXClassReference()}.
+     * </p>
+     */
     @Override
     public String getIdPrefix()
     {
-        String name = getEntityXClassReference().getName();
-        name = StringUtils.removeEnd(name, "Class");
-        return name.replaceAll("\\p{Lower}++", "");
+        return getDescriptor().idPrefix;
+    }
+
+    /**
+     * Selects, from a chunk of documents, those that hold an entity of the managed type, using a single query.
+     *
+     * @param documents the documents to check
+     * @return the documents holding an entity, or {@code null} if the query failed
+     */
+    private Set<DocumentReference> filterEntityDocuments(List<DocumentReference> documents)
+    {
+        String wiki = this.xcontextProvider.get().getWikiId();
+        Set<DocumentReference> result = new HashSet<>();
+        Map<String, DocumentReference> localDocuments = new HashMap<>();
+        for (DocumentReference document : documents) {
+            if (wiki.equals(document.getWikiReference().getName())) {
+                localDocuments.put(this.localSerializer.serialize(document), document);
+            } else {
+                // The query only covers the current wiki, leave it to get() to check documents from other wikis
+                result.add(document);
+            }
+        }
+        if (localDocuments.isEmpty()) {
+            return result;
+        }
+        try {
+            Query q = this.qm.createQuery(
+                "select doc.fullName from Document doc, doc.object("
+                    + this.localSerializer.serialize(getEntityXClassReference())
+                    + ") as entity where doc.fullName in (:names)",
+                Query.XWQL).bindValue("names", new ArrayList<>(localDocuments.keySet()));
+            List<String> docNames = q.execute();
+            for (String docName : docNames) {
+                result.add(localDocuments.get(docName));
+            }
+            return result;
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to check which documents hold entities of type [{}]: {}",
+                getEntityXClassReference(), ex.getMessage());
+        }
+        return null;
     }
 
+    /**
+     * Looks up the largest sequence number used by the existing entities. Called when a new block of identifiers is
+     * reserved, and not for each new entity.
+     *
+     * @return the largest sequence number in use, or {@code 0} if there are no entities yet
+     */
     protected long getLastUsedId()
     {
         long crtMaxID = 0;
@@ -285,7 +395,7 @@ protected long getLastUsedId()
                     "select doc.name from Document doc, doc.object("
                         + this.localSerializer.serialize(getEntityXClassReference())
                         + ") as entity where doc.space = :space order by doc.name desc",
-                    Query.XWQL).bindValue("space", this.getDataSpace().getName()).setLimit(1);
+                    Query.XWQL).bindValue("space", getDescriptor().dataSpace.getName()).setLimit(1);
             List<String> crtMaxIDList = q.execute();
             if (!crtMaxIDList.isEmpty() && crtMaxIDList.get(0) != null) {
                 crtMaxID = Integer.parseInt(crtMaxIDList.get(0).replaceAll("\\D++", ""));
@@ -310,11 +420,31 @@ protected long getLastUsedId()
      * <li>PhenoTips.Patient</li>
      * <li>PatientClass</li>
      * </ul>
-     * If, instead, the targeted XClass is {@code OncoTips.Family}, then only that exact name is supported.
+     * If, instead, the targeted XClass is {@code OncoTips.Family}, then only that exact name is supported. The
+     * reference is only resolved once in each virtual instance, and resolved again if the XClass document is deleted.
      *
      * @return a full reference resolved in the current virtual instance
      */
     protected DocumentReference getEntityXClassReference()
+    {
+        return getDescriptor().xclass;
+    }
+
+    private EntityTypeDescriptor getDescriptor()
+    {
+        String wiki = this.xcontextProvider.get().getWikiId();
+        EntityTypeDescriptor result = this.descriptors.get(wiki);
+        if (result == null) {
+            if (this.descriptorListenerRegistered.compareAndSet(false, true)) {
+                this.observationManager.addListener(new DescriptorInvalidator());
+            }
+            result = new EntityTypeDescriptor(resolveEntityXClassReference(), getDataSpace());
+            this.descriptors.put(wiki, result);
+        }
+        return result;
+    }
+
+    private DocumentReference resolveEntityXClassReference()
     {
         if (this.getClass().getAnnotation(Named.class) == null) {
             this.logger.error("Invalid component configuration: {} does not have a @Named annotation",
@@ -391,4 +521,48 @@ protected Constructor<? extends E> getEntityConstructor() throws AbstractMethodE
         }
         return this.econstructor;
     }
+
+    /** The resolved XClass of the managed entities, the identifier prefix derived from it, and the data space. */
+    private static final class EntityTypeDescriptor
+    {
+        private final DocumentReference xclass;
+
+        private final String idPrefix;
+
+        private final EntityReference dataSpace;
+
+        EntityTypeDescriptor(DocumentReference xclass, EntityReference dataSpace)
+        {
+            this.xclass = xclass;
+            this.idPrefix = StringUtils.removeEnd(xclass.getName(), "Class").replaceAll("\\p{Lower}++", "");
+            this.dataSpace = dataSpace;
+        }
+    }
+
+    /** Discards the cached type descriptor of a wiki when its XClass document is deleted. */
+    private final class DescriptorInvalidator implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return AbstractPrimaryEntityManager.this.getClass().getName() + "-type-descriptor";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Collections.<Event>singletonList(new DocumentDeletedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            DocumentReference deleted = ((DocumentModelBridge) source).getDocumentReference();
+            String wiki = deleted.getWikiReference().getName();
+            EntityTypeDescriptor descriptor = AbstractPrimaryEntityManager.this.descriptors.get(wiki);
+            if (descriptor != null && descriptor.xclass.equals(deleted)) {
+                AbstractPrimaryEntityManager.this.descriptors.remove(wiki, descriptor);
+            }
+        }
+    }
 }
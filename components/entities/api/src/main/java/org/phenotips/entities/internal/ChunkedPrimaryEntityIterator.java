@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.phenotips.entities.PrimaryEntity;
+import org.phenotips.entities.PrimaryEntityManager;
+
+import org.xwiki.model.reference.DocumentReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A lazy iterator over the entities stored in a list of documents, which loads entities one chunk at a time. For each
+ * chunk, a filter finds out with a single query which of the documents actually hold an entity, and only those
+ * documents are loaded; the others are returned as {@code null}, just like {@link PrimaryEntityManager#get} does.
+ *
+ * @param <E> the type of entities handled by this iterator
+ * @version $Id$
+ * @since 1.4
+ */
+class ChunkedPrimaryEntityIterator<E extends PrimaryEntity> implements Iterator<E>
+{
+    private final Iterator<DocumentReference> references;
+
+    private final int chunkSize;
+
+    private final Function<List<DocumentReference>, Set<DocumentReference>> entityFilter;
+
+    private final PrimaryEntityManager<E> entityManager;
+
+    /** The entities of the current chunk, may contain {@code null} values. */
+    private List<E> chunk = Collections.emptyList();
+
+    /** The position of the next entity to return from the current chunk. */
+    private int position;
+
+    /**
+     * Simple constructor passing all the needed data.
+     *
+     * @param references the documents holding the entities, in the order in which they should be returned
+     * @param chunkSize the number of entities loaded together, at least {@code 1}
+     * @param entityFilter selects, from a chunk of documents, those that hold an entity; may return {@code null} if
+     *            this cannot be determined, in which case all the documents in the chunk are loaded
+     * @param entityManager the entity manager responsible for actually loading the entities
+     */
+    ChunkedPrimaryEntityIterator(List<DocumentReference> references, int chunkSize,
+        Function<List<DocumentReference>, Set<DocumentReference>> entityFilter, PrimaryEntityManager<E> entityManager)
+    {
+        this.references = references.iterator();
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.entityFilter = entityFilter;
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return this.position < this.chunk.size() || this.references.hasNext();
+    }
+
+    @Override
+    public E next()
+    {
+        if (this.position >= this.chunk.size()) {
+            loadNextChunk();
+        }
+        return this.chunk.get(this.position++);
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private void loadNextChunk()
+    {
+        List<DocumentReference> documents = new ArrayList<>(this.chunkSize);
+        while (documents.size() < this.chunkSize && this.references.hasNext()) {
+            documents.add(this.references.next());
+        }
+        if (documents.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Set<DocumentReference> entityDocuments = this.entityFilter.apply(documents);
+        List<E> entities = new ArrayList<>(documents.size());
+        for (DocumentReference document : documents) {
+            entities.add(entityDocuments == null || entityDocuments.contains(document)
+                ? this.entityManager.get(document) : null);
+        }
+        this.chunk = entities;
+        this.position = 0;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Hands out sequential identifiers for new entities of one type, without querying the database for each one.
+ * Identifiers are reserved in blocks: when a block is used up, the last identifier stored in the database is read
+ * again, and the next block starts after both it and the previous block. Within a block, identifiers are handed out
+ * from memory, without locking.
+ * <p>
+ * The identifiers stored in the database are the only persisted counter, so a restart neither skips nor reuses
+ * identifiers, and identifiers used by entities created by other means are picked up with the next block. Identifiers
+ * handed out for entities which then failed to be created are not reused.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class EntityIdAllocator
+{
+    /** The number of identifiers handed out between two reads of the last used identifier. */
+    private final int blockSize;
+
+    /** Reads the last identifier stored in the database. */
+    private final LongSupplier lastUsedId;
+
+    /** The block currently handing out identifiers; initially an empty block, so the first request reserves one. */
+    private volatile Block block = new Block(0, 0);
+
+    /** A range of reserved identifiers. */
+    private static final class Block
+    {
+        /** The last identifier handed out from this block. */
+        private final AtomicLong last;
+
+        /** The last identifier of this block. */
+        private final long end;
+
+        Block(long start, long end)
+        {
+            this.last = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    /**
+     * Simple constructor passing all the needed data.
+     *
+     * @param blockSize the number of identifiers reserved at once, at least {@code 1}
+     * @param lastUsedId reads the last identifier stored in the database; called once per block
+     */
+    EntityIdAllocator(int blockSize, LongSupplier lastUsedId)
+    {
+        this.blockSize = Math.max(blockSize, 1);
+        this.lastUsedId = lastUsedId;
+    }
+
+    /**
+     * Hands out a new identifier. Each call returns a different identifier, greater than all the identifiers stored in
+     * the database when its block was reserved.
+     *
+     * @return a positive number
+     */
+    long next()
+    {
+        while (true) {
+            Block current = this.block;
+            long id = current.last.incrementAndGet();
+            if (id <= current.end) {
+                return id;
+            }
+            reserveBlockAfter(current);
+        }
+    }
+
+    private synchronized void reserveBlockAfter(Block exhausted)
+    {
+        // Another thread may have already replaced the exhausted block
+        if (this.block == exhausted) {
+            long start = Math.max(exhausted.end, this.lastUsedId.getAsLong());
+            this.block = new Block(start, start + this.blockSize);
+        }
+    }
+}
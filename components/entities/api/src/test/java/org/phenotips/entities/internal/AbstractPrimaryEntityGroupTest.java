@@ -0,0 +1,326 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.phenotips.Constants;
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.entities.PrimaryEntityManager;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Loads the members of a group through a real {@link AbstractPrimaryEntityManager}, checking that the chunked bulk
+ * loading gives the same members as loading each member on its own.
+ *
+ * @version $Id$
+ */
+public class AbstractPrimaryEntityGroupTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final DocumentReference STUDY_CLASS = new DocumentReference(WIKI, "PhenoTips", "StudyClass");
+
+    /** 150 members, loaded in two chunks; every third member document doesn't hold a study. */
+    private static final int MEMBERS = 150;
+
+    @Rule
+    public final MockitoComponentMockingRule<PrimaryEntityManager<Study>> mocker =
+        new MockitoComponentMockingRule<>(StudyManager.class);
+
+    private PrimaryEntityManager<Study> manager;
+
+    private DocumentAccessBridge bridge;
+
+    private QueryManager qm;
+
+    private List<DocumentReference> members = new ArrayList<>();
+
+    private Set<String> studyNames = new HashSet<>();
+
+    private List<String> boundNames;
+
+    private StudyGroup group;
+
+    private ComponentManager cm;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.manager = this.mocker.getComponentUnderTest();
+        this.bridge = this.mocker.getInstance(DocumentAccessBridge.class);
+        this.qm = this.mocker.getInstance(QueryManager.class);
+
+        Provider<XWikiContext> xcontextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        XWikiContext context = mock(XWikiContext.class);
+        when(xcontextProvider.get()).thenReturn(context);
+        when(context.getWikiId()).thenReturn(WIKI);
+        when(this.bridge.exists(STUDY_CLASS)).thenReturn(true);
+        setUpReferences();
+
+        List<String> memberNames = new ArrayList<>();
+        for (int i = 1; i <= MEMBERS; ++i) {
+            DocumentReference reference = new DocumentReference(WIKI, "Studies", String.format("S%07d", i));
+            String name = "Studies." + reference.getName();
+            this.members.add(reference);
+            memberNames.add(name);
+            XWikiDocument document = mock(XWikiDocument.class);
+            when(document.getDocumentReference()).thenReturn(reference);
+            if (i % 3 != 0) {
+                this.studyNames.add(name);
+                when(document.getXObject(Study.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+            }
+            doReturn(document).when(this.bridge).getDocument(reference);
+        }
+
+        Query membersQuery = mock(Query.class);
+        when(this.qm.createQuery(Matchers.startsWith("select distinct binding.name"), eq(Query.HQL)))
+            .thenReturn(membersQuery);
+        when(membersQuery.bindValue(anyString(), any())).thenReturn(membersQuery);
+        when(membersQuery.<String>execute()).thenReturn(memberNames);
+
+        Query filterQuery = mock(Query.class);
+        when(this.qm.createQuery(Matchers.contains("in (:names)"), eq(Query.XWQL))).thenReturn(filterQuery);
+        when(filterQuery.bindValue(eq("names"), any())).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            List<String> names = (List<String>) invocation.getArguments()[1];
+            this.boundNames = names;
+            return filterQuery;
+        });
+        when(filterQuery.<String>execute()).thenAnswer(invocation -> {
+            List<String> result = new ArrayList<>(this.boundNames);
+            result.retainAll(this.studyNames);
+            return result;
+        });
+
+        this.cm = mock(ComponentManager.class);
+        @SuppressWarnings("unchecked")
+        EntityReferenceSerializer<String> fullSerializer = mock(EntityReferenceSerializer.class);
+        @SuppressWarnings("unchecked")
+        Provider<ComponentManager> cmProvider = mock(Provider.class);
+        when(cmProvider.get()).thenReturn(this.cm);
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", cmProvider);
+        doReturn(this.manager).when(this.cm).getInstance(PrimaryEntityManager.class, "Study");
+        doReturn(this.qm).when(this.cm).getInstance(QueryManager.class);
+        doReturn(this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local")).when(this.cm)
+            .getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(fullSerializer.serialize(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenReturn("wiki:Groups.G0000001");
+        doReturn(fullSerializer).when(this.cm).getInstance(EntityReferenceSerializer.TYPE_STRING);
+        doReturn(this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current")).when(this.cm)
+            .getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+
+        XWikiDocument groupDocument = mock(XWikiDocument.class);
+        when(groupDocument.getDocumentReference()).thenReturn(new DocumentReference(WIKI, "Groups", "G0000001"));
+        this.group = new StudyGroup(groupDocument);
+    }
+
+    private void setUpReferences() throws Exception
+    {
+        DocumentReferenceResolver<String> stringResolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(stringResolver.resolve(anyString(), Matchers.<Object>anyVararg())).thenAnswer(invocation -> {
+            String name = (String) invocation.getArguments()[0];
+            if ("Study".equals(name)) {
+                return STUDY_CLASS;
+            }
+            return new DocumentReference(WIKI, name.substring(0, name.indexOf('.')),
+                name.substring(name.indexOf('.') + 1));
+        });
+        DocumentReferenceResolver<EntityReference> referenceResolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        when(referenceResolver.resolve(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> invocation.getArguments()[0]);
+        EntityReferenceSerializer<String> localSerializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(localSerializer.serialize(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> {
+                EntityReference reference = (EntityReference) invocation.getArguments()[0];
+                return reference.getParent().getName() + '.' + reference.getName();
+            });
+    }
+
+    @Test
+    public void membersAreTheSameAsLoadingEachMember() throws Exception
+    {
+        List<Study> expected = new ArrayList<>();
+        for (DocumentReference member : this.members) {
+            expected.add(this.manager.get(member));
+        }
+
+        List<Study> actual = new ArrayList<>(this.group.getMembers());
+
+        Assert.assertEquals(MEMBERS, actual.size());
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals("S0000001", actual.get(0).getId());
+        Assert.assertNull(actual.get(2));
+        Assert.assertNull(actual.get(149));
+    }
+
+    @Test
+    public void documentsWithoutEntitiesAreNotLoaded() throws Exception
+    {
+        for (Study member : this.group.getMembers()) {
+            Assert.assertTrue(member == null || this.studyNames.contains("Studies." + member.getId()));
+        }
+
+        verify(this.qm, times(2)).createQuery(Matchers.contains("in (:names)"), eq(Query.XWQL));
+        verify(this.bridge, never()).getDocument(this.members.get(2));
+        verify(this.bridge).getDocument(this.members.get(3));
+    }
+
+    @Test
+    public void returnedMembersCanBeChanged() throws Exception
+    {
+        Collection<Study> loaded = this.group.getMembers();
+
+        Assert.assertTrue(loaded.removeIf(member -> member == null));
+        Assert.assertEquals(100, loaded.size());
+        Assert.assertTrue(loaded.add(this.manager.get(this.members.get(0))));
+        Assert.assertEquals(101, loaded.size());
+    }
+
+    @Test
+    public void theReferenceResolverIsOnlyLookedUpOnce() throws Exception
+    {
+        this.group.getMembers();
+        this.group.getMembers();
+
+        verify(this.cm, times(1)).getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        verify(this.qm, times(4)).createQuery(Matchers.contains("in (:names)"), eq(Query.XWQL));
+    }
+
+    /** A minimal entity, stored in documents holding a {@code PhenoTips.StudyClass} object. */
+    public static class Study extends AbstractPrimaryEntity
+    {
+        /** The XClass used for storing studies. */
+        public static final EntityReference CLASS_REFERENCE =
+            new EntityReference("StudyClass", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+
+        /**
+         * Loads a study from its document.
+         *
+         * @param document the document holding the study
+         */
+        public Study(XWikiDocument document)
+        {
+            super(document);
+            if (document.getXObject(CLASS_REFERENCE) == null) {
+                throw new IllegalArgumentException("Not a study: " + document.getDocumentReference());
+            }
+        }
+
+        @Override
+        public EntityReference getType()
+        {
+            return CLASS_REFERENCE;
+        }
+
+        @Override
+        public void updateFromJSON(JSONObject json)
+        {
+            // Not needed
+        }
+    }
+
+    /** The manager for {@link Study} entities. */
+    @Component
+    @Named("Study")
+    @Singleton
+    public static class StudyManager extends AbstractPrimaryEntityManager<Study>
+    {
+        @Override
+        public EntityReference getDataSpace()
+        {
+            return new EntityReference("Studies", EntityType.SPACE);
+        }
+
+        @Override
+        public String getType()
+        {
+            return "studies";
+        }
+    }
+
+    private static final class StudyGroup extends AbstractPrimaryEntityGroup<Study>
+    {
+        private StudyGroup(XWikiDocument document)
+        {
+            super(document);
+        }
+
+        @Override
+        public EntityReference getMemberType()
+        {
+            return Study.CLASS_REFERENCE;
+        }
+
+        @Override
+        public EntityReference getType()
+        {
+            return new EntityReference("StudyGroupClass", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+        }
+
+        @Override
+        public void updateFromJSON(JSONObject json)
+        {
+            // Not needed
+        }
+    }
+}
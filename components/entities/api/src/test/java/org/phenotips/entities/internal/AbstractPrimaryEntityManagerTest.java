@@ -0,0 +1,255 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.phenotips.entities.PrimaryEntity;
+import org.phenotips.entities.PrimaryEntityManager;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link AbstractPrimaryEntityManager} base class.
+ *
+ * @version $Id$
+ */
+public class AbstractPrimaryEntityManagerTest
+{
+    private static final String XCLASS_NAME = "PhenoTips.ThingClass";
+
+    private static final EntityReference DATA_SPACE = new EntityReference("Things", EntityType.SPACE);
+
+    /** The identifier allocators are shared by all the managers, so each test works in its own wiki. */
+    private static final AtomicInteger WIKIS = new AtomicInteger();
+
+    @Rule
+    public final MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>> thingMocker =
+        new MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>>(ThingManager.class);
+
+    @Rule
+    public final MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>> extendedThingMocker =
+        new MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>>(ExtendedThingManager.class);
+
+    private String wiki;
+
+    private DocumentReference xclass;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.wiki = "wiki" + WIKIS.incrementAndGet();
+        setUp(this.thingMocker);
+        setUp(this.extendedThingMocker);
+    }
+
+    @Test
+    public void managersOfTheSameXClassShareIdentifiers() throws Exception
+    {
+        AbstractPrimaryEntityManager<PrimaryEntity> things = getManager(this.thingMocker);
+        AbstractPrimaryEntityManager<PrimaryEntity> extendedThings = getManager(this.extendedThingMocker);
+
+        Assert.assertEquals(new DocumentReference(this.wiki, "Things", "T0000042"), things.getNextDocument());
+        Assert.assertEquals(new DocumentReference(this.wiki, "Things", "T0000043"), extendedThings.getNextDocument());
+        Assert.assertEquals(new DocumentReference(this.wiki, "Things", "T0000044"), things.getNextDocument());
+
+        verify(this.thingMocker.<QueryManager>getInstance(QueryManager.class), times(1))
+            .createQuery(anyString(), anyString());
+        verify(this.extendedThingMocker.<QueryManager>getInstance(QueryManager.class), never())
+            .createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void eachWikiHasItsOwnIdentifiers() throws Exception
+    {
+        AbstractPrimaryEntityManager<PrimaryEntity> things = getManager(this.thingMocker);
+        Assert.assertEquals(new DocumentReference(this.wiki, "Things", "T0000042"), things.getNextDocument());
+
+        this.wiki = "wiki" + WIKIS.incrementAndGet();
+        setUp(this.thingMocker);
+
+        Assert.assertEquals(new DocumentReference(this.wiki, "Things", "T0000042"), things.getNextDocument());
+    }
+
+    @Test
+    public void theXClassIsResolvedOncePerWiki() throws Exception
+    {
+        AbstractPrimaryEntityManager<PrimaryEntity> things = getManager(this.thingMocker);
+
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+        Assert.assertEquals("T", things.getIdPrefix());
+        things.getLastUsedId();
+
+        verifyResolutions(1);
+        verify(this.thingMocker.<ObservationManager>getInstance(ObservationManager.class), times(1))
+            .addListener(any(EventListener.class));
+    }
+
+    @Test
+    public void theXClassIsResolvedAgainWhenDeleted() throws Exception
+    {
+        AbstractPrimaryEntityManager<PrimaryEntity> things = getManager(this.thingMocker);
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+
+        getDescriptorInvalidator().onEvent(new DocumentDeletedEvent(), getDocument(this.xclass), null);
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+
+        verifyResolutions(2);
+        // The listener is only registered once
+        verify(this.thingMocker.<ObservationManager>getInstance(ObservationManager.class), times(1))
+            .addListener(any(EventListener.class));
+    }
+
+    @Test
+    public void deletingOtherDocumentsKeepsTheResolvedXClass() throws Exception
+    {
+        AbstractPrimaryEntityManager<PrimaryEntity> things = getManager(this.thingMocker);
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+
+        EventListener invalidator = getDescriptorInvalidator();
+        invalidator.onEvent(new DocumentDeletedEvent(), getDocument(new DocumentReference(this.wiki, "Things",
+            "T0000001")), null);
+        invalidator.onEvent(new DocumentDeletedEvent(), getDocument(new DocumentReference("other", "PhenoTips",
+            "ThingClass")), null);
+        Assert.assertEquals(this.xclass, things.getEntityXClassReference());
+
+        verifyResolutions(1);
+    }
+
+    private void verifyResolutions(int count) throws Exception
+    {
+        DocumentReferenceResolver<String> stringResolver =
+            this.thingMocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        verify(stringResolver, times(count)).resolve(Matchers.eq(XCLASS_NAME), Matchers.<Object>anyVararg());
+    }
+
+    private EventListener getDescriptorInvalidator() throws Exception
+    {
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.thingMocker.<ObservationManager>getInstance(ObservationManager.class))
+            .addListener(listener.capture());
+        return listener.getValue();
+    }
+
+    private DocumentModelBridge getDocument(DocumentReference reference)
+    {
+        DocumentModelBridge document = mock(DocumentModelBridge.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+        return document;
+    }
+
+    private void setUp(MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>> mocker) throws Exception
+    {
+        XWikiContext context = mock(XWikiContext.class);
+        when(context.getWikiId()).thenReturn(this.wiki);
+        Provider<XWikiContext> contextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(context);
+
+        this.xclass = new DocumentReference(this.wiki, "PhenoTips", "ThingClass");
+        DocumentReferenceResolver<String> stringResolver =
+            mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(stringResolver.resolve(Matchers.eq(XCLASS_NAME), Matchers.<Object>anyVararg())).thenReturn(this.xclass);
+        DocumentReferenceResolver<EntityReference> referenceResolver =
+            mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        when(referenceResolver.resolve(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> new DocumentReference(this.wiki, "Things",
+                ((EntityReference) invocation.getArguments()[0]).getName()));
+        EntityReferenceSerializer<String> serializer =
+            mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(serializer.serialize(this.xclass)).thenReturn(XCLASS_NAME);
+        DocumentAccessBridge bridge = mocker.getInstance(DocumentAccessBridge.class);
+        when(bridge.exists(this.xclass)).thenReturn(true);
+
+        QueryManager qm = mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        when(qm.createQuery(anyString(), anyString())).thenReturn(query);
+        when(query.bindValue(anyString(), any())).thenReturn(query);
+        when(query.setLimit(anyInt())).thenReturn(query);
+        when(query.<String>execute()).thenReturn(Collections.singletonList("T0000041"));
+    }
+
+    private AbstractPrimaryEntityManager<PrimaryEntity> getManager(
+        MockitoComponentMockingRule<PrimaryEntityManager<PrimaryEntity>> mocker) throws Exception
+    {
+        return (AbstractPrimaryEntityManager<PrimaryEntity>) mocker.getComponentUnderTest();
+    }
+
+    /** A simple manager. */
+    @Component(roles = { PrimaryEntityManager.class })
+    @Named(XCLASS_NAME)
+    @Singleton
+    public static class ThingManager extends AbstractPrimaryEntityManager<PrimaryEntity>
+    {
+        @Override
+        public EntityReference getDataSpace()
+        {
+            return DATA_SPACE;
+        }
+
+        @Override
+        public String getType()
+        {
+            return "things";
+        }
+    }
+
+    /** Another manager for the same kind of entities, like the family repository which extends the family manager. */
+    @Component(roles = { PrimaryEntityManager.class })
+    @Named(XCLASS_NAME)
+    @Singleton
+    public static class ExtendedThingManager extends ThingManager
+    {
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import org.phenotips.entities.PrimaryEntity;
+import org.phenotips.entities.PrimaryEntityManager;
+
+import org.xwiki.model.reference.DocumentReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChunkedPrimaryEntityIteratorTest
+{
+    @Mock
+    private PrimaryEntityManager<PrimaryEntity> manager;
+
+    private List<DocumentReference> references = new ArrayList<>();
+
+    private Set<DocumentReference> entityDocuments = new HashSet<>();
+
+    /** The entity stored in each document, {@code null} for the documents that are not entities. */
+    private List<PrimaryEntity> entities = new ArrayList<>();
+
+    private List<List<DocumentReference>> queriedChunks = new ArrayList<>();
+
+    private Function<List<DocumentReference>, Set<DocumentReference>> filter = documents -> {
+        this.queriedChunks.add(new ArrayList<>(documents));
+        Set<DocumentReference> result = new HashSet<>(documents);
+        result.retainAll(this.entityDocuments);
+        return result;
+    };
+
+    @Before
+    public void setup()
+    {
+        MockitoAnnotations.initMocks(this);
+        for (int i = 1; i <= 25; ++i) {
+            DocumentReference reference = new DocumentReference("wiki", "data", String.format("P%07d", i));
+            this.references.add(reference);
+            // Every third document is not a valid entity
+            if (i % 3 != 0) {
+                this.entityDocuments.add(reference);
+                PrimaryEntity entity = Mockito.mock(PrimaryEntity.class);
+                when(this.manager.get(reference)).thenReturn(entity);
+                this.entities.add(entity);
+            } else {
+                this.entities.add(null);
+            }
+        }
+    }
+
+    @Test
+    public void entitiesAreReturnedInOrderWithNullsForOtherDocuments()
+    {
+        List<PrimaryEntity> actual = new ArrayList<>();
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator =
+            new ChunkedPrimaryEntityIterator<>(this.references, 10, this.filter, this.manager);
+        while (iterator.hasNext()) {
+            actual.add(iterator.next());
+        }
+
+        Assert.assertEquals(this.entities, actual);
+        Assert.assertNull(actual.get(2));
+    }
+
+    @Test
+    public void documentsAreCheckedOnceForEachChunk()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator =
+            new ChunkedPrimaryEntityIterator<>(this.references, 10, this.filter, this.manager);
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+
+        Assert.assertEquals(3, this.queriedChunks.size());
+        Assert.assertEquals(this.references.subList(0, 10), this.queriedChunks.get(0));
+        Assert.assertEquals(this.references.subList(10, 20), this.queriedChunks.get(1));
+        Assert.assertEquals(this.references.subList(20, 25), this.queriedChunks.get(2));
+    }
+
+    @Test
+    public void invalidDocumentsAreNotLoaded()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator =
+            new ChunkedPrimaryEntityIterator<>(this.references, 10, this.filter, this.manager);
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+
+        verify(this.manager, never()).get(this.references.get(2));
+        verify(this.manager).get(this.references.get(3));
+    }
+
+    @Test
+    public void chunksAreOnlyLoadedWhenNeeded()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator =
+            new ChunkedPrimaryEntityIterator<>(this.references, 10, this.filter, this.manager);
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertTrue(this.queriedChunks.isEmpty());
+
+        iterator.next();
+        Assert.assertEquals(1, this.queriedChunks.size());
+        verify(this.manager, never()).get(this.references.get(10));
+    }
+
+    @Test
+    public void allDocumentsAreLoadedWhenTheFilterFails()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator =
+            new ChunkedPrimaryEntityIterator<>(this.references, 10, documents -> null, this.manager);
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+
+        verify(this.manager).get(this.references.get(2));
+    }
+
+    @Test
+    public void emptyInputGivesEmptyIterator()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator = new ChunkedPrimaryEntityIterator<>(
+            Collections.<DocumentReference>emptyList(), 10, this.filter, this.manager);
+        Assert.assertFalse(iterator.hasNext());
+        verify(this.manager, never()).get(any(DocumentReference.class));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextFailsAfterTheLastEntity()
+    {
+        ChunkedPrimaryEntityIterator<PrimaryEntity> iterator = new ChunkedPrimaryEntityIterator<>(
+            Collections.<DocumentReference>emptyList(), 10, this.filter, this.manager);
+        iterator.next();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void removeThrowsUnsupportedOperationException()
+    {
+        new ChunkedPrimaryEntityIterator<>(this.references, 10, this.filter, this.manager).remove();
+    }
+}
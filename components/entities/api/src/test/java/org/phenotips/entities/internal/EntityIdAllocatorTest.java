@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.entities.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EntityIdAllocatorTest
+{
+    @Test
+    public void identifiersStartAfterTheLastUsedOne()
+    {
+        EntityIdAllocator allocator = new EntityIdAllocator(10, () -> 41);
+        Assert.assertEquals(42, allocator.next());
+        Assert.assertEquals(43, allocator.next());
+    }
+
+    @Test
+    public void lastUsedIdentifierIsReadOncePerBlock()
+    {
+        AtomicInteger reads = new AtomicInteger();
+        EntityIdAllocator allocator = new EntityIdAllocator(10, () -> {
+            reads.incrementAndGet();
+            return 0;
+        });
+        for (int i = 1; i <= 25; ++i) {
+            Assert.assertEquals(i, allocator.next());
+        }
+        Assert.assertEquals(3, reads.get());
+    }
+
+    @Test
+    public void identifiersUsedElsewhereArePickedUpWithTheNextBlock()
+    {
+        AtomicLong lastUsed = new AtomicLong(0);
+        EntityIdAllocator allocator = new EntityIdAllocator(2, lastUsed::get);
+        Assert.assertEquals(1, allocator.next());
+        lastUsed.set(100);
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertEquals(101, allocator.next());
+    }
+
+    @Test
+    public void identifiersAreNeverReusedWhenTheDatabaseLagsBehind()
+    {
+        // Identifiers handed out, but not saved yet, or whose entities failed to be created
+        EntityIdAllocator allocator = new EntityIdAllocator(2, () -> 0);
+        Assert.assertEquals(1, allocator.next());
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertEquals(3, allocator.next());
+    }
+
+    @Test
+    public void concurrentRequestsGetDistinctIdentifiers() throws InterruptedException
+    {
+        EntityIdAllocator allocator = new EntityIdAllocator(7, () -> 0);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 1000; ++j) {
+                    ids.add(allocator.next());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(8000, ids.size());
+        for (long id = 1; id <= 8000; ++id) {
+            Assert.assertTrue(ids.contains(id));
+        }
+    }
+}
@@ -248,6 +248,15 @@ public Owner getOwner(@Nullable final PrimaryEntity entity)
 
     @Override
     public boolean setOwner(@Nullable final PrimaryEntity entity, @Nullable final EntityReference userOrGroup)
+    {
+        return setOwner(entity, userOrGroup, true);
+    }
+
+    @Override
+    public boolean setOwner(
+        @Nullable final PrimaryEntity entity,
+        @Nullable final EntityReference userOrGroup,
+        final boolean saveDocument)
     {
         if (entity == null || entity.getDocumentReference() == null) {
             return false;
@@ -258,7 +267,8 @@ public boolean setOwner(@Nullable final PrimaryEntity entity, @Nullable final En
         try {
             final Owner owner = getOwner(entity);
             return classReference != null
-                && changeOwnership(entity, classReference, owner == null ? null : owner.getUser(), userOrGroup);
+                && changeOwnership(entity, classReference, owner == null ? null : owner.getUser(), userOrGroup,
+                    saveDocument);
         } catch (Exception e) {
             return false;
         }
@@ -271,6 +281,7 @@ public boolean setOwner(@Nullable final PrimaryEntity entity, @Nullable final En
      * @param classReference the {@link DocumentReference} object for an owner
      * @param previousOwner the previous {@link EntityReference owner} for {@code entity}
      * @param newOwner the new {@link EntityReference owner} for {@code entity}
+     * @param saveDocument true iff the document should be saved, false otherwise
      * @return true iff ownership was updated successfully, throws an exception otherwise
      * @throws Exception if owner cannot be updated
      */
@@ -278,7 +289,8 @@ private boolean changeOwnership(
         @Nonnull final PrimaryEntity entity,
         @Nonnull final DocumentReference classReference,
         @Nullable final EntityReference previousOwner,
-        @Nullable final EntityReference newOwner) throws Exception
+        @Nullable final EntityReference newOwner,
+        final boolean saveDocument) throws Exception
     {
         final String owner = newOwner != null
                 ? this.entitySerializer.serialize(this.partialEntityResolver.resolve(newOwner))
@@ -295,8 +307,10 @@ private boolean changeOwnership(
         final Collaborator oldCollaborator = new DefaultCollaborator(newOwner, null, null);
         removeCollaborator(entity, oldCollaborator, false);
         // Save the changes to the document.
-        final XWikiContext context = this.xcontextProvider.get();
-        context.getWiki().saveDocument(entityXDoc, "Set owner: " + owner, true, context);
+        if (saveDocument) {
+            final XWikiContext context = this.xcontextProvider.get();
+            context.getWiki().saveDocument(entityXDoc, "Set owner: " + owner, true, context);
+        }
         return true;
     }
 
@@ -425,15 +439,8 @@ public boolean addCollaborator(@Nullable final PrimaryEntity entity, @Nullable f
         return addCollaborator(entity, collaborator, true);
     }
 
-    /**
-     * Adds a {@code collaborator} for the {@code entity}.
-     *
-     * @param entity the {@link PrimaryEntity} of interest
-     * @param collaborator the {@link Collaborator} to add
-     * @param saveDocument true iff the document should be saved, false otherwise
-     * @return true if the collaborator was added successfully, false otherwise
-     */
-    private boolean addCollaborator(
+    @Override
+    public boolean addCollaborator(
         @Nullable final PrimaryEntity entity,
         @Nullable final Collaborator collaborator,
         final boolean saveDocument)
@@ -114,6 +114,17 @@
      */
     boolean setOwner(@Nullable PrimaryEntity entity, @Nullable EntityReference userOrGroup);
 
+    /**
+     * Sets the {@code userOrGroup owner} for {@code entity} of interest, optionally leaving the entity document unsaved,
+     * so that the change can be stored together with other changes to the entity.
+     *
+     * @param entity the {@link PrimaryEntity entity} of interest
+     * @param userOrGroup the new {@link EntityReference owner} for the {@code entity}
+     * @param saveDocument true iff the entity document should be saved, false if the caller saves it
+     * @return true iff the new owner was set successfully, false otherwise
+     */
+    boolean setOwner(@Nullable PrimaryEntity entity, @Nullable EntityReference userOrGroup, boolean saveDocument);
+
     /**
      * Gets the {@link Collaborator} objects associated with {@code entity}.
      *
@@ -141,6 +152,17 @@
      */
     boolean addCollaborator(@Nullable PrimaryEntity entity, @Nullable Collaborator collaborator);
 
+    /**
+     * Adds a {@code collaborator} to the {@code entity}, optionally leaving the entity document unsaved, so that the
+     * change can be stored together with other changes to the entity.
+     *
+     * @param entity the {@link PrimaryEntity} of interest
+     * @param collaborator a {@link Collaborator} to add for {@code entity}
+     * @param saveDocument true iff the entity document should be saved, false if the caller saves it
+     * @return true iff the collaborator was set successfully, false otherwise
+     */
+    boolean addCollaborator(@Nullable PrimaryEntity entity, @Nullable Collaborator collaborator, boolean saveDocument);
+
     /**
      * Removes a {@code collaborator} from the {@code entity}.
      *
@@ -400,6 +400,19 @@ public void setOwner() throws XWikiException
         verify(this.xwiki).saveDocument(this.entityDoc, "Set owner: " + OWNER_STR, true, this.context);
     }
 
+    /**
+     * {@link EntityAccessManager#setOwner(PrimaryEntity, EntityReference, boolean)} updates the ownership and keeps the
+     * previous owner as a collaborator, but leaves saving the document to the caller.
+     */
+    @Test
+    public void setOwnerWithoutSaving() throws XWikiException
+    {
+        Assert.assertTrue(this.component.setOwner(this.entity, COLLABORATOR, false));
+        verify(this.helper).setProperty(this.entityDoc, OWNER_CLASS, OWNER_LABEL, COLLABORATOR_STR);
+        verify(this.entityDoc, times(1)).newXObject(COLLABORATOR_CLASS, this.context);
+        verify(this.xwiki, never()).saveDocument(any(), anyString(), anyBoolean(), any());
+    }
+
     /** Basic tests for {@link EntityAccessManager#setOwner(PrimaryEntity, EntityReference)}. */
     @Test
     public void setOwnerWithFailure()
@@ -791,6 +804,25 @@ public void addCollaboratorWithNewObject() throws XWikiException
         verify(this.xwiki).saveDocument(this.entityDoc, "Added collaborator: " + COLLABORATOR_STR, true, this.context);
     }
 
+    /**
+     * {@link EntityAccessManager#addCollaborator(PrimaryEntity, Collaborator, boolean)} leaves saving the document to
+     * the caller.
+     */
+    @Test
+    public void addCollaboratorWithoutSaving() throws XWikiException
+    {
+        when(this.entityDoc.getXObject(COLLABORATOR_CLASS, COLLABORATOR_LABEL, COLLABORATOR_STR, false))
+            .thenReturn(null);
+        when(this.entityDoc.newXObject(COLLABORATOR_CLASS, this.context)).thenReturn(this.collaboratorObject1);
+
+        Collaborator collaborator = new DefaultCollaborator(COLLABORATOR, EDIT_ACCESS, this.helper);
+
+        Assert.assertTrue(this.component.addCollaborator(this.entity, collaborator, false));
+        verify(this.collaboratorObject1).setStringValue(COLLABORATOR_LABEL, COLLABORATOR_STR);
+        verify(this.collaboratorObject1).setStringValue(ACCESS_LABEL, EDIT_LABEL);
+        verify(this.xwiki, never()).saveDocument(any(), anyString(), anyBoolean(), any());
+    }
+
     /**
      * {@link EntityAccessManager#addCollaborator(PrimaryEntity, Collaborator)} does not add null collaborators.
      */
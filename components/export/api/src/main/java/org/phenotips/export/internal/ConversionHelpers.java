@@ -19,24 +19,22 @@
 
 import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Feature;
+import org.phenotips.tools.PhenotypeCategoryMapping;
 import org.phenotips.tools.PhenotypeMappingService;
-import org.phenotips.tools.PropertyDisplayer;
 import org.phenotips.translation.TranslationManager;
-import org.phenotips.vocabulary.Vocabulary;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.script.service.ScriptService;
 
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -59,11 +57,10 @@
 
     private static TranslationManager translationManager;
 
-    /** Used for accessing HPO. */
-    private Vocabulary ontologyService;
+    private static final String NO_CATEGORY = "No category";
 
-    /** The titles of phenotypic categories mapped to a list of HPO ids which represent that category. */
-    private Map<String, List<String>> categoryMapping;
+    /** The configured phenotypic categories, shared with the other users of the phenotype mapping. */
+    private PhenotypeCategoryMapping categoryMapping;
 
     /** Phenotypic feature to phenotypic category section map. Used for sorting features by category. */
     private Map<String, String> sectionFeatureTree;
@@ -85,7 +82,6 @@
      * @throws java.lang.Exception Could happen if the {@link org.phenotips.vocabulary.Vocabulary} for HPO could not be
      *             accessed or is the phenotype category list is not available
      */
-    @SuppressWarnings("unchecked")
     public void featureSetUp(boolean mapCategories) throws Exception
     {
         if (!mapCategories) {
@@ -93,33 +89,13 @@ public void featureSetUp(boolean mapCategories) throws Exception
         }
 
         /*
-         * Gets a list of all categories, and maps each category's title to a list of HPO ids which represent it. This
-         * step is necessary only if mapCategories is true.
+         * Gets the parsed list of all categories, which knows the category of each HPO id. This step is necessary only
+         * if mapCategories is true.
          */
         ComponentManager cm = getComponentManager();
-        this.ontologyService = cm.getInstance(Vocabulary.class, "hpo");
         PhenotypeMappingService mappingService = cm.getInstance(ScriptService.class, "phenotypeMapping");
-        Object mappingObject = mappingService.get("phenotype");
-        if (mappingObject instanceof List) {
-            List<Map<String, Object>> mapping = (List<Map<String, Object>>) mappingObject;
-            this.categoryMapping = new LinkedHashMap<>();
-            for (Map<String, Object> categoryEntry : mapping) {
-                List<String> categories = (List<String>) categoryEntry.get("categories");
-
-                // adding all subcategories IDs to categories list
-                Object subCategoriesObject = categoryEntry.get("data");
-                if (subCategoriesObject instanceof List) {
-                    List<Map<String, Object>> subCategories = (List<Map<String, Object>>) subCategoriesObject;
-                    for (Map<String, Object> subCategoryEntry : subCategories) {
-                        if (subCategoryEntry.containsKey("id")) {
-                            categories.add(subCategoryEntry.get("id").toString());
-                        }
-                    }
-                }
-
-                this.categoryMapping.put(categoryEntry.get("title").toString(), categories);
-            }
-        } else {
+        this.categoryMapping = mappingService.getCategoryMapping();
+        if (this.categoryMapping == null) {
             throw new Exception("The phenotype category list is not available");
         }
     }
@@ -190,32 +166,23 @@ public List<Feature> sortFeaturesWithSections(Set<? extends Feature> features)
      */
     private List<Feature> sortFeaturesBySection(List<Feature> features)
     {
-        List<Feature> sortedFeatures = new LinkedList<>();
-
-        Map<String, List<String>> mapping = this.getCategoryMapping();
-        for (String section : mapping.keySet()) {
-            if (features.isEmpty()) {
-                break;
+        final PhenotypeCategoryMapping mapping =
+            Objects.requireNonNull(this.categoryMapping, "The phenotype categories have not been set up");
+
+        /* The sort is stable, features in the same category keep their order. */
+        Collections.sort(features, new Comparator<Feature>()
+        {
+            @Override
+            public int compare(Feature a, Feature b)
+            {
+                return Integer.compare(mapping.getRank(a.getId()), mapping.getRank(b.getId()));
             }
-
-            /* Each section can have several HPO ids (categories) attached to it. */
-            for (String category : mapping.get(section)) {
-                Iterator<Feature> iter = features.iterator();
-                while (iter.hasNext()) {
-                    Feature feature = iter.next();
-                    if (getCategoriesFromOntology(feature.getId()).contains(category)) {
-                        this.sectionFeatureTree.put(feature.getId(), section);
-                        sortedFeatures.add(feature);
-                        iter.remove();
-                    }
-                }
-            }
-        }
+        });
         for (Feature feature : features) {
-            this.sectionFeatureTree.put(feature.getId(), "No category");
+            this.sectionFeatureTree.put(feature.getId(),
+                StringUtils.defaultString(mapping.getSection(feature.getId()), NO_CATEGORY));
         }
-        sortedFeatures.addAll(features);
-        return sortedFeatures;
+        return features;
     }
 
     /**
@@ -237,32 +204,12 @@ public Set<Feature> filterFeaturesByPrenatal(Set<? extends Feature> features, Bo
     }
 
     /**
-     * Given an HPO id, finds categories to which the id belongs to.
-     *
-     * @param value must start with "HP:"
-     * @return a list of categories as HPO ids, excluding the passed in id, or an empty list if the categories could not
-     *         be determined
-     */
-    @SuppressWarnings("unchecked")
-    private List<String> getCategoriesFromOntology(String value)
-    {
-        if (!value.startsWith("HP:")) {
-            return Collections.emptyList();
-        }
-        VocabularyTerm termObj = this.ontologyService.getTerm(value);
-        if (termObj != null && termObj.get(PropertyDisplayer.INDEXED_CATEGORY_KEY) != null
-            && List.class.isAssignableFrom(termObj.get(PropertyDisplayer.INDEXED_CATEGORY_KEY).getClass())) {
-            return (List<String>) termObj.get(PropertyDisplayer.INDEXED_CATEGORY_KEY);
-        }
-        return new LinkedList<>();
-    }
-
-    /**
-     * @return mapping of category titles to their respective lists of HPO ids
+     * @return mapping of category titles to their respective lists of HPO ids, or {@code null} if the categories were
+     *         not set up
      */
     public Map<String, List<String>> getCategoryMapping()
     {
-        return this.categoryMapping;
+        return this.categoryMapping == null ? null : this.categoryMapping.getSections();
     }
 
     /**
@@ -19,6 +19,7 @@
 
 import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Feature;
+import org.phenotips.tools.PhenotypeCategoryMapping;
 import org.phenotips.tools.PhenotypeMappingService;
 import org.phenotips.translation.TranslationManager;
 import org.phenotips.vocabulary.Vocabulary;
@@ -29,6 +30,9 @@
 import org.xwiki.script.service.ScriptService;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -156,64 +160,67 @@ public void sortFeaturesWithSections() throws Exception
     {
         ConversionHelpers helpers = new ConversionHelpers();
         ConversionHelpers helpersSpy = spy(helpers);
-        Feature featureOne = mock(Feature.class);
-        Feature featureTwo = mock(Feature.class);
-        Feature featureThree = mock(Feature.class);
-        Feature featureFour = mock(Feature.class);
-        VocabularyTerm termOne = mock(VocabularyTerm.class);
-        VocabularyTerm termTwo = mock(VocabularyTerm.class);
-        VocabularyTerm termThree = mock(VocabularyTerm.class);
-        VocabularyTerm termFour = mock(VocabularyTerm.class);
+        Feature featureOne = mockFeature("HP:0000001", true);
+        Feature featureTwo = mockFeature("HP:0000002", false);
+        Feature featureThree = mockFeature("HP:0000003", false);
+        Feature featureFour = mockFeature("HP:0000004", true);
         Set<Feature> features = new HashSet<>();
-        List<String> mappingIdsOne = new LinkedList<>();
-        List<String> mappingIdsTwo = new LinkedList<>();
-        Map<String, List<String>> mapping = new HashMap<>();
         features.add(featureOne);
         features.add(featureTwo);
         features.add(featureThree);
         features.add(featureFour);
-        mappingIdsOne.add("id1");
-        mappingIdsOne.add("id3");
-        mappingIdsTwo.add("id2");
-        mapping.put("sectionOne", mappingIdsOne);
-        mapping.put("sectionTwo", mappingIdsTwo);
 
-        ComponentManager componentManager = mock(ComponentManager.class);
         Vocabulary ontologyService = mock(Vocabulary.class);
-        List<Map<String, List<String>>> mappingObj = new LinkedList<>();
-        List<Map<String, List<String>>> mappingObjSpy = spy(mappingObj);
-        PhenotypeMappingService phenotypeMappingService = mock(PhenotypeMappingService.class);
+        mockTerm(ontologyService, "HP:0000001", "HP:0000100", "HP:0000010");
+        mockTerm(ontologyService, "HP:0000002", "HP:0000020");
+        mockTerm(ontologyService, "HP:0000003", "HP:0000010");
+        mockTerm(ontologyService, "HP:0000004", "HP:0000118");
 
+        List<Object> mappingObj = new LinkedList<>();
+        mappingObj.add(section("sectionOne", "HP:0000010"));
+        mappingObj.add(section("sectionTwo", "HP:0000020"));
+
+        ComponentManager componentManager = mock(ComponentManager.class);
+        PhenotypeMappingService phenotypeMappingService = mock(PhenotypeMappingService.class);
         doReturn(componentManager).when(helpersSpy).getComponentManager();
-        doReturn(ontologyService).when(componentManager).getInstance(eq(Vocabulary.class), eq("hpo"));
         doReturn(phenotypeMappingService).when(componentManager)
             .getInstance(eq(ScriptService.class), eq("phenotypeMapping"));
-        doReturn(mappingObjSpy).when(phenotypeMappingService).get(anyString());
-        doReturn(mapping).when(helpersSpy).getCategoryMapping();
-
-        doReturn(true).when(featureOne).isPresent();
-        doReturn(false).when(featureTwo).isPresent();
-        doReturn(false).when(featureThree).isPresent();
-        doReturn(true).when(featureFour).isPresent();
-        doReturn(termOne).when(ontologyService).getTerm("id1");
-        doReturn(termTwo).when(ontologyService).getTerm("id2");
-        doReturn(termThree).when(ontologyService).getTerm("id3");
-        doReturn(mappingIdsOne).when(termOne).get(anyString());
-        doReturn(mappingIdsOne).when(termThree).get(anyString());
-        doReturn(mappingIdsTwo).when(termTwo).get(anyString());
-        doReturn(new LinkedList<String>()).when(termFour).get(anyString());
-        doReturn("id1").when(featureOne).getId();
-        doReturn("id2").when(featureTwo).getId();
-        doReturn("id3").when(featureThree).getId();
-        doReturn("id4").when(featureFour).getId();
+        doReturn(PhenotypeCategoryMapping.parse(mappingObj, ontologyService)).when(phenotypeMappingService)
+            .getCategoryMapping();
 
         helpersSpy.featureSetUp(true);
         List<Feature> sorted = helpersSpy.sortFeaturesWithSections(features);
 
-        Assert.assertTrue(sorted.contains(featureOne));
-        Assert.assertTrue(sorted.contains(featureTwo));
-        Assert.assertTrue(sorted.contains(featureThree));
-        Assert.assertTrue(sorted.contains(featureFour));
-        Assert.assertTrue(helpersSpy.getSectionFeatureTree().containsKey("id4"));
+        Assert.assertEquals(Arrays.asList(featureOne, featureFour, featureThree, featureTwo), sorted);
+        Map<String, String> sections = helpersSpy.getSectionFeatureTree();
+        Assert.assertEquals("sectionOne", sections.get("HP:0000001"));
+        Assert.assertEquals("sectionTwo", sections.get("HP:0000002"));
+        Assert.assertEquals("sectionOne", sections.get("HP:0000003"));
+        Assert.assertEquals("No category", sections.get("HP:0000004"));
+        Assert.assertEquals(Arrays.asList("sectionOne", "sectionTwo"),
+            new ArrayList<>(helpersSpy.getCategoryMapping().keySet()));
+    }
+
+    private Feature mockFeature(String id, boolean present)
+    {
+        Feature result = mock(Feature.class);
+        doReturn(id).when(result).getId();
+        doReturn(present).when(result).isPresent();
+        return result;
+    }
+
+    private void mockTerm(Vocabulary vocabulary, String id, String... ancestors)
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        doReturn(Arrays.asList(ancestors)).when(term).get("term_category");
+        doReturn(term).when(vocabulary).getTerm(id);
+    }
+
+    private Map<String, Object> section(String title, String category)
+    {
+        Map<String, Object> result = new HashMap<>();
+        result.put("title", title);
+        result.put("categories", Collections.singletonList(category));
+        return result;
     }
 }
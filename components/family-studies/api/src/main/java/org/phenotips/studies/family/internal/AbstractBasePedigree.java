@@ -67,14 +67,8 @@ public String getImage(String highlightCurrentPatientId)
     @Override
     public String getImage(String highlightCurrentPatientId, int width, int height)
     {
-        String svg = SvgUpdater.setCurrentPatientStylesInSvg(this.image, highlightCurrentPatientId);
-        if (width > 0) {
-            svg = SvgUpdater.setSVGWidth(svg, width);
-        }
-        if (height > 0) {
-            svg = SvgUpdater.setSVGHeight(svg, height);
-        }
-        return svg;
+        return new SvgRewriter().highlightPatient(highlightCurrentPatientId).setWidth(width).setHeight(height)
+            .rewrite(this.image);
     }
 
     @Override
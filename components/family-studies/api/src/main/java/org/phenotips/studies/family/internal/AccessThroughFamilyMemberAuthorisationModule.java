@@ -29,6 +29,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -73,6 +80,40 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
             return null;
         }
 
+        return hasAccessToMember(user, access, family);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All the families are loaded together, and documents that aren't family records are skipped without being loaded.
+     * </p>
+     */
+    @Override
+    public Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        if (!ObjectUtils.allNotNull(user, access) || !(access == Right.VIEW || access == Right.EDIT)) {
+            return result;
+        }
+
+        List<EntityReference> references = new ArrayList<>(entities.size());
+        for (EntityReference entity : entities) {
+            if (entity != null) {
+                references.add(entity);
+            }
+        }
+        Iterator<Family> families = this.familyRepository.getAll(references);
+        for (EntityReference entity : references) {
+            Family family = families.next();
+            result.put(entity, family == null ? null : hasAccessToMember(user, access, family));
+        }
+        return result;
+    }
+
+    private Boolean hasAccessToMember(User user, Right access, Family family)
+    {
         for (Patient member : family.getMembers()) {
             AccessLevel grantedAccess = this.manager.getAccessLevel(member, user.getProfileDocument());
             Right grantedRight = grantedAccess.getGrantedRight();
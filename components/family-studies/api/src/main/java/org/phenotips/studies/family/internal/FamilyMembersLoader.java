@@ -0,0 +1,181 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Loads all the members of a family at once, and evaluates access rights on all of them at once, instead of going
+ * through the patient repository and the authorization service separately for each member and each use.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = FamilyMembersLoader.class)
+@Singleton
+public class FamilyMembersLoader
+{
+    private static final String NAMES = "names";
+
+    private static final String SPACE = "space";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager qm;
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private AuthorizationService authorizationService;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> stringResolver;
+
+    /**
+     * Loads the patients with the given identifiers. A single query finds which of the identifiers are valid patient
+     * records, then each valid document is loaded through the document cache. Identifiers that don't correspond to a
+     * patient record are skipped, instead of being looked up one by one.
+     *
+     * @param memberIds the identifiers of the family members, as stored in the family document
+     * @return the loaded patients, in the same order as the identifiers; may be empty, but not {@code null}
+     */
+    public List<Patient> getMembers(List<String> memberIds)
+    {
+        if (memberIds == null || memberIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Set<String> existing;
+        try {
+            Query q = this.qm.createQuery("select doc.name from Document doc, doc.object(PhenoTips.PatientClass) as p"
+                + " where doc.space = :" + SPACE + " and doc.name in (:" + NAMES + ')', Query.XWQL);
+            q.bindValue(SPACE, Patient.DEFAULT_DATA_SPACE.getName());
+            q.bindValue(NAMES, memberIds);
+            List<String> names = q.execute();
+            existing = new HashSet<>(names);
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to query family members {}, loading them one by one: {}", memberIds,
+                ex.getMessage());
+            return getMembersOneByOne(memberIds);
+        }
+
+        XWikiContext context = this.xcontextProvider.get();
+        List<Patient> result = new ArrayList<>(existing.size());
+        for (String memberId : memberIds) {
+            if (!existing.contains(memberId)) {
+                this.logger.debug("Family member [{}] is not a valid patient record, skipping", memberId);
+                continue;
+            }
+            try {
+                DocumentReference reference = this.stringResolver.resolve(memberId, Patient.DEFAULT_DATA_SPACE);
+                XWikiDocument document = context.getWiki().getDocument(reference, context);
+                Patient patient = this.patientRepository.load(document);
+                if (patient != null) {
+                    result.add(patient);
+                }
+            } catch (Exception ex) {
+                this.logger.error("Failed to load family member [{}]: {}", memberId, ex.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks the requested rights of a user on each of the given patients. All the patients are checked together, with
+     * a single call to the authorization service for each right, so the result can be reused for all the information
+     * exported for a family.
+     *
+     * @param user the user whose rights are checked
+     * @param patients the patients to check
+     * @param rights the rights to check
+     * @return a map from patient identifier to the subset of the requested rights that are granted
+     */
+    public Map<String, Set<Right>> getAccessRights(User user, Collection<Patient> patients, Right... rights)
+    {
+        Map<String, Set<Right>> result = new HashMap<>();
+        Map<EntityReference, String> ids = new LinkedHashMap<>();
+        for (Patient patient : patients) {
+            result.put(patient.getId(), new HashSet<Right>());
+            ids.put(patient.getDocumentReference(), patient.getId());
+        }
+        if (ids.isEmpty()) {
+            return result;
+        }
+        for (Right right : rights) {
+            Map<EntityReference, Boolean> decisions = this.authorizationService.checkAccess(user, right, ids.keySet());
+            for (Map.Entry<EntityReference, Boolean> decision : decisions.entrySet()) {
+                String id = ids.get(decision.getKey());
+                if (id != null && Boolean.TRUE.equals(decision.getValue())) {
+                    result.get(id).add(right);
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<Patient> getMembersOneByOne(List<String> memberIds)
+    {
+        List<Patient> result = new ArrayList<>(memberIds.size());
+        for (String memberId : memberIds) {
+            Patient patient = this.patientRepository.get(memberId);
+            if (patient != null) {
+                result.add(patient);
+            }
+        }
+        return result;
+    }
+}
@@ -85,6 +85,18 @@ public boolean supportsRecordType(final String recordType)
         return "family".equals(recordType);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The configuration only depends on the available sections and fields.
+     * </p>
+     */
+    @Override
+    public String getCacheKey(final String recordType)
+    {
+        return "";
+    }
+
     /**
      * Returns all the {@link UIExtension} sections for the default family sheet, and sorts them in preferred order.
      *
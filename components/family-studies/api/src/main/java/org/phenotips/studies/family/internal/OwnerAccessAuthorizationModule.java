@@ -32,6 +32,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -78,8 +85,7 @@ public int getPriority()
     @Override
     public Boolean hasAccess(User user, Right access, EntityReference entity)
     {
-        if (!ObjectUtils.allNotNull(access, entity) || access.getTargetedEntityType() == null
-            || !access.getTargetedEntityType().contains(EntityType.DOCUMENT)) {
+        if (!ObjectUtils.allNotNull(access, entity) || !isDocumentRight(access)) {
             return null;
         }
 
@@ -88,11 +94,7 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
             return null;
         }
 
-        String ownerStr = (String) this.dab.getProperty(family.getDocumentReference(),
-            this.resolver.resolve(Owner.CLASS_REFERENCE), Owner.PROPERTY_NAME);
-        DocumentReference owner = this.strResolver.resolve(ownerStr);
-
-        if (isGuestOwner(ownerStr, user) || user != null && owner.equals(user.getProfileDocument())) {
+        if (isOwner(user, family)) {
             return true;
         }
         // Grant access to administrators
@@ -103,6 +105,62 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All the families are loaded together, and documents that aren't family records are skipped without being loaded.
+     * Administrator rights are then checked at once for all the families not owned by the user.
+     * </p>
+     */
+    @Override
+    public Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        if (access == null || !isDocumentRight(access)) {
+            return result;
+        }
+
+        List<EntityReference> references = new ArrayList<>(entities.size());
+        for (EntityReference entity : entities) {
+            if (entity != null) {
+                references.add(entity);
+            }
+        }
+        Iterator<Family> families = this.familyRepository.getAll(references);
+        List<EntityReference> notOwned = new ArrayList<>();
+        for (EntityReference entity : references) {
+            Family family = families.next();
+            boolean owned = family != null && isOwner(user, family);
+            result.put(entity, owned ? Boolean.TRUE : null);
+            if (family != null && !owned) {
+                notOwned.add(entity);
+            }
+        }
+        if (!notOwned.isEmpty()) {
+            // Grant access to administrators
+            Map<EntityReference, Boolean> admin = this.auth.checkAccess(user, Right.ADMIN, notOwned);
+            for (EntityReference entity : notOwned) {
+                result.put(entity, Boolean.TRUE.equals(admin.get(entity)) ? Boolean.TRUE : null);
+            }
+        }
+        return result;
+    }
+
+    private boolean isDocumentRight(Right access)
+    {
+        return access.getTargetedEntityType() != null && access.getTargetedEntityType().contains(EntityType.DOCUMENT);
+    }
+
+    private boolean isOwner(User user, Family family)
+    {
+        String ownerStr = (String) this.dab.getProperty(family.getDocumentReference(),
+            this.resolver.resolve(Owner.CLASS_REFERENCE), Owner.PROPERTY_NAME);
+        DocumentReference owner = this.strResolver.resolve(ownerStr);
+
+        return isGuestOwner(ownerStr, user) || user != null && owner.equals(user.getProfileDocument());
+    }
+
     private boolean isGuestOwner(String owner, User user)
     {
         return StringUtils.isEmpty(owner) && (user == null || user.getProfileDocument() == null);
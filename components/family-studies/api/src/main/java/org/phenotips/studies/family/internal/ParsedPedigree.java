@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.Pedigree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+
+/**
+ * An immutable, already parsed snapshot of the pedigree stored in a family document. Parsing the pedigree JSON is
+ * expensive for large families, so the frequently needed information (the proband, the linked patients, the image) is
+ * extracted once and kept here. A {@link Pedigree} view which doesn't change the snapshot can be obtained with
+ * {@link #asPedigree()}, and a new mutable {@link Pedigree} can still be obtained with {@link #toPedigree()}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class ParsedPedigree
+{
+    private final String rawData;
+
+    private final String rawImage;
+
+    /** Parsed version of the data, never exposed outside this class since it is mutable. */
+    private final DefaultPedigree pedigree;
+
+    private final String probandId;
+
+    private final String probandLastName;
+
+    private final List<String> memberIds;
+
+    /**
+     * Parses the given pedigree data.
+     *
+     * @param rawData the pedigree JSON, as stored in the family document
+     * @param rawImage the pedigree SVG, as stored in the family document
+     * @throws IllegalArgumentException if the data is not a pedigree in a supported format
+     * @throws org.json.JSONException if the data is not valid JSON
+     */
+    public ParsedPedigree(String rawData, String rawImage)
+    {
+        JSONObject data = new JSONObject(rawData);
+        if (!DefaultPedigree.isSupportedPedigreeFormat(data)) {
+            throw new IllegalArgumentException("Unsupported pedigree format");
+        }
+        this.rawData = rawData;
+        this.rawImage = StringUtils.defaultString(rawImage);
+        this.pedigree = new DefaultPedigree(data, this.rawImage);
+        this.probandId = this.pedigree.getProbandId();
+        this.probandLastName = this.pedigree.getProbandPatientLastName();
+        this.memberIds = Collections.unmodifiableList(new ArrayList<>(this.pedigree.extractIds()));
+    }
+
+    /**
+     * Checks if this snapshot was parsed from exactly the given data, and can be used in place of parsing it again.
+     *
+     * @param data the pedigree JSON, as currently stored in the family document
+     * @param image the pedigree SVG, as currently stored in the family document
+     * @return {@code true} if the data and image are the same as the ones used for building this snapshot
+     */
+    public boolean matches(String data, String image)
+    {
+        return this.rawData.equals(data) && this.rawImage.equals(StringUtils.defaultString(image));
+    }
+
+    /**
+     * @return the number of characters of the pedigree JSON and SVG this snapshot was parsed from, which the parsed
+     *         data is proportional to
+     */
+    int getSize()
+    {
+        return this.rawData.length() + this.rawImage.length();
+    }
+
+    /**
+     * @return the PhenoTips identifier of the proband, or {@code null} if the pedigree has no proband or the proband is
+     *         not linked to a patient record
+     * @see Pedigree#getProbandId()
+     */
+    public String getProbandId()
+    {
+        return this.probandId;
+    }
+
+    /**
+     * @return the last name of the linked proband, or {@code null}
+     * @see Pedigree#getProbandPatientLastName()
+     */
+    public String getProbandPatientLastName()
+    {
+        return this.probandLastName;
+    }
+
+    /**
+     * @return an unmodifiable list with the identifiers of all the patients linked to the pedigree
+     * @see Pedigree#extractIds()
+     */
+    public List<String> getMemberIds()
+    {
+        return this.memberIds;
+    }
+
+    /**
+     * Returns the pedigree SVG.
+     *
+     * @param highlightCurrentPatientId id of the patient which should be highlighted as the current patient, may be
+     *            {@code null}
+     * @param width sets the returned SVG width to this value, 0 or negative number means "leave as is"
+     * @param height sets the returned SVG height to this value, 0 or negative number means "leave as is"
+     * @return the SVG image, can not be {@code null}
+     * @see Pedigree#getImage(String, int, int)
+     */
+    public String getImage(String highlightCurrentPatientId, int width, int height)
+    {
+        return this.pedigree.getImage(highlightCurrentPatientId, width, height);
+    }
+
+    /**
+     * Returns a view of this snapshot, which doesn't parse the pedigree again as long as it isn't changed. The snapshot
+     * itself is never changed through the view: {@link Pedigree#getData()} returns a copy of the data, and
+     * {@link Pedigree#removeLink(String)} first switches the view to its own copy of the pedigree.
+     *
+     * @return a pedigree view
+     */
+    public Pedigree asPedigree()
+    {
+        return new SnapshotPedigree();
+    }
+
+    /**
+     * Returns a view of the pedigree of a family, reusing the cached parsed pedigree when the family is stored in a
+     * document.
+     *
+     * @param family the family whose pedigree is requested, may be {@code null}
+     * @return a pedigree view which doesn't change the cached pedigree, see {@link #asPedigree()}, or {@code null} if
+     *         the family doesn't have a valid pedigree
+     */
+    public static Pedigree getCachedPedigree(Family family)
+    {
+        if (family instanceof PhenotipsFamily) {
+            ParsedPedigree parsed = ((PhenotipsFamily) family).getParsedPedigree();
+            return parsed == null ? null : parsed.asPedigree();
+        }
+        if (family instanceof SecureFamily) {
+            return getCachedPedigree(((SecureFamily) family).getWrappedFamily());
+        }
+        return family == null ? null : family.getPedigree();
+    }
+
+    /**
+     * Builds a new, independent, mutable pedigree from this snapshot. Changes done to the returned object don't affect
+     * the snapshot.
+     *
+     * @return a new pedigree object
+     */
+    public Pedigree toPedigree()
+    {
+        return new DefaultPedigree(new JSONObject(this.rawData), this.rawImage);
+    }
+
+    /** Pedigree backed by the parsed snapshot, which switches to its own copy of the pedigree when changed. */
+    private final class SnapshotPedigree implements Pedigree
+    {
+        /** The pedigree of this view, only created once the view is changed. */
+        private Pedigree copy;
+
+        @Override
+        public JSONObject getData()
+        {
+            // The parsed data is shared with all the other views, and JSONObject is mutable, so callers get a copy
+            return this.copy != null ? this.copy.getData() : new JSONObject(ParsedPedigree.this.rawData);
+        }
+
+        @Override
+        public String getImage(String highlightCurrentPatientId)
+        {
+            return getImage(highlightCurrentPatientId, 0, 0);
+        }
+
+        @Override
+        public String getImage(String highlightCurrentPatientId, int width, int height)
+        {
+            return this.copy != null ? this.copy.getImage(highlightCurrentPatientId, width, height)
+                : ParsedPedigree.this.getImage(highlightCurrentPatientId, width, height);
+        }
+
+        @Override
+        public List<String> extractIds()
+        {
+            return this.copy != null ? this.copy.extractIds() : ParsedPedigree.this.memberIds;
+        }
+
+        @Override
+        public List<JSONObject> extractPatientJSONProperties()
+        {
+            if (this.copy != null) {
+                return this.copy.extractPatientJSONProperties();
+            }
+            // Copies, since callers such as the pedigree processor may change the returned objects
+            List<JSONObject> result = new ArrayList<>();
+            for (JSONObject properties : ParsedPedigree.this.pedigree.extractPatientJSONProperties()) {
+                result.add(new JSONObject(properties.toString()));
+            }
+            return result;
+        }
+
+        @Override
+        public String getProbandId()
+        {
+            return this.copy != null ? this.copy.getProbandId() : ParsedPedigree.this.probandId;
+        }
+
+        @Override
+        public String getProbandPatientLastName()
+        {
+            return this.copy != null ? this.copy.getProbandPatientLastName() : ParsedPedigree.this.probandLastName;
+        }
+
+        @Override
+        public void removeLink(String linkedPatientId)
+        {
+            if (this.copy == null) {
+                this.copy = toPedigree();
+            }
+            this.copy.removeLink(linkedPatientId);
+        }
+    }
+}
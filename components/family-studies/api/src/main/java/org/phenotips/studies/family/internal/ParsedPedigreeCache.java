@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.studies.family.Pedigree;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseStringProperty;
+
+/**
+ * Keeps {@link ParsedPedigree parsed pedigrees} for recently accessed family documents, so that the pedigree JSON is
+ * only parsed once per document version. Entries are keyed by the document reference and version, and are also checked
+ * against the actual stored data, so unsaved in-memory changes to a family document are never hidden by a stale entry.
+ * Since a single pedigree can be very large, the cache is bounded by the total size of the cached pedigrees, not by
+ * their number.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = ParsedPedigreeCache.class)
+@Singleton
+public class ParsedPedigreeCache implements Initializable
+{
+    /** The maximum total number of pedigree JSON and SVG characters held by the cached pedigrees. */
+    private static final long MAX_CACHED_CHARACTERS = 10000000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<String, ParsedPedigree> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_CHARACTERS)
+            .weigher((String key, ParsedPedigree pedigree) -> pedigree.getSize())
+            .build();
+    }
+
+    /**
+     * Returns the parsed pedigree stored in the given family document, parsing it only if it isn't already cached.
+     *
+     * @param familyDocument the family document holding the pedigree
+     * @return the parsed pedigree, or {@code null} if the family doesn't have a pedigree or the pedigree is invalid
+     */
+    public ParsedPedigree get(XWikiDocument familyDocument)
+    {
+        BaseObject pedigreeObj = familyDocument.getXObject(Pedigree.CLASS_REFERENCE);
+        if (pedigreeObj == null) {
+            return null;
+        }
+        try {
+            BaseStringProperty data = (BaseStringProperty) pedigreeObj.get(Pedigree.DATA);
+            BaseStringProperty image = (BaseStringProperty) pedigreeObj.get(Pedigree.IMAGE);
+            String rawData = data == null ? null : data.toText();
+            String rawImage = image == null ? null : image.toText();
+            if (StringUtils.isBlank(rawData)) {
+                return null;
+            }
+
+            String key = getKey(familyDocument);
+            ParsedPedigree result = this.cache.getIfPresent(key);
+            if (result == null || !result.matches(rawData, rawImage)) {
+                result = new ParsedPedigree(rawData, rawImage);
+                this.cache.put(key, result);
+            }
+            return result;
+        } catch (XWikiException e) {
+            this.logger.error("Error reading data from pedigree: [{}]", e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            this.logger.error("Incorrect pedigree data: [{}]", e.getMessage(), e);
+        } catch (JSONException e) {
+            this.logger.error("Pedigree data is not a valid pedigree JSON: [{}]", e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private String getKey(XWikiDocument familyDocument)
+    {
+        return this.serializer.serialize(familyDocument.getDocumentReference()) + '@' + familyDocument.getVersion();
+    }
+}
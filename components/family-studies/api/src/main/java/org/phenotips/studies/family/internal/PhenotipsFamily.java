@@ -19,7 +19,6 @@
 
 import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Patient;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.data.internal.PhenoTipsPatient;
 import org.phenotips.entities.internal.AbstractPrimaryEntity;
 import org.phenotips.studies.family.Family;
@@ -29,16 +28,12 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.EntityReference;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,7 +41,6 @@
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.objects.BaseStringProperty;
 import com.xpn.xwiki.objects.ListProperty;
 import com.xpn.xwiki.objects.StringProperty;
 
@@ -62,19 +56,23 @@ public class PhenotipsFamily extends AbstractPrimaryEntity implements Family
 
     private static final String WARNING = "warning";
 
-    private static PatientRepository patientRepository;
-
     private static PhenotipsFamilyExport familyExport;
 
+    private static ParsedPedigreeCache pedigreeCache;
+
+    private static FamilyMembersLoader membersLoader;
+
     /** Logging helper object. */
     private Logger logger = LoggerFactory.getLogger(PhenoTipsPatient.class);
 
     static {
         try {
-            PhenotipsFamily.patientRepository =
-                ComponentManagerRegistry.getContextComponentManager().getInstance(PatientRepository.class);
             PhenotipsFamily.familyExport =
                 ComponentManagerRegistry.getContextComponentManager().getInstance(PhenotipsFamilyExport.class);
+            PhenotipsFamily.pedigreeCache =
+                ComponentManagerRegistry.getContextComponentManager().getInstance(ParsedPedigreeCache.class);
+            PhenotipsFamily.membersLoader =
+                ComponentManagerRegistry.getContextComponentManager().getInstance(FamilyMembersLoader.class);
         } catch (ComponentLookupException e) {
             e.printStackTrace();
         }
@@ -123,16 +121,13 @@ public List<String> getMembersIds()
     @Override
     public List<Patient> getMembers()
     {
-        List<String> memberIds = this.getMembersIds();
-        return memberIds.stream()
-            .map(memberId -> PhenotipsFamily.patientRepository.get(memberId))
-            .collect(Collectors.toCollection(() -> new ArrayList<>(memberIds.size())));
+        return PhenotipsFamily.membersLoader.getMembers(this.getMembersIds());
     }
 
     @Override
     public String getProbandId()
     {
-        Pedigree pedigree = this.getPedigree();
+        ParsedPedigree pedigree = this.getParsedPedigree();
         return pedigree == null ? null : pedigree.getProbandId();
     }
 
@@ -162,12 +157,7 @@ public void updateFromJSON(final JSONObject json)
     @Override
     public Map<String, Map<String, String>> getMedicalReports()
     {
-        Map<String, Map<String, String>> allFamilyLinks = new HashMap<>();
-
-        for (Patient patient : getMembers()) {
-            allFamilyLinks.put(patient.getId(), PhenotipsFamily.familyExport.getMedicalReports(patient));
-        }
-        return allFamilyLinks;
+        return PhenotipsFamily.familyExport.getMedicalReports(getMembers());
     }
 
     @Override
@@ -226,30 +216,18 @@ public int hashCode()
     @Override
     public Pedigree getPedigree()
     {
-        BaseObject pedigreeObj = getXDocument().getXObject(Pedigree.CLASS_REFERENCE);
-        if (pedigreeObj != null) {
-            BaseStringProperty data;
-            BaseStringProperty image;
-
-            try {
-                data = (BaseStringProperty) pedigreeObj.get(Pedigree.DATA);
-                image = (BaseStringProperty) pedigreeObj.get(Pedigree.IMAGE);
-
-                if (StringUtils.isNotBlank(data.toText())) {
-                    JSONObject pedigreeJSON = new JSONObject(data.toText());
-                    // Do a basic data format check before attempting to initialize a pedigree
-                    if (DefaultPedigree.isSupportedPedigreeFormat(pedigreeJSON)) {
-                        return new DefaultPedigree(pedigreeJSON, image.toText());
-                    }
-                }
-            } catch (XWikiException e) {
-                this.logger.error("Error reading data from pedigree: [{}]", e.getMessage(), e);
-            } catch (IllegalArgumentException e) {
-                this.logger.error("Incorrect pedigree data: [{}]", e.getMessage(), e);
-            } catch (JSONException e) {
-                this.logger.error("Pedigree data is not a valid pedigree JSON: [{}]", e.getMessage(), e);
-            }
-        }
-        return null;
+        ParsedPedigree pedigree = this.getParsedPedigree();
+        return pedigree == null ? null : pedigree.toPedigree();
+    }
+
+    /**
+     * Returns an immutable parsed snapshot of the pedigree, shared with other instances of the same family document
+     * version. Prefer this to {@link #getPedigree()} when the pedigree is only read.
+     *
+     * @return the parsed pedigree, or {@code null} if the family doesn't have a valid pedigree
+     */
+    public ParsedPedigree getParsedPedigree()
+    {
+        return PhenotipsFamily.pedigreeCache.get(getXDocument());
     }
 }
@@ -45,6 +45,9 @@
 import org.xwiki.users.User;
 import org.xwiki.users.UserManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -92,6 +95,12 @@ public class PhenotipsFamilyRepository extends FamilyEntityManager implements Fa
     @Inject
     private EntityReferenceSerializer<String> entitySerializer;
 
+    /**
+     * Guards modifications of family and patient documents. Operations on unrelated families don't block each other,
+     * while operations touching the same family or the same patient are serialized.
+     */
+    private final StripedFamilyLocks locks = new StripedFamilyLocks();
+
     @Override
     public Family createFamily(User creator)
     {
@@ -99,7 +108,7 @@ public Family createFamily(User creator)
     }
 
     @Override
-    public synchronized Family create(final DocumentReference creator)
+    public Family create(final DocumentReference creator)
     {
         try {
             final XWikiContext context = this.xcontextProvider.get();
@@ -121,19 +130,19 @@ public synchronized Family create(final DocumentReference creator)
     }
 
     @Override
-    public synchronized boolean deleteFamily(Family family, User updatingUser, boolean deleteAllMembers)
+    public boolean deleteFamily(Family family, User updatingUser, boolean deleteAllMembers)
     {
         return delete(family, deleteAllMembers);
     }
 
     @Override
-    public synchronized boolean delete(final Family family)
+    public boolean delete(final Family family)
     {
         return delete(family, false);
     }
 
     @Override
-    public synchronized boolean delete(final Family family, boolean deleteAllMembers)
+    public boolean delete(final Family family, boolean deleteAllMembers)
     {
         // TODO: Should there be a SecureFamilyRepository to perform these checks (similar to SecurePatientRepository)?
         final User currentUser = this.userManager.getCurrentUser();
@@ -141,19 +150,25 @@ public synchronized boolean delete(final Family family, boolean deleteAllMembers
             return false;
         }
 
-        if (deleteAllMembers) {
-            for (Patient patient : family.getMembers()) {
-                if (!this.patientRepository.delete(patient)) {
-                    this.logger.error("Failed to delete patient [{}] - deletion of family [{}] aborted",
-                        patient.getId(), family.getId());
-                    return false;
+        Collection<String> lockedIds = getLockIds(family, family.getMembersIds());
+        this.locks.lock(lockedIds);
+        try {
+            if (deleteAllMembers) {
+                for (Patient patient : family.getMembers()) {
+                    if (!this.patientRepository.delete(patient)) {
+                        this.logger.error("Failed to delete patient [{}] - deletion of family [{}] aborted",
+                            patient.getId(), family.getId());
+                        return false;
+                    }
                 }
+            } else if (!this.forceRemoveAllMembers(family, currentUser)) {
+                return false;
             }
-        } else if (!this.forceRemoveAllMembers(family, currentUser)) {
-            return false;
-        }
 
-        return super.delete(family);
+            return super.delete(family);
+        } finally {
+            this.locks.unlock(lockedIds);
+        }
     }
 
     @Override
@@ -162,6 +177,8 @@ public boolean forceRemoveAllMembers(Family family, User updatingUser)
         if (!this.authorizationService.hasAccess(updatingUser, Right.EDIT, family.getDocumentReference())) {
             return false;
         }
+        Collection<String> lockedIds = getLockIds(family, family.getMembersIds());
+        this.locks.lock(lockedIds);
         try {
             for (Patient patient : family.getMembers()) {
                 // remove the member without updating family document (use "batch mode")
@@ -172,6 +189,8 @@ public boolean forceRemoveAllMembers(Family family, User updatingUser)
         } catch (PTException ex) {
             this.logger.error("Failed to unlink all patients for the family [{}]: {}", family.getId(), ex.getMessage());
             return false;
+        } finally {
+            this.locks.unlock(lockedIds);
         }
     }
 
@@ -216,9 +235,15 @@ public Family getFamilyForPatient(Patient patient)
     }
 
     @Override
-    public synchronized void addMember(Family family, Patient patient, User updatingUser) throws PTException
+    public void addMember(Family family, Patient patient, User updatingUser) throws PTException
     {
-        this.addMember(family, patient, updatingUser, false);
+        Collection<String> lockedIds = getLockIds(family, patient);
+        this.locks.lock(lockedIds);
+        try {
+            this.addMember(family, patient, updatingUser, false);
+        } finally {
+            this.locks.unlock(lockedIds);
+        }
     }
 
     /**
@@ -274,9 +299,15 @@ private void addMember(Family family, Patient patient, User updatingUser, boolea
     }
 
     @Override
-    public synchronized void removeMember(Family family, Patient patient, User updatingUser) throws PTException
+    public void removeMember(Family family, Patient patient, User updatingUser) throws PTException
     {
-        this.removeMember(family, patient, updatingUser, false);
+        Collection<String> lockedIds = getLockIds(family, patient);
+        this.locks.lock(lockedIds);
+        try {
+            this.removeMember(family, patient, updatingUser, false);
+        } finally {
+            this.locks.unlock(lockedIds);
+        }
     }
 
     private void removeMember(Family family, Patient patient, User updatingUser, boolean batchUpdate)
@@ -316,9 +347,11 @@ private void removeMember(Family family, Patient patient, User updatingUser, boo
             throw new PTInternalErrorException();
         }
 
-        // Remove patient from the pedigree
-        Pedigree pedigree = family.getPedigree();
-        if (pedigree != null) {
+        // Remove patient from the pedigree; the cached parsed pedigree tells if it is linked at all, so the pedigree is
+        // only parsed again for changing it when really needed
+        Pedigree currentPedigree = ParsedPedigree.getCachedPedigree(family);
+        if (currentPedigree != null && currentPedigree.extractIds().contains(patientId)) {
+            Pedigree pedigree = family.getPedigree();
             pedigree.removeLink(patientId);
             if (!this.setPedigreeObject(family, pedigree, context)) {
                 this.logger.error("Could not remove patient [{}] from pedigree from the family [{}]",
@@ -339,6 +372,35 @@ private void removeMember(Family family, Patient patient, User updatingUser, boo
         }
     }
 
+    /**
+     * Lists the identifiers that must be locked before modifying the given family and patient. The patient's current
+     * family, if any, is also locked, so that moving a patient between families is atomic.
+     */
+    private Collection<String> getLockIds(Family family, Patient patient)
+    {
+        Collection<String> result = getLockIds(family, patient == null ? null : Arrays.asList(patient.getId()));
+        Family currentFamily = this.getFamilyForPatient(patient);
+        if (currentFamily != null) {
+            result.add(currentFamily.getId());
+        }
+        return result;
+    }
+
+    /**
+     * Lists the identifiers that must be locked before modifying the given family and patients.
+     */
+    private Collection<String> getLockIds(Family family, Collection<String> patientIds)
+    {
+        Collection<String> result = new ArrayList<>();
+        if (family != null) {
+            result.add(family.getId());
+        }
+        if (patientIds != null) {
+            result.addAll(patientIds);
+        }
+        return result;
+    }
+
     /**
      * Returns string as stored in the family members list.
      */
@@ -435,7 +497,19 @@ private void checkIfPatientCanBeRemovedFromFamily(Family family, Patient patient
     }
 
     @Override
-    public synchronized void setPedigree(Family family, Pedigree pedigree, User updatingUser) throws PTException
+    public void setPedigree(Family family, Pedigree pedigree, User updatingUser) throws PTException
+    {
+        Collection<String> lockedIds = getLockIds(family, family.getMembersIds());
+        lockedIds.addAll(pedigree.extractIds());
+        this.locks.lock(lockedIds);
+        try {
+            this.setPedigreeLocked(family, pedigree, updatingUser);
+        } finally {
+            this.locks.unlock(lockedIds);
+        }
+    }
+
+    private void setPedigreeLocked(Family family, Pedigree pedigree, User updatingUser) throws PTException
     {
         // note: whenever available, internal versions of helper methods are used which modify the
         // family document but do not save it to disk
@@ -457,7 +531,7 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
         // (no links to families are set at this point, only patient dat ais updated)
         this.updatePatientsFromJson(pedigree, updatingUser);
 
-        boolean firstPedigree = (family.getPedigree() == null);
+        boolean firstPedigree = (ParsedPedigree.getCachedPedigree(family) == null);
 
         this.setPedigreeObject(family, pedigree, context);
 
@@ -595,7 +669,7 @@ private boolean savePatientDocument(XWikiDocument patientDocument, String docume
         return true;
     }
 
-    private synchronized boolean saveFamilyDocument(Family family, String documentHistoryComment, XWikiContext context)
+    private boolean saveFamilyDocument(Family family, String documentHistoryComment, XWikiContext context)
     {
         try {
             family.getXDocument().setAuthorReference(context.getUserReference());
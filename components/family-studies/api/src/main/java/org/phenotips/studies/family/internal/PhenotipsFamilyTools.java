@@ -100,7 +100,7 @@ public Pedigree getPedigreeForFamily(String familyId)
     {
         Family family = this.getFamilyById(familyId);
         if (family != null) {
-            return family.getPedigree();
+            return ParsedPedigree.getCachedPedigree(family);
         }
         return null;
     }
@@ -131,7 +131,7 @@ public Pedigree getPedigreeForPatient(String patientId)
     {
         Family family = this.getFamilyForPatient(patientId);
         if (family != null) {
-            return family.getPedigree();
+            return ParsedPedigree.getCachedPedigree(family);
         }
         return null;
     }
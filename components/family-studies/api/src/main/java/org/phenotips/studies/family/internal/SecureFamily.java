@@ -160,6 +160,15 @@ public Pedigree getPedigree()
         return this.family.getPedigree();
     }
 
+    /**
+     * @return the wrapped family, only available to the internal components which need the underlying family, such
+     *         as the parsed pedigree cache
+     */
+    Family getWrappedFamily()
+    {
+        return this.family;
+    }
+
     @Override
     public EntityReference getType()
     {
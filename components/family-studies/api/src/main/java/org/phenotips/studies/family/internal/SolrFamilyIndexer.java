@@ -0,0 +1,479 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Indexes families and their members in a local Solr core, so that families can be searched by identifier, external
+ * identifier, or by the identifiers and names of their members, without scanning all the family and patient documents.
+ * Families are indexed per wiki, and the index of a wiki is only searched once it was fully built; a marker document
+ * stored in the index records that. Changed families are re-indexed in the background, one at a time, so that saving
+ * a family or one of its members doesn't wait for all the members to be loaded.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = SolrFamilyIndexer.class)
+@Singleton
+public class SolrFamilyIndexer implements Initializable, Disposable
+{
+    private static final String DOCUMENT = "document";
+
+    private static final String TYPE = "type";
+
+    private static final String FAMILY = "family";
+
+    private static final String FAMILY_DOCUMENT = "family_document";
+
+    private static final String ID = "id";
+
+    private static final String EXTERNAL_ID = "external_id";
+
+    private static final String MEMBERS = "members";
+
+    private static final String NAME_SEARCH = "name_search";
+
+    private static final String MEMBER = "member";
+
+    private static final String WIKI = "wiki";
+
+    /** The type of the document marking the index of a wiki as fully built. */
+    private static final String POPULATED = "populated";
+
+    private static final String OR = " OR ";
+
+    /** How long, in milliseconds, changes may wait before being made visible to searches. */
+    private static final int COMMIT_WITHIN = 1000;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SolrCoreContainerHandler cores;
+
+    /** Allows querying for families. */
+    @Inject
+    private QueryManager qm;
+
+    /** Provides access to families. */
+    @Inject
+    private FamilyRepository familyRepository;
+
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** The Solr server instance used. */
+    private SolrClient server;
+
+    /** The family documents waiting to be re-indexed. */
+    private final Set<DocumentReference> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The wikis whose index is known to be fully built. */
+    private final Set<String> populatedWikis = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private ExecutorService executor;
+
+    /**
+     * A family or a family member matched by a search.
+     */
+    public static final class Hit
+    {
+        private final String familyId;
+
+        private final String familyDocument;
+
+        private final String memberId;
+
+        private final String memberDocument;
+
+        Hit(String familyId, String familyDocument, String memberId, String memberDocument)
+        {
+            this.familyId = familyId;
+            this.familyDocument = familyDocument;
+            this.memberId = memberId;
+            this.memberDocument = memberDocument;
+        }
+
+        /**
+         * @return the identifier of the matched family, or of the family of the matched member
+         */
+        public String getFamilyId()
+        {
+            return this.familyId;
+        }
+
+        /**
+         * @return the serialized reference of the family document
+         */
+        public String getFamilyDocument()
+        {
+            return this.familyDocument;
+        }
+
+        /**
+         * @return the identifier of the matched member, or {@code null} if the family itself was matched
+         */
+        public String getMemberId()
+        {
+            return this.memberId;
+        }
+
+        /**
+         * @return the serialized reference of the document that was matched, the patient document for matched
+         *         members, or the family document otherwise
+         */
+        public String getMatchedDocument()
+        {
+            return this.memberDocument == null ? this.familyDocument : this.memberDocument;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.server = new EmbeddedSolrServer(this.cores.getContainer(), "families");
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PhenoTips family index updater");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Schedules a family to be re-indexed in the background, unless it is already waiting. Returns immediately.
+     *
+     * @param familyDocument the reference to the family document
+     */
+    public void schedule(final DocumentReference familyDocument)
+    {
+        if (familyDocument != null && this.pending.add(familyDocument)) {
+            this.executor.execute(() -> update(familyDocument));
+        }
+    }
+
+    /**
+     * Indexes (or re-indexes) a family together with its current members, replacing any previously indexed members.
+     *
+     * @param family the family to index
+     */
+    public void index(Family family)
+    {
+        if (family == null) {
+            return;
+        }
+        String familyDocument = this.referenceSerializer.serialize(family.getDocumentReference());
+        String wiki = family.getDocumentReference().getWikiReference().getName();
+        List<SolrInputDocument> inputs = new ArrayList<>();
+
+        SolrInputDocument input = new SolrInputDocument();
+        input.setField(DOCUMENT, familyDocument);
+        input.setField(TYPE, FAMILY);
+        input.setField(WIKI, wiki);
+        input.setField(FAMILY, family.getId());
+        input.setField(FAMILY_DOCUMENT, familyDocument);
+        input.setField(ID, family.getId());
+        setExternalId(input, family.getExternalId());
+        inputs.add(input);
+
+        for (Patient member : family.getMembers()) {
+            input.addField(MEMBERS, member.getId());
+
+            SolrInputDocument memberInput = new SolrInputDocument();
+            memberInput.setField(DOCUMENT, this.referenceSerializer.serialize(member.getDocumentReference()));
+            memberInput.setField(TYPE, MEMBER);
+            memberInput.setField(WIKI, wiki);
+            memberInput.setField(FAMILY, family.getId());
+            memberInput.setField(FAMILY_DOCUMENT, familyDocument);
+            memberInput.setField(ID, member.getId());
+            setExternalId(memberInput, member.getExternalId());
+            PatientData<String> names = member.getData("patientName");
+            if (names != null) {
+                String name = StringUtils.join(new String[] { names.get("first_name"), names.get("last_name") }, ' ');
+                if (StringUtils.isNotBlank(name)) {
+                    memberInput.setField(NAME_SEARCH, name.trim());
+                }
+            }
+            inputs.add(memberInput);
+        }
+
+        try {
+            this.server.deleteByQuery(FAMILY_DOCUMENT + ':' + ClientUtils.escapeQueryChars(familyDocument),
+                COMMIT_WITHIN);
+            this.server.add(inputs, COMMIT_WITHIN);
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to index family [{}]: {}", family.getId(), ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while indexing family [{}]: {}", family.getId(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Removes a family and all its members from the index.
+     *
+     * @param familyDocument the reference to the deleted family document
+     */
+    public void delete(DocumentReference familyDocument)
+    {
+        String document = this.referenceSerializer.serialize(familyDocument);
+        deleteByQuery(FAMILY_DOCUMENT + ':' + ClientUtils.escapeQueryChars(document));
+    }
+
+    /**
+     * Removes a patient from the index, if it was indexed as a member of a family.
+     *
+     * @param patientDocument the reference to the deleted patient document
+     */
+    public void deleteMember(DocumentReference patientDocument)
+    {
+        String document = this.referenceSerializer.serialize(patientDocument);
+        deleteByQuery(DOCUMENT + ':' + ClientUtils.escapeQueryChars(document));
+    }
+
+    /**
+     * Rebuilds the index of the current wiki from its stored family documents, and marks it as fully built.
+     */
+    public synchronized void reindex()
+    {
+        String wiki = getCurrentWiki();
+        try {
+            List<String> familyDocs = this.qm.createQuery(
+                "select doc.name from Document doc, doc.object(PhenoTips.FamilyClass) as family", Query.XWQL).execute();
+            this.populatedWikis.remove(wiki);
+            this.server.deleteByQuery(WIKI + ':' + ClientUtils.escapeQueryChars(wiki));
+            for (String familyDoc : familyDocs) {
+                this.index(this.familyRepository.get(familyDoc));
+            }
+            SolrInputDocument marker = new SolrInputDocument();
+            marker.setField(DOCUMENT, getMarkerDocument(wiki));
+            marker.setField(TYPE, POPULATED);
+            marker.setField(WIKI, wiki);
+            marker.setField(FAMILY, StringUtils.EMPTY);
+            marker.setField(FAMILY_DOCUMENT, StringUtils.EMPTY);
+            marker.setField(ID, StringUtils.EMPTY);
+            this.server.add(marker);
+            this.server.commit();
+            this.populatedWikis.add(wiki);
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to reindex families: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while reindexing families: {}", ex.getMessage());
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to search families for reindexing: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Builds the index of the current wiki if it was never fully built, as is the case the first time this version is
+     * started, or if a previous build was interrupted. This may take a while on large instances, so it is called in
+     * the background at startup, by the {@code FamilyIndexPopulator}; until it finishes, {@link #search} returns
+     * {@code null} and searches fall back to querying the family and patient documents.
+     */
+    public void populate()
+    {
+        if (!isPopulated()) {
+            reindex();
+        }
+    }
+
+    /**
+     * Checks if the index of the current wiki was fully built, as recorded by the marker document stored in the
+     * index.
+     *
+     * @return {@code true} if the index can be searched, {@code false} if it is not built yet, or not available
+     */
+    public boolean isPopulated()
+    {
+        String wiki = getCurrentWiki();
+        if (this.populatedWikis.contains(wiki)) {
+            return true;
+        }
+        try {
+            SolrQuery query = new SolrQuery(DOCUMENT + ':' + ClientUtils.escapeQueryChars(getMarkerDocument(wiki)));
+            query.setRows(0);
+            if (this.server.query(query).getResults().getNumFound() > 0) {
+                this.populatedWikis.add(wiki);
+                return true;
+            }
+        } catch (SolrServerException | IOException ex) {
+            this.logger.warn("Failed to check the family index: {}", ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Searches for families whose identifier or external identifier contain the input, or which have a member whose
+     * identifier, external identifier, or optionally name contain the input. Hits are ranked by relevance, with
+     * families matched directly ranked before families matched through their members, and then sorted by the
+     * requested field. Only the families of the current wiki are searched, and access rights are not
+     * checked.
+     *
+     * @param input the text to search for
+     * @param includeNames whether member names should also be searched
+     * @param orderField field used for ordering hits with the same relevance, can be one of {@code id} (default) or
+     *            {@code eid}
+     * @param order the sorting order, can be one of {@code asc} (default) or {@code desc}
+     * @param start the index of the first hit to return
+     * @param rows the maximum number of hits to return
+     * @return the ranked hits, may be empty; {@code null} if the index cannot be searched, or is not fully built yet
+     */
+    public List<Hit> search(String input, boolean includeNames, String orderField, String order, int start, int rows)
+    {
+        if (StringUtils.isBlank(input)) {
+            return Collections.emptyList();
+        }
+        if (!isPopulated()) {
+            return null;
+        }
+
+        String escaped = ClientUtils.escapeQueryChars(input.trim().toLowerCase());
+        StringBuilder q = new StringBuilder("+(");
+        q.append("id_search:").append(escaped).append("^3").append(OR);
+        q.append("external_id_search:").append(escaped).append("^2");
+        if (includeNames) {
+            q.append(OR).append(NAME_SEARCH).append(":(").append(escaped).append(')');
+        }
+        q.append(") ").append(TYPE).append(':').append(FAMILY).append("^2");
+
+        SolrQuery query = new SolrQuery(q.toString());
+        query.addFilterQuery(WIKI + ':' + ClientUtils.escapeQueryChars(getCurrentWiki()));
+        query.addFilterQuery(TYPE + ":(" + FAMILY + OR + MEMBER + ')');
+        query.setFields(TYPE, FAMILY, FAMILY_DOCUMENT, ID, DOCUMENT);
+        query.addSort("score", SolrQuery.ORDER.desc);
+        query.addSort("eid".equals(orderField) ? EXTERNAL_ID : ID,
+            "desc".equals(order) ? SolrQuery.ORDER.desc : SolrQuery.ORDER.asc);
+        query.setStart(start);
+        query.setRows(rows);
+
+        try {
+            List<Hit> result = new ArrayList<>(rows);
+            for (SolrDocument doc : this.server.query(query).getResults()) {
+                boolean member = MEMBER.equals(doc.getFieldValue(TYPE));
+                result.add(new Hit((String) doc.getFieldValue(FAMILY), (String) doc.getFieldValue(FAMILY_DOCUMENT),
+                    member ? (String) doc.getFieldValue(ID) : null,
+                    member ? (String) doc.getFieldValue(DOCUMENT) : null));
+            }
+            return result;
+        } catch (SolrServerException | IOException ex) {
+            this.logger.warn("Failed to search the family index: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    private void update(DocumentReference familyDocument)
+    {
+        // Changes made from now on will need another update
+        this.pending.remove(familyDocument);
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            this.xcontextProvider.get().setWikiId(familyDocument.getWikiReference().getName());
+            index(this.familyRepository.get(familyDocument));
+        } catch (ExecutionContextException | RuntimeException ex) {
+            this.logger.warn("Failed to update the index of family [{}]: {}", familyDocument, ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private String getCurrentWiki()
+    {
+        return this.xcontextProvider.get().getWikiId();
+    }
+
+    private String getMarkerDocument(String wiki)
+    {
+        return POPULATED + ':' + wiki;
+    }
+
+    private void setExternalId(SolrInputDocument input, String externalId)
+    {
+        if (StringUtils.isNotBlank(externalId)) {
+            input.setField(EXTERNAL_ID, externalId);
+        }
+    }
+
+    private void deleteByQuery(String query)
+    {
+        try {
+            this.server.deleteByQuery(query, COMMIT_WITHIN);
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to delete from Solr: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while deleting Solr documents: {}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks used for serializing modifications of family and patient documents involved in family
+ * operations. Each identifier (family or patient) is mapped to one of the stripes, so that operations on unrelated
+ * families can proceed in parallel, while operations touching the same family or the same patient are serialized.
+ * <p>
+ * When an operation involves several identifiers, for example when a patient is moved from one family to another, all
+ * the needed stripes are always acquired in ascending stripe order, which guarantees that two operations can never
+ * deadlock waiting for each other.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class StripedFamilyLocks
+{
+    /** The default number of stripes, large enough to make collisions between unrelated families uncommon. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Default constructor, using {@link #DEFAULT_STRIPES} stripes.
+     */
+    public StripedFamilyLocks()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Constructor specifying the number of stripes to use.
+     *
+     * @param count the number of stripes, must be positive
+     */
+    public StripedFamilyLocks(int count)
+    {
+        if (count <= 0) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        this.stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires the locks guarding all the given identifiers, blocking until all of them are available. {@code null}
+     * identifiers are ignored. Each successful call must be paired with a call to {@link #unlock(Collection)} with the
+     * same identifiers, usually in a {@code finally} block.
+     *
+     * @param ids the identifiers of the families and patients about to be modified
+     */
+    public void lock(Collection<String> ids)
+    {
+        SortedSet<Integer> indexes = getStripeIndexes(ids);
+        for (Integer index : indexes) {
+            this.stripes[index].lock();
+        }
+    }
+
+    /**
+     * Releases the locks previously acquired with {@link #lock(Collection)}.
+     *
+     * @param ids the same identifiers that were passed to {@link #lock(Collection)}
+     */
+    public void unlock(Collection<String> ids)
+    {
+        for (Integer index : getStripeIndexes(ids)) {
+            ReentrantLock lock = this.stripes[index];
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks if the lock guarding the given identifier is currently held by the calling thread.
+     *
+     * @param id a family or patient identifier
+     * @return {@code true} if the current thread holds the corresponding lock
+     */
+    public boolean isHeldByCurrentThread(String id)
+    {
+        return id != null && this.stripes[getStripeIndex(id)].isHeldByCurrentThread();
+    }
+
+    private SortedSet<Integer> getStripeIndexes(Collection<String> ids)
+    {
+        SortedSet<Integer> result = new TreeSet<>();
+        if (ids != null) {
+            for (String id : ids) {
+                if (id != null) {
+                    result.add(getStripeIndex(id));
+                }
+            }
+        }
+        return result;
+    }
+
+    private int getStripeIndex(String id)
+    {
+        return (id.hashCode() & Integer.MAX_VALUE) % this.stripes.length;
+    }
+}
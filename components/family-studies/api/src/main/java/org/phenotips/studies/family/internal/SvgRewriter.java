@@ -0,0 +1,566 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Rewrites pedigree SVGs in a single linear pass. The SVG is tokenized once, the requested changes (removing patient
+ * links, highlighting the current patient and the proband, resizing) are computed on the small elements they affect,
+ * and the result is assembled in one go. Everything not explicitly changed is copied verbatim, so the output is
+ * byte-for-byte identical to the input outside the rewritten elements.
+ * <p>
+ * Usage: {@code new SvgRewriter().removeLink("P0000001").highlightPatient("P0000002").rewrite(svg)}. When several
+ * changes are requested, links are removed first, and the highlighting is applied to the remaining links.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class SvgRewriter
+{
+    // matches SVG links to patients, such as href="/bin/data/P0000001"
+    private static final Pattern PATIENT_PAGE_LINK_PATTERN = Pattern.compile("href=\"[\\w\\/]*?/(P\\d+)");
+
+    private static final Pattern SVG_WIDTH_PATTERN = Pattern.compile("(<svg[^>]+)width=\"\\d+\"");
+
+    private static final Pattern SVG_HEIGHT_PATTERN = Pattern.compile("(<svg[^>]+)height=\"\\d+\"");
+
+    private static final String STROKE_ATTR_TOKEN = "stroke-width=\"";
+
+    private static final String PEDIGREE_NODE_ID = "pedigreeNodeID=\"";
+
+    private static final String NODE_SHAPE_ID = "node-shape-";
+
+    private static final String PROBAND_MARKER = "isProband=\"true\"";
+
+    private static final String Y_ATTR_TOKEN = " y=\"";
+
+    private static final String SVG = "svg";
+
+    private static final String LINK = "a";
+
+    private static final String TEXT = "text";
+
+    private static final String RECT = "rect";
+
+    private static final String CIRCLE = "circle";
+
+    /** The number of pixels to shift text when a link is removed. */
+    private static final int SVG_LINK_HEIGHT_IN_PIXELS = 22;
+
+    private static final double PROBAND_STROKE_WIDTH = 2;
+
+    private static final double CURRENT_PATIENT_STROKE_WIDTH = 5;
+
+    private boolean removeLinks;
+
+    private String removedPatientId;
+
+    private boolean restyleShapes;
+
+    private String currentPatientId;
+
+    private int width;
+
+    private int height;
+
+    /**
+     * Removes the link to the given patient, and shifts up the labels of the node that was linked to the patient.
+     *
+     * @param patientId the identifier of the unlinked patient; if {@code null}, all links are removed
+     * @return this object, for chaining calls
+     */
+    public SvgRewriter removeLink(String patientId)
+    {
+        this.removeLinks = true;
+        this.removedPatientId = patientId;
+        return this;
+    }
+
+    /**
+     * Resets the styles of all the node shapes, marks the proband, and marks the node linked to the given patient as
+     * the current patient.
+     *
+     * @param patientId the identifier of the patient to visually mark as current, may be {@code null}, in which case
+     *            only the proband is marked
+     * @return this object, for chaining calls
+     */
+    public SvgRewriter highlightPatient(String patientId)
+    {
+        this.restyleShapes = true;
+        this.currentPatientId = patientId;
+        return this;
+    }
+
+    /**
+     * Sets the width of the SVG.
+     *
+     * @param width target width in pixels, 0 or negative values are ignored
+     * @return this object, for chaining calls
+     */
+    public SvgRewriter setWidth(int width)
+    {
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * Sets the height of the SVG.
+     *
+     * @param height target height in pixels, 0 or negative values are ignored
+     * @return this object, for chaining calls
+     */
+    public SvgRewriter setHeight(int height)
+    {
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Applies all the requested changes to the given SVG.
+     *
+     * @param svg the SVG to process, may be {@code null}
+     * @return the updated SVG, or {@code null} if the input was {@code null}
+     */
+    public String rewrite(String svg)
+    {
+        if (StringUtils.isEmpty(svg)) {
+            return svg;
+        }
+
+        List<Element> elements = tokenize(svg);
+        List<Edit> edits = new ArrayList<>();
+
+        Set<Element> removedLinks = this.removeLinks ? findRemovedLinks(svg, elements, edits) : Collections.emptySet();
+        if (this.restyleShapes) {
+            restyleShapes(svg, elements, removedLinks, edits);
+        }
+        if (this.width > 0 || this.height > 0) {
+            resize(svg, elements, edits);
+        }
+
+        return apply(svg, edits);
+    }
+
+    private Set<Element> findRemovedLinks(String svg, List<Element> elements, List<Edit> edits)
+    {
+        Set<Element> removed = new HashSet<>();
+        Set<String> removedNodeIds = new HashSet<>();
+        for (Element link : elements) {
+            if (!link.is(LINK) || !link.content(svg).contains(PEDIGREE_NODE_ID)) {
+                continue;
+            }
+            if (this.removedPatientId == null
+                || this.removedPatientId.equalsIgnoreCase(getLinkedPatientId(svg, link))) {
+                removed.add(link);
+                edits.add(new Edit(link.start, link.end, StringUtils.EMPTY));
+                String nodeId = getNodeId(link.content(svg), PEDIGREE_NODE_ID);
+                if (nodeId != null) {
+                    removedNodeIds.add(nodeId);
+                }
+            }
+        }
+        if (removedNodeIds.isEmpty()) {
+            return removed;
+        }
+        // shift up labels of the unlinked nodes, since the link label no longer takes space
+        for (Element text : elements) {
+            if (!text.is(TEXT) || isInside(text, removed)) {
+                continue;
+            }
+            String content = text.content(svg);
+            String nodeId = getNodeId(content, PEDIGREE_NODE_ID);
+            if (nodeId != null && removedNodeIds.contains(nodeId)) {
+                edits.add(new Edit(text.start, text.end, shiftY(content, -SVG_LINK_HEIGHT_IN_PIXELS)));
+            }
+        }
+        return removed;
+    }
+
+    private void restyleShapes(String svg, List<Element> elements, Set<Element> removedLinks, List<Edit> edits)
+    {
+        List<Element> shapes = new ArrayList<>();
+        List<String> shapeContents = new ArrayList<>();
+        int probandShape = -1;
+        for (Element shape : elements) {
+            if (!(shape.is(RECT) || shape.is(CIRCLE))) {
+                continue;
+            }
+            String content = shape.content(svg);
+            if (!content.contains(NODE_SHAPE_ID)) {
+                continue;
+            }
+            if (probandShape == -1 && content.contains(PROBAND_MARKER)) {
+                probandShape = shapes.size();
+            }
+            shapes.add(shape);
+            // not ideal, but will likely work fine for a long time - removing stroke from every shape
+            shapeContents.add(removeStrokeWidth(content));
+        }
+
+        if (probandShape != -1) {
+            shapeContents.set(probandShape, setStrokeWidth(shapeContents.get(probandShape), PROBAND_STROKE_WIDTH));
+        }
+
+        int currentShape = findCurrentPatientShape(svg, elements, removedLinks, shapes);
+        if (currentShape != -1) {
+            shapeContents.set(currentShape,
+                setStrokeWidth(shapeContents.get(currentShape), CURRENT_PATIENT_STROKE_WIDTH));
+        }
+
+        for (int i = 0; i < shapes.size(); ++i) {
+            edits.add(new Edit(shapes.get(i).start, shapes.get(i).end, shapeContents.get(i)));
+        }
+    }
+
+    private int findCurrentPatientShape(String svg, List<Element> elements, Set<Element> removedLinks,
+        List<Element> shapes)
+    {
+        if (this.currentPatientId == null) {
+            return -1;
+        }
+        Element currentLink = null;
+        for (Element link : elements) {
+            if (link.is(LINK) && !removedLinks.contains(link) && link.content(svg).contains(PEDIGREE_NODE_ID)
+                && this.currentPatientId.equalsIgnoreCase(getLinkedPatientId(svg, link))) {
+                if (currentLink != null) {
+                    // not sure what to do if more than one link to the same patient ID
+                    return -1;
+                }
+                currentLink = link;
+            }
+        }
+        if (currentLink == null) {
+            return -1;
+        }
+        String nodeId = getNodeId(currentLink.content(svg), PEDIGREE_NODE_ID);
+        if (nodeId == null) {
+            return -1;
+        }
+        for (int i = 0; i < shapes.size(); ++i) {
+            if (nodeId.equalsIgnoreCase(getNodeId(shapes.get(i).content(svg), NODE_SHAPE_ID))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void resize(String svg, List<Element> elements, List<Edit> edits)
+    {
+        boolean widthDone = this.width <= 0;
+        boolean heightDone = this.height <= 0;
+        for (Element element : elements) {
+            if (widthDone && heightDone) {
+                break;
+            }
+            if (!element.is(SVG)) {
+                continue;
+            }
+            String tag = svg.substring(element.start, element.startTagEnd);
+            String updated = tag;
+            if (!widthDone) {
+                Matcher m = SVG_WIDTH_PATTERN.matcher(updated);
+                if (m.find()) {
+                    updated = m.replaceFirst("$1width=\"" + this.width + '"');
+                    widthDone = true;
+                }
+            }
+            if (!heightDone) {
+                Matcher m = SVG_HEIGHT_PATTERN.matcher(updated);
+                if (m.find()) {
+                    updated = m.replaceFirst("$1height=\"" + this.height + '"');
+                    heightDone = true;
+                }
+            }
+            if (!tag.equals(updated)) {
+                edits.add(new Edit(element.start, element.startTagEnd, updated));
+            }
+        }
+    }
+
+    /**
+     * Assembles the output, replacing each edited range. Edits nested inside an already replaced range are skipped.
+     */
+    private static String apply(String svg, List<Edit> edits)
+    {
+        if (edits.isEmpty()) {
+            return svg;
+        }
+        Collections.sort(edits);
+        StringBuilder result = new StringBuilder(svg.length() + 16 * edits.size());
+        int position = 0;
+        for (Edit edit : edits) {
+            if (edit.start < position) {
+                continue;
+            }
+            result.append(svg, position, edit.start).append(edit.replacement);
+            position = edit.end;
+        }
+        result.append(svg, position, svg.length());
+        return result.toString();
+    }
+
+    /**
+     * Scans the SVG once, recording the position of every element. Comments, CDATA sections, processing instructions
+     * and declarations are skipped, and attribute values may contain {@code >}.
+     *
+     * @return the elements found, in document order, excluding unclosed ones
+     */
+    private static List<Element> tokenize(String svg)
+    {
+        List<Element> elements = new ArrayList<>();
+        Deque<Element> open = new ArrayDeque<>();
+        int length = svg.length();
+        int position = svg.indexOf('<');
+        while (position != -1 && position < length - 1) {
+            char next = svg.charAt(position + 1);
+            int tagEnd;
+            if (svg.startsWith("<!--", position)) {
+                tagEnd = endOf(svg, "-->", position + 4);
+            } else if (svg.startsWith("<![CDATA[", position)) {
+                tagEnd = endOf(svg, "]]>", position + 9);
+            } else if (next == '?') {
+                tagEnd = endOf(svg, "?>", position + 2);
+            } else if (next == '!') {
+                tagEnd = endOf(svg, ">", position + 2);
+            } else if (next == '/') {
+                tagEnd = endOf(svg, ">", position + 2);
+                closeElement(svg.substring(position + 2, tagEnd - 1).trim(), tagEnd, open);
+            } else {
+                tagEnd = findStartTagEnd(svg, position + 1);
+                Element element = new Element(readName(svg, position + 1), position, tagEnd);
+                elements.add(element);
+                if (svg.charAt(tagEnd - 2) == '/') {
+                    element.end = tagEnd;
+                } else {
+                    open.push(element);
+                }
+            }
+            position = svg.indexOf('<', tagEnd);
+        }
+
+        List<Element> closed = new ArrayList<>(elements.size());
+        for (Element element : elements) {
+            if (element.end != -1) {
+                closed.add(element);
+            }
+        }
+        return closed;
+    }
+
+    private static void closeElement(String name, int end, Deque<Element> open)
+    {
+        // only close if there is a matching open element, ignore stray end tags
+        for (Element element : open) {
+            if (element.name.equals(name)) {
+                Element current;
+                do {
+                    current = open.pop();
+                } while (current != element);
+                element.end = end;
+                return;
+            }
+        }
+    }
+
+    /** @return the position right after the end marker, or the end of the string if the marker is missing */
+    private static int endOf(String svg, String marker, int from)
+    {
+        int index = svg.indexOf(marker, from);
+        return index == -1 ? svg.length() : index + marker.length();
+    }
+
+    /** @return the position right after the {@code >} ending the start tag, skipping quoted attribute values */
+    private static int findStartTagEnd(String svg, int from)
+    {
+        char quote = 0;
+        for (int i = from; i < svg.length(); ++i) {
+            char c = svg.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return svg.length();
+    }
+
+    private static String readName(String svg, int from)
+    {
+        int i = from;
+        while (i < svg.length()) {
+            char c = svg.charAt(i);
+            if (Character.isWhitespace(c) || c == '>' || c == '/') {
+                break;
+            }
+            ++i;
+        }
+        return svg.substring(from, i);
+    }
+
+    private static boolean isInside(Element element, Set<Element> containers)
+    {
+        for (Element container : containers) {
+            if (container.start <= element.start && element.end <= container.end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getLinkedPatientId(String svg, Element link)
+    {
+        Matcher linkMatch = PATIENT_PAGE_LINK_PATTERN.matcher(link.content(svg));
+        if (linkMatch.find()) {
+            return linkMatch.group(1);
+        }
+        return StringUtils.EMPTY;
+    }
+
+    /**
+     * Gets a numeric node id following the given token.
+     *
+     * @return the node id, or {@code null} if the token is missing or not followed by a number
+     */
+    private static String getNodeId(String content, String token)
+    {
+        int start = content.indexOf(token);
+        if (start == -1) {
+            return null;
+        }
+        start += token.length();
+        int end = start;
+        while (end < content.length() && Character.isDigit(content.charAt(end))) {
+            ++end;
+        }
+        return end > start ? content.substring(start, end) : null;
+    }
+
+    private static String removeStrokeWidth(String content)
+    {
+        int styleStart = content.indexOf(STROKE_ATTR_TOKEN);
+        if (styleStart == -1) {
+            return content;
+        }
+        int styleEnd = content.indexOf('"', styleStart + STROKE_ATTR_TOKEN.length());
+        // should throw an error if end is not found, but we are trying to make sure no data is lost
+        if (styleEnd == -1) {
+            return content;
+        }
+        return content.substring(0, styleStart) + content.substring(styleEnd + 1);
+    }
+
+    private static String setStrokeWidth(String content, double strokeWidth)
+    {
+        int tokenStart = content.indexOf(STROKE_ATTR_TOKEN);
+        if (tokenStart != -1) {
+            int tokenEnd = content.indexOf('"', tokenStart + STROKE_ATTR_TOKEN.length());
+            return content.substring(0, tokenStart + STROKE_ATTR_TOKEN.length()) + strokeWidth
+                + content.substring(tokenEnd);
+        }
+        int closingBracketPos = content.indexOf('>');
+        return content.substring(0, closingBracketPos) + ' ' + STROKE_ATTR_TOKEN + strokeWidth + '"'
+            + content.substring(closingBracketPos);
+    }
+
+    private static String shiftY(String content, int shiftBy)
+    {
+        int startYPosition = content.indexOf(Y_ATTR_TOKEN);
+        if (startYPosition == -1) {
+            return content;
+        }
+        startYPosition += Y_ATTR_TOKEN.length();
+        int endYPosition = content.indexOf('"', startYPosition + 1);
+        double yPosition = Double.parseDouble(content.substring(startYPosition, endYPosition));
+        return content.substring(0, startYPosition) + Double.toString(yPosition + shiftBy)
+            + content.substring(endYPosition);
+    }
+
+    /** The position of an element in the SVG. */
+    private static final class Element
+    {
+        private final String name;
+
+        private final int start;
+
+        private final int startTagEnd;
+
+        /** Position right after the end tag, or {@code -1} if the element isn't closed yet. */
+        private int end = -1;
+
+        private String content;
+
+        Element(String name, int start, int startTagEnd)
+        {
+            this.name = name;
+            this.start = start;
+            this.startTagEnd = startTagEnd;
+        }
+
+        boolean is(String elementName)
+        {
+            return this.name.equals(elementName);
+        }
+
+        String content(String svg)
+        {
+            if (this.content == null) {
+                this.content = svg.substring(this.start, this.end);
+            }
+            return this.content;
+        }
+    }
+
+    /** A replacement of a range of the original SVG. */
+    private static final class Edit implements Comparable<Edit>
+    {
+        private final int start;
+
+        private final int end;
+
+        private final String replacement;
+
+        Edit(int start, int end, String replacement)
+        {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+
+        @Override
+        public int compareTo(Edit other)
+        {
+            return Integer.compare(this.start, other.start);
+        }
+    }
+}
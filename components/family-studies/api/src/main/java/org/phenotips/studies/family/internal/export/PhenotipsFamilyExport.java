@@ -24,8 +24,12 @@
 import org.phenotips.security.authorization.AuthorizationService;
 import org.phenotips.studies.family.Family;
 import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.studies.family.internal.FamilyMembersLoader;
+import org.phenotips.studies.family.internal.SolrFamilyIndexer;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
@@ -34,15 +38,18 @@
 import org.xwiki.users.UserManager;
 import org.xwiki.xml.XMLUtils;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
@@ -92,6 +99,9 @@
 
     private static final String FAMILY_MEMBERS = "familyMembers";
 
+    /** How many index hits are fetched at once for each requested result, to make up for inaccessible hits. */
+    private static final int HITS_PER_RESULT = 4;
+
     /** Runs queries for finding families. */
     @Inject
     private QueryManager qm;
@@ -117,6 +127,16 @@
     @Inject
     private Provider<XWikiContext> provider;
 
+    @Inject
+    private FamilyMembersLoader membersLoader;
+
+    @Inject
+    private SolrFamilyIndexer familyIndexer;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> stringResolver;
+
     /**
      * Returns a list of families by the input search criteria. The user has to have requiredPermission on each family.
      *
@@ -131,9 +151,13 @@
     public String searchFamilies(String input, int resultsLimit, String requiredPermission, String orderField,
         String order, boolean returnAsJSON)
     {
-        Set<FamilySearchResult> results = new LinkedHashSet<>();
-        queryFamilies(input, requiredPermission, resultsLimit, orderField, order, results);
-        queryPatients(input, requiredPermission, resultsLimit, orderField, order, results);
+        Set<FamilySearchResult> results = searchIndex(input, requiredPermission, resultsLimit, orderField, order);
+        if (results == null) {
+            // the index is not available, or not fully built yet, fall back to querying the documents directly
+            results = new LinkedHashSet<>();
+            queryFamilies(input, requiredPermission, resultsLimit, orderField, order, results);
+            queryPatients(input, requiredPermission, resultsLimit, orderField, order, results);
+        }
         return formatResults(results, returnAsJSON);
     }
 
@@ -150,9 +174,15 @@ public JSONObject toJSON(Family family)
         familyJSON.put(FAMILY_EXTERNAL_ID, family.getExternalId());
         familyJSON.put(FAMILY_WARNING, family.getWarningMessage());
 
+        // load all members and check all their rights at once, instead of once per member and per use
+        List<Patient> members = family.getMembers();
+        Map<String, Set<Right>> rights = this.membersLoader.getAccessRights(this.userManager.getCurrentUser(),
+            members, Right.VIEW, Right.EDIT);
+        XWikiContext context = this.provider.get();
+
         JSONArray patientsJSONArray = new JSONArray();
-        for (Patient patient : family.getMembers()) {
-            JSONObject patientJSON = getPatientInformationAsJSON(patient);
+        for (Patient patient : members) {
+            JSONObject patientJSON = getPatientInformationAsJSON(patient, rights.get(patient.getId()), context);
             patientsJSONArray.put(patientJSON);
         }
         familyJSON.put(FAMILY_MEMBERS, patientsJSONArray);
@@ -160,7 +190,7 @@ public JSONObject toJSON(Family family)
         return familyJSON;
     }
 
-    private JSONObject getPatientInformationAsJSON(Patient patient)
+    private JSONObject getPatientInformationAsJSON(Patient patient, Set<Right> rights, XWikiContext context)
     {
         JSONObject patientJSON = new JSONObject();
 
@@ -174,25 +204,101 @@ private JSONObject getPatientInformationAsJSON(Patient patient)
         patientJSON.put(ID, patient.getId());
         patientJSON.put(IDENTIFIER, patient.getExternalId());
         patientJSON.put(NAME, patientNameForJSON);
-        patientJSON.put(REPORTS, getMedicalReports(patient));
+        patientJSON.put(REPORTS, getMedicalReports(patient, rights.contains(Right.VIEW)));
 
         // Patient URL
-        XWikiContext context = this.provider.get();
         String url = context.getWiki().getURL(patient.getDocumentReference(), "view", context);
         patientJSON.put(URL, url);
 
         // add permissions information
-        User currentUser = this.userManager.getCurrentUser();
         JSONObject permissionJSON = new JSONObject();
-        permissionJSON.put("hasEdit",
-            this.authorizationService.hasAccess(currentUser, Right.EDIT, patient.getDocumentReference()));
-        permissionJSON.put("hasView",
-            this.authorizationService.hasAccess(currentUser, Right.VIEW, patient.getDocumentReference()));
+        permissionJSON.put("hasEdit", rights.contains(Right.EDIT));
+        permissionJSON.put("hasView", rights.contains(Right.VIEW));
         patientJSON.put(PERMISSIONS, permissionJSON);
 
         return patientJSON;
     }
 
+    /**
+     * Searches the family index, loading only the families and patients that end up in the result.
+     *
+     * @return the accessible results, or {@code null} if the index cannot be searched
+     */
+    private Set<FamilySearchResult> searchIndex(String input, String requiredPermission, int resultsLimit,
+        String orderField, String order)
+    {
+        boolean usePatientName = this.configuration.getConfiguration(PATIENT_LABEL).getEnabledFieldNames()
+            .contains(FIRST_NAME);
+        Collection<SolrFamilyIndexer.Hit> hits =
+            findAccessibleHits(input, usePatientName, requiredPermission, resultsLimit, orderField, order);
+        if (hits == null) {
+            return null;
+        }
+
+        Set<FamilySearchResult> results = new LinkedHashSet<>();
+        for (SolrFamilyIndexer.Hit hit : hits) {
+            Family family = this.familyRepository.get(hit.getFamilyId());
+            if (family == null) {
+                continue;
+            }
+            if (hit.getMemberId() == null) {
+                results.add(new FamilySearchResult(family, requiredPermission));
+            } else {
+                Patient patient = this.patientRepository.get(hit.getMemberId());
+                if (patient != null) {
+                    results.add(new FamilySearchResult(patient, usePatientName, family, requiredPermission));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Goes through the ranked index hits, one page at a time, until enough accessible families are found. Access
+     * rights are checked at once for all the new family and patient documents in a page, before anything is loaded.
+     *
+     * @return the best accessible hit for each family, in rank order, or {@code null} if the index cannot be searched
+     */
+    private Collection<SolrFamilyIndexer.Hit> findAccessibleHits(String input, boolean usePatientName,
+        String requiredPermission, int resultsLimit, String orderField, String order)
+    {
+        Right right = Right.toRight(requiredPermission);
+        User user = this.userManager.getCurrentUser();
+        Map<String, Boolean> access = new HashMap<>();
+        Map<String, SolrFamilyIndexer.Hit> accepted = new LinkedHashMap<>();
+        int pageSize = Math.max(resultsLimit, 1) * HITS_PER_RESULT;
+        List<SolrFamilyIndexer.Hit> hits = this.familyIndexer.search(input, usePatientName, orderField, order, 0,
+            pageSize);
+        if (hits == null) {
+            return null;
+        }
+        for (int start = pageSize; hits != null; start += pageSize) {
+            Map<EntityReference, String> unchecked = new LinkedHashMap<>();
+            for (SolrFamilyIndexer.Hit hit : hits) {
+                String document = hit.getMatchedDocument();
+                if (!access.containsKey(document)) {
+                    unchecked.put(this.stringResolver.resolve(document), document);
+                }
+            }
+            if (!unchecked.isEmpty()) {
+                Map<EntityReference, Boolean> decisions =
+                    this.authorizationService.checkAccess(user, right, unchecked.keySet());
+                for (Map.Entry<EntityReference, String> document : unchecked.entrySet()) {
+                    access.put(document.getValue(), Boolean.TRUE.equals(decisions.get(document.getKey())));
+                }
+            }
+            for (SolrFamilyIndexer.Hit hit : hits) {
+                if (access.get(hit.getMatchedDocument()) && !accepted.containsKey(hit.getFamilyId())
+                    && accepted.size() < resultsLimit) {
+                    accepted.put(hit.getFamilyId(), hit);
+                }
+            }
+            hits = (hits.size() < pageSize || accepted.size() >= resultsLimit) ? null
+                : this.familyIndexer.search(input, usePatientName, orderField, order, start, pageSize);
+        }
+        return accepted.values();
+    }
+
     private void queryFamilies(String input, String requiredPermission, int resultsLimit, String orderField,
         String order, Set<FamilySearchResult> results)
     {
@@ -358,12 +464,35 @@ private String formatResults(Set<FamilySearchResult> results, boolean returnAsJS
      * @return Map with medical reports
      */
     public Map<String, String> getMedicalReports(Patient patient)
+    {
+        return getMedicalReports(patient, this.authorizationService.hasAccess(this.userManager.getCurrentUser(),
+            Right.VIEW, patient.getDocumentReference()));
+    }
+
+    /**
+     * Returns all medical reports associated with each of the given patients, checking view rights on all of them at
+     * once.
+     *
+     * @param patients the patients to get medical reports for
+     * @return a map from patient identifier to the medical reports of that patient
+     */
+    public Map<String, Map<String, String>> getMedicalReports(List<Patient> patients)
+    {
+        Map<String, Set<Right>> rights =
+            this.membersLoader.getAccessRights(this.userManager.getCurrentUser(), patients, Right.VIEW);
+        Map<String, Map<String, String>> result = new HashMap<>();
+        for (Patient patient : patients) {
+            result.put(patient.getId(), getMedicalReports(patient, rights.get(patient.getId()).contains(Right.VIEW)));
+        }
+        return result;
+    }
+
+    private Map<String, String> getMedicalReports(Patient patient, boolean canView)
     {
         PatientData<String> links = patient.getData("medicalreportslinks");
         Map<String, String> mapOfLinks = new HashMap<>();
 
-        if (this.authorizationService.hasAccess(this.userManager.getCurrentUser(), Right.VIEW,
-            patient.getDocumentReference())) {
+        if (canView) {
             if (links != null) {
                 Iterator<Map.Entry<String, String>> iterator = links.dictionaryIterator();
                 while (iterator.hasNext()) {
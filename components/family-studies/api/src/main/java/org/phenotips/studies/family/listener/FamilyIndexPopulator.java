@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.listener;
+
+import org.phenotips.studies.family.internal.SolrFamilyIndexer;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Builds the {@link SolrFamilyIndexer family index} in the background once PhenoTips is ready, if it was never built
+ * before, so that neither the startup nor the first family search wait for all the families to be indexed.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("phenotips-family-index-populator")
+@Singleton
+public class FamilyIndexPopulator extends AbstractEventListener
+{
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SolrFamilyIndexer indexer;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public FamilyIndexPopulator()
+    {
+        super("phenotips-family-index-populator", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        Thread thread = new Thread(this::populate, "PhenoTips family indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void populate()
+    {
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            XWikiContext context = this.xcontextProvider.get();
+            if (context.getWikiId() == null) {
+                context.setWikiId(context.getMainXWiki());
+            }
+            this.indexer.populate();
+        } catch (ExecutionContextException | RuntimeException ex) {
+            this.logger.warn("Failed to build the family index: {}", ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.listener;
+
+import org.phenotips.data.Patient;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.internal.SolrFamilyIndexer;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link SolrFamilyIndexer family index} up to date: families are scheduled for re-indexing in the
+ * background whenever the family document, or the record of one of the family members, is saved, and removed from the
+ * index when deleted.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("phenotips-family-indexer")
+@Singleton
+public class FamilyIndexingListener extends AbstractEventListener
+{
+    @Inject
+    private SolrFamilyIndexer indexer;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> stringResolver;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public FamilyIndexingListener()
+    {
+        super("phenotips-family-indexer", new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        if (document == null) {
+            return;
+        }
+
+        if (event instanceof DocumentDeletedEvent) {
+            XWikiDocument original = document.getOriginalDocument();
+            if (original == null) {
+                return;
+            }
+            if (original.getXObject(Family.CLASS_REFERENCE) != null) {
+                this.indexer.delete(original.getDocumentReference());
+            } else if (original.getXObject(Patient.CLASS_REFERENCE) != null) {
+                this.indexer.deleteMember(original.getDocumentReference());
+            }
+        } else if (document.getXObject(Family.CLASS_REFERENCE) != null) {
+            this.indexer.schedule(document.getDocumentReference());
+        } else if (document.getXObject(Patient.CLASS_REFERENCE) != null) {
+            // the patient's identifiers or names may have changed, which are indexed with the family
+            BaseObject familyReference = document.getXObject(Family.REFERENCE_CLASS_REFERENCE);
+            String familyDocument = familyReference == null ? null : familyReference.getStringValue("reference");
+            if (StringUtils.isNotBlank(familyDocument)) {
+                this.indexer.schedule(this.stringResolver.resolve(familyDocument, Family.DATA_SPACE));
+            }
+        }
+    }
+}
@@ -90,7 +90,7 @@ public Family getFamilyById(String familyId)
 
     /**
      * Returns family pedigree. Essentially this is a shortcut for getFamilyById().getPedigree() with a check that
-     * family is not null.
+     * family is not null. Changes to the returned pedigree are not stored in the family.
      *
      * @param familyId must be a valid family id
      * @return pedigree object or null if no such family, no pedigree or no view rights for the family.
@@ -113,7 +113,8 @@ public Family getFamilyForPatient(String patientId)
     }
 
     /**
-     * Returns patient's pedigree, which is the pedigree of a family that patient belongs to.
+     * Returns patient's pedigree, which is the pedigree of a family that patient belongs to. Changes to the returned
+     * pedigree are not stored in the family.
      *
      * @param patientId id of the patient
      * @return Id of the, or null if patient does not belong to the family or current user has no view rights for the
@@ -26,20 +26,26 @@
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.ManageRight;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -284,6 +290,32 @@ public void noActionWithNullDocument() throws ComponentLookupException
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, Right.VIEW, null));
     }
 
+    @Test
+    public void bulkCheckLoadsAllFamiliesTogether() throws ComponentLookupException
+    {
+        when(this.access1.getGrantedRight()).thenReturn(ManageRight.MANAGE);
+        when(this.access2.getGrantedRight()).thenReturn(Right.ILLEGAL);
+        DocumentReference notFamily = new DocumentReference("xwiki", "data", "P0000001");
+        List<DocumentReference> docs = Arrays.asList(this.doc, notFamily);
+        when(this.repo.getAll(docs)).thenReturn(Arrays.asList(this.family, null).iterator());
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.EDIT, docs);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertTrue(result.get(this.doc));
+        Assert.assertNull(result.get(notFamily));
+        verify(this.repo, never()).get(Matchers.anyString());
+    }
+
+    @Test
+    public void bulkCheckWithoutUserDoesNotLoadFamilies() throws ComponentLookupException
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest()
+            .checkAccess(null, Right.VIEW, Arrays.asList(this.doc)).isEmpty());
+        verify(this.repo, never()).getAll(Matchers.anyCollectionOf(EntityReference.class));
+    }
+
     @Test
     public void expectedPriority() throws ComponentLookupException
     {
@@ -25,6 +25,7 @@
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.ManageRight;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
@@ -32,14 +33,19 @@
 import org.xwiki.users.internal.InvalidUser;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -150,6 +156,24 @@ public void noActionWithNullDocument() throws ComponentLookupException
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, Right.VIEW, null));
     }
 
+    @Test
+    public void bulkCheckDeniesAccessToAllFamiliesLoadedTogether() throws ComponentLookupException
+    {
+        DocumentReference notFamily = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReference other = new DocumentReference("xwiki", "Families", "FAM02");
+        List<DocumentReference> docs = Arrays.asList(this.doc, notFamily, other);
+        when(this.repo.getAll(docs)).thenReturn(Arrays.asList(this.family, null, this.family).iterator());
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.VIEW, docs);
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertFalse(result.get(this.doc));
+        Assert.assertNull(result.get(notFamily));
+        Assert.assertFalse(result.get(other));
+        verify(this.repo, never()).get(Matchers.anyString());
+    }
+
     @Test
     public void expectedPriority() throws ComponentLookupException
     {
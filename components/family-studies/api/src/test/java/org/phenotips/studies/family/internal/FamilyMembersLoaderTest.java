@@ -0,0 +1,194 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link FamilyMembersLoader} component.
+ *
+ * @version $Id$
+ */
+public class FamilyMembersLoaderTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<FamilyMembersLoader> mocker =
+        new MockitoComponentMockingRule<>(FamilyMembersLoader.class);
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private User user;
+
+    private PatientRepository patientRepository;
+
+    private Patient[] patients = new Patient[3];
+
+    @Before
+    public void setup() throws ComponentLookupException, XWikiException, QueryException
+    {
+        MockitoAnnotations.initMocks(this);
+
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        when(qm.createQuery(anyString(), eq(Query.XWQL))).thenReturn(this.query);
+        when(this.query.bindValue(anyString(), any())).thenReturn(this.query);
+
+        this.patientRepository = this.mocker.getInstance(PatientRepository.class);
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        for (int i = 0; i < this.patients.length; ++i) {
+            String id = "P000000" + (i + 1);
+            DocumentReference reference = new DocumentReference("xwiki", "data", id);
+            XWikiDocument document = mock(XWikiDocument.class);
+            this.patients[i] = mock(Patient.class);
+            when(this.patients[i].getId()).thenReturn(id);
+            when(this.patients[i].getDocumentReference()).thenReturn(reference);
+            when(resolver.resolve(eq(id), any())).thenReturn(reference);
+            when(this.xwiki.getDocument(reference, this.context)).thenReturn(document);
+            when(this.patientRepository.load(document)).thenReturn(this.patients[i]);
+        }
+    }
+
+    @Test
+    public void membersAreLoadedWithOneQueryInOrder() throws ComponentLookupException, QueryException
+    {
+        when(this.query.<String>execute()).thenReturn(Arrays.asList("P0000003", "P0000001"));
+
+        List<Patient> result =
+            this.mocker.getComponentUnderTest().getMembers(Arrays.asList("P0000001", "P0000009", "P0000003"));
+
+        Assert.assertEquals(Arrays.asList(this.patients[0], this.patients[2]), result);
+        verify(this.query, times(1)).execute();
+        verify(this.patientRepository, never()).get(anyString());
+    }
+
+    @Test
+    public void failedQueryFallsBackToIndividualLoading() throws ComponentLookupException, QueryException
+    {
+        when(this.query.<String>execute()).thenThrow(new QueryException("failed", this.query, null));
+        when(this.patientRepository.get("P0000002")).thenReturn(this.patients[1]);
+
+        List<Patient> result =
+            this.mocker.getComponentUnderTest().getMembers(Arrays.asList("P0000002", "P0000009"));
+
+        Assert.assertEquals(Collections.singletonList(this.patients[1]), result);
+    }
+
+    @Test
+    public void noMembersDoesNotQuery() throws ComponentLookupException, QueryException
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().getMembers(Collections.<String>emptyList()).isEmpty());
+        verify(this.query, never()).execute();
+    }
+
+    @Test
+    public void eachRightIsCheckedOnceForAllMembers() throws ComponentLookupException
+    {
+        AuthorizationService auth = this.mocker.getInstance(AuthorizationService.class);
+        List<DocumentReference> references = Arrays.asList(this.patients[0].getDocumentReference(),
+            this.patients[1].getDocumentReference(), this.patients[2].getDocumentReference());
+        Map<EntityReference, Boolean> view = new HashMap<>();
+        view.put(references.get(0), true);
+        view.put(references.get(1), true);
+        view.put(references.get(2), false);
+        when(auth.checkAccess(eq(this.user), eq(Right.VIEW), anyCollectionOf(EntityReference.class))).thenReturn(view);
+        Map<EntityReference, Boolean> edit = new HashMap<>();
+        edit.put(references.get(0), true);
+        edit.put(references.get(1), false);
+        edit.put(references.get(2), false);
+        when(auth.checkAccess(eq(this.user), eq(Right.EDIT), anyCollectionOf(EntityReference.class))).thenReturn(edit);
+
+        Map<String, Set<Right>> result = this.mocker.getComponentUnderTest().getAccessRights(this.user,
+            Arrays.asList(this.patients[0], this.patients[1], this.patients[2]), Right.VIEW, Right.EDIT);
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertTrue(result.get("P0000001").contains(Right.VIEW));
+        Assert.assertTrue(result.get("P0000001").contains(Right.EDIT));
+        Assert.assertTrue(result.get("P0000002").contains(Right.VIEW));
+        Assert.assertFalse(result.get("P0000002").contains(Right.EDIT));
+        Assert.assertTrue(result.get("P0000003").isEmpty());
+        verify(auth).checkAccess(this.user, Right.VIEW, new LinkedHashSet<>(references));
+        verify(auth).checkAccess(this.user, Right.EDIT, new LinkedHashSet<>(references));
+        verify(auth, never()).hasAccess(any(User.class), any(Right.class), any(DocumentReference.class));
+    }
+
+    @Test
+    public void noPatientsDoesNotCheckRights() throws ComponentLookupException
+    {
+        AuthorizationService auth = this.mocker.getInstance(AuthorizationService.class);
+        Assert.assertTrue(this.mocker.getComponentUnderTest()
+            .getAccessRights(this.user, Collections.<Patient>emptyList(), Right.VIEW).isEmpty());
+        verify(auth, never()).checkAccess(any(User.class), any(Right.class), anyCollectionOf(EntityReference.class));
+    }
+}
@@ -153,4 +153,10 @@ public void supportsRecordTypeReturnsFalseIfNullOrEmpty() throws ComponentLookup
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(null));
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(""));
     }
+
+    @Test
+    public void cacheKeyIsAlwaysEmpty() throws ComponentLookupException
+    {
+        Assert.assertEquals("", this.mocker.getComponentUnderTest().getCacheKey("family"));
+    }
 }
@@ -34,13 +34,22 @@
 import org.xwiki.users.User;
 import org.xwiki.users.internal.InvalidUser;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -95,6 +104,7 @@ public void setupMocks() throws Exception
         DocumentReferenceResolver<String> strResolver =
             this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
         when(strResolver.resolve("xwiki:Users.padams")).thenReturn(this.userProfile);
+        when(strResolver.resolve("xwiki:Users.hmccoy")).thenReturn(new DocumentReference("xwiki", "Users", "hmccoy"));
         when(strResolver.resolve("")).thenReturn(new DocumentReference("xwiki", "data", "WebHome"));
         when(strResolver.resolve(null)).thenReturn(new DocumentReference("xwiki", "data", "WebHome"));
 
@@ -258,6 +268,52 @@ public void noActionWithNullDocument() throws ComponentLookupException
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, Right.VIEW, null));
     }
 
+    @Test
+    public void bulkCheckLoadsAllFamiliesTogetherAndChecksAdminRightsOnce() throws ComponentLookupException
+    {
+        DocumentReference notFamily = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReference otherDoc = new DocumentReference("xwiki", "Families", "FAM02");
+        Family otherFamily = mock(Family.class);
+        when(otherFamily.getDocumentReference()).thenReturn(otherDoc);
+        when(this.dab.getProperty(otherDoc, this.xclass, Owner.PROPERTY_NAME)).thenReturn("xwiki:Users.hmccoy");
+        List<DocumentReference> docs = Arrays.asList(this.doc, notFamily, otherDoc);
+        when(this.repo.getAll(docs)).thenReturn(Arrays.asList(this.family, null, otherFamily).iterator());
+        AuthorizationService auth = this.mocker.getInstance(AuthorizationService.class);
+        when(auth.checkAccess(this.user, Right.ADMIN, Collections.singletonList(otherDoc)))
+            .thenReturn(Collections.<EntityReference, Boolean>singletonMap(otherDoc, true));
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.EDIT, docs);
+
+        Assert.assertEquals(Arrays.asList(this.doc, notFamily, otherDoc), Arrays.asList(result.keySet().toArray()));
+        Assert.assertTrue(result.get(this.doc));
+        Assert.assertNull(result.get(notFamily));
+        Assert.assertTrue(result.get(otherDoc));
+        verify(this.repo, never()).get(Matchers.anyString());
+        verify(auth, never()).hasAccess(Matchers.any(User.class), Matchers.any(Right.class),
+            Matchers.any(EntityReference.class));
+    }
+
+    @Test
+    public void bulkCheckDoesNotGrantAccessToFamiliesOwnedByOthers() throws ComponentLookupException
+    {
+        DocumentReference otherDoc = new DocumentReference("xwiki", "Families", "FAM02");
+        Family otherFamily = mock(Family.class);
+        when(otherFamily.getDocumentReference()).thenReturn(otherDoc);
+        when(this.dab.getProperty(otherDoc, this.xclass, Owner.PROPERTY_NAME)).thenReturn("xwiki:Users.hmccoy");
+        List<DocumentReference> docs = Collections.singletonList(otherDoc);
+        when(this.repo.getAll(docs)).thenReturn(Collections.singletonList(otherFamily).iterator());
+        AuthorizationService auth = this.mocker.getInstance(AuthorizationService.class);
+        when(auth.checkAccess(this.user, Right.ADMIN, docs))
+            .thenReturn(Collections.<EntityReference, Boolean>singletonMap(otherDoc, false));
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.VIEW, docs);
+
+        Assert.assertTrue(result.containsKey(otherDoc));
+        Assert.assertNull(result.get(otherDoc));
+    }
+
     @Test
     public void expectedPriority() throws ComponentLookupException
     {
@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.studies.family.Pedigree;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.cache.Cache;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseStringProperty;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ParsedPedigreeCache} component.
+ *
+ * @version $Id$
+ */
+public class ParsedPedigreeCacheTest
+{
+    private static final String DATA = "{\"proband\":1,\"members\":["
+        + "{\"id\":1,\"properties\":{\"id\":\"P0000001\"}},"
+        + "{\"id\":2,\"properties\":{\"id\":\"P0000002\"}}]}";
+
+    private static final String IMAGE = "<svg width=\"100\" height=\"100\"></svg>";
+
+    @Rule
+    public final MockitoComponentMockingRule<ParsedPedigreeCache> mocker =
+        new MockitoComponentMockingRule<>(ParsedPedigreeCache.class);
+
+    @Mock
+    private XWikiDocument document;
+
+    @Mock
+    private BaseObject pedigreeObject;
+
+    @Mock
+    private BaseStringProperty data;
+
+    @Mock
+    private BaseStringProperty image;
+
+    private Cache<String, ParsedPedigree> cache;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        this.cache = ReflectionUtils.getFieldValue(this.mocker.getComponentUnderTest(), "cache");
+
+        DocumentReference reference = new DocumentReference("xwiki", "Families", "FAM0000001");
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(reference)).thenReturn("xwiki:Families.FAM0000001");
+        when(this.document.getDocumentReference()).thenReturn(reference);
+        when(this.document.getVersion()).thenReturn("1.1");
+        when(this.document.getXObject(Pedigree.CLASS_REFERENCE)).thenReturn(this.pedigreeObject);
+        when(this.pedigreeObject.get(Pedigree.DATA)).thenReturn(this.data);
+        when(this.pedigreeObject.get(Pedigree.IMAGE)).thenReturn(this.image);
+        when(this.data.toText()).thenReturn(DATA);
+        when(this.image.toText()).thenReturn(IMAGE);
+    }
+
+    @Test
+    public void pedigreeIsParsedOncePerVersion() throws Exception
+    {
+        ParsedPedigree first = this.mocker.getComponentUnderTest().get(this.document);
+        ParsedPedigree second = this.mocker.getComponentUnderTest().get(this.document);
+
+        Assert.assertNotNull(first);
+        Assert.assertSame(first, second);
+        Assert.assertSame(first, this.cache.getIfPresent("xwiki:Families.FAM0000001@1.1"));
+    }
+
+    @Test
+    public void newVersionsAreParsedAgain() throws Exception
+    {
+        ParsedPedigree first = this.mocker.getComponentUnderTest().get(this.document);
+        when(this.document.getVersion()).thenReturn("2.1");
+        ParsedPedigree second = this.mocker.getComponentUnderTest().get(this.document);
+
+        Assert.assertNotSame(first, second);
+    }
+
+    @Test
+    public void unsavedChangesAreNotHiddenByTheCache() throws Exception
+    {
+        ParsedPedigree first = this.mocker.getComponentUnderTest().get(this.document);
+        when(this.data.toText()).thenReturn(DATA.replace("P0000002", "P0000003"));
+        ParsedPedigree second = this.mocker.getComponentUnderTest().get(this.document);
+
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(second.getMemberIds().contains("P0000003"));
+        Assert.assertSame(second, this.mocker.getComponentUnderTest().get(this.document));
+    }
+
+    @Test
+    public void cacheIsBoundedByThePedigreeSize() throws Exception
+    {
+        String hugeImage = "<svg>" + StringUtils.repeat(' ', 10000000) + "</svg>";
+        when(this.image.toText()).thenReturn(hugeImage);
+
+        ParsedPedigree first = this.mocker.getComponentUnderTest().get(this.document);
+
+        Assert.assertNotNull(first);
+        Assert.assertNull(this.cache.getIfPresent("xwiki:Families.FAM0000001@1.1"));
+        Assert.assertNotSame(first, this.mocker.getComponentUnderTest().get(this.document));
+    }
+
+    @Test
+    public void missingPedigreeReturnsNull() throws Exception
+    {
+        when(this.document.getXObject(Pedigree.CLASS_REFERENCE)).thenReturn(null);
+        Assert.assertNull(this.mocker.getComponentUnderTest().get(this.document));
+    }
+
+    @Test
+    public void emptyPedigreeReturnsNull() throws Exception
+    {
+        when(this.data.toText()).thenReturn("");
+        Assert.assertNull(this.mocker.getComponentUnderTest().get(this.document));
+        Assert.assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    public void invalidPedigreeReturnsNull() throws Exception
+    {
+        when(this.data.toText()).thenReturn("{not json");
+        Assert.assertNull(this.mocker.getComponentUnderTest().get(this.document));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.studies.family.Pedigree;
+
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ParsedPedigree}.
+ *
+ * @version $Id$
+ */
+public class ParsedPedigreeTest
+{
+    private static final String DATA = "{\"proband\":1,\"members\":["
+        + "{\"id\":1,\"properties\":{\"id\":\"P0000001\",\"patient_name\":{\"last_name\":\"Smith\"}}},"
+        + "{\"id\":2,\"properties\":{\"id\":\"P0000002\"}},"
+        + "{\"id\":3,\"properties\":{\"gender\":\"F\"}}]}";
+
+    private static final String IMAGE = "<svg width=\"100\" height=\"100\"></svg>";
+
+    @Test
+    public void extractsProbandAndMembers()
+    {
+        ParsedPedigree pedigree = new ParsedPedigree(DATA, IMAGE);
+        Assert.assertEquals("P0000001", pedigree.getProbandId());
+        Assert.assertEquals("Smith", pedigree.getProbandPatientLastName());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), pedigree.getMemberIds());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void memberIdsAreImmutable()
+    {
+        new ParsedPedigree(DATA, IMAGE).getMemberIds().add("P0000003");
+    }
+
+    @Test
+    public void matchesOnlyTheSameData()
+    {
+        ParsedPedigree pedigree = new ParsedPedigree(DATA, IMAGE);
+        Assert.assertTrue(pedigree.matches(DATA, IMAGE));
+        Assert.assertFalse(pedigree.matches(DATA.replace("Smith", "Jones"), IMAGE));
+        Assert.assertFalse(pedigree.matches(DATA, "<svg></svg>"));
+    }
+
+    @Test
+    public void changesToBuiltPedigreeDoNotAffectSnapshot()
+    {
+        ParsedPedigree parsed = new ParsedPedigree(DATA, IMAGE);
+        Pedigree pedigree = parsed.toPedigree();
+        pedigree.removeLink("P0000002");
+        Assert.assertEquals(Arrays.asList("P0000001"), pedigree.extractIds());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), parsed.getMemberIds());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), parsed.toPedigree().extractIds());
+    }
+
+    @Test
+    public void imageSizeIsUpdated()
+    {
+        ParsedPedigree pedigree = new ParsedPedigree(DATA, IMAGE);
+        Assert.assertTrue(pedigree.getImage(null, 50, 0).contains("width=\"50\""));
+    }
+
+    @Test
+    public void readOnlyViewReusesTheParsedData()
+    {
+        ParsedPedigree parsed = new ParsedPedigree(DATA, IMAGE);
+        Pedigree pedigree = parsed.asPedigree();
+        Assert.assertEquals("P0000001", pedigree.getProbandId());
+        Assert.assertEquals("Smith", pedigree.getProbandPatientLastName());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), pedigree.extractIds());
+        Assert.assertEquals(1, pedigree.getData().getInt("proband"));
+        Assert.assertTrue(pedigree.getImage(null, 50, 0).contains("width=\"50\""));
+    }
+
+    @Test
+    public void readOnlyViewReturnsCopiesOfPatientProperties()
+    {
+        ParsedPedigree parsed = new ParsedPedigree(DATA, IMAGE);
+        parsed.asPedigree().extractPatientJSONProperties().get(0).remove("id");
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), parsed.asPedigree().extractIds());
+        Assert.assertEquals(2, parsed.toPedigree().extractPatientJSONProperties().size());
+    }
+
+    @Test
+    public void changesToTheReturnedDataDoNotAffectTheSnapshot()
+    {
+        ParsedPedigree parsed = new ParsedPedigree(DATA, IMAGE);
+        Pedigree pedigree = parsed.asPedigree();
+        pedigree.getData().put("proband", 2);
+        pedigree.getData().getJSONArray("members").remove(0);
+        Assert.assertEquals(1, pedigree.getData().getInt("proband"));
+        Assert.assertEquals(3, parsed.asPedigree().getData().getJSONArray("members").length());
+        Assert.assertEquals(1, parsed.toPedigree().getData().getInt("proband"));
+    }
+
+    @Test
+    public void removingLinksChangesOnlyTheView()
+    {
+        ParsedPedigree parsed = new ParsedPedigree(DATA, IMAGE);
+        Pedigree pedigree = parsed.asPedigree();
+        pedigree.removeLink("P0000002");
+        Assert.assertEquals(Arrays.asList("P0000001"), pedigree.extractIds());
+        Assert.assertEquals(1, pedigree.extractPatientJSONProperties().size());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), parsed.getMemberIds());
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002"), parsed.asPedigree().extractIds());
+
+        pedigree.removeLink("P0000001");
+        Assert.assertTrue(pedigree.extractIds().isEmpty());
+        Assert.assertNull(pedigree.getProbandId());
+        Assert.assertEquals("P0000001", parsed.getProbandId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedFormatIsRejected()
+    {
+        new ParsedPedigree("{\"data\":{}}", IMAGE);
+    }
+
+    @Test(expected = JSONException.class)
+    public void invalidJSONIsRejected()
+    {
+        new ParsedPedigree("{not json", IMAGE);
+    }
+}
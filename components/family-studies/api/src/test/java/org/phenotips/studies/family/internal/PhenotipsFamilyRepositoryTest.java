@@ -0,0 +1,359 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.studies.family.exceptions.PTPatientAlreadyInAnotherFamilyException;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Provider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that concurrent edits of families through the {@link PhenotipsFamilyRepository} don't lose updates, don't wait
+ * for edits of unrelated families, and don't deadlock when patients are moved between families.
+ *
+ * @version $Id$
+ */
+public class PhenotipsFamilyRepositoryTest
+{
+    private static final int PATIENTS = 16;
+
+    /** How many times each patient is moved to the other family. */
+    private static final int MOVES = 3;
+
+    @Rule
+    public final MockitoComponentMockingRule<FamilyRepository> mocker =
+        new MockitoComponentMockingRule<FamilyRepository>(PhenotipsFamilyRepository.class);
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private User user;
+
+    /** FAM0000001 and FAM0000002 are guarded by different lock stripes, distinct from those of the first patients. */
+    private Family family;
+
+    private Family otherFamily;
+
+    /** The members list as stored in the family document. */
+    private final List<String> storedMembers = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The members list as stored in the other family document. */
+    private final List<String> otherStoredMembers = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The family reference stored in each patient document, indexed by patient identifier. */
+    private final Map<String, String> storedReferences = new ConcurrentHashMap<>();
+
+    /** The family documents, indexed by their serialized reference. */
+    private final Map<String, XWikiDocument> familyDocuments = new ConcurrentHashMap<>();
+
+    private final List<Patient> patients = new ArrayList<>();
+
+    /** When set, saving this document waits until {@link #release} is opened. */
+    private volatile XWikiDocument blockedDocument;
+
+    private final CountDownLatch saving = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutorService editors;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        // Saving takes a while, which leaves room for concurrent edits to interleave
+        doAnswer(invocation -> {
+            if (invocation.getArguments()[0] == this.blockedDocument) {
+                this.saving.countDown();
+                this.release.await(30, TimeUnit.SECONDS);
+            }
+            Thread.sleep(5);
+            return null;
+        }).when(this.xwiki).saveDocument(any(XWikiDocument.class), anyString(), any(XWikiContext.class));
+        when(this.xwiki.getDocument(any(EntityReference.class), any(XWikiContext.class)))
+            .thenAnswer(invocation -> this.familyDocuments.get(String.valueOf(invocation.getArguments()[0])));
+        DocumentReferenceResolver<String> stringResolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(stringResolver.resolve(anyString(), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> this.familyDocuments.get(invocation.getArguments()[0]).getDocumentReference());
+
+        AuthorizationService authorizationService = this.mocker.getInstance(AuthorizationService.class);
+        when(authorizationService.hasAccess(any(User.class), any(Right.class), any(DocumentReference.class)))
+            .thenReturn(true);
+
+        this.family = mockFamily("FAM0000001", this.storedMembers);
+        this.otherFamily = mockFamily("FAM0000002", this.otherStoredMembers);
+
+        for (int i = 1; i <= PATIENTS; ++i) {
+            final String id = String.format("P%07d", i);
+            Patient patient = mock(Patient.class);
+            XWikiDocument patientDocument = mock(XWikiDocument.class);
+            BaseObject pointer = mock(BaseObject.class);
+            when(patient.getId()).thenReturn(id);
+            when(patient.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", id));
+            when(patient.getXDocument()).thenReturn(patientDocument);
+            when(patientDocument.getXObject(any(EntityReference.class), anyBoolean(), any(XWikiContext.class)))
+                .thenReturn(pointer);
+            when(patientDocument.getXObject(Family.REFERENCE_CLASS_REFERENCE))
+                .thenAnswer(invocation -> this.storedReferences.containsKey(id) ? pointer : null);
+            when(patientDocument.removeXObject(pointer)).thenAnswer(invocation -> {
+                this.storedReferences.remove(id);
+                return true;
+            });
+            when(pointer.getStringValue(anyString())).thenAnswer(invocation -> this.storedReferences.get(id));
+            doAnswer(invocation -> {
+                this.storedReferences.put(id, (String) invocation.getArguments()[1]);
+                return null;
+            }).when(pointer).set(anyString(), any(), any(XWikiContext.class));
+            this.patients.add(patient);
+        }
+
+        this.editors = Executors.newFixedThreadPool(PATIENTS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.release.countDown();
+        this.editors.shutdownNow();
+    }
+
+    @Test
+    public void concurrentAdditionsToTheSameFamilyAreNotLost() throws Exception
+    {
+        final FamilyRepository repository = this.mocker.getComponentUnderTest();
+        runConcurrently(patient -> repository.addMember(this.family, patient, this.user));
+
+        Assert.assertEquals(PATIENTS, this.storedMembers.size());
+        Assert.assertEquals(new HashSet<>(getIds(this.patients)), new HashSet<>(this.storedMembers));
+    }
+
+    @Test
+    public void concurrentRemovalsFromTheSameFamilyAreNotLost() throws Exception
+    {
+        this.storedMembers.addAll(getIds(this.patients));
+        final FamilyRepository repository = this.mocker.getComponentUnderTest();
+        runConcurrently(patient -> repository.removeMember(this.family, patient, this.user));
+
+        Assert.assertTrue(this.storedMembers.isEmpty());
+    }
+
+    @Test
+    public void editsOfDifferentFamiliesDoNotWaitForEachOther() throws Exception
+    {
+        final FamilyRepository repository = this.mocker.getComponentUnderTest();
+        this.blockedDocument = this.family.getXDocument();
+
+        Future<Void> blocked =
+            submit(this.patients.get(0), patient -> repository.addMember(this.family, patient, this.user));
+        Assert.assertTrue(this.saving.await(30, TimeUnit.SECONDS));
+
+        // The first family is locked while its document is being saved, but the other family can still be edited
+        submit(this.patients.get(1), patient -> repository.addMember(this.otherFamily, patient, this.user))
+            .get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(Collections.singletonList("P0000002"), this.otherStoredMembers);
+
+        // Another edit of the first family must wait for the first one to finish
+        Future<Void> waiting =
+            submit(this.patients.get(2), patient -> repository.addMember(this.family, patient, this.user));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("The second edit of the same family didn't wait for the first one");
+        } catch (TimeoutException ex) {
+            // Expected
+        }
+        Assert.assertFalse(blocked.isDone());
+
+        this.release.countDown();
+        blocked.get(30, TimeUnit.SECONDS);
+        waiting.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("P0000001", "P0000003")), new HashSet<>(this.storedMembers));
+    }
+
+    @Test
+    public void movingPatientsBetweenFamiliesDoesNotDeadlock() throws Exception
+    {
+        // Patients start in alternating families, so every edit locks both families, in different orders
+        for (int i = 0; i < PATIENTS; ++i) {
+            Family start = i % 2 == 0 ? this.family : this.otherFamily;
+            getStoredMembers(start).add(this.patients.get(i).getId());
+            this.storedReferences.put(this.patients.get(i).getId(), getReference(start));
+        }
+        final FamilyRepository repository = this.mocker.getComponentUnderTest();
+
+        runConcurrently(patient -> {
+            for (int move = 0; move < MOVES; ++move) {
+                Family current = this.storedMembers.contains(patient.getId()) ? this.family : this.otherFamily;
+                Family target = current == this.family ? this.otherFamily : this.family;
+                try {
+                    repository.addMember(target, patient, this.user);
+                    Assert.fail("Patient added to a second family");
+                } catch (PTPatientAlreadyInAnotherFamilyException ex) {
+                    // Expected, the patient must first be removed from its current family
+                }
+                repository.removeMember(current, patient, this.user);
+                repository.addMember(target, patient, this.user);
+            }
+        });
+
+        List<String> even = new ArrayList<>();
+        List<String> odd = new ArrayList<>();
+        for (int i = 0; i < PATIENTS; ++i) {
+            (i % 2 == 0 ? even : odd).add(this.patients.get(i).getId());
+        }
+        // After an odd number of moves each patient ends up in the family where it didn't start
+        Assert.assertEquals(new HashSet<>(odd), new HashSet<>(this.storedMembers));
+        Assert.assertEquals(new HashSet<>(even), new HashSet<>(this.otherStoredMembers));
+        for (String id : odd) {
+            Assert.assertEquals(getReference(this.family), this.storedReferences.get(id));
+        }
+        for (String id : even) {
+            Assert.assertEquals(getReference(this.otherFamily), this.storedReferences.get(id));
+        }
+    }
+
+    private Family mockFamily(String id, final List<String> members)
+    {
+        Family result = mock(Family.class);
+        XWikiDocument document = mock(XWikiDocument.class);
+        BaseObject object = mock(BaseObject.class);
+        DocumentReference reference = new DocumentReference("xwiki", "Families", id);
+        when(result.getId()).thenReturn(id);
+        when(result.getDocumentReference()).thenReturn(reference);
+        when(result.getXDocument()).thenReturn(document);
+        when(document.getDocumentReference()).thenReturn(reference);
+        when(document.getXObject(Family.CLASS_REFERENCE)).thenReturn(object);
+        // Each call reads a fresh copy of the stored members, just like a real family does
+        when(result.getMembersIds()).thenAnswer(invocation -> new ArrayList<>(members));
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            List<String> newMembers = (List<String>) invocation.getArguments()[1];
+            synchronized (members) {
+                members.clear();
+                members.addAll(newMembers);
+            }
+            return null;
+        }).when(object).set(eq(PhenotipsFamily.FAMILY_MEMBERS_FIELD), any(), any(XWikiContext.class));
+        this.familyDocuments.put(reference.toString(), document);
+        return result;
+    }
+
+    private List<String> getStoredMembers(Family target)
+    {
+        return target == this.family ? this.storedMembers : this.otherStoredMembers;
+    }
+
+    private String getReference(Family target)
+    {
+        return target.getDocumentReference().toString();
+    }
+
+    private Future<Void> submit(final Patient patient, final Edit edit)
+    {
+        return this.editors.submit((Callable<Void>) () -> {
+            edit.apply(patient);
+            return null;
+        });
+    }
+
+    private void runConcurrently(final Edit edit) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        for (final Patient patient : this.patients) {
+            results.add(this.editors.submit((Callable<Void>) () -> {
+                start.await();
+                edit.apply(patient);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private List<String> getIds(List<Patient> list)
+    {
+        List<String> result = new ArrayList<>();
+        for (Patient patient : list) {
+            result.add(patient.getId());
+        }
+        return result;
+    }
+
+    private interface Edit
+    {
+        void apply(Patient patient) throws Exception;
+    }
+}
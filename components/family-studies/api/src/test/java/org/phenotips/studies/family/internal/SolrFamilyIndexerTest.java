@@ -0,0 +1,340 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SolrFamilyIndexer} component.
+ *
+ * @version $Id$
+ */
+public class SolrFamilyIndexerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<SolrFamilyIndexer> mocker =
+        new MockitoComponentMockingRule<>(SolrFamilyIndexer.class);
+
+    @Mock
+    private SolrClient server;
+
+    @Mock
+    private Family family;
+
+    @Mock
+    private Patient patient;
+
+    @Mock
+    private PatientData<String> names;
+
+    private SolrFamilyIndexer indexer;
+
+    private DocumentReference familyReference;
+
+    private XWikiContext context;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        doReturn(mock(CoreContainer.class)).when(cores).getContainer();
+
+        this.familyReference = new DocumentReference("xwiki", "Families", "FAM0000001");
+        DocumentReference patientReference = new DocumentReference("xwiki", "data", "P0000001");
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(this.familyReference)).thenReturn("xwiki:Families.FAM0000001");
+        when(serializer.serialize(patientReference)).thenReturn("xwiki:data.P0000001");
+
+        when(this.family.getId()).thenReturn("FAM0000001");
+        when(this.family.getExternalId()).thenReturn("Smiths");
+        when(this.family.getDocumentReference()).thenReturn(this.familyReference);
+        when(this.family.getMembers()).thenReturn(Arrays.asList(this.patient));
+
+        when(this.patient.getId()).thenReturn("P0000001");
+        when(this.patient.getExternalId()).thenReturn("");
+        when(this.patient.getDocumentReference()).thenReturn(patientReference);
+        doReturn(this.names).when(this.patient).getData("patientName");
+        when(this.names.get("first_name")).thenReturn("John");
+        when(this.names.get("last_name")).thenReturn("Smith");
+
+        this.context = mock(XWikiContext.class);
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+
+        this.indexer = this.mocker.getComponentUnderTest();
+        ReflectionUtils.setFieldValue(this.indexer, "server", this.server);
+    }
+
+    @Test
+    public void familyIsIndexedWithItsMembers() throws IOException, SolrServerException
+    {
+        this.indexer.index(this.family);
+
+        verify(this.server).deleteByQuery("family_document:xwiki\\:Families.FAM0000001", 1000);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<Collection<SolrInputDocument>> captor = ArgumentCaptor.forClass((Class) Collection.class);
+        verify(this.server).add(captor.capture(), anyInt());
+        List<SolrInputDocument> inputs = new ArrayList<>(captor.getValue());
+        Assert.assertEquals(2, inputs.size());
+
+        SolrInputDocument familyInput = inputs.get(0);
+        Assert.assertEquals("xwiki:Families.FAM0000001", familyInput.getFieldValue("document"));
+        Assert.assertEquals("family", familyInput.getFieldValue("type"));
+        Assert.assertEquals("xwiki", familyInput.getFieldValue("wiki"));
+        Assert.assertEquals("Smiths", familyInput.getFieldValue("external_id"));
+        Assert.assertEquals(Arrays.asList("P0000001"), familyInput.getFieldValues("members"));
+
+        SolrInputDocument memberInput = inputs.get(1);
+        Assert.assertEquals("xwiki:data.P0000001", memberInput.getFieldValue("document"));
+        Assert.assertEquals("member", memberInput.getFieldValue("type"));
+        Assert.assertEquals("xwiki", memberInput.getFieldValue("wiki"));
+        Assert.assertEquals("FAM0000001", memberInput.getFieldValue("family"));
+        Assert.assertEquals("xwiki:Families.FAM0000001", memberInput.getFieldValue("family_document"));
+        Assert.assertEquals("John Smith", memberInput.getFieldValue("name_search"));
+        Assert.assertNull(memberInput.getFieldValue("external_id"));
+    }
+
+    @Test
+    public void deletingRemovesTheFamilyAndItsMembers() throws IOException, SolrServerException
+    {
+        this.indexer.delete(this.familyReference);
+        verify(this.server).deleteByQuery("family_document:xwiki\\:Families.FAM0000001", 1000);
+    }
+
+    @Test(timeout = 30000)
+    public void scheduledFamiliesAreIndexedInTheBackground() throws Exception
+    {
+        when(this.mocker.<FamilyRepository>getInstance(FamilyRepository.class).get(this.familyReference))
+            .thenReturn(this.family);
+
+        this.indexer.schedule(this.familyReference);
+
+        verify(this.server, timeout(10000)).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+        verify(this.mocker.<ExecutionContextManager>getInstance(ExecutionContextManager.class))
+            .initialize(any(ExecutionContext.class));
+        verify(this.context).setWikiId("xwiki");
+    }
+
+    @Test
+    public void schedulingAnUnknownFamilyIsIgnored() throws Exception
+    {
+        this.indexer.schedule(null);
+
+        verify(this.mocker.<FamilyRepository>getInstance(FamilyRepository.class), never())
+            .get(any(DocumentReference.class));
+    }
+
+    @Test
+    public void searchReturnsRankedHits() throws IOException, SolrServerException
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        results.add(document("family", "FAM0000002", "xwiki:Families.FAM0000002", "FAM0000002",
+            "xwiki:Families.FAM0000002"));
+        results.add(document("member", "FAM0000001", "xwiki:Families.FAM0000001", "P0000001",
+            "xwiki:data.P0000001"));
+        results.setNumFound(2);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrQuery.class))).thenReturn(response);
+
+        List<SolrFamilyIndexer.Hit> hits = this.indexer.search("smi", true, "id", "asc", 0, 10);
+
+        Assert.assertEquals(2, hits.size());
+        Assert.assertEquals("FAM0000002", hits.get(0).getFamilyId());
+        Assert.assertNull(hits.get(0).getMemberId());
+        Assert.assertEquals("xwiki:Families.FAM0000002", hits.get(0).getMatchedDocument());
+        Assert.assertEquals("FAM0000001", hits.get(1).getFamilyId());
+        Assert.assertEquals("P0000001", hits.get(1).getMemberId());
+        Assert.assertEquals("xwiki:data.P0000001", hits.get(1).getMatchedDocument());
+
+        // The first query checks that the index was fully built
+        ArgumentCaptor<SolrQuery> captor = ArgumentCaptor.forClass(SolrQuery.class);
+        verify(this.server, times(2)).query(captor.capture());
+        Assert.assertEquals("document:populated\\:xwiki", captor.getAllValues().get(0).getQuery());
+        SolrQuery query = captor.getAllValues().get(1);
+        Assert.assertTrue(query.getQuery().contains("id_search:smi"));
+        Assert.assertTrue(query.getQuery().contains("name_search:(smi)"));
+        Assert.assertEquals(Arrays.asList("wiki:xwiki", "type:(family OR member)"),
+            Arrays.asList(query.getFilterQueries()));
+    }
+
+    @Test
+    public void populatedIndexIsOnlyCheckedOnce() throws IOException, SolrServerException
+    {
+        found(1);
+
+        this.indexer.search("smi", true, "id", "asc", 0, 10);
+        this.indexer.search("smi", true, "id", "asc", 0, 10);
+
+        // One check and two searches
+        verify(this.server, times(3)).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void namesAreNotSearchedUnlessRequested() throws IOException, SolrServerException
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(1);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrQuery.class))).thenReturn(response);
+
+        Assert.assertTrue(this.indexer.search("smi", false, "eid", "desc", 0, 10).isEmpty());
+
+        ArgumentCaptor<SolrQuery> captor = ArgumentCaptor.forClass(SolrQuery.class);
+        verify(this.server, times(2)).query(captor.capture());
+        Assert.assertFalse(captor.getValue().getQuery().contains("name_search"));
+        Assert.assertEquals("external_id desc", captor.getValue().getSortField().split(",")[1].trim());
+    }
+
+    @Test
+    public void searchReturnsNullWhenTheIndexIsUnavailable() throws IOException, SolrServerException
+    {
+        when(this.server.query(any(SolrQuery.class))).thenThrow(new SolrServerException("unavailable"));
+        Assert.assertNull(this.indexer.search("smi", true, "id", "asc", 0, 10));
+    }
+
+    @Test
+    public void blankInputDoesNotSearch() throws IOException, SolrServerException
+    {
+        Assert.assertTrue(this.indexer.search(" ", true, "id", "asc", 0, 10).isEmpty());
+        verify(this.server, never()).query(any(SolrQuery.class));
+        verify(this.server, never()).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+    }
+
+    @Test
+    public void indexIsPopulatedWithAllFamiliesUntilMarkedAsBuilt() throws Exception
+    {
+        found(0);
+        Query query = mock(Query.class);
+        when(this.mocker.<QueryManager>getInstance(QueryManager.class).createQuery(anyString(), eq(Query.XWQL)))
+            .thenReturn(query);
+        when(query.<String>execute()).thenReturn(Arrays.asList("FAM0000001"));
+        when(this.mocker.<FamilyRepository>getInstance(FamilyRepository.class).get("FAM0000001"))
+            .thenReturn(this.family);
+
+        this.indexer.populate();
+
+        verify(this.server).deleteByQuery("wiki:xwiki");
+        verify(this.server).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+        ArgumentCaptor<SolrInputDocument> marker = ArgumentCaptor.forClass(SolrInputDocument.class);
+        verify(this.server).add(marker.capture());
+        Assert.assertEquals("populated:xwiki", marker.getValue().getFieldValue("document"));
+        Assert.assertEquals("xwiki", marker.getValue().getFieldValue("wiki"));
+        verify(this.server).commit();
+        Assert.assertTrue(this.indexer.isPopulated());
+    }
+
+    @Test
+    public void indexIsNotRebuiltWhenAlreadyPopulated() throws Exception
+    {
+        found(1);
+
+        this.indexer.populate();
+
+        verify(this.server, never()).deleteByQuery(anyString());
+        verify(this.mocker.<QueryManager>getInstance(QueryManager.class), never()).createQuery(anyString(),
+            anyString());
+    }
+
+    @Test
+    public void searchFallsBackUntilTheIndexIsBuilt() throws Exception
+    {
+        found(0);
+
+        Assert.assertNull(this.indexer.search("smi", true, "id", "asc", 0, 10));
+
+        verify(this.server, times(1)).query(any(SolrQuery.class));
+        verify(this.server, never()).deleteByQuery(anyString());
+    }
+
+    private void found(long count) throws IOException, SolrServerException
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(count);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrQuery.class))).thenReturn(response);
+    }
+
+    private SolrDocument document(String type, String family, String familyDocument, String id, String document)
+    {
+        SolrDocument result = new SolrDocument();
+        result.setField("type", type);
+        result.setField("family", family);
+        result.setField("family_document", familyDocument);
+        result.setField("id", id);
+        result.setField("document", document);
+        return result;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link StripedFamilyLocks}.
+ *
+ * @version $Id$
+ */
+public class StripedFamilyLocksTest
+{
+    private static final int FAMILIES = 200;
+
+    private static final int THREADS = 16;
+
+    private static final int OPERATIONS = 2000;
+
+    @Test(timeout = 30000)
+    public void manyFamiliesEditedInParallelDoNotDeadlockAndStayConsistent() throws Exception
+    {
+        final StripedFamilyLocks locks = new StripedFamilyLocks();
+        // Non-atomic counters, only safe if the locks really provide mutual exclusion
+        final int[] familyVersions = new int[FAMILIES];
+        final AtomicInteger performed = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            results.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    for (int i = 0; i < OPERATIONS / THREADS; ++i) {
+                        // Simulates moving a patient from one family to another, which locks two families
+                        int from = random.nextInt(FAMILIES);
+                        int to = random.nextInt(FAMILIES);
+                        Collection<String> ids = Arrays.asList(familyId(to), familyId(from), "P" + i);
+                        locks.lock(ids);
+                        try {
+                            familyVersions[from]++;
+                            if (to != from) {
+                                familyVersions[to]++;
+                            }
+                            performed.addAndGet(to != from ? 2 : 1);
+                        } finally {
+                            locks.unlock(ids);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        int total = 0;
+        for (int version : familyVersions) {
+            total += version;
+        }
+        Assert.assertEquals(performed.get(), total);
+    }
+
+    @Test(timeout = 10000)
+    public void unrelatedFamiliesAreNotSerialized() throws Exception
+    {
+        final StripedFamilyLocks locks = new StripedFamilyLocks(2);
+        // With two stripes, these two identifiers map to different locks
+        final String first = "FAM0000001";
+        final String second = findIdInOtherStripe(locks, first);
+
+        final CountDownLatch secondLocked = new CountDownLatch(1);
+        locks.lock(Arrays.asList(first));
+        try {
+            Thread other = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    locks.lock(Arrays.asList(second));
+                    try {
+                        secondLocked.countDown();
+                    } finally {
+                        locks.unlock(Arrays.asList(second));
+                    }
+                }
+            });
+            other.start();
+            Assert.assertTrue(secondLocked.await(5, TimeUnit.SECONDS));
+            other.join();
+        } finally {
+            locks.unlock(Arrays.asList(first));
+        }
+        Assert.assertFalse(locks.isHeldByCurrentThread(first));
+    }
+
+    @Test
+    public void lockIsReentrantAndNullsAreIgnored()
+    {
+        StripedFamilyLocks locks = new StripedFamilyLocks();
+        List<String> ids = Arrays.asList("FAM0000001", null, "P0000001");
+        locks.lock(ids);
+        Assert.assertTrue(locks.isHeldByCurrentThread("FAM0000001"));
+        Assert.assertTrue(locks.isHeldByCurrentThread("P0000001"));
+        Assert.assertFalse(locks.isHeldByCurrentThread(null));
+        locks.unlock(ids);
+        Assert.assertFalse(locks.isHeldByCurrentThread("FAM0000001"));
+        Assert.assertFalse(locks.isHeldByCurrentThread("P0000001"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidStripeCountIsRejected()
+    {
+        new StripedFamilyLocks(0);
+    }
+
+    private static String familyId(int index)
+    {
+        return String.format("FAM%07d", index);
+    }
+
+    private static String findIdInOtherStripe(StripedFamilyLocks locks, String id)
+    {
+        locks.lock(Arrays.asList(id));
+        try {
+            for (int i = 2;; ++i) {
+                String candidate = familyId(i);
+                if (!locks.isHeldByCurrentThread(candidate)) {
+                    return candidate;
+                }
+            }
+        } finally {
+            locks.unlock(Arrays.asList(id));
+        }
+    }
+}
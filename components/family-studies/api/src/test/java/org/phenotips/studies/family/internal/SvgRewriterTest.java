@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link SvgRewriter}. The expected {@code svg/*.svg} files were produced by the previous,
+ * substring-based implementation of {@link SvgUpdater}, so these tests check that the output didn't change.
+ *
+ * @version $Id$
+ */
+public class SvgRewriterTest
+{
+    @Test
+    public void highlightCurrentPatientMatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(read("small-highlight-P0000002.svg"),
+            new SvgRewriter().highlightPatient("P0000002").rewrite(read("small.svg")));
+        Assert.assertEquals(read("large-highlight-P0000107.svg"),
+            new SvgRewriter().highlightPatient("P0000107").rewrite(read("large.svg")));
+    }
+
+    @Test
+    public void highlightWithoutCurrentPatientMatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(read("large-highlight-null.svg"),
+            new SvgRewriter().highlightPatient(null).rewrite(read("large.svg")));
+    }
+
+    @Test
+    public void highlightAndResizeInOnePassMatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(read("small-proband-350x250.svg"),
+            new SvgRewriter().highlightPatient("P0000001").setWidth(350).setHeight(250).rewrite(read("small.svg")));
+    }
+
+    @Test
+    public void removeLinkMatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(read("small-remove-P0000002.svg"),
+            new SvgRewriter().removeLink("P0000002").rewrite(read("small.svg")));
+        Assert.assertEquals(read("large-remove-P0000110.svg"),
+            new SvgRewriter().removeLink("P0000110").rewrite(read("large.svg")));
+    }
+
+    @Test
+    public void svgUpdaterDelegatesToRewriter() throws Exception
+    {
+        String small = read("small.svg");
+        Assert.assertEquals(read("small-remove-P0000002.svg"), SvgUpdater.removeLink(small, "P0000002"));
+        Assert.assertEquals(read("small-highlight-P0000002.svg"),
+            SvgUpdater.setCurrentPatientStylesInSvg(small, "P0000002"));
+        Assert.assertEquals(read("small-proband-350x250.svg"), SvgUpdater.setSVGHeight(
+            SvgUpdater.setSVGWidth(SvgUpdater.setCurrentPatientStylesInSvg(small, "P0000001"), 350), 250));
+    }
+
+    @Test
+    public void unknownPatientLeavesOnlyProbandHighlighted() throws Exception
+    {
+        String svg = new SvgRewriter().highlightPatient("P9999999").rewrite(read("small.svg"));
+        Assert.assertTrue(svg.contains("isProband=\"true\" stroke-width=\"2.0\""));
+        Assert.assertFalse(svg.contains("stroke-width=\"5.0\""));
+    }
+
+    @Test
+    public void shapesAfterTheLastCircleAreAlsoRestyled()
+    {
+        String svg = "<svg width=\"10\" height=\"10\"><circle class=\"node-shape-1\" stroke-width=\"1\"></circle>"
+            + "<rect class=\"node-shape-2\" stroke-width=\"1\"></rect>"
+            + "<rect class=\"node-shape-3\" stroke-width=\"1\"></rect>"
+            + "<a xlink:href=\"/bin/data/P0000003\"><text pedigreeNodeID=\"3\" y=\"10\">P0000003</text></a></svg>";
+        Assert.assertEquals("<svg width=\"10\" height=\"10\"><circle class=\"node-shape-1\" ></circle>"
+            + "<rect class=\"node-shape-2\" ></rect>"
+            + "<rect class=\"node-shape-3\"  stroke-width=\"5.0\"></rect>"
+            + "<a xlink:href=\"/bin/data/P0000003\"><text pedigreeNodeID=\"3\" y=\"10\">P0000003</text></a></svg>",
+            new SvgRewriter().highlightPatient("P0000003").rewrite(svg));
+    }
+
+    @Test
+    public void commentsAndQuotedBracketsAreSkipped()
+    {
+        String svg = "<svg width=\"10\" height=\"10\"><!-- <rect class=\"node-shape-9\"></rect> -->"
+            + "<rect title=\"a > b\" class=\"node-shape-1\" stroke-width=\"1\"></rect></svg>";
+        Assert.assertEquals("<svg width=\"20\" height=\"10\"><!-- <rect class=\"node-shape-9\"></rect> -->"
+            + "<rect title=\"a > b\" class=\"node-shape-1\" ></rect></svg>",
+            new SvgRewriter().highlightPatient(null).setWidth(20).rewrite(svg));
+    }
+
+    @Test
+    public void emptyInputIsReturnedUnchanged()
+    {
+        Assert.assertNull(new SvgRewriter().highlightPatient("P0000001").rewrite(null));
+        Assert.assertEquals("", new SvgRewriter().removeLink("P0000001").rewrite(""));
+    }
+
+    private String read(String name) throws Exception
+    {
+        return new String(Files.readAllBytes(Paths.get(getClass().getResource("/svg/" + name).toURI())),
+            StandardCharsets.UTF_8);
+    }
+}
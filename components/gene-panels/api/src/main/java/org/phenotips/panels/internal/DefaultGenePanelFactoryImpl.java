@@ -26,6 +26,7 @@
 import org.xwiki.component.annotation.Component;
 
 import java.util.Collection;
+import java.util.Collections;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
@@ -47,6 +48,10 @@ public class DefaultGenePanelFactoryImpl implements GenePanelFactory
     @Inject
     private VocabularyManager vocabularyManager;
 
+    /** The shared phenotype-to-gene index. */
+    @Inject
+    private PhenotypeGeneIndex geneIndex;
+
     @Override
     public GenePanel build(
         @Nonnull final Collection<VocabularyTerm> presentTerms,
@@ -54,7 +59,7 @@ public GenePanel build(
     {
         Validate.notNull(presentTerms);
         Validate.notNull(absentTerms);
-        return new DefaultGenePanelImpl(presentTerms, absentTerms, this.vocabularyManager);
+        return new DefaultGenePanelImpl(presentTerms, absentTerms, Collections.emptySet(), this.geneIndex);
     }
 
     @Override
@@ -66,7 +71,7 @@ public GenePanel build(
         Validate.notNull(presentTerms);
         Validate.notNull(absentTerms);
         Validate.notNull(rejectedGenes);
-        return new DefaultGenePanelImpl(presentTerms, absentTerms, rejectedGenes, this.vocabularyManager);
+        return new DefaultGenePanelImpl(presentTerms, absentTerms, rejectedGenes, this.geneIndex);
     }
 
     @Override
@@ -83,6 +88,6 @@ public GenePanel build(@Nonnull final Patient patient, final boolean excludeReje
             ? new PatientDataAdapter.AdapterBuilder(patient, this.vocabularyManager).withRejectedGenes().build()
             : new PatientDataAdapter.AdapterBuilder(patient, this.vocabularyManager).build();
         return new DefaultGenePanelImpl(dataAdapter.getPresentTerms(), dataAdapter.getAbsentTerms(),
-            dataAdapter.getRejectedGenes(), this.vocabularyManager);
+            dataAdapter.getRejectedGenes(), this.geneIndex);
     }
 }
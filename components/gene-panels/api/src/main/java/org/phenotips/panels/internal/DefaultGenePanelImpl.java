@@ -19,7 +19,6 @@
 
 import org.phenotips.panels.GenePanel;
 import org.phenotips.panels.TermsForGene;
-import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -30,10 +29,7 @@
 import java.util.Set;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -45,9 +41,6 @@
  */
 public class DefaultGenePanelImpl implements GenePanel
 {
-    /** Internal label for associated genes. */
-    private static final String ASSOCIATED_GENES = "associated_genes";
-
     /** The "size" JSON property label. */
     private static final String RETURNED_SIZE = "returnedrows";
 
@@ -57,18 +50,6 @@ public class DefaultGenePanelImpl implements GenePanel
     /** The "genes" JSON property label. */
     private static final String GENE_ROWS_LABEL = "rows";
 
-    /** The "ensembl_gene_id" label. */
-    private static final String ENSEMBL_ID_LABEL = "ensembl_gene_id";
-
-    /** The gene "symbol" label. */
-    private static final String SYMBOL_LABEL = "symbol";
-
-    /** HGNC vocabulary label. */
-    private static final String HGNC_LABEL = "hgnc";
-
-    /** The hgnc vocabulary. */
-    private final Vocabulary hgnc;
-
     /** The set of terms observed to be present. */
     private final Set<VocabularyTerm> presentTerms;
 
@@ -108,11 +89,29 @@ public class DefaultGenePanelImpl implements GenePanel
         @Nonnull final Collection<VocabularyTerm> rejectedGenes,
         @Nonnull final VocabularyManager vocabularyManager)
     {
-        this.hgnc = vocabularyManager.getVocabulary(HGNC_LABEL);
+        this(presentTerms, absentTerms, rejectedGenes, new PhenotypeGeneIndex(vocabularyManager));
+    }
 
+    /**
+     * Constructor passing in a collection of {@code presentTerms} and a collection of {@code absentTerms}, as
+     * {@link VocabularyTerm} objects, a collection of {@code rejectedGenes rejected genes}, and the
+     * {@link PhenotypeGeneIndex} to look up the genes associated with each term.
+     *
+     * @param presentTerms a collection of {@link VocabularyTerm feature identifiers} that are present
+     * @param absentTerms a collection of {@link VocabularyTerm feature identifiers} that are absent
+     * @param rejectedGenes a collection of genes that were tested to be negative
+     * @param geneIndex the phenotype-to-gene index
+     * @since 1.4
+     */
+    DefaultGenePanelImpl(
+        @Nonnull final Collection<VocabularyTerm> presentTerms,
+        @Nonnull final Collection<VocabularyTerm> absentTerms,
+        @Nonnull final Collection<VocabularyTerm> rejectedGenes,
+        @Nonnull final PhenotypeGeneIndex geneIndex)
+    {
         this.presentTerms = Collections.unmodifiableSet(new HashSet<>(presentTerms));
         this.absentTerms = Collections.unmodifiableSet(new HashSet<>(absentTerms));
-        this.termsForGeneList = buildTermsForGeneList(rejectedGenes);
+        this.termsForGeneList = buildTermsForGeneList(rejectedGenes, geneIndex);
     }
 
     /**
@@ -121,88 +120,42 @@ public class DefaultGenePanelImpl implements GenePanel
      * {@code absentGenes absent genes} are excluded from the returned list.
      *
      * @param absentGenes genes that were tested negative
+     * @param geneIndex the phenotype-to-gene index
      * @return a list of {@link TermsForGene} objects, sorted in descending order or relevance
      */
-    private List<TermsForGene> buildTermsForGeneList(@Nonnull final Collection<VocabularyTerm> absentGenes)
+    private List<TermsForGene> buildTermsForGeneList(@Nonnull final Collection<VocabularyTerm> absentGenes,
+        @Nonnull final PhenotypeGeneIndex geneIndex)
     {
         // A builder to add and update the count data for all the genes.
         final TermsForGeneBuilder termsForGeneBuilder = new TermsForGeneBuilder(absentGenes);
 
         // Update the data for all HPO identifiers.
         for (final VocabularyTerm term : getPresentTerms()) {
-            final List<String> storedGenes = getGeneDataFromTerm(term);
-            addTermForGenes(term, storedGenes, termsForGeneBuilder);
+            addTermForGenes(term, geneIndex.getGenes(term), termsForGeneBuilder);
         }
 
         return termsForGeneBuilder.build();
     }
 
     /**
-     * For each gene in a list of {@code genes}, adds the gene as key and {@code term} as value to the provided
+     * For each gene in {@code genes}, adds the gene as key and {@code term} as value to the provided
      * {@code termsForGeneBuilder}.
-     * @param term the {@link VocabularyTerm HPO vocabulary term} associated with the provided list of {@code genes}
-     * @param genes a list of gene symbols associated with {@code term}
+     * @param term the {@link VocabularyTerm HPO vocabulary term} associated with the provided {@code genes}
+     * @param genes the genes associated with {@code term}
      * @param termsForGeneBuilder a builder for creating and updating {@link TermsForGene} objects for each gene
      */
-    private void addTermForGenes(@Nonnull final VocabularyTerm term, @Nonnull final List<String> genes,
+    private void addTermForGenes(@Nonnull final VocabularyTerm term, @Nonnull final PhenotypeGeneIndex.Gene[] genes,
         @Nonnull final TermsForGeneBuilder termsForGeneBuilder)
     {
-        for (final String enteredGene : genes) {
-            // Get the gene term. May be null if gene is not a valid symbol.
-            final VocabularyTerm geneTerm = this.hgnc.getTerm(enteredGene);
-            // Since entered gene may be an alias, get the current gene symbol and gene ID.
-            final String geneSymbol = getGeneSymbol(enteredGene, geneTerm);
-            final String geneId = getGeneId(geneSymbol, geneTerm);
-            if (termsForGeneBuilder.contains(geneId)) {
-                termsForGeneBuilder.update(geneId, term);
+        for (final PhenotypeGeneIndex.Gene gene : genes) {
+            if (termsForGeneBuilder.contains(gene.getId())) {
+                termsForGeneBuilder.update(gene.getId(), term);
             } else {
-                termsForGeneBuilder.add(geneSymbol, geneId, term);
+                termsForGeneBuilder.add(gene.getSymbol(), gene.getId(), term);
             }
         }
     }
 
-    /**
-     * Tries to obtain the preferred gene symbol, given entered {@code symbol}, and {@code geneTerm} vocabulary term.
-     *
-     * @param symbol the provided gene symbol
-     * @param geneTerm the {@link VocabularyTerm} gene vocabulary term
-     * @return the preferred gene symbol, or entered {@code symbol} if no symbol is recorded
-     */
-    private String getGeneSymbol(@Nonnull final String symbol, @Nullable final VocabularyTerm geneTerm)
-    {
-        return geneTerm != null ? StringUtils.defaultIfBlank((String) geneTerm.get(SYMBOL_LABEL), symbol) : symbol;
-    }
-
-    /**
-     * Tries to obtain the preferred gene ID, given {@code symbol}.
-     *
-     * @param symbol the GeneCards gene symbol
-     * @param geneTerm the {@link VocabularyTerm} gene vocabulary term
-     * @return the preferred gene ID, or {@code symbol} if no preferred ID is recorded
-     */
-    private String getGeneId(@Nonnull final String symbol, @Nullable final VocabularyTerm geneTerm)
-    {
-        if (geneTerm != null) {
-            @SuppressWarnings("unchecked")
-            final List<String> geneIdList = (List<String>) geneTerm.get(ENSEMBL_ID_LABEL);
-            return CollectionUtils.isEmpty(geneIdList) ? symbol : geneIdList.get(0);
-        }
-        return symbol;
-    }
-
-    /**
-     * Returns a list of {@link VocabularyTerm genes}, given an {@link VocabularyTerm HPO term}.
-     *
-     * @param term an HPO {@link VocabularyTerm}
-     * @return a list of {@link VocabularyTerm genes} associated with the provided {@code term}, or an empty list
-     */
-    private List<String> getGeneDataFromTerm(@Nonnull final VocabularyTerm term)
-    {
-        @SuppressWarnings("unchecked")
-        final List<String> geneList = (List<String>) term.get(ASSOCIATED_GENES);
-        return CollectionUtils.isNotEmpty(geneList) ? geneList : Collections.emptyList();
-    }
-
     @Override
     public Set<VocabularyTerm> getPresentTerms()
     {
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.panels.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An in-memory phenotype-to-gene index: for each HPO term, the genes associated with it, already resolved to their
+ * preferred symbol and identifier. Each term and each gene is resolved at most once, so building a gene panel only
+ * needs to aggregate the genes of its terms in memory. The annotations are already propagated to ancestor terms in
+ * the HPO source data, so no further propagation is done here. The index is {@link #clear() replaced} with an empty
+ * one whenever the HPO or HGNC vocabularies are reindexed. Genes that can't be found in HGNC, and the terms listing
+ * them, are not indexed, so that a gene missed while HGNC is unavailable is resolved again later.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = PhenotypeGeneIndex.class)
+@Singleton
+public class PhenotypeGeneIndex
+{
+    /** Internal label for associated genes. */
+    private static final String ASSOCIATED_GENES = "associated_genes";
+
+    /** The "ensembl_gene_id" label. */
+    private static final String ENSEMBL_ID_LABEL = "ensembl_gene_id";
+
+    /** The gene "symbol" label. */
+    private static final String SYMBOL_LABEL = "symbol";
+
+    /** HGNC vocabulary label. */
+    private static final String HGNC_LABEL = "hgnc";
+
+    private static final Gene[] NO_GENES = new Gene[0];
+
+    /** The vocabulary manager required for accessing the available vocabularies. */
+    @Inject
+    private VocabularyManager vocabularyManager;
+
+    /**
+     * The data resolved from the current vocabularies. Lookups add to the instance they started with, so lookups that
+     * were running while the vocabularies were reindexed can't add outdated data to the new instance.
+     */
+    private volatile Resolved resolved = new Resolved();
+
+    /**
+     * The terms and genes resolved from the same version of the vocabularies.
+     */
+    private static final class Resolved
+    {
+        /** Maps HPO term identifiers to the genes associated with them. */
+        private final ConcurrentMap<String, Gene[]> genesForTerm = new ConcurrentHashMap<>();
+
+        /** Maps gene symbols, as found in the HPO annotations, to the resolved genes. */
+        private final ConcurrentMap<String, Gene> genes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A gene associated with a phenotype, identified by its preferred symbol and identifier.
+     */
+    static final class Gene
+    {
+        private final String symbol;
+
+        private final String id;
+
+        Gene(@Nonnull final String symbol, @Nonnull final String id)
+        {
+            this.symbol = symbol;
+            this.id = id;
+        }
+
+        /**
+         * @return the preferred gene symbol
+         */
+        String getSymbol()
+        {
+            return this.symbol;
+        }
+
+        /**
+         * @return the preferred gene identifier, or the symbol if no identifier is known
+         */
+        String getId()
+        {
+            return this.id;
+        }
+    }
+
+    /** Default constructor, used when this is instantiated as a component. */
+    public PhenotypeGeneIndex()
+    {
+        // Nothing to do, the vocabulary manager is injected
+    }
+
+    /**
+     * Constructor for a standalone index, not shared with other panels.
+     *
+     * @param vocabularyManager the {@link VocabularyManager} for accessing the required vocabularies
+     */
+    PhenotypeGeneIndex(@Nonnull final VocabularyManager vocabularyManager)
+    {
+        this.vocabularyManager = vocabularyManager;
+    }
+
+    /**
+     * Returns the distinct genes associated with the given HPO term.
+     *
+     * @param term an HPO {@link VocabularyTerm}
+     * @return the genes associated with {@code term}, may be empty
+     */
+    Gene[] getGenes(@Nonnull final VocabularyTerm term)
+    {
+        final Resolved current = this.resolved;
+        final String id = term.getId();
+        Gene[] result = id == null ? null : current.genesForTerm.get(id);
+        if (result == null) {
+            @SuppressWarnings("unchecked")
+            final List<String> symbols = (List<String>) term.get(ASSOCIATED_GENES);
+            result = resolveGenes(symbols, current);
+            if (id != null && allResolved(symbols, current)) {
+                final Gene[] previous = current.genesForTerm.putIfAbsent(id, result);
+                result = previous != null ? previous : result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards all the indexed data, so that it is resolved again from the vocabularies when next needed.
+     */
+    public void clear()
+    {
+        this.resolved = new Resolved();
+    }
+
+    private Gene[] resolveGenes(@Nullable final List<String> symbols, @Nonnull final Resolved current)
+    {
+        if (CollectionUtils.isEmpty(symbols)) {
+            return NO_GENES;
+        }
+        // The same gene may be listed under different aliases
+        final Map<String, Gene> result = new LinkedHashMap<>();
+        for (final String symbol : symbols) {
+            final Gene gene = getGene(symbol, current);
+            result.putIfAbsent(gene.getId(), gene);
+        }
+        return result.values().toArray(NO_GENES);
+    }
+
+    private boolean allResolved(@Nullable final List<String> symbols, @Nonnull final Resolved current)
+    {
+        // Only the genes found in HGNC are indexed
+        return symbols == null || current.genes.keySet().containsAll(symbols);
+    }
+
+    private Gene getGene(@Nonnull final String enteredSymbol, @Nonnull final Resolved current)
+    {
+        Gene result = current.genes.get(enteredSymbol);
+        if (result == null) {
+            final Vocabulary hgnc = this.vocabularyManager.getVocabulary(HGNC_LABEL);
+            // Get the gene term. May be null if gene is not a valid symbol, or if HGNC is not available right now.
+            final VocabularyTerm geneTerm = hgnc == null ? null : hgnc.getTerm(enteredSymbol);
+            // Since entered gene may be an alias, get the current gene symbol and gene ID.
+            final String symbol = getGeneSymbol(enteredSymbol, geneTerm);
+            result = new Gene(symbol, getGeneId(symbol, geneTerm));
+            if (geneTerm != null) {
+                final Gene previous = current.genes.putIfAbsent(enteredSymbol, result);
+                result = previous != null ? previous : result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tries to obtain the preferred gene symbol, given entered {@code symbol}, and {@code geneTerm} vocabulary term.
+     *
+     * @param symbol the provided gene symbol
+     * @param geneTerm the {@link VocabularyTerm} gene vocabulary term
+     * @return the preferred gene symbol, or entered {@code symbol} if no symbol is recorded
+     */
+    private String getGeneSymbol(@Nonnull final String symbol, @Nullable final VocabularyTerm geneTerm)
+    {
+        return geneTerm != null ? StringUtils.defaultIfBlank((String) geneTerm.get(SYMBOL_LABEL), symbol) : symbol;
+    }
+
+    /**
+     * Tries to obtain the preferred gene ID, given {@code symbol}.
+     *
+     * @param symbol the GeneCards gene symbol
+     * @param geneTerm the {@link VocabularyTerm} gene vocabulary term
+     * @return the preferred gene ID, or {@code symbol} if no preferred ID is recorded
+     */
+    private String getGeneId(@Nonnull final String symbol, @Nullable final VocabularyTerm geneTerm)
+    {
+        if (geneTerm != null) {
+            @SuppressWarnings("unchecked")
+            final List<String> geneIdList = (List<String>) geneTerm.get(ENSEMBL_ID_LABEL);
+            return CollectionUtils.isEmpty(geneIdList) ? symbol : geneIdList.get(0);
+        }
+        return symbol;
+    }
+}
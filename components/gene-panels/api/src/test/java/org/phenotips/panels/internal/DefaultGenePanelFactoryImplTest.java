@@ -26,6 +26,7 @@
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.util.ArrayList;
@@ -99,6 +100,7 @@ public void setUp() throws ComponentLookupException
         final VocabularyManager vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
         when(vocabularyManager.getVocabulary(HPO_LABEL)).thenReturn(this.hpo);
         when(vocabularyManager.getVocabulary(HGNC_LABEL)).thenReturn(this.hgnc);
+        ReflectionUtils.setFieldValue(this.genePanelFactory, "geneIndex", new PhenotypeGeneIndex(vocabularyManager));
     }
 
     // -----------------------------------Test build(Patient patient)-----------------------------------//
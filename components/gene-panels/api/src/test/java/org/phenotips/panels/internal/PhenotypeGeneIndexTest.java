@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.panels.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PhenotypeGeneIndex}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class PhenotypeGeneIndexTest
+{
+    private static final String ASSOCIATED_GENES = "associated_genes";
+
+    @Mock
+    private VocabularyManager vocabularyManager;
+
+    @Mock
+    private Vocabulary hgnc;
+
+    @Mock
+    private VocabularyTerm term1;
+
+    @Mock
+    private VocabularyTerm term2;
+
+    private PhenotypeGeneIndex index;
+
+    @Before
+    public void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(this.vocabularyManager.getVocabulary("hgnc")).thenReturn(this.hgnc);
+
+        when(this.term1.getId()).thenReturn("HP:001");
+        when(this.term1.get(ASSOCIATED_GENES)).thenReturn(Arrays.asList("GENE1", "ALIAS1", "GENE2"));
+        when(this.term2.getId()).thenReturn("HP:002");
+        when(this.term2.get(ASSOCIATED_GENES)).thenReturn(Arrays.asList("GENE2"));
+
+        final VocabularyTerm gene1 = mock(VocabularyTerm.class);
+        when(gene1.get("symbol")).thenReturn("GENE1");
+        when(gene1.get("ensembl_gene_id")).thenReturn(Collections.singletonList("ENSG1"));
+        when(this.hgnc.getTerm("GENE1")).thenReturn(gene1);
+        when(this.hgnc.getTerm("ALIAS1")).thenReturn(gene1);
+
+        this.index = new PhenotypeGeneIndex(this.vocabularyManager);
+    }
+
+    @Test
+    public void genesAreResolvedAndAliasesMerged()
+    {
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term1);
+        assertEquals(2, genes.length);
+        assertEquals("GENE1", genes[0].getSymbol());
+        assertEquals("ENSG1", genes[0].getId());
+        // Unknown genes keep their symbol as identifier
+        assertEquals("GENE2", genes[1].getSymbol());
+        assertEquals("GENE2", genes[1].getId());
+    }
+
+    @Test
+    public void termsAndGenesAreResolvedOnlyOnce()
+    {
+        final VocabularyTerm gene2 = mock(VocabularyTerm.class);
+        when(gene2.get("symbol")).thenReturn("GENE2");
+        when(this.hgnc.getTerm("GENE2")).thenReturn(gene2);
+
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term1);
+        assertSame(genes, this.index.getGenes(this.term1));
+        assertSame(genes[1], this.index.getGenes(this.term2)[0]);
+
+        verify(this.term1, times(1)).get(ASSOCIATED_GENES);
+        verify(this.hgnc, times(1)).getTerm("GENE2");
+    }
+
+    @Test
+    public void clearingForcesNewLookups()
+    {
+        this.index.getGenes(this.term1);
+        this.index.clear();
+        when(this.term1.get(ASSOCIATED_GENES)).thenReturn(Arrays.asList("GENE3"));
+
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term1);
+        assertEquals(1, genes.length);
+        assertEquals("GENE3", genes[0].getSymbol());
+    }
+
+    @Test
+    public void genesMissingFromHgncAreNotIndexed()
+    {
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term1);
+        assertNotSame(genes, this.index.getGenes(this.term1));
+
+        verify(this.term1, times(2)).get(ASSOCIATED_GENES);
+        verify(this.hgnc, times(2)).getTerm("GENE2");
+        verify(this.hgnc, times(1)).getTerm("GENE1");
+    }
+
+    @Test
+    public void genesMissedWhileHgncIsUnavailableAreResolvedLater()
+    {
+        when(this.vocabularyManager.getVocabulary("hgnc")).thenReturn(null);
+        assertEquals("ALIAS1", this.index.getGenes(this.term1)[1].getSymbol());
+
+        when(this.vocabularyManager.getVocabulary("hgnc")).thenReturn(this.hgnc);
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term1);
+        assertEquals(2, genes.length);
+        assertEquals("ENSG1", genes[0].getId());
+    }
+
+    @Test
+    public void lookupsRunningWhileClearingDoNotIndexOutdatedGenes()
+    {
+        when(this.term2.get(ASSOCIATED_GENES)).thenAnswer(invocation -> {
+            // The vocabularies are reindexed while the term is being resolved
+            this.index.clear();
+            return Arrays.asList("GENE1");
+        });
+        final PhenotypeGeneIndex.Gene[] outdated = this.index.getGenes(this.term2);
+
+        when(this.term2.get(ASSOCIATED_GENES)).thenReturn(Arrays.asList("ALIAS1"));
+        final PhenotypeGeneIndex.Gene[] genes = this.index.getGenes(this.term2);
+        assertNotSame(outdated, genes);
+        verify(this.hgnc, times(1)).getTerm("ALIAS1");
+    }
+
+    @Test
+    public void termsWithoutGenesHaveNoGenes()
+    {
+        final VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn("HP:003");
+        assertEquals(0, this.index.getGenes(term).length);
+    }
+}
@@ -19,6 +19,7 @@
 
 import org.phenotips.panels.GenePanel;
 import org.phenotips.panels.GenePanelFactory;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -26,10 +27,15 @@
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -41,12 +47,16 @@
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
 
 /**
- * Default implementation of the {@link GenePanelLoader} component.
+ * Default implementation of the {@link GenePanelLoader} component. Computed panels are shared between all users,
+ * keyed by a canonical form of the requested present terms, absent terms, and rejected genes, so that the same
+ * phenotype set always hits the same entry regardless of the order or duplication of the identifiers. The cache
+ * capacity is measured in gene rows rather than in panels, since panel sizes vary widely, and the cache is emptied
+ * whenever the HPO or HGNC vocabularies are reindexed.
  *
  * @version $Id$
  * @since 1.3 (modified 1.4)
@@ -55,6 +65,9 @@
 @Singleton
 public class DefaultGenePanelLoader implements GenePanelLoader, Initializable
 {
+    /** The maximum total number of gene rows held by the cached panels. */
+    private static final long MAX_CACHED_GENES = 100000;
+
     @Inject
     private GenePanelFactory genePanelFactory;
 
@@ -64,24 +77,27 @@ public class DefaultGenePanelLoader implements GenePanelLoader, Initializable
     @Inject
     private Logger logger;
 
-    /** The loading cache for gene panels. Absent term data is ignored. */
-    private LoadingCache<PanelData, GenePanel> loadingCache;
+    /**
+     * The cache for gene panels, keyed by the normalized present terms, absent terms, and rejected genes, in this
+     * order.
+     */
+    private Cache<List<Set<String>>, GenePanel> cache;
 
     @Override
     public void initialize() throws InitializationException
     {
-        this.loadingCache = CacheBuilder.newBuilder()
-            .maximumSize(100)
-            .expireAfterAccess(5, TimeUnit.MINUTES)
-            .build(new CacheLoader<PanelData, GenePanel>()
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_GENES)
+            .weigher(new Weigher<List<Set<String>>, GenePanel>()
             {
                 @Override
-                public GenePanel load(@Nonnull final PanelData key) throws Exception
+                public int weigh(@Nonnull final List<Set<String>> key, @Nonnull final GenePanel panel)
                 {
-                    // Make the computation.
-                    return generatePanelsData(key);
+                    return 1 + panel.size();
                 }
-            });
+            })
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
     }
 
     /**
@@ -109,18 +125,78 @@ private GenePanel generatePanelsData(@Nonnull final PanelData key) throws Except
     }
 
     /**
-     * Builds a set of {@link VocabularyTerm} objects from a collection of term ID strings.
+     * Builds a set of {@link VocabularyTerm} objects from a collection of term ID strings. The identifiers are grouped
+     * by vocabulary, and each group is resolved with a single request to that vocabulary; only the identifiers that
+     * this request doesn't find, such as obsolete or alternative identifiers, are then resolved one by one.
      *
-     * @param termIds a collection of term IDs as strings; all IDs must be prefixed with the vocabulary identifier
+     * @param termIds a collection of normalized term IDs as strings; all IDs must be prefixed with the vocabulary
+     *            identifier
      * @return a set of {@link VocabularyTerm} objects corresponding with the provided term IDs
      */
     private Set<VocabularyTerm> buildTermsFromIDs(@Nonnull final Collection<String> termIds)
     {
+        final Map<String, Set<String>> idsByVocabulary = new HashMap<>();
+        for (final String termId : termIds) {
+            idsByVocabulary.computeIfAbsent(StringUtils.substringBefore(termId, ":"), k -> new HashSet<>())
+                .add(termId);
+        }
+
         final Set<VocabularyTerm> terms = new HashSet<>();
+        for (final Map.Entry<String, Set<String>> group : idsByVocabulary.entrySet()) {
+            final Vocabulary vocabulary = this.vocabularyManager.getVocabulary(group.getKey());
+            if (vocabulary != null) {
+                final Set<VocabularyTerm> found = vocabulary.getTerms(group.getValue());
+                terms.addAll(found);
+                if (found.size() < group.getValue().size()) {
+                    resolveMissingTerms(vocabulary, group.getValue(), found, terms);
+                }
+            } else {
+                resolveTermsIndividually(group.getValue(), terms);
+            }
+        }
+        return Collections.unmodifiableSet(terms);
+    }
+
+    /**
+     * Resolves, one by one, the requested terms missing from a batch lookup. Batch lookups only match the current
+     * identifier of a term, while single term lookups also follow obsolete and alternative identifiers.
+     *
+     * @param vocabulary the vocabulary the terms belong to
+     * @param termIds the requested identifiers
+     * @param found the terms found by the batch lookup
+     * @param terms the set where resolved terms are added
+     */
+    private void resolveMissingTerms(@Nonnull final Vocabulary vocabulary, @Nonnull final Collection<String> termIds,
+        @Nonnull final Collection<VocabularyTerm> found, @Nonnull final Set<VocabularyTerm> terms)
+    {
+        final Set<String> foundIds = new HashSet<>();
+        for (final VocabularyTerm term : found) {
+            foundIds.add(term.getId());
+        }
         for (final String termId : termIds) {
-            if (StringUtils.isBlank(termId)) {
+            if (foundIds.contains(termId)) {
+                continue;
+            }
+            final VocabularyTerm term = vocabulary.getTerm(termId);
+            if (term == null) {
+                this.logger.warn("A term with id: {} could not be found in the [{}] vocabulary, and will be ignored.",
+                    termId, vocabulary.getIdentifier());
                 continue;
             }
+            terms.add(term);
+        }
+    }
+
+    /**
+     * Resolves terms whose vocabulary cannot be determined from their prefix, one by one.
+     *
+     * @param termIds the identifiers to resolve
+     * @param terms the set where resolved terms are added
+     */
+    private void resolveTermsIndividually(@Nonnull final Collection<String> termIds,
+        @Nonnull final Set<VocabularyTerm> terms)
+    {
+        for (final String termId : termIds) {
             final VocabularyTerm term = this.vocabularyManager.resolveTerm(termId);
             if (term == null) {
                 this.logger.warn("A term with id: {} could not be found in existing vocabularies, and will be ignored.",
@@ -129,30 +205,68 @@ private Set<VocabularyTerm> buildTermsFromIDs(@Nonnull final Collection<String>
             }
             terms.add(term);
         }
-        return Collections.unmodifiableSet(terms);
+    }
+
+    /**
+     * Normalizes the given panel data: only the trimmed, non-blank identifiers of each group are kept, sorted, so that
+     * equivalent requests share the same cached panel, and the panel is built from the same identifiers as its key.
+     *
+     * @param panelData the requested panel data
+     * @return the normalized panel data
+     */
+    private PanelData normalize(@Nonnull final PanelData panelData)
+    {
+        return new PanelData(normalize(panelData.getPresentTerms()), normalize(panelData.getAbsentTerms()),
+            normalize(panelData.getRejectedGenes()));
+    }
+
+    private Set<String> normalize(@Nonnull final Collection<String> ids)
+    {
+        final Set<String> sorted = new TreeSet<>();
+        for (final String id : ids) {
+            if (StringUtils.isNotBlank(id)) {
+                sorted.add(id.trim());
+            }
+        }
+        return Collections.unmodifiableSet(sorted);
+    }
+
+    /**
+     * Builds the cache key for the given normalized panel data.
+     *
+     * @param normalized the requested panel data, already {@link #normalize(PanelData) normalized}
+     * @return the cache key
+     */
+    private List<Set<String>> getCacheKey(@Nonnull final PanelData normalized)
+    {
+        return Arrays.asList(normalized.getPresentTerms(), normalized.getAbsentTerms(),
+            normalized.getRejectedGenes());
     }
 
     @Override
     public GenePanel get(@Nonnull final PanelData panelData) throws ExecutionException
     {
-        return this.loadingCache.get(panelData);
+        final PanelData normalized = normalize(panelData);
+        return this.cache.get(getCacheKey(normalized), () -> generatePanelsData(normalized));
     }
 
     @Override
     public void invalidateAll()
     {
-        this.loadingCache.invalidateAll();
+        this.cache.invalidateAll();
     }
 
     @Override
     public void invalidate(@Nonnull final Object key)
     {
-        this.loadingCache.invalidate(key);
+        if (key instanceof PanelData) {
+            this.cache.invalidate(getCacheKey(normalize((PanelData) key)));
+        }
     }
 
     @Override
     public long size()
     {
-        return this.loadingCache.size();
+        return this.cache.size();
     }
 }
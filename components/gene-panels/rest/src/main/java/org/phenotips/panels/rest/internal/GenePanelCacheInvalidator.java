@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.panels.rest.internal;
+
+import org.phenotips.vocabulary.events.VocabularyReindexedEvent;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Discards all the gene panels cached by the {@link GenePanelLoader} once the HPO or HGNC vocabularies are reindexed,
+ * since the cached panels were computed from the previous annotations.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("gene-panels-cache")
+@Singleton
+public class GenePanelCacheInvalidator extends AbstractEventListener
+{
+    @Inject
+    private GenePanelLoader genePanelLoader;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public GenePanelCacheInvalidator()
+    {
+        super("gene-panels-cache", new VocabularyReindexedEvent("hpo"), new VocabularyReindexedEvent("hgnc"));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.genePanelLoader.invalidateAll();
+    }
+}
@@ -19,6 +19,7 @@
 
 import org.phenotips.panels.GenePanel;
 import org.phenotips.panels.GenePanelFactory;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -38,6 +39,9 @@
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -108,6 +112,9 @@ public void setUp() throws ComponentLookupException
 
         final VocabularyManager vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
 
+        when(this.term1.getId()).thenReturn(TERM_1);
+        when(this.term2.getId()).thenReturn(TERM_2);
+        when(this.term3.getId()).thenReturn(TERM_3);
         when(vocabularyManager.resolveTerm(TERM_1)).thenReturn(this.term1);
         when(vocabularyManager.resolveTerm(TERM_2)).thenReturn(this.term2);
         when(vocabularyManager.resolveTerm(TERM_3)).thenReturn(this.term3);
@@ -254,4 +261,96 @@ public void testInvalidateAllWorksWhenCacheIsEmpty()
         this.genePanelLoader.invalidateAll();
         assertEquals(0, this.genePanelLoader.size());
     }
+
+    @Test
+    public void testEquivalentRequestsShareTheCachedPanel() throws ExecutionException
+    {
+        when(this.genePanel1.size()).thenReturn(5);
+        final PanelData data1 = new PanelData(this.presentSet2, Collections.<String>emptySet(), this.geneSet);
+        this.genePanelLoader.get(data1);
+
+        final Set<String> padded = new HashSet<>();
+        padded.add(" " + TERM_3);
+        padded.add(TERM_2 + " ");
+        padded.add(TERM_1);
+        padded.add("");
+        final PanelData data2 = new PanelData(padded, Collections.<String>emptySet(), this.geneSet);
+        assertEquals(this.genePanel1, this.genePanelLoader.get(data2));
+        assertEquals(1, this.genePanelLoader.size());
+        verify(this.genePanelFactory, times(1)).build(anyCollectionOf(VocabularyTerm.class),
+            anyCollectionOf(VocabularyTerm.class), anyCollectionOf(VocabularyTerm.class));
+
+        this.genePanelLoader.invalidate(data2);
+        assertEquals(0, this.genePanelLoader.size());
+    }
+
+    @Test
+    public void testTermsAreResolvedInOneRequestPerVocabulary() throws ComponentLookupException, ExecutionException
+    {
+        when(this.genePanel1.size()).thenReturn(5);
+        final VocabularyManager vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
+        final Vocabulary hpo = mock(Vocabulary.class);
+        when(vocabularyManager.getVocabulary("HP")).thenReturn(hpo);
+        when(hpo.getTerms(this.presentSet2)).thenReturn(this.presentTerms2);
+
+        final PanelData data = new PanelData(this.presentSet2, Collections.<String>emptySet(),
+            Collections.<String>emptySet());
+        this.genePanelLoader.get(data);
+
+        verify(hpo, times(1)).getTerms(this.presentSet2);
+        verify(vocabularyManager, never()).resolveTerm(anyString());
+        verify(this.genePanelFactory).build(this.presentTerms2, Collections.<VocabularyTerm>emptySet(),
+            Collections.<VocabularyTerm>emptySet());
+    }
+
+    @Test
+    public void testPanelsAreBuiltFromTheNormalizedIdentifiers() throws ComponentLookupException, ExecutionException
+    {
+        when(this.genePanel1.size()).thenReturn(5);
+        final VocabularyManager vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
+        final Vocabulary hpo = mock(Vocabulary.class);
+        when(vocabularyManager.getVocabulary("HP")).thenReturn(hpo);
+        when(hpo.getTerms(this.presentSet2)).thenReturn(this.presentTerms2);
+
+        final Set<String> padded = new HashSet<>();
+        padded.add(" " + TERM_3);
+        padded.add(TERM_2 + " ");
+        padded.add(TERM_1);
+        padded.add(" ");
+        this.genePanelLoader.get(new PanelData(padded, Collections.<String>emptySet(),
+            Collections.<String>emptySet()));
+
+        verify(hpo, times(1)).getTerms(this.presentSet2);
+        verify(this.genePanelFactory).build(this.presentTerms2, Collections.<VocabularyTerm>emptySet(),
+            Collections.<VocabularyTerm>emptySet());
+    }
+
+    @Test
+    public void testAlternativeIdentifiersAreResolvedIndividually() throws ComponentLookupException, ExecutionException
+    {
+        when(this.genePanel1.size()).thenReturn(5);
+        final VocabularyManager vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
+        final Vocabulary hpo = mock(Vocabulary.class);
+        when(vocabularyManager.getVocabulary("HP")).thenReturn(hpo);
+        // TERM_4 is an alternative identifier of TERM_3, and TERM_5 is unknown; batch lookups only match current ids
+        final Set<String> requested = new HashSet<>(this.presentSet2);
+        requested.remove(TERM_3);
+        requested.add(TERM_4);
+        requested.add(TERM_5);
+        final Set<VocabularyTerm> found = new HashSet<>();
+        found.add(this.term1);
+        found.add(this.term2);
+        when(hpo.getTerms(requested)).thenReturn(found);
+        when(hpo.getTerm(TERM_4)).thenReturn(this.term3);
+
+        this.genePanelLoader.get(new PanelData(requested, Collections.<String>emptySet(),
+            Collections.<String>emptySet()));
+
+        verify(hpo, never()).getTerm(TERM_1);
+        verify(hpo, never()).getTerm(TERM_2);
+        verify(hpo).getTerm(TERM_4);
+        verify(hpo).getTerm(TERM_5);
+        verify(this.genePanelFactory).build(this.presentTerms2, Collections.<VocabularyTerm>emptySet(),
+            Collections.<VocabularyTerm>emptySet());
+    }
 }
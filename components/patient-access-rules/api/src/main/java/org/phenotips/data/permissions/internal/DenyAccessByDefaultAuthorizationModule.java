@@ -27,6 +27,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -57,8 +64,7 @@ public int getPriority()
     @Override
     public Boolean hasAccess(User user, Right access, EntityReference entity)
     {
-        if (!ObjectUtils.allNotNull(access, entity) || access.getTargetedEntityType() == null
-            || !access.getTargetedEntityType().contains(EntityType.DOCUMENT)) {
+        if (!ObjectUtils.allNotNull(access, entity) || !isDocumentRight(access)) {
             return null;
         }
 
@@ -69,4 +75,37 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
 
         return false;
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All the patients are loaded together, and documents that aren't patient records are skipped without being loaded.
+     * </p>
+     */
+    @Override
+    public Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        if (access == null || !isDocumentRight(access)) {
+            return result;
+        }
+
+        List<EntityReference> references = new ArrayList<>(entities.size());
+        for (EntityReference entity : entities) {
+            if (entity != null) {
+                references.add(entity);
+            }
+        }
+        Iterator<Patient> patients = this.patientRepository.getAll(references);
+        for (EntityReference entity : references) {
+            result.put(entity, patients.next() == null ? null : Boolean.FALSE);
+        }
+        return result;
+    }
+
+    private boolean isDocumentRight(Right access)
+    {
+        return access.getTargetedEntityType() != null && access.getTargetedEntityType().contains(EntityType.DOCUMENT);
+    }
 }
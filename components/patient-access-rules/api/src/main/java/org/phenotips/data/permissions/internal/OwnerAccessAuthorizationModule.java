@@ -29,6 +29,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -68,8 +75,7 @@ public int getPriority()
     @Override
     public Boolean hasAccess(User user, Right access, EntityReference entity)
     {
-        if (!ObjectUtils.allNotNull(access, entity) || access.getTargetedEntityType() == null
-            || !access.getTargetedEntityType().contains(EntityType.DOCUMENT)) {
+        if (!ObjectUtils.allNotNull(access, entity) || !isDocumentRight(access)) {
             return null;
         }
 
@@ -79,6 +85,45 @@ public Boolean hasAccess(User user, Right access, EntityReference entity)
             return null;
         }
 
+        return isOwner(user, patient);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All the patients are loaded together, and documents that aren't patient records are skipped without being loaded.
+     * </p>
+     */
+    @Override
+    public Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        if (access == null || !isDocumentRight(access)) {
+            return result;
+        }
+
+        List<EntityReference> references = new ArrayList<>(entities.size());
+        for (EntityReference entity : entities) {
+            if (entity != null) {
+                references.add(entity);
+            }
+        }
+        Iterator<Patient> patients = this.patientRepository.getAll(references);
+        for (EntityReference entity : references) {
+            Patient patient = patients.next();
+            result.put(entity, patient == null ? null : isOwner(user, patient));
+        }
+        return result;
+    }
+
+    private boolean isDocumentRight(Right access)
+    {
+        return access.getTargetedEntityType() != null && access.getTargetedEntityType().contains(EntityType.DOCUMENT);
+    }
+
+    private Boolean isOwner(User user, Patient patient)
+    {
         AccessLevel grantedAccess =
             this.manager.getEntityAccess(patient).getAccessLevel(user != null ? user.getProfileDocument() : null);
 
@@ -23,19 +23,27 @@
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.ManageRight;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 import org.xwiki.users.internal.InvalidUser;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -125,6 +133,24 @@ public void noActionWithNullDocument() throws ComponentLookupException
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, Right.VIEW, null));
     }
 
+    @Test
+    public void bulkCheckDeniesAccessToAllPatientsLoadedTogether() throws ComponentLookupException
+    {
+        DocumentReference notPatient = new DocumentReference("xwiki", "data", "WebHome");
+        DocumentReference other = new DocumentReference("xwiki", "data", "P02");
+        List<DocumentReference> docs = Arrays.asList(this.doc, notPatient, other);
+        when(this.repo.getAll(docs)).thenReturn(Arrays.asList(this.patient, null, this.patient).iterator());
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.VIEW, docs);
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertFalse(result.get(this.doc));
+        Assert.assertNull(result.get(notPatient));
+        Assert.assertFalse(result.get(other));
+        verify(this.repo, never()).get(Matchers.anyString());
+    }
+
     @Test
     public void expectedPriority() throws ComponentLookupException
     {
@@ -26,11 +26,16 @@
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.ManageRight;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -210,6 +215,36 @@ public void noActionWithNullDocument() throws ComponentLookupException
         Assert.assertNull(this.mocker.getComponentUnderTest().hasAccess(this.user, Right.VIEW, null));
     }
 
+    @Test
+    public void bulkCheckLoadsAllPatientsTogether() throws ComponentLookupException
+    {
+        DocumentReference notPatient = new DocumentReference("xwiki", "data", "WebHome");
+        DocumentReference other = new DocumentReference("xwiki", "data", "P02");
+        Patient otherPatient = Mockito.mock(Patient.class);
+        EntityAccess otherAccess = Mockito.mock(EntityAccess.class);
+        when(this.pm.getEntityAccess(otherPatient)).thenReturn(otherAccess);
+        when(otherAccess.getAccessLevel(this.userProfile)).thenReturn(this.noAccess);
+        List<DocumentReference> docs = Arrays.asList(this.doc, notPatient, other);
+        when(this.repo.getAll(docs)).thenReturn(Arrays.asList(this.patient, null, otherPatient).iterator());
+
+        Map<EntityReference, Boolean> result =
+            this.mocker.getComponentUnderTest().checkAccess(this.user, Right.EDIT, docs);
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertTrue(result.get(this.doc));
+        Assert.assertNull(result.get(notPatient));
+        Assert.assertNull(result.get(other));
+        Mockito.verify(this.repo, Mockito.never()).get(Matchers.anyString());
+    }
+
+    @Test
+    public void bulkCheckWithNonDocumentRightDoesNotLoadPatients() throws ComponentLookupException
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest()
+            .checkAccess(this.user, Right.PROGRAM, Arrays.asList(this.doc)).isEmpty());
+        Mockito.verify(this.repo, Mockito.never()).getAll(Matchers.anyCollectionOf(EntityReference.class));
+    }
+
     @Test
     public void expectedPriority() throws ComponentLookupException
     {
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.List;
+
+/**
+ * Pushes patients to remote servers in the background. Pushes are stored in a persistent queue and sent by one worker
+ * per remote server, so that queueing returns immediately, a slow or unreachable server doesn't affect the others, and
+ * each server receives at most one request at a time. Failed pushes are retried with an exponentially growing delay.
+ * Queueing a patient which is still waiting to be pushed to the same server only updates the waiting push, since the
+ * patient data is always read when the push is sent.
+ * <p>
+ * Pushes are authenticated with the remote login token stored for the user who queued them, see
+ * {@link PushPatientService#getRemoteConfiguration(String, String, String, boolean)}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface PatientPushQueue
+{
+    /**
+     * Queues a push of a patient to a remote server, on behalf of the current user.
+     *
+     * @param patientID local patient to be pushed to the remote server
+     * @param exportFieldListJSON patient fields to be pushed, as a string representing a JSON array, or {@code null} to
+     *            push all the available data fields
+     * @param patientState a JSON encoded as a {@link String}, containing (meta) information about the state of the
+     *            patient's record
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteServerIdentifier server name as configured in the push server configuration
+     * @return the status of the queued push, or {@code null} if the patient can't be pushed by the current user, there
+     *         is no login token stored for the current user and the given remote server, or too many pushes are
+     *         already waiting for that server
+     */
+    PatientPushStatus queuePatient(String patientID, String exportFieldListJSON, String patientState,
+        String groupName, String remoteServerIdentifier);
+
+    /**
+     * The queued, running, and past pushes of a patient.
+     *
+     * @param patientID the local patient identifier
+     * @return the status of each push, oldest first, including the finished ones, or an empty list if the patient was
+     *         never queued; there is at most one waiting push per remote server
+     */
+    List<PatientPushStatus> getStatus(String patientID);
+
+    /**
+     * The number of pushes waiting to be sent, or being sent, to a remote server.
+     *
+     * @param remoteServerIdentifier server name as configured in the push server configuration
+     * @return a positive number, or {@code 0} if the queue for the given server is empty
+     */
+    long getQueueSize(String remoteServerIdentifier);
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push;
+
+import org.xwiki.stability.Unstable;
+
+import java.sql.Timestamp;
+
+/**
+ * The state of a push of a single patient to a given remote server, queued in the {@link PatientPushQueue}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface PatientPushStatus
+{
+    /** The push is waiting to be sent, either for the first time or after a failed attempt. */
+    String QUEUED = "queued";
+
+    /** The push is being sent. */
+    String RUNNING = "running";
+
+    /** The patient was successfully pushed. */
+    String DONE = "done";
+
+    /** The push was rejected by the remote server, or failed too many times, and won't be retried. */
+    String FAILED = "failed";
+
+    String getLocalPatientID();
+
+    String getRemoteServerIdentifier();
+
+    /**
+     * The current state of the push.
+     *
+     * @return one of {@link #QUEUED}, {@link #RUNNING}, {@link #DONE} or {@link #FAILED}
+     */
+    String getStatus();
+
+    /**
+     * The number of failed attempts at sending this push.
+     *
+     * @return a positive number, or {@code 0} if no attempt failed so far
+     */
+    int getFailedAttempts();
+
+    Timestamp getQueuedTime();
+
+    /**
+     * When will the push be (re)tried, if it is still {@link #QUEUED queued}.
+     *
+     * @return the time of the next attempt, which may be in the past if the queue is busy
+     */
+    Timestamp getNextAttemptTime();
+
+    /**
+     * The reason for the last failed attempt.
+     *
+     * @return a short description of the error, or {@code null} if there weren't any failures
+     */
+    String getLastError();
+}
@@ -23,6 +23,8 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.json.JSONObject;
@@ -92,6 +94,32 @@ PushServerSendPatientResponse sendPatient(Patient patient, Set<String> exportFie
         String groupName, String remoteGUID, String remoteServerIdentifier, String userName, String password,
         String user_token);
 
+    /**
+     * Submits several patients to the specified remote server, the same way {@link #sendPatient} does for each one. If
+     * the remote server {@link PushServerConfigurationResponse#getServerCapabilities() supports it}, as seen in the
+     * last {@link #getRemoteConfiguration} response, patients are sent in a few compressed batch requests; otherwise
+     * each patient is sent in its own request.
+     *
+     * @param patients local patients to be pushed to the remote server
+     * @param exportFields patient fields to be pushed. All other fields will be omitted.
+     * @param patientState JSON containing different categories of patient state, such as granted consents, shared by
+     *            all the patients
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteGUIDs the GUIDs of the remote patients to update, keyed by local patient identifier; patients
+     *            without a GUID will be created on the remote server (optional, can be {@code null})
+     * @param remoteServerIdentifier server name as configured in TODO
+     * @param userName user name on the remote server
+     * @param password user password on the remote server. Ignored if user_token is not null.
+     * @param userToken passwordless-login token provided by the remote server on the last successful login (optional,
+     *            can be {@code null})
+     * @return the server response for each patient, keyed by local patient identifier, in the order the patients were
+     *         given. The response is {@code null} for the patients for which no response was received from the server
+     * @since 1.4
+     */
+    Map<String, PushServerSendPatientResponse> sendPatients(List<Patient> patients, Set<String> exportFields,
+        JSONObject patientState, String groupName, Map<String, String> remoteGUIDs, String remoteServerIdentifier,
+        String userName, String password, String userToken);
+
     /**
      * Gets the remote patient ID and URL for viewing the remote patient.
      * <p>
@@ -21,6 +21,7 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -151,6 +152,28 @@ PushServerSendPatientResponse sendPatient(String patientID, String exportFieldLi
     PushServerSendPatientResponse sendPatient(String patientID, String exportFieldListJSON, String patientState,
         String groupName, String remoteGUID, String remoteServerIdentifier);
 
+    /**
+     * Pushes several patients to a remote server, using the previously stored remote user name and login token. Each
+     * patient updates the remote patient it was last pushed to, if any. Servers supporting it receive all the patients
+     * in a few compressed requests, older servers receive one request per patient.
+     *
+     * @param patientIDs local patients to be pushed to the remote server
+     * @param exportFieldListJSON patient fields to be pushed, as a string representing a JSON array, or {@code null} to
+     *            push all the available data fields
+     * @param patientState a JSON encoded as a {@link String}, containing (meta) information about the state of the
+     *            patients' records
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteServerIdentifier server name as configured in the push server configuration
+     * @return the server response for each patient, in the order of {@code patientIDs}; a {@code null} response means
+     *         that nothing was received from the server for that patient. Patients which can't be pushed by the
+     *         current user get an "action failed" response, and all patients get an "incorrect password" response if
+     *         there is no user or token stored for the given remote server
+     * @since 1.4
+     */
+    @Unstable
+    Map<String, PushServerSendPatientResponse> sendPatients(List<String> patientIDs, String exportFieldListJSON,
+        String patientState, String groupName, String remoteServerIdentifier);
+
     /**
      * @param remoteServerIdentifier
      * @param remotePatientGUID
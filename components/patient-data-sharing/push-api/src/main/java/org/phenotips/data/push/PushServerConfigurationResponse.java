@@ -94,4 +94,13 @@ public interface PushServerConfigurationResponse extends PushServerResponse
      * @return The list of consents configured on the remote server.
      */
     JSONArray getConsents();
+
+    /**
+     * Get the optional protocol features supported by the remote server, such as
+     * {@link org.phenotips.data.shareprotocol.ShareProtocol#CAPABILITY_BATCH_PUSH pushing several patients at once}.
+     *
+     * @return an unmodifiable set of capability names, empty for servers which don't advertise any
+     * @since 1.4
+     */
+    Set<String> getServerCapabilities();
 }
@@ -0,0 +1,366 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.push.PatientPushQueue;
+import org.phenotips.data.push.PatientPushStatus;
+import org.phenotips.data.push.PushPatientService;
+import org.phenotips.data.push.PushServerConfigurationResponse;
+import org.phenotips.data.push.PushServerSendPatientResponse;
+import org.phenotips.data.securestorage.PatientPushJob;
+import org.phenotips.data.securestorage.RemoteLoginData;
+import org.phenotips.data.securestorage.SecureStorageManager;
+import org.phenotips.data.shareprotocol.ShareProtocol;
+import org.phenotips.security.authorization.AuthorizationService;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.users.UserManager;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default implementation for the {@link PatientPushQueue} component, storing the queue with the
+ * {@link SecureStorageManager} and sending the queued patients in batches with
+ * {@link PushPatientService#sendPatients}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultPatientPushQueue implements PatientPushQueue, Initializable, Disposable
+{
+    /** The maximum number of pushes waiting for a server; more pushes are refused until the queue drains. */
+    private static final long MAX_PENDING_PER_SERVER = 10000;
+
+    /** The delay before the first retry of a failed push, in milliseconds; each new failure doubles it. */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /** The maximum delay between two attempts, in milliseconds. */
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(6);
+
+    /** The number of attempts after which a push is abandoned. */
+    private static final int MAX_ATTEMPTS = 12;
+
+    /** How long finished pushes are kept in the push history, in milliseconds, counted from when they were queued. */
+    private static final long FINISHED_RETENTION = TimeUnit.DAYS.toMillis(30);
+
+    /** The minimum time between two cleanups of the finished pushes, in milliseconds. */
+    private static final long CLEANUP_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SecureStorageManager storageManager;
+
+    /** Sends the queued pushes, with the same access checks and stored login tokens as interactive pushes. */
+    @Inject
+    private Provider<PushPatientService> pushService;
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private AuthorizationService access;
+
+    @Inject
+    private UserManager users;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    /** One worker thread per remote server, created when a push is first queued for that server. */
+    private final ConcurrentMap<String, ScheduledExecutorService> workers = new ConcurrentHashMap<>();
+
+    /** The time each worker is scheduled to wake up at, to avoid scheduling it again for the same or a later time. */
+    private final ConcurrentMap<String, Long> wakeUpTimes = new ConcurrentHashMap<>();
+
+    /** When the finished pushes were last cleaned up. */
+    private final AtomicLong lastCleanupTime = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        deleteExpiredJobs();
+        // Continue with the pushes left over when the server was last stopped
+        for (String server : this.storageManager.resumePatientPushJobs()) {
+            wakeUp(server, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        for (ScheduledExecutorService worker : this.workers.values()) {
+            // Interrupted pushes are resumed at the next start
+            worker.shutdownNow();
+        }
+    }
+
+    @Override
+    public PatientPushStatus queuePatient(String patientID, String exportFieldListJSON, String patientState,
+        String groupName, String remoteServerIdentifier)
+    {
+        Patient patient = this.patientRepository.get(patientID);
+        // The same right is checked again when the push is sent
+        if (patient == null || !this.access.hasAccess(this.users.getCurrentUser(),
+            DefaultPushPatientService.PUSH_RIGHT, patient.getDocumentReference())) {
+            this.logger.warn("Can't push patient [{}]: access level violation", patientID);
+            return null;
+        }
+        XWikiContext context = this.xcontextProvider.get();
+        String userName = context.getUserReference() == null ? null : context.getUserReference().getName();
+        RemoteLoginData loginData = this.storageManager.getRemoteLoginData(userName, remoteServerIdentifier);
+        if (loginData == null || loginData.getLoginToken() == null) {
+            this.logger.warn("Can't queue push to [{}]: no login token stored for [{}]", remoteServerIdentifier,
+                userName);
+            return null;
+        }
+        if (this.storageManager.countPendingPatientPushJobs(remoteServerIdentifier) >= MAX_PENDING_PER_SERVER) {
+            this.logger.warn("Too many pending pushes to [{}], refusing to queue [{}]", remoteServerIdentifier,
+                patientID);
+            return null;
+        }
+
+        PatientPushJob job = this.storageManager.queuePatientPushJob(
+            this.serializer.serialize(context.getUserReference()), patient.getId(), remoteServerIdentifier,
+            exportFieldListJSON, patientState, groupName);
+        if (job == null) {
+            return null;
+        }
+        wakeUp(remoteServerIdentifier, System.currentTimeMillis());
+        return new DefaultPatientPushStatus(job);
+    }
+
+    @Override
+    public List<PatientPushStatus> getStatus(String patientID)
+    {
+        List<PatientPushStatus> result = new ArrayList<>();
+        for (PatientPushJob job : this.storageManager.getPatientPushJobs(patientID)) {
+            result.add(new DefaultPatientPushStatus(job));
+        }
+        return result;
+    }
+
+    @Override
+    public long getQueueSize(String remoteServerIdentifier)
+    {
+        return this.storageManager.countPendingPatientPushJobs(remoteServerIdentifier);
+    }
+
+    private void wakeUp(final String server, long time)
+    {
+        // Only schedule the worker if it isn't already scheduled for the same or an earlier time
+        AtomicBoolean earlier = new AtomicBoolean();
+        this.wakeUpTimes.compute(server, (key, scheduled) -> {
+            if (scheduled != null && scheduled <= time) {
+                return scheduled;
+            }
+            earlier.set(true);
+            return time;
+        });
+        if (!earlier.get()) {
+            return;
+        }
+        ScheduledExecutorService worker = this.workers.computeIfAbsent(server,
+            name -> Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PhenoTips patient push to " + name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        worker.schedule(() -> process(server), Math.max(0, time - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+    }
+
+    private void process(String server)
+    {
+        int batchSize = ShareProtocol.BATCH_MAX_RECORDS;
+        // Pushes queued from now on need another run
+        this.wakeUpTimes.remove(server);
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            List<PatientPushJob> jobs = this.storageManager.claimPatientPushJobs(server, batchSize);
+            Set<String> configuredUsers = new HashSet<>();
+            while (!jobs.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                // Jobs queued with the same parameters can be sent together
+                Map<List<String>, List<PatientPushJob>> batches = new LinkedHashMap<>();
+                for (PatientPushJob job : jobs) {
+                    batches.computeIfAbsent(Arrays.asList(job.getLocalUser(), job.getExportFields(),
+                        job.getPatientState(), job.getGroupName()), key -> new ArrayList<>()).add(job);
+                }
+                for (List<PatientPushJob> batch : batches.values()) {
+                    send(batch, server, configuredUsers);
+                }
+                jobs = this.storageManager.claimPatientPushJobs(server, batchSize);
+            }
+        } catch (ExecutionContextException | RuntimeException ex) {
+            this.logger.warn("Failed to process the push queue for [{}]: {}", server, ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+
+        deleteExpiredJobs();
+        Timestamp next = this.storageManager.getNextPatientPushJobTime(server);
+        if (next != null) {
+            wakeUp(server, next.getTime());
+        }
+    }
+
+    private void send(List<PatientPushJob> batch, String server, Set<String> configuredUsers)
+    {
+        PatientPushJob first = batch.get(0);
+        XWikiContext context = this.xcontextProvider.get();
+        if (context.getWikiId() == null) {
+            context.setWikiId(context.getMainXWiki());
+        }
+        // Act on behalf of the user who queued the pushes, both for access rights and for the remote login token
+        context.setUserReference(this.resolver.resolve(first.getLocalUser()));
+        if (configuredUsers.add(first.getLocalUser())) {
+            refreshConfiguration(server);
+        }
+
+        List<String> patientIDs = new ArrayList<>(batch.size());
+        for (PatientPushJob job : batch) {
+            patientIDs.add(job.getLocalPatientID());
+        }
+        Map<String, PushServerSendPatientResponse> responses;
+        try {
+            responses = this.pushService.get().sendPatients(patientIDs, first.getExportFields(),
+                first.getPatientState(), first.getGroupName(), server);
+        } catch (RuntimeException ex) {
+            this.logger.warn("Failed to push [{}] patients to [{}]: {}", batch.size(), server, ex.getMessage());
+            responses = null;
+        }
+
+        for (PatientPushJob job : batch) {
+            PushServerSendPatientResponse response = responses == null ? null : responses.get(job.getLocalPatientID());
+            if (response == null) {
+                retryLater(job, "No response from the remote server");
+            } else if (response.isSuccessful()) {
+                job.setStatus(PatientPushJob.STATUS_DONE);
+            } else {
+                // The remote server rejected the push, retrying wouldn't change the answer
+                job.fail(describeFailure(response));
+            }
+            this.storageManager.updatePatientPushJob(job);
+        }
+    }
+
+    /**
+     * Asks the remote server for its configuration, which tells which protocol version and which optional features,
+     * such as batch pushes, it supports. This is only known after a configuration request, and the last interactive
+     * request may be long gone, for example after a restart.
+     *
+     * @param server the remote server identifier
+     */
+    private void refreshConfiguration(String server)
+    {
+        try {
+            PushServerConfigurationResponse configuration = this.pushService.get().getRemoteConfiguration(server);
+            if (configuration == null || !configuration.isSuccessful()) {
+                this.logger.debug("Failed to get the configuration of [{}] before pushing", server);
+            }
+        } catch (RuntimeException ex) {
+            this.logger.warn("Failed to get the configuration of [{}]: {}", server, ex.getMessage());
+        }
+    }
+
+    /** Removes the expired finished pushes from the push history, at most once per cleanup interval. */
+    private void deleteExpiredJobs()
+    {
+        long now = System.currentTimeMillis();
+        long last = this.lastCleanupTime.get();
+        if (now - last < CLEANUP_INTERVAL || !this.lastCleanupTime.compareAndSet(last, now)) {
+            return;
+        }
+        int deleted = this.storageManager.deleteFinishedPatientPushJobs(new Timestamp(now - FINISHED_RETENTION));
+        if (deleted > 0) {
+            this.logger.debug("Deleted [{}] finished pushes from the push history", deleted);
+        }
+    }
+
+    private void retryLater(PatientPushJob job, String error)
+    {
+        if (job.getAttempts() + 1 >= MAX_ATTEMPTS) {
+            job.fail(error);
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << job.getAttempts());
+        job.retryLater(delay, error);
+    }
+
+    private String describeFailure(PushServerSendPatientResponse response)
+    {
+        if (response.isLoginFailed()) {
+            return response.isLoginFailed_UserTokenExpired() ? "Remote login token expired" : "Remote login failed";
+        }
+        if (response.isServerDoesNotAcceptClientProtocolVersion()
+            || response.isClientDoesNotAcceptServerProtocolVersion()) {
+            return "Incompatible push protocol versions";
+        }
+        return "Push rejected by the remote server";
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import org.phenotips.data.push.PatientPushStatus;
+import org.phenotips.data.securestorage.PatientPushJob;
+
+import java.sql.Timestamp;
+
+/**
+ * Default implementation, a snapshot of a stored {@link PatientPushJob}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class DefaultPatientPushStatus implements PatientPushStatus
+{
+    private final String localPatientID;
+
+    private final String remoteServerIdentifier;
+
+    private final String status;
+
+    private final int failedAttempts;
+
+    private final Timestamp queuedTime;
+
+    private final Timestamp nextAttemptTime;
+
+    private final String lastError;
+
+    /**
+     * Constructor that copies the information from a persisted entity.
+     *
+     * @param job the stored job to copy, must be non-null
+     */
+    public DefaultPatientPushStatus(PatientPushJob job)
+    {
+        this.localPatientID = job.getLocalPatientID();
+        this.remoteServerIdentifier = job.getRemoteServerName();
+        this.status = job.getStatus();
+        this.failedAttempts = job.getAttempts();
+        this.queuedTime = job.getQueuedTime();
+        this.nextAttemptTime = job.getNextAttemptTime();
+        this.lastError = job.getLastError();
+    }
+
+    @Override
+    public String getLocalPatientID()
+    {
+        return this.localPatientID;
+    }
+
+    @Override
+    public String getRemoteServerIdentifier()
+    {
+        return this.remoteServerIdentifier;
+    }
+
+    @Override
+    public String getStatus()
+    {
+        return this.status;
+    }
+
+    @Override
+    public int getFailedAttempts()
+    {
+        return this.failedAttempts;
+    }
+
+    @Override
+    public Timestamp getQueuedTime()
+    {
+        return this.queuedTime;
+    }
+
+    @Override
+    public Timestamp getNextAttemptTime()
+    {
+        return this.nextAttemptTime;
+    }
+
+    @Override
+    public String getLastError()
+    {
+        return this.lastError;
+    }
+}
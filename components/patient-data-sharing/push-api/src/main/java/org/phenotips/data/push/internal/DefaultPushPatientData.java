@@ -24,6 +24,7 @@
 import org.phenotips.data.push.PushServerConfigurationResponse;
 import org.phenotips.data.push.PushServerGetPatientIDResponse;
 import org.phenotips.data.push.PushServerSendPatientResponse;
+import org.phenotips.data.shareprotocol.BatchPushWriter;
 import org.phenotips.data.shareprotocol.ShareProtocol;
 import org.phenotips.data.shareprotocol.ShareProtocol.Incompatibility;
 
@@ -31,12 +32,16 @@
 import org.xwiki.context.Execution;
 import org.xwiki.model.reference.DocumentReference;
 
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
 import java.net.URLEncoder;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -48,9 +53,13 @@
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
@@ -104,8 +113,11 @@ public class DefaultPushPatientData implements PushPatientData
     /** HTTP client used for communicating with the remote server. */
     private final CloseableHttpClient client = HttpClients.createSystem();
 
-    /** A cache of known protocol versions for various server */
-    private Map<String, String> protocolVersionsCache = new HashMap<>();
+    /** A cache of known protocol versions for various server, shared by the interactive and the queued pushes. */
+    private Map<String, String> protocolVersionsCache = new ConcurrentHashMap<>();
+
+    /** The optional features supported by each server, as advertised in its last configuration response. */
+    private Map<String, Set<String>> capabilitiesCache = new ConcurrentHashMap<>();
 
     /**
      * Helper method for obtaining a valid xcontext from the execution context.
@@ -224,6 +236,9 @@ public PushServerConfigurationResponse getRemoteConfiguration(String remoteServe
         // store the last known version of push protocol used by the server, so that without client code
         // worrying about that a proper serializer (when possible) is used when pushing data to that server
         this.protocolVersionsCache.put(remoteServerIdentifier, serverProtocolVersion);
+        if (serverResponse != null) {
+            this.capabilitiesCache.put(remoteServerIdentifier, serverResponse.getServerCapabilities());
+        }
 
         return serverResponse;
     }
@@ -294,31 +309,7 @@ public PushServerSendPatientResponse sendPatient(Patient patient, Set<String> ex
             List<NameValuePair> data =
                 generateRequestData(ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_PUSH, userName, password, userToken,
                     serverProtocolVersion);
-            if (exportFields != null) {
-                // Version information is required in the JSON; when exportFields is null everything is included anyway
-                exportFields.add(VersionsController.getEnablingFieldName());
-            }
-
-            // for compatibility with servers running older versions of PhenoTips:
-            //
-            // if the target server is known to support only old versions of push protocol, replace
-            // those fields which are not compatible with compatible alternatives (to trigger old serializers)
-            if (this.protocolVersionsCache.containsKey(remoteServerIdentifier)) {
-                if (ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.containsKey(serverProtocolVersion)) {
-                    this.logger.warn("Using old serializers for protocol version [{}] to push data to server [{}]",
-                        serverProtocolVersion, remoteServerIdentifier);
-                    List<ShareProtocol.Incompatibility> incompatibilitiesList =
-                        ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.get(serverProtocolVersion);
-                    for (Incompatibility incompat : incompatibilitiesList) {
-                        if (exportFields.contains(incompat.getCurrentFieldName())) {
-                            exportFields.remove(incompat.getCurrentFieldName());
-                            if (!StringUtils.isEmpty(incompat.getDeprecatedFieldName())) {
-                                exportFields.add(incompat.getDeprecatedFieldName());
-                            }
-                        }
-                    }
-                }
-            }
+            adaptExportFields(exportFields, remoteServerIdentifier, serverProtocolVersion);
 
             String patientJSON = patient.toJSON(exportFields).toString();
             this.logger.debug("Sending patient JSON: [{}]", patientJSON);
@@ -360,6 +351,179 @@ public PushServerSendPatientResponse sendPatient(Patient patient, Set<String> ex
         return null;
     }
 
+    private void adaptExportFields(Set<String> exportFields, String remoteServerIdentifier,
+        String serverProtocolVersion)
+    {
+        if (exportFields == null) {
+            // Everything is included anyway
+            return;
+        }
+        // Version information is required in the JSON
+        exportFields.add(VersionsController.getEnablingFieldName());
+
+        // for compatibility with servers running older versions of PhenoTips:
+        //
+        // if the target server is known to support only old versions of push protocol, replace
+        // those fields which are not compatible with compatible alternatives (to trigger old serializers)
+        if (this.protocolVersionsCache.containsKey(remoteServerIdentifier)) {
+            if (ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.containsKey(serverProtocolVersion)) {
+                this.logger.warn("Using old serializers for protocol version [{}] to push data to server [{}]",
+                    serverProtocolVersion, remoteServerIdentifier);
+                List<ShareProtocol.Incompatibility> incompatibilitiesList =
+                    ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.get(serverProtocolVersion);
+                for (Incompatibility incompat : incompatibilitiesList) {
+                    if (exportFields.contains(incompat.getCurrentFieldName())) {
+                        exportFields.remove(incompat.getCurrentFieldName());
+                        if (!StringUtils.isEmpty(incompat.getDeprecatedFieldName())) {
+                            exportFields.add(incompat.getDeprecatedFieldName());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Map<String, PushServerSendPatientResponse> sendPatients(List<Patient> patients, Set<String> exportFields,
+        JSONObject patientState, String groupName, Map<String, String> remoteGUIDs, String remoteServerIdentifier,
+        String userName, String password, String userToken)
+    {
+        Map<String, PushServerSendPatientResponse> result = new LinkedHashMap<>();
+        Set<String> capabilities = this.capabilitiesCache.get(remoteServerIdentifier);
+        if (capabilities == null || !capabilities.contains(ShareProtocol.CAPABILITY_BATCH_PUSH)) {
+            // older servers only understand the form-based push, one patient at a time
+            for (Patient patient : patients) {
+                result.put(patient.getId(),
+                    sendPatient(patient, exportFields == null ? null : new HashSet<>(exportFields), patientState,
+                        groupName, getRemoteGUID(remoteGUIDs, patient), remoteServerIdentifier, userName, password,
+                        userToken));
+            }
+            return result;
+        }
+
+        this.logger.info("Pushing [{}] patients to server: [{}]", patients.size(), remoteServerIdentifier);
+        String serverProtocolVersion = this.getProtocolVersionForPushingToServer(remoteServerIdentifier);
+        Set<String> fields = exportFields == null ? null : new HashSet<>(exportFields);
+        adaptExportFields(fields, remoteServerIdentifier, serverProtocolVersion);
+
+        JSONObject header = new JSONObject();
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER, serverProtocolVersion);
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME, userName);
+        if (StringUtils.isNotBlank(userToken)) {
+            header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN, userToken);
+        } else {
+            header.put(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD, password);
+        }
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_GROUPNAME, groupName);
+        if (fields != null) {
+            // lets the server reject the whole batch upfront if it doesn't accept some of the fields
+            header.put(ShareProtocol.CLIENT_BATCH_KEY_NAME_FIELDS, fields);
+        }
+
+        for (int start = 0; start < patients.size(); start += ShareProtocol.BATCH_MAX_RECORDS) {
+            List<Patient> batch =
+                patients.subList(start, Math.min(patients.size(), start + ShareProtocol.BATCH_MAX_RECORDS));
+            result.putAll(sendBatch(batch, fields, patientState, remoteGUIDs, header, remoteServerIdentifier));
+        }
+        return result;
+    }
+
+    private Map<String, PushServerSendPatientResponse> sendBatch(List<Patient> patients, Set<String> exportFields,
+        JSONObject patientState, Map<String, String> remoteGUIDs, JSONObject header, String remoteServerIdentifier)
+    {
+        Map<String, PushServerSendPatientResponse> result = new LinkedHashMap<>();
+        for (Patient patient : patients) {
+            // no response yet
+            result.put(patient.getId(), null);
+        }
+
+        HttpPost method = null;
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (BatchPushWriter writer = new BatchPushWriter(body, header)) {
+                for (Patient patient : patients) {
+                    writer.write(patient.getId(), patient.toJSON(exportFields), patientState,
+                        getRemoteGUID(remoteGUIDs, patient));
+                }
+            }
+            this.logger.debug("Sending [{}] patients in [{}] bytes", patients.size(), body.size());
+
+            method = generateBatchRequest(remoteServerIdentifier,
+                header.getString(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER), body.toByteArray());
+            if (method == null) {
+                return result;
+            }
+            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
+                int returnCode = httpResponse.getStatusLine().getStatusCode();
+                this.logger.trace("Push batch HTTP return code: {}", returnCode);
+
+                String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
+                this.logger.trace("RESPONSE FROM SERVER: {}", response);
+                JSONObject responseJSON = new JSONObject(response);
+
+                JSONArray results = responseJSON.optJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS);
+                if (results == null) {
+                    // the whole batch was rejected, for example because of invalid credentials
+                    for (Patient patient : patients) {
+                        result.put(patient.getId(), new DefaultPushServerSendPatientResponse(responseJSON));
+                    }
+                    return result;
+                }
+                for (Object entry : results) {
+                    JSONObject patientResponse = (JSONObject) entry;
+                    String recordId = patientResponse.optString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID, null);
+                    if (result.containsKey(recordId)) {
+                        result.put(recordId, new DefaultPushServerSendPatientResponse(patientResponse));
+                    }
+                }
+                for (Map.Entry<String, PushServerSendPatientResponse> entry : result.entrySet()) {
+                    if (entry.getValue() == null) {
+                        // the server did not report anything about this record
+                        entry.setValue(new DefaultPushServerSendPatientResponse(
+                            DefaultPushServerResponse.generateActionFailedJSON()));
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            this.logger.error("Failed to push patients: {}", ex.getMessage(), ex);
+        } finally {
+            if (method != null) {
+                method.releaseConnection();
+            }
+        }
+        return result;
+    }
+
+    private HttpPost generateBatchRequest(String remoteServerIdentifier, String protocolVersion, byte[] body)
+        throws Exception
+    {
+        String submitURL = getBaseURL(this.getPushServerConfiguration(remoteServerIdentifier));
+        if (submitURL == null) {
+            return null;
+        }
+
+        // credentials are sent in the body, only the information needed for routing the request is in the URL
+        URI uri = new URIBuilder(submitURL)
+            .addParameter(XWIKI_RAW_OUTPUT_KEY, XWIKI_RAW_OUTPUT_VALUE)
+            .addParameter(ShareProtocol.CLIENT_POST_KEY_NAME_ACTION,
+                ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH)
+            .addParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER, protocolVersion)
+            .build();
+        this.logger.trace("POST URL: {}", uri);
+
+        HttpPost method = new HttpPost(uri);
+        ByteArrayEntity entity =
+            new ByteArrayEntity(body, ContentType.create(ShareProtocol.CLIENT_BATCH_CONTENT_TYPE, Consts.UTF_8));
+        entity.setContentEncoding("gzip");
+        method.setEntity(entity);
+        return method;
+    }
+
+    private String getRemoteGUID(Map<String, String> remoteGUIDs, Patient patient)
+    {
+        return remoteGUIDs == null ? null : remoteGUIDs.get(patient.getId());
+    }
+
     @Override
     public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifier, String remoteGUID,
         String userName, String password, String userToken)
@@ -401,8 +565,7 @@ public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifie
 
     private String getProtocolVersionForPushingToServer(String remoteServerIdentifier)
     {
-        return this.protocolVersionsCache.containsKey(remoteServerIdentifier)
-            ? this.protocolVersionsCache.get(remoteServerIdentifier)
-            : ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION;
+        return this.protocolVersionsCache.getOrDefault(remoteServerIdentifier,
+            ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION);
     }
 }
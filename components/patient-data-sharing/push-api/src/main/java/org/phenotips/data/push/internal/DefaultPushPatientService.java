@@ -38,7 +38,10 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.UserManager;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -68,6 +71,9 @@
 @Singleton
 public class DefaultPushPatientService implements PushPatientService
 {
+    /** The right a user needs on a patient record in order to push it; there is no dedicated push right. */
+    static final Right PUSH_RIGHT = Right.VIEW;
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -209,7 +215,7 @@ private Patient getPatientByID(String patientID, String accessLevelName)
         }
 
         if (accessLevelName.equals("push")) {
-            accessLevelName = "view";
+            accessLevelName = PUSH_RIGHT.getName();
         }
 
         // FIXME: Access rights should be checked in the script service, not here
@@ -328,6 +334,61 @@ public PushServerSendPatientResponse sendPatient(String patientID, String export
         return response;
     }
 
+    @Override
+    public Map<String, PushServerSendPatientResponse> sendPatients(List<String> patientIDs, String exportFieldListJSON,
+        String patientState, String groupName, String remoteServerIdentifier)
+    {
+        Map<String, PushServerSendPatientResponse> result = new LinkedHashMap<>();
+        RemoteLoginData storedData = getStoredData(remoteServerIdentifier);
+        if (storedData == null || storedData.getRemoteUserName() == null || storedData.getLoginToken() == null) {
+            for (String patientID : patientIDs) {
+                result.put(patientID, new DefaultPushServerSendPatientResponse(
+                    DefaultPushServerResponse.generateIncorrectCredentialsJSON()));
+            }
+            return result;
+        }
+
+        // the requested identifiers may be external identifiers, keep track of the patient each one designates
+        Map<String, Patient> requested = new LinkedHashMap<>();
+        List<Patient> patients = new ArrayList<>(patientIDs.size());
+        Map<String, String> remoteGUIDs = new HashMap<>();
+        for (String patientID : patientIDs) {
+            Patient patient = getPatientByID(patientID, "push");
+            if (patient == null) {
+                result.put(patientID,
+                    new DefaultPushServerSendPatientResponse(DefaultPushServerResponse.generateActionFailedJSON()));
+                continue;
+            }
+            // reserve the position of the patient in the result
+            result.put(patientID, null);
+            requested.put(patientID, patient);
+            patients.add(patient);
+            PatientPushedToInfo pushInfo = this.storageManager.getPatientPushInfo(patient.getId(),
+                remoteServerIdentifier);
+            if (pushInfo != null) {
+                remoteGUIDs.put(patient.getId(), pushInfo.getRemotePatientGUID());
+            }
+        }
+        if (patients.isEmpty()) {
+            return result;
+        }
+
+        Map<String, PushServerSendPatientResponse> responses = this.internalService.sendPatients(patients,
+            parseJSONArrayIntoSet(exportFieldListJSON), this.parsePatientStateToJSON(patientState), groupName,
+            remoteGUIDs, remoteServerIdentifier, storedData.getRemoteUserName(), null, storedData.getLoginToken());
+
+        for (Map.Entry<String, Patient> entry : requested.entrySet()) {
+            String patientID = entry.getValue().getId();
+            PushServerSendPatientResponse response = responses.get(patientID);
+            if (response != null && response.isSuccessful()) {
+                this.storageManager.storePatientPushInfo(patientID, remoteServerIdentifier,
+                    response.getRemotePatientGUID(), response.getRemotePatientID(), response.getRemotePatientURL());
+            }
+            result.put(entry.getKey(), response);
+        }
+        return result;
+    }
+
     @Override
     public PushServerSendPatientResponse sendPatient(String patientID, String exportFieldListJSON, String patientState,
         String groupName, String remoteGUID, String remoteServerIdentifier, String remoteUserName, String password)
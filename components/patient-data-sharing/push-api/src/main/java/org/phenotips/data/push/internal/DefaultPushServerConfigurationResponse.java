@@ -121,4 +121,11 @@ public JSONArray getConsents()
     {
         return this.response.optJSONArray(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_CONSENTS);
     }
+
+    @Override
+    public Set<String> getServerCapabilities()
+    {
+        Set<String> result = getSetFromJSONList(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_CAPABILITIES);
+        return result == null ? Collections.<String>emptySet() : result;
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import org.phenotips.data.push.PatientPushQueue;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Starts the {@link PatientPushQueue} once PhenoTips is ready, so that pushes left over when the server was last
+ * stopped are resumed without waiting for a new push to be queued.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("patient-push-queue-starter")
+@Singleton
+public class PatientPushQueueStarter extends AbstractEventListener
+{
+    /** Lazily loaded, since the queue needs the storage, which is only configured once the application started. */
+    @Inject
+    private Provider<PatientPushQueue> queue;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PatientPushQueueStarter()
+    {
+        super("patient-push-queue-starter", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Initializing the queue resumes the pending pushes
+        this.queue.get();
+    }
+}
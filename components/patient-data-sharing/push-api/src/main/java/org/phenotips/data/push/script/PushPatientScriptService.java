@@ -18,6 +18,8 @@
 package org.phenotips.data.push.script;
 
 import org.phenotips.data.push.PatientPushHistory;
+import org.phenotips.data.push.PatientPushQueue;
+import org.phenotips.data.push.PatientPushStatus;
 import org.phenotips.data.push.PushPatientService;
 import org.phenotips.data.push.PushServerConfigurationResponse;
 import org.phenotips.data.push.PushServerGetPatientIDResponse;
@@ -28,6 +30,7 @@
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -54,6 +57,10 @@ public class PushPatientScriptService implements ScriptService
     @Inject
     private PushPatientService internalService;
 
+    /** Sends pushes in the background. */
+    @Inject
+    private PatientPushQueue queue;
+
     public Set<PushServerInfo> getAvailablePushTargets()
     {
         return this.internalService.getAvailablePushTargets();
@@ -110,6 +117,13 @@ public PushServerSendPatientResponse sendPatient(String patientID, String export
             remoteGUID, remoteServerIdentifier, remoteUserName, password);
     }
 
+    public Map<String, PushServerSendPatientResponse> sendPatients(List<String> patientIDs,
+        String exportFieldListJSON, String patientState, String groupName, String remoteServerIdentifier)
+    {
+        return this.internalService.sendPatients(patientIDs, exportFieldListJSON, patientState, groupName,
+            remoteServerIdentifier);
+    }
+
     public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifier, String remotePatientGUID)
     {
         return this.internalService.getPatientURL(remoteServerIdentifier, remotePatientGUID);
@@ -120,4 +134,21 @@ public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifie
     {
         return this.internalService.getPatientURL(remoteServerIdentifier, remotePatientGUID, remoteUserName, password);
     }
+
+    public PatientPushStatus queuePatient(String patientID, String exportFieldListJSON, String patientState,
+        String groupName, String remoteServerIdentifier)
+    {
+        return this.queue.queuePatient(patientID, exportFieldListJSON, patientState, groupName,
+            remoteServerIdentifier);
+    }
+
+    public List<PatientPushStatus> getQueuedPushStatus(String patientID)
+    {
+        return this.queue.getStatus(patientID);
+    }
+
+    public long getPushQueueSize(String remoteServerIdentifier)
+    {
+        return this.queue.getQueueSize(remoteServerIdentifier);
+    }
 }
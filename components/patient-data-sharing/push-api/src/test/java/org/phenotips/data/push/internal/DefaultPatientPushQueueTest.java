@@ -0,0 +1,346 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.push.PatientPushQueue;
+import org.phenotips.data.push.PatientPushStatus;
+import org.phenotips.data.push.PushPatientService;
+import org.phenotips.data.push.PushServerConfigurationResponse;
+import org.phenotips.data.push.PushServerSendPatientResponse;
+import org.phenotips.data.securestorage.PatientPushJob;
+import org.phenotips.data.securestorage.RemoteLoginData;
+import org.phenotips.data.securestorage.SecureStorageManager;
+import org.phenotips.security.authorization.AuthorizationService;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientPushQueue} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientPushQueueTest
+{
+    private static final String SERVER = "remote";
+
+    private static final String USER = "padams";
+
+    private static final String USER_REFERENCE = "xwiki:XWiki.padams";
+
+    private static final String PATIENT = "P0000001";
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(6);
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientPushQueue> mocker =
+        new MockitoComponentMockingRule<>(DefaultPatientPushQueue.class);
+
+    private SecureStorageManager storage;
+
+    private PushPatientService pushService;
+
+    private AuthorizationService access;
+
+    private User user;
+
+    private Patient patient;
+
+    private XWikiContext context;
+
+    private DocumentReferenceResolver<String> resolver;
+
+    @Before
+    public void setUp() throws ComponentLookupException
+    {
+        this.storage = this.mocker.getInstance(SecureStorageManager.class);
+        this.access = this.mocker.getInstance(AuthorizationService.class);
+
+        this.pushService = mock(PushPatientService.class);
+        Provider<PushPatientService> serviceProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, PushPatientService.class));
+        when(serviceProvider.get()).thenReturn(this.pushService);
+
+        this.context = mock(XWikiContext.class);
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        DocumentReference userReference = new DocumentReference("xwiki", "XWiki", USER);
+        when(this.context.getUserReference()).thenReturn(userReference);
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(userReference)).thenReturn(USER_REFERENCE);
+        this.resolver = this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(this.resolver.resolve(USER_REFERENCE)).thenReturn(userReference);
+
+        this.user = mock(User.class);
+        when(this.mocker.<UserManager>getInstance(UserManager.class).getCurrentUser()).thenReturn(this.user);
+
+        this.patient = mock(Patient.class);
+        when(this.patient.getId()).thenReturn(PATIENT);
+        when(this.patient.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", PATIENT));
+        when(this.mocker.<PatientRepository>getInstance(PatientRepository.class).get(PATIENT))
+            .thenReturn(this.patient);
+        when(this.access.hasAccess(this.user, DefaultPushPatientService.PUSH_RIGHT,
+            this.patient.getDocumentReference())).thenReturn(true);
+        when(this.storage.getRemoteLoginData(USER, SERVER)).thenReturn(
+            new RemoteLoginData(USER, SERVER, "remoteUser", "token"));
+    }
+
+    @Test
+    public void patientsAreQueuedAndSent() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(0);
+        when(this.storage.queuePatientPushJob(USER_REFERENCE, PATIENT, SERVER, null, "{}", null)).thenReturn(job);
+        claim(job);
+        respond(true);
+
+        PatientPushStatus status = this.mocker.getComponentUnderTest().queuePatient(PATIENT, null, "{}", null, SERVER);
+
+        Assert.assertNotNull(status);
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        Assert.assertEquals(PatientPushJob.STATUS_DONE, job.getStatus());
+    }
+
+    @Test
+    public void queueingIsRefusedWithoutThePushRight() throws ComponentLookupException
+    {
+        when(this.access.hasAccess(this.user, DefaultPushPatientService.PUSH_RIGHT,
+            this.patient.getDocumentReference())).thenReturn(false);
+
+        Assert.assertNull(this.mocker.getComponentUnderTest().queuePatient(PATIENT, null, "{}", null, SERVER));
+        verify(this.storage, never()).queuePatientPushJob(Matchers.<String>any(), Matchers.<String>any(),
+            Matchers.<String>any(), Matchers.<String>any(), Matchers.<String>any(), Matchers.<String>any());
+    }
+
+    @Test
+    public void queueingIsRefusedWhenTooManyPushesArePending() throws ComponentLookupException
+    {
+        when(this.storage.countPendingPatientPushJobs(SERVER)).thenReturn(10000L);
+
+        Assert.assertNull(this.mocker.getComponentUnderTest().queuePatient(PATIENT, null, "{}", null, SERVER));
+        verify(this.storage, never()).queuePatientPushJob(Matchers.<String>any(), Matchers.<String>any(),
+            Matchers.<String>any(), Matchers.<String>any(), Matchers.<String>any(), Matchers.<String>any());
+    }
+
+    @Test
+    public void queueingIsAcceptedBelowThePendingLimit() throws ComponentLookupException
+    {
+        when(this.storage.countPendingPatientPushJobs(SERVER)).thenReturn(9999L);
+        when(this.storage.queuePatientPushJob(USER_REFERENCE, PATIENT, SERVER, null, "{}", null))
+            .thenReturn(queuedJob(0));
+
+        Assert.assertNotNull(this.mocker.getComponentUnderTest().queuePatient(PATIENT, null, "{}", null, SERVER));
+    }
+
+    @Test
+    public void interruptedPushesAreResumedOnStartup() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(0);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+        respond(true);
+
+        this.mocker.getComponentUnderTest();
+
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        Assert.assertEquals(PatientPushJob.STATUS_DONE, job.getStatus());
+    }
+
+    @Test
+    public void serverConfigurationIsRefreshedBeforeSending() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(0);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+        respond(true);
+
+        this.mocker.getComponentUnderTest();
+
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        InOrder order = inOrder(this.pushService);
+        order.verify(this.pushService).getRemoteConfiguration(SERVER);
+        order.verify(this.pushService).sendPatients(Matchers.<List<String>>any(), Matchers.<String>any(),
+            Matchers.<String>any(), Matchers.<String>any(), eq(SERVER));
+    }
+
+    @Test
+    public void failedPushesAreRetriedWithExponentialBackoff() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(2);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+        // No response from the remote server
+
+        long before = System.currentTimeMillis();
+        this.mocker.getComponentUnderTest();
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        long after = System.currentTimeMillis();
+
+        Assert.assertEquals(PatientPushJob.STATUS_QUEUED, job.getStatus());
+        Assert.assertEquals(3, job.getAttempts());
+        // 30 seconds, doubled for each of the two previous failures
+        long expectedDelay = RETRY_DELAY * 4;
+        Assert.assertTrue(job.getNextAttemptTime().getTime() >= before + expectedDelay);
+        Assert.assertTrue(job.getNextAttemptTime().getTime() <= after + expectedDelay);
+    }
+
+    @Test
+    public void retryDelayIsCapped() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(10);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+
+        long before = System.currentTimeMillis();
+        this.mocker.getComponentUnderTest();
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        long after = System.currentTimeMillis();
+
+        Assert.assertEquals(PatientPushJob.STATUS_QUEUED, job.getStatus());
+        Assert.assertTrue(job.getNextAttemptTime().getTime() >= before + MAX_RETRY_DELAY);
+        Assert.assertTrue(job.getNextAttemptTime().getTime() <= after + MAX_RETRY_DELAY);
+    }
+
+    @Test
+    public void pushesAreAbandonedAfterTheMaximumNumberOfAttempts() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(11);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+
+        this.mocker.getComponentUnderTest();
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+
+        Assert.assertEquals(PatientPushJob.STATUS_FAILED, job.getStatus());
+        Assert.assertEquals(12, job.getAttempts());
+    }
+
+    @Test
+    public void rejectedPushesAreNotRetried() throws ComponentLookupException
+    {
+        PatientPushJob job = queuedJob(0);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+        respond(false);
+
+        this.mocker.getComponentUnderTest();
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+
+        Assert.assertEquals(PatientPushJob.STATUS_FAILED, job.getStatus());
+        Assert.assertEquals(1, job.getAttempts());
+    }
+
+    @Test
+    public void pushesAreSentAsTheUserWhoQueuedThem() throws ComponentLookupException
+    {
+        DocumentReference subwikiUser = new DocumentReference("subwiki", "XWiki", USER);
+        when(this.resolver.resolve("subwiki:XWiki.padams")).thenReturn(subwikiUser);
+        PatientPushJob job = new PatientPushJob("subwiki:XWiki.padams", PATIENT, SERVER);
+        job.requeue("subwiki:XWiki.padams", null, "{}", null);
+        when(this.storage.resumePatientPushJobs()).thenReturn(Collections.singletonList(SERVER));
+        claim(job);
+        respond(true);
+
+        this.mocker.getComponentUnderTest();
+
+        verify(this.storage, timeout(10000)).updatePatientPushJob(job);
+        verify(this.context).setUserReference(subwikiUser);
+    }
+
+    @Test
+    public void finishedPushesExpireFromTheHistory() throws ComponentLookupException
+    {
+        long before = System.currentTimeMillis();
+        this.mocker.getComponentUnderTest();
+        long after = System.currentTimeMillis();
+
+        ArgumentCaptor<Timestamp> queuedBefore = ArgumentCaptor.forClass(Timestamp.class);
+        verify(this.storage).deleteFinishedPatientPushJobs(queuedBefore.capture());
+        long retention = TimeUnit.DAYS.toMillis(30);
+        Assert.assertTrue(queuedBefore.getValue().getTime() >= before - retention);
+        Assert.assertTrue(queuedBefore.getValue().getTime() <= after - retention);
+    }
+
+    /** A queued job which already failed the given number of times. */
+    private PatientPushJob queuedJob(int failedAttempts)
+    {
+        PatientPushJob job = new PatientPushJob(USER_REFERENCE, PATIENT, SERVER);
+        job.requeue(USER_REFERENCE, null, "{}", null);
+        for (int i = 0; i < failedAttempts; ++i) {
+            job.retryLater(0, "No response from the remote server");
+        }
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void claim(PatientPushJob job)
+    {
+        when(this.storage.claimPatientPushJobs(eq(SERVER), anyInt())).thenReturn(Collections.singletonList(job),
+            Collections.<PatientPushJob>emptyList());
+    }
+
+    private void respond(boolean successful)
+    {
+        PushServerConfigurationResponse configuration = mock(PushServerConfigurationResponse.class);
+        when(configuration.isSuccessful()).thenReturn(true);
+        when(this.pushService.getRemoteConfiguration(SERVER)).thenReturn(configuration);
+
+        PushServerSendPatientResponse response = mock(PushServerSendPatientResponse.class);
+        when(response.isSuccessful()).thenReturn(successful);
+        Map<String, PushServerSendPatientResponse> responses = Collections.singletonMap(PATIENT, response);
+        when(this.pushService.sendPatients(Matchers.<List<String>>any(), Matchers.<String>any(),
+            Matchers.<String>any(), Matchers.<String>any(), eq(SERVER))).thenReturn(responses);
+    }
+}
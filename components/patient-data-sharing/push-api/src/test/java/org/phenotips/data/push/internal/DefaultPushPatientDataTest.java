@@ -0,0 +1,298 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.internal.controller.VersionsController;
+import org.phenotips.data.push.PushPatientData;
+import org.phenotips.data.push.PushServerSendPatientResponse;
+import org.phenotips.data.shareprotocol.BatchPushReader;
+import org.phenotips.data.shareprotocol.ShareProtocol;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPushPatientData} client, talking to a mocked remote server.
+ *
+ * @version $Id$
+ */
+public class DefaultPushPatientDataTest
+{
+    private static final String SERVER = "remote";
+
+    @Rule
+    public final MockitoComponentMockingRule<PushPatientData> mocker =
+        new MockitoComponentMockingRule<>(DefaultPushPatientData.class);
+
+    /** The capabilities advertised by the remote server, {@code null} for servers that predate them. */
+    private List<String> capabilities;
+
+    /** The number of patients pushed one at a time, with the form-based push. */
+    private int formPushes;
+
+    /** The header of each received batch. */
+    private List<JSONObject> batchHeaders = new ArrayList<>();
+
+    /** The number of patients in each received batch. */
+    private List<Integer> batchSizes = new ArrayList<>();
+
+    /** The response to a batch push, instead of one result per patient, when the whole batch is rejected. */
+    private JSONObject batchRejection;
+
+    /** Records for which the remote server doesn't report anything. */
+    private List<String> unreported = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        XWikiContext context = mock(XWikiContext.class);
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, context);
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(executionContext);
+
+        XWiki xwiki = mock(XWiki.class);
+        XWikiDocument preferences = mock(XWikiDocument.class);
+        BaseObject serverConfiguration = mock(BaseObject.class);
+        when(context.getWiki()).thenReturn(xwiki);
+        when(context.getWikiId()).thenReturn("xwiki");
+        when(xwiki.getDocument(Matchers.any(DocumentReference.class), Matchers.eq(context))).thenReturn(preferences);
+        when(preferences.getXObject(Matchers.any(DocumentReference.class),
+            Matchers.eq(DefaultPushPatientData.PUSH_SERVER_CONFIG_ID_PROPERTY_NAME), Matchers.eq(SERVER)))
+                .thenReturn(serverConfiguration);
+        when(serverConfiguration.getStringValue(DefaultPushPatientData.PUSH_SERVER_CONFIG_URL_PROPERTY_NAME))
+            .thenReturn("https://remote.example.org/");
+
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        when(client.execute(Matchers.any(HttpUriRequest.class)))
+            .thenAnswer(invocation -> respond((HttpPost) invocation.getArguments()[0]));
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", client);
+    }
+
+    @Test
+    public void patientsAreSentOneByOneToServersWithoutBatchSupport() throws Exception
+    {
+        this.capabilities = null;
+        this.mocker.getComponentUnderTest().getRemoteConfiguration(SERVER, "user", null, "token");
+
+        Map<String, PushServerSendPatientResponse> responses = send(patients(3));
+
+        Assert.assertEquals(3, this.formPushes);
+        Assert.assertTrue(this.batchSizes.isEmpty());
+        assertAllSuccessful(responses, 3);
+    }
+
+    @Test
+    public void patientsAreSentOneByOneUntilTheServerCapabilitiesAreKnown() throws Exception
+    {
+        this.capabilities = Collections.singletonList(ShareProtocol.CAPABILITY_BATCH_PUSH);
+
+        Map<String, PushServerSendPatientResponse> responses = send(patients(2));
+
+        Assert.assertEquals(2, this.formPushes);
+        Assert.assertTrue(this.batchSizes.isEmpty());
+        assertAllSuccessful(responses, 2);
+    }
+
+    @Test
+    public void serversWithBatchSupportReceiveBoundedBatches() throws Exception
+    {
+        this.capabilities = Collections.singletonList(ShareProtocol.CAPABILITY_BATCH_PUSH);
+        this.mocker.getComponentUnderTest().getRemoteConfiguration(SERVER, "user", null, "token");
+
+        int total = 2 * ShareProtocol.BATCH_MAX_RECORDS + 50;
+        Map<String, PushServerSendPatientResponse> responses = send(patients(total));
+
+        Assert.assertEquals(0, this.formPushes);
+        Assert.assertEquals(Arrays.asList(ShareProtocol.BATCH_MAX_RECORDS, ShareProtocol.BATCH_MAX_RECORDS,
+            50), this.batchSizes);
+        assertAllSuccessful(responses, total);
+
+        JSONObject header = this.batchHeaders.get(0);
+        Assert.assertEquals("token", header.getString(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN));
+        Assert.assertFalse(header.has(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD));
+        List<String> fields = new ArrayList<>();
+        for (Object field : header.getJSONArray(ShareProtocol.CLIENT_BATCH_KEY_NAME_FIELDS)) {
+            fields.add(String.valueOf(field));
+        }
+        Assert.assertTrue(fields.contains("external_id"));
+        Assert.assertTrue(fields.contains(VersionsController.getEnablingFieldName()));
+    }
+
+    @Test
+    public void patientsMissingFromTheBatchResponseAreReportedAsFailed() throws Exception
+    {
+        this.capabilities = Collections.singletonList(ShareProtocol.CAPABILITY_BATCH_PUSH);
+        this.mocker.getComponentUnderTest().getRemoteConfiguration(SERVER, "user", null, "token");
+        this.unreported.add("P0000002");
+
+        Map<String, PushServerSendPatientResponse> responses = send(patients(3));
+
+        Assert.assertEquals(3, responses.size());
+        Assert.assertTrue(responses.get("P0000001").isSuccessful());
+        Assert.assertFalse(responses.get("P0000002").isSuccessful());
+        Assert.assertTrue(responses.get("P0000002").isActionFailed());
+        Assert.assertTrue(responses.get("P0000003").isSuccessful());
+    }
+
+    @Test
+    public void rejectedBatchesAreReportedForEachPatient() throws Exception
+    {
+        this.capabilities = Collections.singletonList(ShareProtocol.CAPABILITY_BATCH_PUSH);
+        this.mocker.getComponentUnderTest().getRemoteConfiguration(SERVER, "user", null, "token");
+        this.batchRejection = DefaultPushServerResponse.generateIncorrectCredentialsJSON();
+
+        Map<String, PushServerSendPatientResponse> responses = send(patients(2));
+
+        Assert.assertEquals(2, responses.size());
+        for (PushServerSendPatientResponse response : responses.values()) {
+            Assert.assertFalse(response.isSuccessful());
+            Assert.assertTrue(response.isLoginFailed());
+        }
+    }
+
+    private Map<String, PushServerSendPatientResponse> send(List<Patient> patients) throws Exception
+    {
+        return this.mocker.getComponentUnderTest().sendPatients(patients,
+            new HashSet<>(Collections.singleton("external_id")), new JSONObject(), null, null, SERVER,
+            "user", null, "token");
+    }
+
+    private List<Patient> patients(int count)
+    {
+        List<Patient> result = new ArrayList<>(count);
+        for (int i = 1; i <= count; ++i) {
+            String id = String.format("P%07d", i);
+            Patient patient = mock(Patient.class);
+            when(patient.getId()).thenReturn(id);
+            when(patient.toJSON(Matchers.<Collection<String>>any()))
+                .thenReturn(new JSONObject().put("external_id", "E" + i));
+            result.add(patient);
+        }
+        return result;
+    }
+
+    private void assertAllSuccessful(Map<String, PushServerSendPatientResponse> responses, int count)
+    {
+        Assert.assertEquals(count, responses.size());
+        for (Map.Entry<String, PushServerSendPatientResponse> response : responses.entrySet()) {
+            Assert.assertTrue(response.getKey(), response.getValue().isSuccessful());
+        }
+    }
+
+    private CloseableHttpResponse respond(HttpPost request) throws Exception
+    {
+        JSONObject response;
+        if (StringUtils.contains(request.getURI().getQuery(), ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH)) {
+            response = receiveBatch(request);
+        } else {
+            Map<String, String> parameters = new HashMap<>();
+            for (NameValuePair parameter : URLEncodedUtils.parse(request.getEntity())) {
+                parameters.put(parameter.getName(), parameter.getValue());
+            }
+            if (ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_INFO.equals(
+                parameters.get(ShareProtocol.CLIENT_POST_KEY_NAME_ACTION))) {
+                response = success();
+                response.put(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_ACCEPTEDFIELDS,
+                    Collections.singletonList("external_id"));
+                if (this.capabilities != null) {
+                    response.put(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_CAPABILITIES, this.capabilities);
+                }
+            } else {
+                ++this.formPushes;
+                response = success();
+            }
+        }
+
+        StatusLine status = mock(StatusLine.class);
+        when(status.getStatusCode()).thenReturn(200);
+        CloseableHttpResponse result = mock(CloseableHttpResponse.class);
+        when(result.getStatusLine()).thenReturn(status);
+        when(result.getEntity()).thenReturn(new StringEntity(response.toString(), ContentType.APPLICATION_JSON));
+        return result;
+    }
+
+    private JSONObject receiveBatch(HttpPost request) throws Exception
+    {
+        Assert.assertEquals("gzip", request.getEntity().getContentEncoding().getValue());
+        try (BatchPushReader batch = new BatchPushReader(request.getEntity().getContent(), true)) {
+            this.batchHeaders.add(batch.getHeader());
+            if (this.batchRejection != null) {
+                return this.batchRejection;
+            }
+            JSONArray results = new JSONArray();
+            int count = 0;
+            JSONObject record;
+            while ((record = batch.next()) != null) {
+                ++count;
+                String recordId = record.getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID);
+                if (!this.unreported.contains(recordId)) {
+                    results.put(success().put(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID, recordId));
+                }
+            }
+            this.batchSizes.add(count);
+            return success().put(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS, results);
+        }
+    }
+
+    private JSONObject success()
+    {
+        JSONObject response = new JSONObject();
+        response.put(ShareProtocol.SERVER_JSON_KEY_NAME_PROTOCOLVER, ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION);
+        response.put(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS, true);
+        return response;
+    }
+}
@@ -116,6 +116,27 @@
      */
     JSONObject receivePatient();
 
+    /**
+     * Receives a batch of patients, pushed in a single request. The request body is a gzip-compressed JSON-lines
+     * document: a header with the username, credentials and optional group name, followed by one line per patient,
+     * each with its data, state, optional GUID, and a record identifier chosen by the client. See
+     * {@link org.phenotips.data.shareprotocol.ShareProtocol} and
+     * {@link org.phenotips.data.shareprotocol.BatchPushWriter}.
+     * <p>
+     * The credentials and the group are validated once, the same way {@link #receivePatient()} does, and the same
+     * {@code JSONObject} is returned in case of any problems. Each patient is then imported independently: a failure
+     * for one patient doesn't prevent the others from being imported.
+     * <p>
+     * On success, {@code success} is set to {@code true}, and {@code results} holds a JSON list with one entry for
+     * each patient, in the order they were received. Each entry has the same fields that {@link #receivePatient()}
+     * would return for that patient, and the {@code record_id} of the patient.
+     *
+     * @return {@code JSONObject} with {@code success} set to {@code true} if the batch was read, and set to
+     *         {@code false} if the batch could not be read or the credentials are invalid
+     * @since 1.4
+     */
+    JSONObject receivePatients();
+
     /**
      * Returns the URL of the patient object with the given GUID. Requires a valid username and credentials to be
      * supplied in the request, which are validated the same way {@code getConfiguration()} does, and returns the same
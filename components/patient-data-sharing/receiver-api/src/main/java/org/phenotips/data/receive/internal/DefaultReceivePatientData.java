@@ -24,10 +24,14 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.internal.PhenoTipsPatient;
+import org.phenotips.data.internal.controller.VersionsController;
 import org.phenotips.data.permissions.EntityPermissionsManager;
+import org.phenotips.data.permissions.internal.DefaultCollaborator;
+import org.phenotips.data.permissions.internal.EntityAccessManager;
 import org.phenotips.data.receive.ReceivePatientData;
 import org.phenotips.data.securestorage.LocalLoginToken;
 import org.phenotips.data.securestorage.SecureStorageManager;
+import org.phenotips.data.shareprotocol.BatchPushReader;
 import org.phenotips.data.shareprotocol.ShareProtocol;
 import org.phenotips.groups.Group;
 import org.phenotips.groups.GroupManager;
@@ -49,9 +53,13 @@
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -60,6 +68,7 @@
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWiki;
@@ -94,6 +103,9 @@ public class DefaultReceivePatientData implements ReceivePatientData
 
     private final static String SERVER_CONFIG_USER_TOKEN_EXPIRE_PROPERTY_NAME = "user_token_life_in_days";
 
+    /** Patient JSON keys describing the sending record, which are not imported. */
+    private static final Set<String> IGNORED_PATIENT_KEYS = new HashSet<>(Arrays.asList("id", "reporter"));
+
     /** used for secure user login token generation */
     private SecureRandom secureRandomGenerator = new SecureRandom();
 
@@ -144,6 +156,10 @@ public class DefaultReceivePatientData implements ReceivePatientData
     @Inject
     private EntityPermissionsManager permissionManager;
 
+    /** Sets the owner and collaborators of received patients without saving them separately. */
+    @Inject
+    private EntityAccessManager accessManager;
+
     @Inject
     private AuthorizationService authService;
 
@@ -392,24 +408,38 @@ protected boolean userTokensEnabled(BaseObject serverConfig)
      *         otherwise
      */
     protected JSONObject validateLogin(XWikiRequest request, XWikiContext context)
+    {
+        return validateLogin(request::getParameter, request, context);
+    }
+
+    /**
+     * Same as {@link #validateLogin(XWikiRequest, XWikiContext)}, but reads the username and credentials from the
+     * given source instead of the request parameters, for requests which send them in their body.
+     *
+     * @param parameters provides the value of each request parameter, or {@code null} for missing parameters
+     * @return {@code null} iff user name and user credentials are valid, a JSON object containing error description
+     *         otherwise
+     */
+    protected JSONObject validateLogin(Function<String, String> parameters, XWikiRequest request,
+        XWikiContext context)
     {
         try {
-            String clientVersion = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER);
+            String clientVersion = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER);
             if (!isCompatibleVersion(clientVersion)) {
                 this.logger.error("Rejecting push request by {} - incompatible push protocol version",
                     request.getRemoteAddr());
                 return generateIncompatibleVersionResponse();
             }
 
-            String userName = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME);
-            String token = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN);
+            String userName = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME);
+            String token = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN);
 
             if (userName == null) {
                 return generateFailedCredentialsResponse();
             }
 
             if (token == null) {
-                String password = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD);
+                String password = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD);
 
                 if (context.getWiki().getAuthService().authenticate(userName, password, context) == null) {
                     return generateFailedCredentialsResponse();
@@ -475,92 +505,268 @@ public JSONObject receivePatient()
                 return generateFailedActionResponse();
             }
 
-            Set<String> consentIds = null;
+            JSONObject patientState = null;
             String patientStateRaw = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE);
             if (patientStateRaw != null) {
-                consentIds = extractConsents(patientStateRaw);
-                // there should not be any consent updates if consents are not enabled
-                if (!consentIds.isEmpty() && !this.consentAuthorizer.consentsGloballyEnabled()) {
-                    // reject, as a non-malicious user would never arrive to this execution point
-                    return this.generateFailedActionResponse();
+                patientState = patientStateToJson(patientStateRaw);
+                if (patientState == null) {
+                    patientState = new JSONObject();
                 }
             }
 
             boolean requireConsents =
                 areConsentsRequired(request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER));
-            if (requireConsents) {
-                boolean consentAuthorized = this.consentAuthorizer.authorizeInteraction(consentIds);
-                if (!consentAuthorized) {
-                    this.logger.error("Rejecting patient data from {} - not all required consents have been given",
-                        request.getRemoteAddr());
-                    return this.generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_MISSINGCONSENT);
-                }
-            }
 
-            String patientJSON = URLDecoder.decode(patientJSONRaw, XWiki.DEFAULT_ENCODING);
+            // decoded while parsing, so that large patients are not held in memory twice
+            JSONObject patientJSON = new JSONObject(new JSONTokener(new URLDecodingReader(patientJSONRaw)));
             this.logger.debug("Received patient JSON: [{}]", patientJSON);
 
-            Patient affectedPatient;
+            return importPatient(patientJSON, patientState,
+                request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GUID), userName, groupName, requireConsents,
+                request, context);
+        } catch (Exception ex) {
+            this.logger.error("Error importing patient [{}] {}", ex.getMessage(), ex);
+            return this.generateFailedActionResponse();
+        }
+    }
 
-            // if GUID is present in the request attempt to update an existing patient
-            // (or fail if GUID is invalid or the patient is not created/authored by the user)
-            String guid = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GUID);
-            User user = this.userManager.getUser(userName);
-            context.setUserReference(user.getProfileDocument());
+    @Override
+    public JSONObject receivePatients()
+    {
+        try {
+            XWikiContext context = getXContext();
+            XWikiRequest request = context.getRequest();
 
-            if (guid != null) {
-                affectedPatient = getPatientByGUID(guid);
-                if (affectedPatient == null) {
-                    return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGUID);
+            this.logger.warn("Push patient batch request from remote [{}]", request.getRemoteAddr());
+
+            boolean compressed = "gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"));
+            try (BatchPushReader batch = new BatchPushReader(request.getInputStream(), compressed)) {
+                final JSONObject header = batch.getHeader();
+                Function<String, String> parameters = key -> header.optString(key, null);
+
+                JSONObject loginError = validateLogin(parameters, request, context);
+                if (loginError != null) {
+                    return loginError;
                 }
-                if (!userCanAccessPatient(userName, affectedPatient)) {
-                    return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_GUIDACCESSDENIED);
+
+                String userName = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME);
+                String groupName = parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_GROUPNAME);
+                if (groupName != null && !isValidUserGroup(userName, groupName)) {
+                    this.logger.warn("Incorrect group name provided by {}", request.getRemoteAddr());
+                    return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGROUP);
                 }
-                this.logger.warn("Loaded existing patient [{}] successfully", affectedPatient.getId());
-            } else {
 
-                affectedPatient = this.patientRepository.create(user.getProfileDocument());
-                if (affectedPatient == null) {
-                    this.logger.error("Can not create new patient");
+                // the declared fields only allow rejecting the whole batch early, each patient is checked on import
+                Set<String> acceptedFields = getAcceptedFields();
+                JSONArray fields = header.optJSONArray(ShareProtocol.CLIENT_BATCH_KEY_NAME_FIELDS);
+                if (fields != null && !areAcceptedFields(fields, acceptedFields)) {
+                    this.logger.warn("Rejecting patient batch from {}: not all the pushed fields are accepted",
+                        request.getRemoteAddr());
                     return generateFailedActionResponse();
                 }
 
-                XWikiDocument doc = affectedPatient.getXDocument();
-                doc.setAuthorReference(user.getProfileDocument());
-
-                // assign ownership to group (if provided) or to the user, and set access rights
-                if (groupName != null) {
-                    Group group = this.groupManager.getGroup(groupName);
-                    this.permissionManager.getEntityAccess(affectedPatient).setOwner(group.getReference());
-                    this.permissionManager.getEntityAccess(affectedPatient).addCollaborator(user.getProfileDocument(),
-                        this.permissionManager.resolveAccessLevel("manage"));
-                } else {
-                    this.permissionManager.getEntityAccess(affectedPatient).setOwner(user.getProfileDocument());
+                boolean requireConsents =
+                    areConsentsRequired(parameters.apply(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER));
+
+                JSONArray results = new JSONArray();
+                JSONObject record;
+                while ((record = batch.next()) != null) {
+                    JSONObject result;
+                    if (results.length() >= ShareProtocol.BATCH_MAX_RECORDS) {
+                        result = generateFailedActionResponse();
+                    } else {
+                        result = importRecord(record, acceptedFields, userName, groupName, requireConsents,
+                            request, context);
+                    }
+                    result.put(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID,
+                        record.opt(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+                    results.put(result);
                 }
+                this.logger.warn("Processed a batch of [{}] patients", results.length());
 
-                this.logger.warn("Created new patient successfully");
+                JSONObject response = generateSuccessfulResponse();
+                response.put(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS, results);
+                return response;
             }
+        } catch (Exception ex) {
+            this.logger.error("Error importing patient batch [{}] {}", ex.getMessage(), ex);
+            return this.generateFailedActionResponse();
+        }
+    }
 
-            JSONObject patientData = new JSONObject(patientJSON);
-            affectedPatient.updateFromJSON(patientData);
+    private JSONObject importRecord(JSONObject record, Set<String> acceptedFields, String userName, String groupName,
+        boolean requireConsents, XWikiRequest request, XWikiContext context)
+    {
+        try {
+            JSONObject patientData = record.optJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON);
+            if (patientData == null) {
+                this.logger.error("No patient data provided by {})", request.getRemoteAddr());
+                return generateFailedActionResponse();
+            }
+            if (!isAcceptedData(patientData, acceptedFields, context)) {
+                this.logger.warn("Rejecting patient data from {}: not all the pushed fields are accepted",
+                    request.getRemoteAddr());
+                return generateFailedActionResponse();
+            }
+            return importPatient(patientData, record.optJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE),
+                record.optString(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, null), userName, groupName,
+                requireConsents, request, context);
+        } catch (Exception ex) {
+            this.logger.error("Error importing patient [{}] {}", ex.getMessage(), ex);
+            return this.generateFailedActionResponse();
+        }
+    }
+
+    /**
+     * Creates or updates a patient with the received data, once the user and group have been validated. Everything is
+     * checked before touching the database; the patient data, the consents and the ownership are then written to the
+     * patient document, which is saved only once, by {@link Patient#updateFromJSON(JSONObject)}. New patients are
+     * saved once more when they are created, to reserve their identifier.
+     *
+     * @param patientData the received patient JSON
+     * @param patientState the received patient state, holding the granted consents, may be {@code null}
+     * @param guid the GUID of the patient to update, or {@code null} to create a new patient
+     * @return the response for this patient, with the same fields as {@link #receivePatient()}
+     * @throws Exception if importing the patient fails
+     */
+    private JSONObject importPatient(JSONObject patientData, JSONObject patientState, String guid, String userName,
+        String groupName, boolean requireConsents, XWikiRequest request, XWikiContext context) throws Exception
+    {
+        List<String> consentIds = null;
+        if (patientState != null) {
+            consentIds = new ArrayList<>(extractConsents(patientState));
+            // there should not be any consent updates if consents are not enabled
+            if (!consentIds.isEmpty() && !this.consentAuthorizer.consentsGloballyEnabled()) {
+                // reject, as a non-malicious user would never arrive to this execution point
+                return this.generateFailedActionResponse();
+            }
+        }
 
-            if (consentIds != null) {
-                this.consentManager.setPatientConsents(affectedPatient, consentIds);
+        if (requireConsents) {
+            boolean consentAuthorized = this.consentAuthorizer.authorizeInteraction(
+                consentIds == null ? null : new HashSet<>(consentIds));
+            if (!consentAuthorized) {
+                this.logger.error("Rejecting patient data from {} - not all required consents have been given",
+                    request.getRemoteAddr());
+                return this.generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_MISSINGCONSENT);
             }
+        }
 
-            this.logger.warn("Updated patient successfully");
+        Patient affectedPatient;
 
-            // store separately from the patient object
-            BaseObject serverConfig = getSourceServerConfiguration(request.getRemoteAddr(), context);
-            String sourceServerName = getRemoteServerName(serverConfig, request);
-            String patientGUID = getPatientGUID(affectedPatient);
-            this.storageManager.storePatientSourceServerInfo(patientGUID, sourceServerName);
+        // if GUID is present in the request attempt to update an existing patient
+        // (or fail if GUID is invalid or the patient is not created/authored by the user)
+        User user = this.userManager.getUser(userName);
+        context.setUserReference(user.getProfileDocument());
 
-            return generateSuccessfulResponseWithPatientIDs(affectedPatient, context);
-        } catch (Exception ex) {
-            this.logger.error("Error importing patient [{}] {}", ex.getMessage(), ex);
-            return this.generateFailedActionResponse();
+        if (guid != null) {
+            affectedPatient = getPatientByGUID(guid);
+            if (affectedPatient == null) {
+                return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGUID);
+            }
+            if (!userCanAccessPatient(userName, affectedPatient)) {
+                return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_GUIDACCESSDENIED);
+            }
+            this.logger.warn("Loaded existing patient [{}] successfully", affectedPatient.getId());
+        } else {
+
+            affectedPatient = this.patientRepository.create(user.getProfileDocument());
+            if (affectedPatient == null) {
+                this.logger.error("Can not create new patient");
+                return generateFailedActionResponse();
+            }
+
+            affectedPatient.getXDocument().setAuthorReference(user.getProfileDocument());
+
+            // assign ownership to group (if provided) or to the user, and set access rights
+            if (groupName != null) {
+                Group group = this.groupManager.getGroup(groupName);
+                this.accessManager.setOwner(affectedPatient, group.getReference(), false);
+                this.accessManager.addCollaborator(affectedPatient, new DefaultCollaborator(
+                    user.getProfileDocument(), this.permissionManager.resolveAccessLevel("manage"), null), false);
+            } else {
+                this.accessManager.setOwner(affectedPatient, user.getProfileDocument(), false);
+            }
+
+            this.logger.warn("Created new patient successfully");
+        }
+
+        if (consentIds != null) {
+            this.consentManager.setPatientConsents(affectedPatient, consentIds, false);
+        }
+
+        if (patientData.length() > 0) {
+            affectedPatient.updateFromJSON(patientData);
+        } else {
+            // only the consents or the ownership changed
+            context.getWiki().saveDocument(affectedPatient.getXDocument(), "Updated from JSON", true, context);
+        }
+
+        this.logger.warn("Updated patient successfully");
+
+        // store separately from the patient object
+        BaseObject serverConfig = getSourceServerConfiguration(request.getRemoteAddr(), context);
+        String sourceServerName = getRemoteServerName(serverConfig, request);
+        String patientGUID = getPatientGUID(affectedPatient);
+        this.storageManager.storePatientSourceServerInfo(patientGUID, sourceServerName);
+
+        return generateSuccessfulResponseWithPatientIDs(affectedPatient, context);
+    }
+
+    private Set<String> getAcceptedFields()
+    {
+        Set<String> accepted =
+            new HashSet<>(this.configurationManager.getConfiguration(PATIENT_LABEL).getEnabledFieldNames());
+        // version information is always included by clients, and always accepted
+        accepted.add(VersionsController.getEnablingFieldName());
+        return accepted;
+    }
+
+    /**
+     * Checks that all the fields declared by the client are enabled in this server's patient form, as advertised in
+     * the {@link #getConfiguration() configuration response}.
+     */
+    private boolean areAcceptedFields(JSONArray fields, Set<String> accepted)
+    {
+        for (Object field : fields) {
+            if (!accepted.contains(String.valueOf(field))) {
+                this.logger.debug("Field [{}] is not accepted", field);
+                return false;
+            }
         }
+        return true;
+    }
+
+    /**
+     * Checks that the received patient JSON only holds data for the fields enabled in this server's patient form. The
+     * JSON is read over the patient template, using the same serializers that import it, and written back restricted
+     * to the accepted fields. Reading doesn't change the template document, so it is neither copied nor saved. Only
+     * when some received keys are missing from the restricted output is the data written back in full, to tell the
+     * keys written only for fields that are not accepted, which reject the record, from the keys that no serializer
+     * writes, which are ignored on import anyway.
+     */
+    private boolean isAcceptedData(JSONObject patientData, Set<String> accepted, XWikiContext context)
+        throws Exception
+    {
+        XWikiDocument template = (XWikiDocument) this.bridge.getDocument(new DocumentReference(context.getWikiId(),
+            Constants.CODE_SPACE, PhenoTipsPatient.TEMPLATE_REFERENCE.getName()));
+        PhenoTipsPatient received = new PhenoTipsPatient(template);
+        received.readFromJSON(patientData);
+        Set<String> allowed = received.toJSON(accepted).keySet();
+        Set<String> written = null;
+        for (String key : patientData.keySet()) {
+            if (allowed.contains(key) || IGNORED_PATIENT_KEYS.contains(key)) {
+                continue;
+            }
+            if (written == null) {
+                written = received.toJSON().keySet();
+            }
+            if (written.contains(key)) {
+                this.logger.debug("Patient data [{}] is not accepted", key);
+                return false;
+            }
+        }
+        return true;
     }
 
     private boolean areConsentsRequired(String clientProtocolVersion)
@@ -578,14 +784,13 @@ private boolean areConsentsRequired(String clientProtocolVersion)
     }
 
     /**
-     * Exctacts the list of granted consents from a request
+     * Exctacts the list of granted consents from the received patient state
      *
-     * @param rawPatientState patient state JSON string directly from the {@link Request} object
+     * @param patientState patient state JSON, as received in the request
      */
-    private Set<String> extractConsents(String rawPatientState)
+    private Set<String> extractConsents(JSONObject patientState)
     {
         Set<String> consents = new HashSet<>();
-        JSONObject patientState = this.patientStateToJson(rawPatientState);
         if (patientState != null) {
             try {
                 JSONArray consentsJson =
@@ -649,6 +854,8 @@ public JSONObject getConfiguration()
             response.put(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_UPDATESENABLED, true);
             response.put(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_CONSENTS,
                 this.consentManager.toJSON(this.consentManager.getSystemConsents()));
+            response.put(ShareProtocol.SERVER_JSON_GETINFO_KEY_NAME_CAPABILITIES,
+                Collections.singletonList(ShareProtocol.CAPABILITY_BATCH_PUSH));
 
             BaseObject serverConfig = getSourceServerConfiguration(request.getRemoteAddr(), context); // TODO: make nice
             if (this.userTokensEnabled(serverConfig)) {
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.receive.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads an {@code application/x-www-form-urlencoded} value, decoding it while it is read, like
+ * {@link java.net.URLDecoder#decode(String, String)} does with UTF-8, but without building the whole decoded string.
+ * This allows parsing a large pushed patient JSON straight from the request parameter.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class URLDecodingReader extends Reader
+{
+    /** How many escaped bytes are decoded at once, at most, rounded up to the end of the current character. */
+    private static final int MAX_ESCAPED_BYTES = 1024;
+
+    private static final int HEX = 16;
+
+    /** The mask selecting the bits that identify a UTF-8 continuation byte. */
+    private static final int CONTINUATION_MASK = 0xC0;
+
+    /** The value of the identifying bits of a UTF-8 continuation byte. */
+    private static final int CONTINUATION = 0x80;
+
+    private final CharSequence encoded;
+
+    private int position;
+
+    /** Characters decoded from escaped bytes, not read yet. */
+    private CharBuffer decoded = CharBuffer.allocate(0);
+
+    /**
+     * Simple constructor.
+     *
+     * @param encoded the encoded value
+     */
+    public URLDecodingReader(CharSequence encoded)
+    {
+        this.encoded = encoded;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+        int count = 0;
+        while (count < len) {
+            if (this.decoded.hasRemaining()) {
+                cbuf[off + count++] = this.decoded.get();
+            } else if (this.position >= this.encoded.length()) {
+                break;
+            } else if (this.encoded.charAt(this.position) == '%') {
+                this.decoded = decodeEscapedBytes();
+            } else {
+                char c = this.encoded.charAt(this.position++);
+                cbuf[off + count++] = c == '+' ? ' ' : c;
+            }
+        }
+        return count == 0 && len > 0 ? -1 : count;
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing to close, the encoded value is kept in memory by its owner
+    }
+
+    /**
+     * Decodes a run of consecutive {@code %xy} escapes, which together encode UTF-8 characters.
+     *
+     * @return the decoded characters
+     * @throws IOException if an escape is incomplete or not hexadecimal
+     */
+    private CharBuffer decodeEscapedBytes() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (this.position < this.encoded.length() && this.encoded.charAt(this.position) == '%') {
+            if (this.position + 2 >= this.encoded.length()) {
+                throw new IOException("Incomplete escape sequence at position " + this.position);
+            }
+            int high = Character.digit(this.encoded.charAt(this.position + 1), HEX);
+            int low = Character.digit(this.encoded.charAt(this.position + 2), HEX);
+            if (high < 0 || low < 0) {
+                throw new IOException("Invalid escape sequence at position " + this.position);
+            }
+            int value = high * HEX + low;
+            // Long runs are decoded in chunks, without splitting a character
+            if (bytes.size() >= MAX_ESCAPED_BYTES && (value & CONTINUATION_MASK) != CONTINUATION) {
+                break;
+            }
+            bytes.write(value);
+            this.position += 3;
+        }
+        return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.receive.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.configuration.RecordConfiguration;
+import org.phenotips.configuration.RecordConfigurationManager;
+import org.phenotips.consents.internal.ConsentAuthorizer;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.data.PatientDataController;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.internal.EntityAccessManager;
+import org.phenotips.data.receive.ReceivePatientData;
+import org.phenotips.data.securestorage.LocalLoginToken;
+import org.phenotips.data.securestorage.SecureStorageManager;
+import org.phenotips.data.shareprotocol.BatchPushWriter;
+import org.phenotips.data.shareprotocol.ShareProtocol;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.inject.Provider;
+import javax.servlet.ServletInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.web.XWikiRequest;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the patient push handling in {@link DefaultReceivePatientData}.
+ *
+ * @version $Id$
+ */
+public class DefaultReceivePatientDataTest
+{
+    private static final String USER = "padams";
+
+    private static final String TOKEN = "token";
+
+    private static final String ADDRESS = "127.0.0.1";
+
+    /** Enabled in the patient form, and thus accepted. */
+    private static final String ACCEPTED = "external_id";
+
+    /** Known to the serializers, but not enabled in the patient form. */
+    private static final String REJECTED = "genes";
+
+    @Rule
+    public final MockitoComponentMockingRule<ReceivePatientData> mocker =
+        new MockitoComponentMockingRule<>(DefaultReceivePatientData.class);
+
+    private XWikiContext context;
+
+    private XWikiRequest request;
+
+    private PatientRepository repository;
+
+    private Patient patient;
+
+    /** The content of the last batch written by the test. */
+    private ByteArrayOutputStream body;
+
+    private XWikiDocument template;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.context = mock(XWikiContext.class);
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, this.context);
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(executionContext);
+
+        this.request = mock(XWikiRequest.class);
+        when(this.context.getRequest()).thenReturn(this.request);
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        when(this.request.getRemoteAddr()).thenReturn(ADDRESS);
+        when(this.request.getHeader("Content-Encoding")).thenReturn("gzip");
+
+        XWiki xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getDocument(any(DocumentReference.class), eq(this.context))).thenReturn(mock(XWikiDocument.class));
+
+        LocalLoginToken token = mock(LocalLoginToken.class);
+        when(token.getLoginToken()).thenReturn(TOKEN);
+        when(this.mocker.<SecureStorageManager>getInstance(SecureStorageManager.class).getLocalLoginToken(USER,
+            ADDRESS)).thenReturn(token);
+
+        User user = mock(User.class);
+        when(user.getProfileDocument()).thenReturn(new DocumentReference("xwiki", "XWiki", USER));
+        when(this.mocker.<UserManager>getInstance(UserManager.class).getUser(USER)).thenReturn(user);
+
+        RecordConfiguration configuration = mock(RecordConfiguration.class);
+        when(this.mocker.<RecordConfigurationManager>getInstance(RecordConfigurationManager.class)
+            .getConfiguration("patient")).thenReturn(configuration);
+        when(configuration.getEnabledFieldNames()).thenReturn(Collections.singletonList(ACCEPTED));
+
+        when(this.mocker.<ConsentAuthorizer>getInstance(ConsentAuthorizer.class)
+            .authorizeInteraction(Matchers.<Set<String>>any())).thenReturn(true);
+
+        setUpSerializers();
+
+        this.repository = this.mocker.getInstance(PatientRepository.class);
+        this.patient = mock(Patient.class);
+        XWikiDocument patientDocument = mock(XWikiDocument.class);
+        BaseObject patientObject = mock(BaseObject.class);
+        when(this.patient.getId()).thenReturn("P0000001");
+        when(this.patient.getXDocument()).thenReturn(patientDocument);
+        when(patientDocument.getXObject(Patient.CLASS_REFERENCE)).thenReturn(patientObject);
+        when(patientObject.getGuid()).thenReturn("4ac1e8f3-guid");
+        when(this.repository.create(user.getProfileDocument())).thenReturn(this.patient);
+    }
+
+    /**
+     * Two serializers, one for an accepted field and one for a field that is not enabled in the patient form, each
+     * writing its own key only when the corresponding field is selected.
+     */
+    private void setUpSerializers() throws Exception
+    {
+        this.template = mock(XWikiDocument.class);
+        when(this.mocker.<DocumentAccessBridge>getInstance(DocumentAccessBridge.class)
+            .getDocument(new DocumentReference("xwiki", "PhenoTips", "PatientTemplate"))).thenReturn(this.template);
+        when(this.template.getXObject(Patient.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+        when(this.template.getDocumentReference())
+            .thenReturn(new DocumentReference("xwiki", "PhenoTips", "PatientTemplate"));
+
+        ComponentManager componentManager = mock(ComponentManager.class);
+        when(componentManager.getInstanceList(PatientDataController.class))
+            .thenReturn(Arrays.asList(serializer(ACCEPTED), serializer(REJECTED)));
+        @SuppressWarnings("unchecked")
+        Provider<ComponentManager> provider = mock(Provider.class);
+        when(provider.get()).thenReturn(componentManager);
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", provider);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PatientDataController<String> serializer(String field)
+    {
+        PatientDataController<String> serializer = mock(PatientDataController.class);
+        when(serializer.getName()).thenReturn(field);
+        PatientData<String> data = mock(PatientData.class);
+        when(data.getName()).thenReturn(field);
+        when(serializer.readJSON(any(JSONObject.class)))
+            .thenAnswer(invocation -> ((JSONObject) invocation.getArguments()[0]).has(field) ? data : null);
+        doAnswer(invocation -> {
+            Patient target = (Patient) invocation.getArguments()[0];
+            Collection<String> selected = (Collection<String>) invocation.getArguments()[2];
+            if (target.getData(field) != null && (selected == null || selected.contains(field))) {
+                ((JSONObject) invocation.getArguments()[1]).put(field, "value");
+            }
+            return null;
+        }).when(serializer).writeJSON(any(Patient.class), any(JSONObject.class), Matchers.<Collection<String>>any());
+        return serializer;
+    }
+
+    @Test
+    public void acceptedPatientsAreImported() throws Exception
+    {
+        BatchPushWriter batch = batch(header());
+        batch.write("R1", new JSONObject().put(ACCEPTED, "E1"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS);
+        Assert.assertEquals(1, results.length());
+        JSONObject result = results.getJSONObject(0);
+        Assert.assertEquals("R1", result.getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+        Assert.assertTrue(result.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertEquals("P0000001", result.getString(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_PATIENTID));
+        Assert.assertEquals("4ac1e8f3-guid", result.getString(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_PATIENTGUID));
+        verify(this.patient).updateFromJSON(any(JSONObject.class));
+        // the owner is stored with the patient data, in a single save
+        verify(this.mocker.<EntityAccessManager>getInstance(EntityAccessManager.class)).setOwner(this.patient,
+            new DocumentReference("xwiki", "XWiki", USER), false);
+        verify(this.context.getWiki(), never()).saveDocument(any(XWikiDocument.class), any(String.class),
+            Matchers.anyBoolean(), eq(this.context));
+    }
+
+    @Test
+    public void patientsBeyondTheBatchLimitAreRejected() throws Exception
+    {
+        BatchPushWriter batch = batch(header());
+        for (int i = 0; i < ShareProtocol.BATCH_MAX_RECORDS + 2; ++i) {
+            batch.write("R" + i, new JSONObject().put(ACCEPTED, "E" + i), null, null);
+        }
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS);
+        Assert.assertEquals(ShareProtocol.BATCH_MAX_RECORDS + 2, results.length());
+        for (int i = 0; i < results.length(); ++i) {
+            JSONObject result = results.getJSONObject(i);
+            Assert.assertEquals("R" + i, result.getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+            Assert.assertEquals(i < ShareProtocol.BATCH_MAX_RECORDS,
+                result.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        }
+        verify(this.repository, times(ShareProtocol.BATCH_MAX_RECORDS)).create(any(DocumentReference.class));
+    }
+
+    @Test
+    public void patientsWithDataForFieldsThatAreNotAcceptedAreRejected() throws Exception
+    {
+        // no fields declared in the header, only the patient data itself tells what is being pushed
+        BatchPushWriter batch = batch(header());
+        batch.write("R1", new JSONObject().put(ACCEPTED, "E1").put(REJECTED, "G1"), null, null);
+        batch.write("R2", new JSONObject().put(ACCEPTED, "E2").put("unknown", "ignored"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS);
+        Assert.assertFalse(results.getJSONObject(0).getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(results.getJSONObject(0).getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_ACTIONFAILED));
+        Assert.assertTrue(results.getJSONObject(1).getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        verify(this.repository, times(1)).create(any(DocumentReference.class));
+        // the received data is only read over the template, which is never copied or changed
+        verify(this.template, never()).clone();
+    }
+
+    @Test
+    public void patientsWithoutDataAreRejected() throws Exception
+    {
+        BatchPushWriter batch = batch(header());
+        batch.write("R1", null, null, null);
+        batch.write("R2", new JSONObject().put(ACCEPTED, "E2"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS);
+        Assert.assertEquals("R1", results.getJSONObject(0).getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+        Assert.assertFalse(results.getJSONObject(0).getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(results.getJSONObject(1).getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+    }
+
+    @Test
+    public void batchesDeclaringFieldsThatAreNotAcceptedAreRejected() throws Exception
+    {
+        JSONObject header = header();
+        header.put(ShareProtocol.CLIENT_BATCH_KEY_NAME_FIELDS, Arrays.asList(ACCEPTED, REJECTED));
+        BatchPushWriter batch = batch(header);
+        batch.write("R1", new JSONObject().put(ACCEPTED, "E1"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        Assert.assertFalse(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_ACTIONFAILED));
+        Assert.assertFalse(response.has(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS));
+        verify(this.repository, never()).create(any(DocumentReference.class));
+    }
+
+    @Test
+    public void batchesWithWrongCredentialsAreRejected() throws Exception
+    {
+        JSONObject header = header();
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN, "wrong");
+        BatchPushWriter batch = batch(header);
+        batch.write("R1", new JSONObject().put(ACCEPTED, "E1"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        Assert.assertFalse(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_LOGINFAILED));
+        Assert.assertFalse(response.has(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_RESULTS));
+        verify(this.repository, never()).create(any(DocumentReference.class));
+    }
+
+    @Test
+    public void batchesWithAnIncompatibleProtocolVersionAreRejected() throws Exception
+    {
+        JSONObject header = header();
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER, "0.1");
+        BatchPushWriter batch = batch(header);
+        batch.write("R1", new JSONObject().put(ACCEPTED, "E1"), null, null);
+        send(batch);
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        Assert.assertFalse(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_PROTOCOLFAILED));
+        verify(this.repository, never()).create(any(DocumentReference.class));
+    }
+
+    @Test
+    public void singlePatientPushesAreDecodedWhileParsed() throws Exception
+    {
+        JSONObject header = header();
+        for (String key : header.keySet()) {
+            when(this.request.getParameter(key)).thenReturn(header.getString(key));
+        }
+        JSONObject data = new JSONObject().put(ACCEPTED, "Ünïcode + \"quotes\" & 100%");
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON))
+            .thenReturn(URLEncoder.encode(data.toString(), "UTF-8"));
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatient();
+
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        ArgumentCaptor<JSONObject> received = ArgumentCaptor.forClass(JSONObject.class);
+        verify(this.patient).updateFromJSON(received.capture());
+        Assert.assertTrue(data.similar(received.getValue()));
+    }
+
+    @Test
+    public void unreadableBatchesAreRejected() throws Exception
+    {
+        when(this.request.getInputStream()).thenReturn(stream("not a batch".getBytes("UTF-8")));
+
+        JSONObject response = this.mocker.getComponentUnderTest().receivePatients();
+
+        Assert.assertFalse(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS));
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_ACTIONFAILED));
+        verify(this.repository, never()).create(any(DocumentReference.class));
+    }
+
+    private JSONObject header()
+    {
+        JSONObject header = new JSONObject();
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER, ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION);
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME, USER);
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN, TOKEN);
+        return header;
+    }
+
+    private BatchPushWriter batch(JSONObject header) throws Exception
+    {
+        this.body = new ByteArrayOutputStream();
+        return new BatchPushWriter(this.body, header);
+    }
+
+    private void send(BatchPushWriter batch) throws Exception
+    {
+        batch.close();
+        when(this.request.getInputStream()).thenReturn(stream(this.body.toByteArray()));
+    }
+
+    private ServletInputStream stream(byte[] content) throws Exception
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream(content);
+        ServletInputStream result = mock(ServletInputStream.class);
+        when(result.read()).thenAnswer(invocation -> in.read());
+        when(result.read(any(byte[].class))).thenAnswer(invocation -> in.read((byte[]) invocation.getArguments()[0]));
+        when(result.read(any(byte[].class), anyInt(), anyInt())).thenAnswer(invocation -> in.read(
+            (byte[]) invocation.getArguments()[0], (int) invocation.getArguments()[1],
+            (int) invocation.getArguments()[2]));
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.receive.internal;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link URLDecodingReader}.
+ *
+ * @version $Id$
+ */
+public class URLDecodingReaderTest
+{
+    @Test
+    public void decodesLikeTheURLDecoder() throws IOException
+    {
+        String value = "{\"name\": \"Ünïcode + spaces & 100% 𝄞 漢字\"}";
+        String encoded = URLEncoder.encode(value, "UTF-8");
+
+        Assert.assertEquals(value, read(encoded));
+        Assert.assertEquals(URLDecoder.decode("a+b%20c+%2B", "UTF-8"), read("a+b%20c+%2B"));
+    }
+
+    @Test
+    public void unescapedCharactersAreKept() throws IOException
+    {
+        Assert.assertEquals("{\"é\": 1}", read("{\"é\":+1}"));
+    }
+
+    @Test
+    public void longEscapedRunsAreDecodedWithoutSplittingCharacters() throws IOException
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            value.append("é€𝄞");
+        }
+
+        Assert.assertEquals(value.toString(), read(URLEncoder.encode(value.toString(), "UTF-8")));
+    }
+
+    @Test(expected = IOException.class)
+    public void incompleteEscapesAreRejected() throws IOException
+    {
+        read("abc%2");
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidEscapesAreRejected() throws IOException
+    {
+        read("abc%2G");
+    }
+
+    @Test
+    public void emptyValuesAreEmpty() throws IOException
+    {
+        try (Reader reader = new URLDecodingReader("")) {
+            Assert.assertEquals(-1, reader.read());
+        }
+    }
+
+    private String read(String encoded) throws IOException
+    {
+        StringBuilder result = new StringBuilder();
+        char[] buffer = new char[7];
+        try (Reader reader = new URLDecodingReader(encoded)) {
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                result.append(buffer, 0, count);
+            }
+        }
+        return result.toString();
+    }
+}
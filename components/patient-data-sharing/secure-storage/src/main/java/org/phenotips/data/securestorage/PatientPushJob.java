@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.securestorage;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+/**
+ * A request to push a patient to a remote server, waiting in the outbound push queue or already processed.
+ * <p>
+ * There is at most one waiting job for a given patient and server: queueing the patient again updates the waiting job
+ * instead of adding a new one, since the patient data is only serialized when the job is sent.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Entity
+public class PatientPushJob
+{
+    /** Status of a job waiting to be sent, either for the first time or after a failed attempt. */
+    public static final String STATUS_QUEUED = "queued";
+
+    /** Status of a job being sent. */
+    public static final String STATUS_RUNNING = "running";
+
+    /** Status of a job successfully pushed. */
+    public static final String STATUS_DONE = "done";
+
+    /** Status of a job rejected by the remote server, or which failed too many times. */
+    public static final String STATUS_FAILED = "failed";
+
+    private static final int MAX_ERROR_LENGTH = 255;
+
+    @Id
+    @GeneratedValue
+    private long id;
+
+    @Column(nullable = false)
+    private String localUser; // reference to the user who queued the push, whose rights and remote login token are used
+
+    @Column(nullable = false)
+    private String localPatientID;
+
+    @Column(nullable = false)
+    private String remoteServerName;
+
+    @Lob
+    private String exportFields; // JSON array, or null to push all the fields
+
+    @Lob
+    private String patientState; // JSON object
+
+    private String groupName;
+
+    @Column(nullable = false)
+    private String status;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(nullable = false)
+    private Timestamp queuedTime; // last time this patient was queued for this server; finished jobs expire after it
+
+    @Column(nullable = false)
+    private Timestamp nextAttemptTime; // the job is not sent before this time
+
+    private String lastError;
+
+    /** Default constructor used by Hibernate. */
+    protected PatientPushJob()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Used by the SecureStorageManager.
+     */
+    public PatientPushJob(String localUser, String localPatientID, String remoteServerName)
+    {
+        this.localUser = localUser;
+        this.localPatientID = localPatientID;
+        this.remoteServerName = remoteServerName;
+    }
+
+    /**
+     * Sets the parameters of the push and (re)sets the job as queued, to be sent as soon as possible.
+     */
+    public void requeue(String localUser, String exportFields, String patientState, String groupName)
+    {
+        this.localUser = localUser;
+        this.exportFields = exportFields;
+        this.patientState = patientState;
+        this.groupName = groupName;
+        this.status = STATUS_QUEUED;
+        this.attempts = 0;
+        this.lastError = null;
+        this.queuedTime = new Timestamp(System.currentTimeMillis());
+        this.nextAttemptTime = this.queuedTime;
+    }
+
+    public long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the serialized reference of the user who queued the push
+     */
+    public String getLocalUser()
+    {
+        return this.localUser;
+    }
+
+    public String getLocalPatientID()
+    {
+        return this.localPatientID;
+    }
+
+    public String getRemoteServerName()
+    {
+        return this.remoteServerName;
+    }
+
+    public String getExportFields()
+    {
+        return this.exportFields;
+    }
+
+    public String getPatientState()
+    {
+        return this.patientState;
+    }
+
+    public String getGroupName()
+    {
+        return this.groupName;
+    }
+
+    public String getStatus()
+    {
+        return this.status;
+    }
+
+    public void setStatus(String status)
+    {
+        this.status = status;
+    }
+
+    public int getAttempts()
+    {
+        return this.attempts;
+    }
+
+    public Timestamp getQueuedTime()
+    {
+        return this.queuedTime;
+    }
+
+    public Timestamp getNextAttemptTime()
+    {
+        return this.nextAttemptTime;
+    }
+
+    /**
+     * Records a failed attempt; the job stays queued, and will be sent again after the given delay.
+     */
+    public void retryLater(long delayInMilliseconds, String error)
+    {
+        ++this.attempts;
+        this.status = STATUS_QUEUED;
+        this.nextAttemptTime = new Timestamp(System.currentTimeMillis() + delayInMilliseconds);
+        setLastError(error);
+    }
+
+    /**
+     * Records a final failure; the job won't be sent again unless the patient is queued again.
+     */
+    public void fail(String error)
+    {
+        ++this.attempts;
+        this.status = STATUS_FAILED;
+        setLastError(error);
+    }
+
+    public String getLastError()
+    {
+        return this.lastError;
+    }
+
+    private void setLastError(String error)
+    {
+        this.lastError = error == null || error.length() <= MAX_ERROR_LENGTH ? error
+            : error.substring(0, MAX_ERROR_LENGTH);
+    }
+}
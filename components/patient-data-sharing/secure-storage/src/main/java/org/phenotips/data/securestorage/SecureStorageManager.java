@@ -19,6 +19,9 @@
 
 import org.xwiki.component.annotation.Role;
 
+import java.sql.Timestamp;
+import java.util.List;
+
 /**
  * Used to store data in a way inaccessible from any of the wiki pages by regular users without programming rights.
  * <p>
@@ -54,4 +57,30 @@ void storePatientPushInfo(String localPatientID, String remoteServerName,
 
     // null if never pushed to the given server
     PatientPushedToInfo getPatientPushInfo(String localPatientID, String remoteServerName);
+
+    // queues a push of the patient to the remote server, updating the job already waiting for the same patient and
+    // server, if any; the user is the serialized reference of the user queueing the push; returns the queued job,
+    // or null if it couldn't be stored
+    PatientPushJob queuePatientPushJob(String localUser, String localPatientID, String remoteServerName,
+        String exportFields, String patientState, String groupName);
+
+    // marks as running, and returns, up to maxJobs queued jobs for the remote server which are due, oldest first
+    List<PatientPushJob> claimPatientPushJobs(String remoteServerName, int maxJobs);
+
+    void updatePatientPushJob(PatientPushJob job);
+
+    // all the jobs for the patient, one per server unless a new push was queued while another one was running
+    List<PatientPushJob> getPatientPushJobs(String localPatientID);
+
+    // the number of queued and running jobs for the remote server
+    long countPendingPatientPushJobs(String remoteServerName);
+
+    // null if there are no queued jobs for the remote server
+    Timestamp getNextPatientPushJobTime(String remoteServerName);
+
+    // queues again the jobs left running when the server was stopped, and returns the servers having queued jobs
+    List<String> resumePatientPushJobs();
+
+    // deletes the done and failed jobs last queued before the given time, and returns the number of deleted jobs
+    int deleteFinishedPatientPushJobs(Timestamp queuedBefore);
 }
@@ -18,6 +18,7 @@
 package org.phenotips.data.securestorage.internal;
 
 import org.phenotips.data.securestorage.LocalLoginToken;
+import org.phenotips.data.securestorage.PatientPushJob;
 import org.phenotips.data.securestorage.PatientPushedToInfo;
 import org.phenotips.data.securestorage.PatientSourceServerInfo;
 import org.phenotips.data.securestorage.RemoteLoginData;
@@ -25,12 +26,19 @@
 
 import org.xwiki.component.annotation.Component;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.slf4j.Logger;
 
@@ -46,6 +54,20 @@
 @Singleton
 public class DefaultSecureStorageManager implements SecureStorageManager
 {
+    private static final String PATIENT_ID = "localPatientID";
+
+    private static final String SERVER_NAME = "remoteServerName";
+
+    private static final String STATUS = "status";
+
+    private static final String NEXT_ATTEMPT_TIME = "nextAttemptTime";
+
+    /**
+     * Guards the push queue: jobs are only claimed and superseded while holding this lock, so that a waiting job is
+     * never updated after a worker started sending it.
+     */
+    private final Object pushQueueLock = new Object();
+
     /** Handles persistence. */
     @Inject
     private HibernateSessionFactory sessionFactory;
@@ -308,4 +330,226 @@ public PatientPushedToInfo getPatientPushInfo(String localPatientID, String remo
             remoteServerName);
         return data;
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public PatientPushJob queuePatientPushJob(String localUser, String localPatientID, String remoteServerName,
+        String exportFields, String patientState, String groupName)
+    {
+        if (localUser == null || localPatientID == null || remoteServerName == null) {
+            return null;
+        }
+
+        synchronized (this.pushQueueLock) {
+            Session session = this.sessionFactory.getSessionFactory().openSession();
+            Transaction t = session.beginTransaction();
+            try {
+                t.begin();
+                // a job still waiting to be sent can be reused, since patient data is only serialized when sending;
+                // running and finished jobs are kept as they are, to preserve the push history
+                List<PatientPushJob> existing = session.createCriteria(PatientPushJob.class)
+                    .add(Restrictions.eq(PATIENT_ID, localPatientID))
+                    .add(Restrictions.eq(SERVER_NAME, remoteServerName))
+                    .add(Restrictions.eq(STATUS, PatientPushJob.STATUS_QUEUED))
+                    .addOrder(Order.asc("id"))
+                    .list();
+                PatientPushJob job;
+                if (existing.isEmpty()) {
+                    job = new PatientPushJob(localUser, localPatientID, remoteServerName);
+                    job.requeue(localUser, exportFields, patientState, groupName);
+                    session.save(job);
+                } else {
+                    job = existing.get(0);
+                    this.logger.debug("Superseding push job for [{}] to [{}]", localPatientID, remoteServerName);
+                    job.requeue(localUser, exportFields, patientState, groupName);
+                    session.update(job);
+                    for (PatientPushJob duplicate : existing.subList(1, existing.size())) {
+                        session.delete(duplicate);
+                    }
+                }
+                t.commit();
+                return job;
+            } catch (HibernateException ex) {
+                this.logger.error("Error queueing push of [{}] to [{}]: [{}]", localPatientID, remoteServerName, ex);
+                if (t != null) {
+                    t.rollback();
+                }
+            } finally {
+                session.close();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PatientPushJob> claimPatientPushJobs(String remoteServerName, int maxJobs)
+    {
+        synchronized (this.pushQueueLock) {
+            Session session = this.sessionFactory.getSessionFactory().openSession();
+            Transaction t = session.beginTransaction();
+            try {
+                t.begin();
+                List<PatientPushJob> jobs = session.createCriteria(PatientPushJob.class)
+                    .add(Restrictions.eq(SERVER_NAME, remoteServerName))
+                    .add(Restrictions.eq(STATUS, PatientPushJob.STATUS_QUEUED))
+                    .add(Restrictions.le(NEXT_ATTEMPT_TIME, new Timestamp(System.currentTimeMillis())))
+                    .addOrder(Order.asc(NEXT_ATTEMPT_TIME))
+                    .setMaxResults(maxJobs)
+                    .list();
+                for (PatientPushJob job : jobs) {
+                    job.setStatus(PatientPushJob.STATUS_RUNNING);
+                    session.update(job);
+                }
+                t.commit();
+                return jobs;
+            } catch (HibernateException ex) {
+                this.logger.error("Error getting queued pushes to [{}]: [{}]", remoteServerName, ex);
+                if (t != null) {
+                    t.rollback();
+                }
+            } finally {
+                session.close();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void updatePatientPushJob(PatientPushJob job)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            t.begin();
+            session.update(job);
+            t.commit();
+        } catch (HibernateException ex) {
+            this.logger.error("Error updating push job for [{}]: [{}]", job.getLocalPatientID(), ex);
+            if (t != null) {
+                t.rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PatientPushJob> getPatientPushJobs(String localPatientID)
+    {
+        if (localPatientID == null) {
+            return Collections.emptyList();
+        }
+
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            return session.createCriteria(PatientPushJob.class)
+                .add(Restrictions.eq(PATIENT_ID, localPatientID))
+                .addOrder(Order.asc("id"))
+                .list();
+        } catch (HibernateException ex) {
+            this.logger.error("Error getting push jobs for [{}]: [{}]", localPatientID, ex);
+        } finally {
+            session.close();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public long countPendingPatientPushJobs(String remoteServerName)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Number count = (Number) session.createCriteria(PatientPushJob.class)
+                .add(Restrictions.eq(SERVER_NAME, remoteServerName))
+                .add(Restrictions.in(STATUS, new Object[] { PatientPushJob.STATUS_QUEUED,
+                    PatientPushJob.STATUS_RUNNING }))
+                .setProjection(Projections.rowCount())
+                .uniqueResult();
+            return count == null ? 0 : count.longValue();
+        } catch (HibernateException ex) {
+            this.logger.error("Error counting push jobs for [{}]: [{}]", remoteServerName, ex);
+        } finally {
+            session.close();
+        }
+        return 0;
+    }
+
+    @Override
+    public Timestamp getNextPatientPushJobTime(String remoteServerName)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            return (Timestamp) session.createCriteria(PatientPushJob.class)
+                .add(Restrictions.eq(SERVER_NAME, remoteServerName))
+                .add(Restrictions.eq(STATUS, PatientPushJob.STATUS_QUEUED))
+                .setProjection(Projections.min(NEXT_ATTEMPT_TIME))
+                .uniqueResult();
+        } catch (HibernateException ex) {
+            this.logger.error("Error getting the next push job for [{}]: [{}]", remoteServerName, ex);
+        } finally {
+            session.close();
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> resumePatientPushJobs()
+    {
+        synchronized (this.pushQueueLock) {
+            Session session = this.sessionFactory.getSessionFactory().openSession();
+            Transaction t = session.beginTransaction();
+            try {
+                t.begin();
+                List<PatientPushJob> interrupted = session.createCriteria(PatientPushJob.class)
+                    .add(Restrictions.eq(STATUS, PatientPushJob.STATUS_RUNNING))
+                    .list();
+                for (PatientPushJob job : interrupted) {
+                    job.setStatus(PatientPushJob.STATUS_QUEUED);
+                    session.update(job);
+                }
+                List<String> servers = session.createCriteria(PatientPushJob.class)
+                    .add(Restrictions.eq(STATUS, PatientPushJob.STATUS_QUEUED))
+                    .setProjection(Projections.distinct(Projections.property(SERVER_NAME)))
+                    .list();
+                t.commit();
+                return new ArrayList<>(servers);
+            } catch (HibernateException ex) {
+                this.logger.error("Error resuming push jobs: [{}]", ex);
+                if (t != null) {
+                    t.rollback();
+                }
+            } finally {
+                session.close();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int deleteFinishedPatientPushJobs(Timestamp queuedBefore)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            t.begin();
+            int deleted = session.createQuery("delete from PatientPushJob where status in (:statuses)"
+                + " and queuedTime < :queuedBefore")
+                .setParameterList("statuses", new Object[] { PatientPushJob.STATUS_DONE, PatientPushJob.STATUS_FAILED })
+                .setTimestamp("queuedBefore", queuedBefore)
+                .executeUpdate();
+            t.commit();
+            return deleted;
+        } catch (HibernateException ex) {
+            this.logger.error("Error deleting finished push jobs: [{}]", ex);
+            if (t != null) {
+                t.rollback();
+            }
+        } finally {
+            session.close();
+        }
+        return 0;
+    }
 }
@@ -18,6 +18,7 @@
 package org.phenotips.data.securestorage.internal;
 
 import org.phenotips.data.securestorage.LocalLoginToken;
+import org.phenotips.data.securestorage.PatientPushJob;
 import org.phenotips.data.securestorage.PatientPushedToInfo;
 import org.phenotips.data.securestorage.PatientSourceServerInfo;
 import org.phenotips.data.securestorage.RemoteLoginData;
@@ -72,5 +73,6 @@ public void onEvent(Event event, Object source, Object data)
         this.sessionFactory.getConfiguration().addAnnotatedClass(RemoteLoginData.class);
         this.sessionFactory.getConfiguration().addAnnotatedClass(PatientSourceServerInfo.class);
         this.sessionFactory.getConfiguration().addAnnotatedClass(PatientPushedToInfo.class);
+        this.sessionFactory.getConfiguration().addAnnotatedClass(PatientPushJob.class);
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.shareprotocol;
+
+import org.xwiki.stability.Unstable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads the body of a {@link ShareProtocol#CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH batch push} request, as written by
+ * {@link BatchPushWriter}. Patients are parsed one at a time, directly from the stream, so only one patient is kept in
+ * memory; records longer than a maximum length are skipped without being buffered.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public class BatchPushReader implements Closeable
+{
+    private final BufferedReader reader;
+
+    private final int maxRecordLength;
+
+    private final JSONObject header;
+
+    /** Thrown when a record is longer than allowed; only used internally to unwind the JSON parser. */
+    private static final class RecordTooLongException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        RecordTooLongException()
+        {
+            super("Patient record too long");
+        }
+    }
+
+    /**
+     * Counts the characters of the current record, and stops reading when it gets too long. Supports marking, so that
+     * the JSON parser reads from it directly instead of buffering ahead into the next record.
+     */
+    private final class RecordReader extends Reader
+    {
+        private int length;
+
+        @Override
+        public int read() throws IOException
+        {
+            if (++this.length > BatchPushReader.this.maxRecordLength) {
+                throw new RecordTooLongException();
+            }
+            return BatchPushReader.this.reader.read();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int c = read();
+            if (c < 0) {
+                return -1;
+            }
+            cbuf[off] = (char) c;
+            return 1;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException
+        {
+            BatchPushReader.this.reader.mark(readAheadLimit);
+        }
+
+        @Override
+        public void reset() throws IOException
+        {
+            BatchPushReader.this.reader.reset();
+            --this.length;
+        }
+
+        @Override
+        public void close()
+        {
+            // The underlying reader is closed with the batch
+        }
+    }
+
+    /**
+     * Starts reading a batch, and reads its header.
+     *
+     * @param in the request body; it is closed when this reader is closed
+     * @param compressed whether the body is gzip-compressed, as indicated by its {@code Content-Encoding}
+     * @throws IOException if the body cannot be read, or doesn't start with a valid header
+     */
+    public BatchPushReader(InputStream in, boolean compressed) throws IOException
+    {
+        this(in, compressed, ShareProtocol.BATCH_MAX_RECORD_LENGTH);
+    }
+
+    /**
+     * Starts reading a batch, and reads its header.
+     *
+     * @param in the request body; it is closed when this reader is closed
+     * @param compressed whether the body is gzip-compressed, as indicated by its {@code Content-Encoding}
+     * @param maxRecordLength the maximum length of a record, in characters
+     * @throws IOException if the body cannot be read, or doesn't start with a valid header
+     */
+    public BatchPushReader(InputStream in, boolean compressed, int maxRecordLength) throws IOException
+    {
+        this.reader = new BufferedReader(
+            new InputStreamReader(compressed ? new GZIPInputStream(in) : in, StandardCharsets.UTF_8));
+        this.maxRecordLength = maxRecordLength;
+        this.header = next();
+        if (this.header == null) {
+            throw new IOException("Empty patient batch");
+        } else if (this.header.length() == 0) {
+            throw new IOException("Patient batch header too long");
+        }
+    }
+
+    /**
+     * @return the request header, holding the protocol version, the credentials and the optional group name
+     */
+    public JSONObject getHeader()
+    {
+        return this.header;
+    }
+
+    /**
+     * Reads the next patient from the batch.
+     *
+     * @return the next patient record, holding the patient data, state, GUID and record identifier, or {@code null}
+     *         if there are no more patients; a record longer than the maximum length is skipped, and returned as an
+     *         empty object, without a record identifier
+     * @throws IOException if the body cannot be read, or the next line is not a valid JSON object
+     */
+    public JSONObject next() throws IOException
+    {
+        int c;
+        do {
+            this.reader.mark(1);
+            c = this.reader.read();
+        } while (c >= 0 && Character.isWhitespace(c));
+        if (c < 0) {
+            return null;
+        }
+        this.reader.reset();
+
+        try {
+            JSONObject result = new JSONObject(new JSONTokener(new RecordReader()));
+            // Only whitespace may follow the record on its line
+            while ((c = this.reader.read()) >= 0 && c != '\n') {
+                if (!Character.isWhitespace(c)) {
+                    throw new IOException("Invalid patient batch line: unexpected content after the record");
+                }
+            }
+            return result;
+        } catch (JSONException ex) {
+            if (ex.getCause() instanceof RecordTooLongException) {
+                skipLine();
+                return new JSONObject();
+            }
+            throw new IOException("Invalid patient batch line: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void skipLine() throws IOException
+    {
+        int c;
+        do {
+            c = this.reader.read();
+        } while (c >= 0 && c != '\n');
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.shareprotocol;
+
+import org.xwiki.stability.Unstable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Writes the body of a {@link ShareProtocol#CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH batch push} request: a
+ * gzip-compressed JSON-lines document, starting with a header holding the credentials, followed by one line per
+ * patient. Patients are written as they are added, so only the compressed output is kept in memory.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public class BatchPushWriter implements Closeable
+{
+    private final Writer writer;
+
+    private int count;
+
+    /**
+     * Starts a new batch.
+     *
+     * @param out where to write the compressed batch; it is closed when this writer is closed
+     * @param header the request header, holding the protocol version, the credentials and the optional group name
+     * @throws IOException if writing to the output fails
+     */
+    public BatchPushWriter(OutputStream out, JSONObject header) throws IOException
+    {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8));
+        writeLine(header);
+    }
+
+    /**
+     * Adds a patient to the batch.
+     *
+     * @param recordId an identifier for this patient, unique within the batch, returned with the patient's result
+     * @param patient the patient data, as serialized by {@code Patient#toJSON}
+     * @param patientState the state of the patient record, such as the granted consents, may be {@code null}
+     * @param remoteGUID the GUID of the remote patient to update, or {@code null} to create a new remote patient
+     * @throws IOException if writing to the output fails
+     */
+    public void write(String recordId, JSONObject patient, JSONObject patientState, String remoteGUID)
+        throws IOException
+    {
+        JSONObject record = new JSONObject();
+        record.put(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID, recordId);
+        record.put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON, patient);
+        record.put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE, patientState);
+        record.put(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, remoteGUID);
+        writeLine(record);
+        ++this.count;
+    }
+
+    /**
+     * @return the number of patients written so far
+     */
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Finishes the compressed stream and closes the output.
+     *
+     * @throws IOException if writing to the output fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.writer.close();
+    }
+
+    private void writeLine(JSONObject line) throws IOException
+    {
+        // Serialized JSON never contains raw line breaks, they are always escaped inside strings
+        line.write(this.writer);
+        this.writer.write('\n');
+    }
+}
@@ -93,6 +93,7 @@
     public static final String CLIENT_POST_ACTIONKEY_VALUE_STATE = "get_patient_state";  // get the state of a patient record
     public static final String CLIENT_POST_ACTIONKEY_VALUE_PUSH  = "push";             // push the patient
     public static final String CLIENT_POST_ACTIONKEY_VALUE_GETID = "get_patient_id";   // get remote ID and remote URL of the patient object with the given GUID
+    public static final String CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH = "push_batch";  // push several patients at once, only if the server lists CAPABILITY_BATCH_PUSH
 
     // for the PUSH action the following fields must be set:
     public static final String CLIENT_POST_KEY_NAME_PATIENTJSON  = "patient_json";
@@ -105,6 +106,19 @@
     public static final String CLIENT_POST_KEY_NAME_PATIENTSTATE_CONSENTS = "consents"; // key name which can exist within the patient state JSON
     // for the GETURL action the String CLIENT_POST_KEY_NAME_GUID key must be set
 
+    // for the PUSH_BATCH action the ACTION and PROTOCOLVER keys are sent as URL parameters, and the POST body is a
+    // gzip-compressed (Content-Encoding: gzip) JSON-lines document, see BatchPushWriter:
+    //  - the first line is a JSON object holding the PROTOCOLVER, USERNAME, PASSWORD or USER_TOKEN and GROUPNAME keys
+    //  - each following line is a JSON object holding one patient: PATIENTJSON (as a JSON object, not a string),
+    //    the optional PATIENTSTATE (as a JSON object) and GUID, and a RECORDID chosen by the client
+    public static final String CLIENT_BATCH_CONTENT_TYPE          = "application/x-ndjson";
+    public static final String CLIENT_BATCH_KEY_NAME_RECORDID     = "record_id";
+    public static final int    BATCH_MAX_RECORDS                  = 100;   // patients beyond this limit are rejected
+    public static final int    BATCH_MAX_RECORD_LENGTH            = 16 * 1024 * 1024; // longer lines are skipped and rejected
+    // (optional) the header may list the exported fields; the whole batch is rejected if one of them isn't accepted
+    // by the server, as listed in the get_server_info response
+    public static final String CLIENT_BATCH_KEY_NAME_FIELDS       = "fields";
+
     //=========================================================================
 
     // every server response JSON will include the following fields:
@@ -140,6 +154,10 @@
     public static final String SERVER_JSON_GETINFO_KEY_NAME_CONSENTS       = "consents";
     // (optional) ...and optionally this as well, if enabled on the server:
     public static final String SERVER_JSON_GETINFO_KEY_NAME_USERTOKEN      = "user_login_token";
+    // (optional) ...and the list of optional features supported by the server; older servers don't send it,
+    // and clients must only use the features listed here:
+    public static final String SERVER_JSON_GETINFO_KEY_NAME_CAPABILITIES   = "capabilities";
+    public static final String CAPABILITY_BATCH_PUSH                       = "batch_push_v1";
 
     // response to a PUSH and GETID action requests will include the following fields (iff successful):
     public static final String SERVER_JSON_PUSH_KEY_NAME_PATIENTID   = "patient_id";      // ID of the patient (either updated or newly created)
@@ -147,6 +165,10 @@
     public static final String SERVER_JSON_PUSH_KEY_NAME_PATIENTGUID = "patient_guid";    // GUID of the patient object on the remote server which can be used to link to the
                                                                                           //  patient from the remote server and/or to update the patient later
 
+    // response to a PUSH_BATCH action request will include, iff the batch could be read, one PUSH response per
+    // patient, each with the CLIENT_BATCH_KEY_NAME_RECORDID of the corresponding patient
+    public static final String SERVER_JSON_PUSH_KEY_NAME_RESULTS     = "results";
+
     /**
      * Helper class describing an incompatibility between serializers in two different PhenoTips versions.
      *
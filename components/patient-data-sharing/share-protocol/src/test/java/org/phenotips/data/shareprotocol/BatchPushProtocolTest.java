@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.shareprotocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Round-trip tests for the batch push format, written by {@link BatchPushWriter} and read by {@link BatchPushReader}.
+ *
+ * @version $Id$
+ */
+public class BatchPushProtocolTest
+{
+    @Test
+    public void batchesAreReadBackUnchanged() throws IOException
+    {
+        JSONObject header = new JSONObject();
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER, ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION);
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME, "Doctor");
+        header.put(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN, "token");
+
+        JSONObject state = new JSONObject();
+        state.put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE_CONSENTS, new JSONArray().put("real"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (BatchPushWriter writer = new BatchPushWriter(body, header)) {
+            writer.write("P0000001", patient(1), state, null);
+            writer.write("P0000002", patient(2), null, "4ac1e8f3-guid");
+            Assert.assertEquals(2, writer.getCount());
+        }
+
+        byte[] bytes = body.toByteArray();
+        // gzip magic number
+        Assert.assertEquals((byte) 0x1f, bytes[0]);
+        Assert.assertEquals((byte) 0x8b, bytes[1]);
+
+        try (BatchPushReader reader = new BatchPushReader(new ByteArrayInputStream(bytes), true)) {
+            Assert.assertEquals("Doctor", reader.getHeader().getString(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME));
+            Assert.assertEquals("token", reader.getHeader().getString(ShareProtocol.CLIENT_POST_KEY_NAME_USER_TOKEN));
+            Assert.assertFalse(reader.getHeader().has(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD));
+
+            JSONObject first = reader.next();
+            Assert.assertEquals("P0000001", first.getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+            Assert.assertTrue(patient(1).similar(first.getJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON)));
+            Assert.assertTrue(state.similar(first.getJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE)));
+            Assert.assertFalse(first.has(ShareProtocol.CLIENT_POST_KEY_NAME_GUID));
+
+            JSONObject second = reader.next();
+            Assert.assertEquals("P0000002", second.getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+            Assert.assertEquals("4ac1e8f3-guid", second.getString(ShareProtocol.CLIENT_POST_KEY_NAME_GUID));
+            Assert.assertFalse(second.has(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE));
+
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void uncompressedBatchesCanBeRead() throws IOException
+    {
+        String body = "{\"username\":\"Doctor\"}\n\n{\"record_id\":\"P1\",\"patient_json\":{\"id\":\"P1\"}}\n";
+        try (BatchPushReader reader =
+            new BatchPushReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), false)) {
+            Assert.assertEquals("Doctor", reader.getHeader().getString(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME));
+            Assert.assertEquals("P1", reader.next().getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyBatchesAreRejected() throws IOException
+    {
+        new BatchPushReader(new ByteArrayInputStream(new byte[0]), false).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLinesAreRejected() throws IOException
+    {
+        String body = "{\"username\":\"Doctor\"}\nnot json\n";
+        try (BatchPushReader reader =
+            new BatchPushReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), false)) {
+            reader.next();
+        }
+    }
+
+    @Test
+    public void tooLongRecordsAreSkipped() throws IOException
+    {
+        String body = "{\"username\":\"Doctor\"}\n{\"record_id\":\"P1\",\"patient_json\":{\"notes\":\""
+            + repeat('x', 200) + "\"}}\n{\"record_id\":\"P2\",\"patient_json\":{\"id\":\"P2\"}}  \n";
+        try (BatchPushReader reader =
+            new BatchPushReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), false, 100)) {
+            Assert.assertEquals(0, reader.next().length());
+            Assert.assertEquals("P2", reader.next().getString(ShareProtocol.CLIENT_BATCH_KEY_NAME_RECORDID));
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void contentAfterRecordsIsRejected() throws IOException
+    {
+        String body = "{\"username\":\"Doctor\"}\n{\"record_id\":\"P1\"} {\"record_id\":\"P2\"}\n";
+        try (BatchPushReader reader =
+            new BatchPushReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), false)) {
+            reader.next();
+        }
+    }
+
+    /** A cohort is much smaller as a compressed batch than as the URL-encoded forms of the single patient push. */
+    @Test
+    public void batchesAreSmallerThanForms() throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int formSize = 0;
+        try (BatchPushWriter writer = new BatchPushWriter(body, new JSONObject())) {
+            for (int i = 0; i < 50; ++i) {
+                writer.write("P" + i, patient(i), null, null);
+                // The single push encodes the JSON twice, once explicitly and once as a form field
+                formSize += URLEncoder.encode(URLEncoder.encode(patient(i).toString(), "UTF-8"), "UTF-8").length();
+            }
+        }
+        Assert.assertTrue(body.size() * 5 < formSize);
+    }
+
+    private JSONObject patient(int i)
+    {
+        JSONObject result = new JSONObject();
+        result.put("id", String.format("P%07d", i));
+        result.put("sex", i % 2 == 0 ? "F" : "M");
+        JSONArray features = new JSONArray();
+        for (int j = 0; j < 10; ++j) {
+            JSONObject feature = new JSONObject();
+            feature.put("id", String.format("HP:%07d", 100 + (i + j) % 30));
+            feature.put("label", "Phenotype \"" + j + "\" with a long, descriptive name");
+            feature.put("observed", "yes");
+            feature.put("type", "phenotype");
+            features.put(feature);
+        }
+        result.put("features", features);
+        return result;
+    }
+
+    private String repeat(char c, int count)
+    {
+        char[] result = new char[count];
+        Arrays.fill(result, c);
+        return new String(result);
+    }
+}
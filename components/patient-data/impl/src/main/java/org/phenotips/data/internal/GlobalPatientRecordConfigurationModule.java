@@ -131,6 +131,25 @@ public boolean supportsRecordType(final String recordType)
         return "patient".equals(recordType);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Besides the sections and fields, the configuration only depends on the global preferences, so the key is the
+     * version of the preferences document.
+     * </p>
+     */
+    @Override
+    public String getCacheKey(final String recordType)
+    {
+        try {
+            XWikiContext context = this.xcontextProvider.get();
+            return context.getWiki().getDocument(PREFERENCES_LOCATION, context).getVersion();
+        } catch (XWikiException ex) {
+            this.logger.warn("Failed to read preferences: {}", ex.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Returns all the {@link UIExtension} sections for the default patient sheet, and sorts them in preferred order.
      *
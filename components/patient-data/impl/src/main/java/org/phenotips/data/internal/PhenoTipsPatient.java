@@ -267,6 +267,32 @@ public void updateFromJSON(JSONObject json, PatientWritePolicy policy)
         }
     }
 
+    /**
+     * Reads data from a JSON into this patient object, without writing it into the patient document. The data read
+     * this way is returned by {@link #getData(String)} and {@link #toJSON(Collection)}, so that received data can be
+     * inspected with the same serializers that would import it, before deciding whether to store it.
+     *
+     * @param json the JSON to read, in the format produced by {@link #toJSON(Collection)}
+     * @since 1.4
+     */
+    public void readFromJSON(JSONObject json)
+    {
+        for (PatientDataController<?> serializer : this.serializers.values()) {
+            try {
+                PatientData<?> patientData = serializer.readJSON(json);
+                if (patientData != null) {
+                    this.extraData.put(patientData.getName(), patientData);
+                }
+            } catch (UnsupportedOperationException ex) {
+                this.logger.debug("Unable to read patient JSON using serializer [{}]: not supported",
+                    serializer.getName());
+            } catch (Exception ex) {
+                this.logger.error("Failed to read patient data from JSON using serializer [{}]: {}",
+                    serializer.getName(), ex.getMessage(), ex);
+            }
+        }
+    }
+
     @Override
     public String toString()
     {
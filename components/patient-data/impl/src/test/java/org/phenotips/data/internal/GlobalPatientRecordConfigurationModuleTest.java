@@ -294,4 +294,18 @@ public void supportsRecordTypeReturnsFalseIfNullOrEmpty() throws ComponentLookup
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(null));
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(""));
     }
+
+    @Test
+    public void cacheKeyIsThePreferencesVersion() throws ComponentLookupException
+    {
+        when(this.configDocument.getVersion()).thenReturn("4.1");
+        Assert.assertEquals("4.1", this.mocker.getComponentUnderTest().getCacheKey(PATIENT_LABEL));
+    }
+
+    @Test
+    public void cacheKeyIsNullWhenReadingPreferencesFails() throws ComponentLookupException, XWikiException
+    {
+        when(this.xwiki.getDocument(PREFERENCES_LOCATION, this.context)).thenThrow(new XWikiException());
+        Assert.assertNull(this.mocker.getComponentUnderTest().getCacheKey(PATIENT_LABEL));
+    }
 }
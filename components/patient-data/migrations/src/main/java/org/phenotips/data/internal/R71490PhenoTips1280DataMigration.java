@@ -19,6 +19,7 @@
 package org.phenotips.data.internal;
 
 import org.phenotips.Constants;
+import org.phenotips.storage.migrators.AbstractChunkedHibernateDataMigration;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
@@ -39,18 +40,13 @@
 import org.hibernate.Query;
 import org.hibernate.Session;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.LargeStringProperty;
 import com.xpn.xwiki.objects.StringProperty;
-import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
-import com.xpn.xwiki.store.XWikiHibernateStore;
-import com.xpn.xwiki.store.migration.DataMigrationException;
 import com.xpn.xwiki.store.migration.XWikiDBVersion;
-import com.xpn.xwiki.store.migration.hibernate.AbstractHibernateDataMigration;
 
 /**
  * Migration for PhenoTips issue PT-1280: automatically migrate old candidate, rejected and solved genes to the new
@@ -74,8 +70,7 @@
 @Component
 @Named("R71490-PT-1280")
 @Singleton
-public class R71490PhenoTips1280DataMigration extends AbstractHibernateDataMigration implements
-    HibernateCallback<Object>
+public class R71490PhenoTips1280DataMigration extends AbstractChunkedHibernateDataMigration
 {
     private static final String GENE_NAME = "gene";
 
@@ -111,11 +106,6 @@ public class R71490PhenoTips1280DataMigration extends AbstractHibernateDataMigra
         EntityType.DOCUMENT,
         Constants.CODE_SPACE_REFERENCE);
 
-    /** Resolves unprefixed document names to the current wiki. */
-    @Inject
-    @Named("current")
-    private DocumentReferenceResolver<String> resolver;
-
     /** Serializes the class name without the wiki prefix, to be used in the database query. */
     @Inject
     @Named("compactwiki")
@@ -149,54 +139,33 @@ public XWikiDBVersion getVersion()
     }
 
     @Override
-    public void hibernateMigrate() throws DataMigrationException, XWikiException
-    {
-        getStore().executeWrite(getXWikiContext(), this);
-    }
-
-    @Override
-    public Object doInHibernate(Session session) throws HibernateException, XWikiException
+    protected Query createDocumentsQuery(Session session)
     {
-        XWikiContext context = getXWikiContext();
-        XWiki xwiki = context.getWiki();
-
         this.patientClassReference = this.entityResolver.resolve(PATIENT_CLASS);
         this.investigationClassReference = this.entityResolver.resolve(INVESTIGATION_CLASS);
         this.geneClassReference = this.entityResolver.resolve(GENE_CLASS);
         this.rejectedGenesClassReference = this.entityResolver.resolve(REJECTED_CLASS);
 
-        Query q =
-            session.createQuery("select distinct o.name from BaseObject o where o.className = '"
-                + this.serializer.serialize(this.investigationClassReference) + OR
-                + this.serializer.serialize(this.rejectedGenesClassReference) + OR
-                + this.serializer.serialize(this.patientClassReference)
-                + "' and exists(from StringProperty p where p.id.id = o.id and p.id.name = '"
-                + SOLVED_NAME + "' and p.value <> '')");
-
-        @SuppressWarnings("unchecked")
-        List<String> docs = q.list();
-        for (String docName : docs) {
-            XWikiDocument doc = xwiki.getDocument(this.resolver.resolve(docName), context);
-            List<String> geneList = new ArrayList<>();
-
-            migrateSolvedGenes(doc, context, geneList);
-            migrateGenes(doc, context, geneList, REJECTED_NAME);
-            migrateGenes(doc, context, geneList, CANDIDATE_NAME);
-            updatePatientGenesComment(doc);
-            doc.setComment("Migrate old candidate/rejected/solved genes to GeneClass objects");
-            doc.setMinorEdit(true);
-            try {
-                // There's a bug in XWiki which prevents saving an object in the same session that it was loaded,
-                // so we must clear the session cache first.
-                session.clear();
-                ((XWikiHibernateStore) getStore()).saveXWikiDoc(doc, context, false);
-                session.flush();
-            } catch (DataMigrationException e) {
-                //
-            }
-        }
+        return session.createQuery("select distinct o.name from BaseObject o where (o.className = '"
+            + this.serializer.serialize(this.investigationClassReference) + OR
+            + this.serializer.serialize(this.rejectedGenesClassReference) + OR
+            + this.serializer.serialize(this.patientClassReference)
+            + "' and exists(from StringProperty p where p.id.id = o.id and p.id.name = '"
+            + SOLVED_NAME + "' and p.value <> '')) and o.name > :" + LAST_DOCUMENT_PARAMETER + " order by o.name");
+    }
 
-        return null;
+    @Override
+    protected boolean migrate(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        List<String> geneList = new ArrayList<>();
+
+        migrateSolvedGenes(doc, context, geneList);
+        migrateGenes(doc, context, geneList, REJECTED_NAME);
+        migrateGenes(doc, context, geneList, CANDIDATE_NAME);
+        updatePatientGenesComment(doc);
+        doc.setComment("Migrate old candidate/rejected/solved genes to GeneClass objects");
+        doc.setMinorEdit(true);
+        return true;
     }
 
     private void migrateSolvedGenes(XWikiDocument doc, XWikiContext context, List<String> geneList)
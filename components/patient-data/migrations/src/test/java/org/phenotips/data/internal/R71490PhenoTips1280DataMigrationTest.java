@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.store.migration.hibernate.HibernateDataMigration;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link R71490PhenoTips1280DataMigration}.
+ *
+ * @version $Id$
+ */
+public class R71490PhenoTips1280DataMigrationTest
+{
+    private static final String WIKI_ID = "wikiID";
+
+    private static final String PATIENT_NAME = "data.P0000001";
+
+    private static final String GENE = "gene";
+
+    private static final String COMMENTS = "comments";
+
+    private static final String STATUS = "status";
+
+    private static final String SOLVED = "solved__gene_id";
+
+    private static final String GENETIC_NOTES = "genetic_notes";
+
+    private static final DocumentReference PATIENT_CLASS = new DocumentReference(WIKI_ID, "PhenoTips", "PatientClass");
+
+    private static final DocumentReference INVESTIGATION_CLASS =
+        new DocumentReference(WIKI_ID, "PhenoTips", "InvestigationClass");
+
+    private static final DocumentReference REJECTED_CLASS =
+        new DocumentReference(WIKI_ID, "PhenoTips", "RejectedGenesClass");
+
+    private static final DocumentReference GENE_CLASS = new DocumentReference(WIKI_ID, "PhenoTips", "GeneClass");
+
+    @Rule
+    public MockitoComponentMockingRule<HibernateDataMigration> mocker =
+        new MockitoComponentMockingRule<>(R71490PhenoTips1280DataMigration.class, HibernateDataMigration.class,
+            "R71490-PT-1280");
+
+    @Rule
+    public TemporaryFolder permanentDirectory = new TemporaryFolder();
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private XWikiDocument document;
+
+    @Mock
+    private XWikiHibernateStore store;
+
+    private R71490PhenoTips1280DataMigration component;
+
+    private BaseObject patient = new BaseObject();
+
+    private List<BaseObject> candidateGenes = new ArrayList<>();
+
+    private List<BaseObject> rejectedGenes = new ArrayList<>();
+
+    private List<BaseObject> genes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        this.mocker.registerMockComponent(ComponentManager.class);
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(XWikiStoreInterface.class, "hibernate")).thenReturn(this.store);
+
+        this.component = (R71490PhenoTips1280DataMigration) this.mocker.getComponentUnderTest();
+
+        final Execution execution = this.mocker.getInstance(Execution.class);
+        final ExecutionContext executionContext = mock(ExecutionContext.class);
+        when(execution.getContext()).thenReturn(executionContext);
+        when(executionContext.getProperty("xwikicontext")).thenReturn(this.context);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        when(this.context.getWikiId()).thenReturn(WIKI_ID);
+
+        final Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.permanentDirectory.getRoot());
+
+        final DocumentReferenceResolver<EntityReference> entityResolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        when(entityResolver.resolve(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> new DocumentReference(WIKI_ID, "PhenoTips",
+                ((EntityReference) invocation.getArguments()[0]).getName()));
+        final EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "compactwiki");
+        when(serializer.serialize(any(EntityReference.class), Matchers.<Object>anyVararg()))
+            .thenAnswer(invocation -> "PhenoTips." + ((EntityReference) invocation.getArguments()[0]).getName());
+
+        when(this.session.createQuery(anyString())).thenReturn(this.query);
+        when(this.query.list()).thenReturn(Collections.singletonList(PATIENT_NAME));
+        doAnswer(invocation -> ((HibernateCallback<?>) invocation.getArguments()[1]).doInHibernate(this.session))
+            .when(this.store).executeRead(same(this.context), any(HibernateCallback.class));
+        doAnswer(invocation -> ((HibernateCallback<?>) invocation.getArguments()[1]).doInHibernate(this.session))
+            .when(this.store).executeWrite(same(this.context), any(HibernateCallback.class));
+
+        final DocumentReference patientReference = new DocumentReference(WIKI_ID, "data", "P0000001");
+        final DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(Matchers.eq(PATIENT_NAME), Matchers.<Object>anyVararg())).thenReturn(patientReference);
+        when(this.xwiki.getDocument(patientReference, this.context)).thenReturn(this.document);
+
+        when(this.document.getXObject(PATIENT_CLASS)).thenReturn(this.patient);
+        when(this.document.getXObjects(INVESTIGATION_CLASS)).thenReturn(this.candidateGenes);
+        when(this.document.getXObjects(REJECTED_CLASS)).thenReturn(this.rejectedGenes);
+        when(this.document.getXObjects(GENE_CLASS)).thenReturn(this.genes);
+        when(this.document.newXObject(GENE_CLASS, this.context)).thenAnswer(invocation -> {
+            BaseObject gene = new BaseObject();
+            this.genes.add(gene);
+            return gene;
+        });
+    }
+
+    @Test
+    public void documentsQuerySelectsGenesAfterTheLastMigratedDocument() throws Exception
+    {
+        this.component.hibernateMigrate();
+
+        ArgumentCaptor<String> hql = ArgumentCaptor.forClass(String.class);
+        verify(this.session).createQuery(hql.capture());
+        Assert.assertTrue(hql.getValue().contains("o.className = 'PhenoTips.InvestigationClass'"));
+        Assert.assertTrue(hql.getValue().contains("o.className = 'PhenoTips.RejectedGenesClass'"));
+        Assert.assertTrue(hql.getValue().contains("o.className = 'PhenoTips.PatientClass'"));
+        Assert.assertTrue(hql.getValue().endsWith("o.name > :lastDocument order by o.name"));
+        verify(this.query).setString("lastDocument", "");
+    }
+
+    @Test
+    public void solvedGeneIsMigrated() throws Exception
+    {
+        this.patient.setStringValue(SOLVED, "FOXP2");
+
+        this.component.hibernateMigrate();
+
+        Assert.assertEquals(1, this.genes.size());
+        Assert.assertEquals("FOXP2", this.genes.get(0).getStringValue(GENE));
+        Assert.assertEquals("solved", this.genes.get(0).getStringValue(STATUS));
+        Assert.assertNull(this.patient.get(SOLVED));
+        verify(this.store).saveXWikiDoc(this.document, this.context, false);
+    }
+
+    @Test
+    public void candidateAndRejectedGenesAreMigrated() throws Exception
+    {
+        this.candidateGenes.add(oldGene("BRCA1", "Strong candidate"));
+        this.rejectedGenes.add(oldGene("TP53", ""));
+
+        this.component.hibernateMigrate();
+
+        Assert.assertEquals(2, this.genes.size());
+        Assert.assertEquals("TP53", this.genes.get(0).getStringValue(GENE));
+        Assert.assertEquals("rejected", this.genes.get(0).getStringValue(STATUS));
+        Assert.assertNull(this.genes.get(0).get(COMMENTS));
+        Assert.assertEquals("BRCA1", this.genes.get(1).getStringValue(GENE));
+        Assert.assertEquals("candidate", this.genes.get(1).getStringValue(STATUS));
+        Assert.assertEquals("Strong candidate", this.genes.get(1).getLargeStringValue(COMMENTS));
+        verify(this.document).removeXObjects(INVESTIGATION_CLASS);
+        verify(this.document).removeXObjects(REJECTED_CLASS);
+        verify(this.store).saveXWikiDoc(this.document, this.context, false);
+    }
+
+    @Test
+    public void commentsOfDuplicatedGenesAreAppended() throws Exception
+    {
+        this.patient.setStringValue(SOLVED, "BRCA1");
+        this.candidateGenes.add(oldGene("BRCA1", "Checked twice"));
+
+        this.component.hibernateMigrate();
+
+        Assert.assertEquals(1, this.genes.size());
+        Assert.assertEquals("solved", this.genes.get(0).getStringValue(STATUS));
+        Assert.assertEquals("Automatic migration: \ngene was duplicated in the candidate gene section."
+            + "\nOriginal comment: \nChecked twice", this.genes.get(0).getLargeStringValue(COMMENTS));
+    }
+
+    @Test
+    public void commentsOfGenesWithoutNameAreMovedToTheGeneticNotes() throws Exception
+    {
+        this.candidateGenes.add(oldGene("", "Waiting for results"));
+        this.rejectedGenes.add(oldGene(" ", "Panel was negative"));
+
+        this.component.hibernateMigrate();
+
+        Assert.assertTrue(this.genes.isEmpty());
+        Assert.assertEquals("Previously tested genes, unlikely causative:\n - Panel was negative\n"
+            + "List of candidate genes:\n - Waiting for results\n", this.patient.getLargeStringValue(GENETIC_NOTES));
+    }
+
+    @Test
+    public void geneticNotesAreNotCarriedOverToTheNextPatient() throws Exception
+    {
+        this.candidateGenes.add(oldGene("", "Waiting for results"));
+        BaseObject otherPatient = new BaseObject();
+        XWikiDocument otherDocument = mock(XWikiDocument.class);
+        when(otherDocument.getXObject(PATIENT_CLASS)).thenReturn(otherPatient);
+        when(this.query.list()).thenReturn(Arrays.asList(PATIENT_NAME, "data.P0000002"));
+        final DocumentReference otherReference = new DocumentReference(WIKI_ID, "data", "P0000002");
+        final DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(Matchers.eq("data.P0000002"), Matchers.<Object>anyVararg())).thenReturn(otherReference);
+        when(this.xwiki.getDocument(otherReference, this.context)).thenReturn(otherDocument);
+
+        this.component.hibernateMigrate();
+
+        Assert.assertEquals("List of candidate genes:\n - Waiting for results\n",
+            this.patient.getLargeStringValue(GENETIC_NOTES));
+        Assert.assertNull(otherPatient.get(GENETIC_NOTES));
+        verify(otherDocument, never()).newXObject(any(EntityReference.class), any(XWikiContext.class));
+    }
+
+    private BaseObject oldGene(String name, String comments)
+    {
+        BaseObject gene = new BaseObject();
+        gene.setStringValue(GENE, name);
+        gene.setLargeStringValue(COMMENTS, comments);
+        return gene;
+    }
+}
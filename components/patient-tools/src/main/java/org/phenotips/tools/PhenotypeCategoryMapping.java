@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.tools;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The phenotype categories configured in a phenotype mapping, in a typed and immutable form. Each section of the
+ * mapping has a title and a list of HPO category identifiers, made of its {@code categories} and the identifiers of its
+ * {@code data} subcategories. A phenotype belongs to the first section listing one of its ancestors, as found in the
+ * {@code term_category} field of HPO; within a section, phenotypes are ranked by the first category they belong to.
+ * The category ranks are computed once, when the mapping is parsed, and the rank of each phenotype is computed from its
+ * ancestors the first time it is requested. Instances are shared, and discarded when the mapping document or the HPO
+ * vocabulary changes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class PhenotypeCategoryMapping
+{
+    /** The rank of phenotypes that don't belong to any section. */
+    public static final int NO_RANK = Integer.MAX_VALUE;
+
+    private static final String HPO_PREFIX = "HP:";
+
+    /** The titles of the sections, mapped to their category identifiers, in the configured order. */
+    private final Map<String, List<String>> sections;
+
+    /** The rank of each category, in the order of sections, then the order of categories within a section. */
+    private final Map<String, Integer> categoryRanks = new HashMap<>();
+
+    /** The title of the section holding the category with a given rank. */
+    private final List<String> rankedSections = new ArrayList<>();
+
+    /** The computed rank of each phenotype requested so far. */
+    private final ConcurrentMap<String, Integer> termRanks = new ConcurrentHashMap<>();
+
+    /** Provides the ancestors of the phenotypes. */
+    private final Vocabulary hpo;
+
+    private PhenotypeCategoryMapping(List<?> mapping, Vocabulary hpo)
+    {
+        this.hpo = hpo;
+        Map<String, List<String>> parsed = new LinkedHashMap<>();
+        for (Object sectionObject : mapping) {
+            if (!(sectionObject instanceof Map)) {
+                continue;
+            }
+            Map<?, ?> section = (Map<?, ?>) sectionObject;
+            String title = String.valueOf(section.get("title"));
+            List<String> categories = new ArrayList<>();
+            addAll(section.get("categories"), categories);
+            if (section.get("data") instanceof Collection) {
+                for (Object subsection : (Collection<?>) section.get("data")) {
+                    if (subsection instanceof Map && ((Map<?, ?>) subsection).containsKey("id")) {
+                        categories.add(String.valueOf(((Map<?, ?>) subsection).get("id")));
+                    }
+                }
+            }
+            for (String category : categories) {
+                if (!this.categoryRanks.containsKey(category)) {
+                    this.categoryRanks.put(category, this.rankedSections.size());
+                    this.rankedSections.add(title);
+                }
+            }
+            parsed.put(title, Collections.unmodifiableList(categories));
+        }
+        this.sections = Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Parses a phenotype mapping, as returned by {@link PhenotypeMappingService#get(String)}.
+     *
+     * @param mapping the raw mapping, a list of sections, each one a map
+     * @param hpo the HPO vocabulary, providing the ancestors of the phenotypes
+     * @return the parsed mapping, or {@code null} if the raw mapping is not a list
+     */
+    public static PhenotypeCategoryMapping parse(Object mapping, Vocabulary hpo)
+    {
+        if (!(mapping instanceof List)) {
+            return null;
+        }
+        return new PhenotypeCategoryMapping((List<?>) mapping, hpo);
+    }
+
+    /**
+     * The configured sections.
+     *
+     * @return an unmodifiable map from section titles to the identifiers of the categories belonging to each section,
+     *         in the configured order
+     */
+    public Map<String, List<String>> getSections()
+    {
+        return this.sections;
+    }
+
+    /**
+     * The section a phenotype belongs to.
+     *
+     * @param termId the identifier of an HPO phenotype
+     * @return the title of the section, or {@code null} if the phenotype doesn't belong to any section
+     */
+    public String getSection(String termId)
+    {
+        int rank = getRank(termId);
+        return rank == NO_RANK ? null : this.rankedSections.get(rank);
+    }
+
+    /**
+     * The position of a phenotype in the configured order: first by section, then by the first category in that
+     * section that the phenotype belongs to.
+     *
+     * @param termId the identifier of an HPO phenotype
+     * @return a number that can be used to sort phenotypes, or {@link #NO_RANK} if the phenotype doesn't belong to any
+     *         section
+     */
+    public int getRank(String termId)
+    {
+        if (!StringUtils.startsWith(termId, HPO_PREFIX)) {
+            return NO_RANK;
+        }
+        Integer result = this.termRanks.get(termId);
+        if (result == null) {
+            result = computeRank(termId);
+            this.termRanks.put(termId, result);
+        }
+        return result;
+    }
+
+    private int computeRank(String termId)
+    {
+        VocabularyTerm term = this.hpo.getTerm(termId);
+        Object ancestors = term == null ? null : term.get(PropertyDisplayer.INDEXED_CATEGORY_KEY);
+        int result = NO_RANK;
+        if (ancestors instanceof Collection) {
+            for (Object ancestor : (Collection<?>) ancestors) {
+                Integer rank = this.categoryRanks.get(String.valueOf(ancestor));
+                if (rank != null && rank < result) {
+                    result = rank;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addAll(Object values, List<String> target)
+    {
+        if (values instanceof Collection) {
+            for (Object value : (Collection<?>) values) {
+                target.add(String.valueOf(value));
+            }
+        }
+    }
+}
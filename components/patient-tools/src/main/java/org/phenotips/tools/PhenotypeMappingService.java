@@ -18,6 +18,7 @@
 package org.phenotips.tools;
 
 import org.phenotips.configuration.RecordConfigurationManager;
+import org.phenotips.vocabulary.Vocabulary;
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.bridge.event.AbstractDocumentEvent;
@@ -40,14 +41,15 @@
 import org.xwiki.velocity.XWikiVelocityException;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.output.NullWriter;
@@ -70,6 +72,9 @@
 @Singleton
 public class PhenotypeMappingService implements ScriptService, EventListener, Initializable
 {
+    /** Separates the serialized reference of a mapping document from the locale in the cache keys. */
+    private static final char LOCALE_SEPARATOR = '/';
+
     /**
      * Logging helper object.
      */
@@ -77,9 +82,16 @@ public class PhenotypeMappingService implements ScriptService, EventListener, In
     private Logger logger;
 
     /**
-     * Cached mappings for faster responses.
+     * Cached mappings for faster responses, keyed by the serialized reference of the mapping document and the locale
+     * its content was read in.
      */
-    private Map<String, Map<String, Object>> cache = new HashMap<>();
+    private Map<String, Map<String, Object>> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Parsed phenotype category mappings, keyed by the serialized reference of the mapping document and the
+     * locale of the parsed content.
+     */
+    private Map<String, PhenotypeCategoryMapping> categoryMappings = new ConcurrentHashMap<>();
 
     @Inject
     private LocalizationContext lc;
@@ -118,6 +130,14 @@ public class PhenotypeMappingService implements ScriptService, EventListener, In
     @Inject
     private ObservationManager observationManager;
 
+    /**
+     * Provides the phenotype ancestors needed for the category mappings. Lazily resolved, since a listener of the HPO
+     * reindexing depends on this component.
+     */
+    @Inject
+    @Named("hpo")
+    private Provider<Vocabulary> hpo;
+
     @Override
     public void initialize() throws InitializationException
     {
@@ -139,7 +159,45 @@ public List<Event> getEvents()
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
-        this.cache.remove(((AbstractDocumentEvent) event).getEventFilter().getFilter());
+        String docName = ((AbstractDocumentEvent) event).getEventFilter().getFilter();
+        String prefix = docName + LOCALE_SEPARATOR;
+        this.cache.keySet().removeIf(key -> key.startsWith(prefix));
+        this.categoryMappings.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Get the phenotype categories configured in the "phenotype" mapping, parsed and ready to be used for grouping and
+     * sorting phenotypes. The parsed mapping is shared, and only rebuilt when the mapping document or the HPO
+     * vocabulary changes.
+     *
+     * @return the parsed category mapping, or {@code null} if the phenotype mapping is not available
+     * @since 1.4
+     */
+    public PhenotypeCategoryMapping getCategoryMapping()
+    {
+        DocumentReference mappingDoc = getMappingDocument();
+        if (mappingDoc == null) {
+            return null;
+        }
+        String key = getCacheKey(mappingDoc);
+        PhenotypeCategoryMapping result = this.categoryMappings.get(key);
+        if (result == null) {
+            result = PhenotypeCategoryMapping.parse(getMapping("phenotype"), this.hpo.get());
+            if (result != null) {
+                this.categoryMappings.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard the parsed category mappings, for example after the HPO vocabulary was reindexed.
+     *
+     * @since 1.4
+     */
+    public void clearCategoryMappings()
+    {
+        this.categoryMappings.clear();
     }
 
     /**
@@ -221,7 +279,7 @@ private Object getMapping(String mappingName)
                 if (mappingContent.startsWith("{{velocity")) {
                     result = parseVelocityMapping(mappingDoc).get(mappingName);
                 } else {
-                    result = parseJSONMapping(mappingContent).get(mappingName);
+                    result = parseJSONMapping(mappingDoc, mappingContent).get(mappingName);
                 }
             } catch (Exception ex) {
                 this.logger.warn("Failed to access mapping: {}", ex.getMessage());
@@ -251,10 +309,14 @@ private Map<String, Object> parseVelocityMapping(DocumentReference mappingDoc)
         return null;
     }
 
-    private Map<String, Object> parseJSONMapping(String mappingContent)
+    private Map<String, Object> parseJSONMapping(DocumentReference mappingDoc, String mappingContent)
     {
         JSONObject json = new JSONObject(mappingContent);
-        return convertJSONObject(json);
+        Map<String, Object> mappings = convertJSONObject(json);
+        this.observationManager.addEvent(this.getName(), new DocumentUpdatedEvent(mappingDoc));
+        this.observationManager.addEvent(this.getName(), new DocumentDeletedEvent(mappingDoc));
+        setMappings(mappingDoc, mappings);
+        return mappings;
     }
 
     private Map<String, Object> convertJSONObject(JSONObject json)
@@ -297,11 +359,8 @@ private List<Object> convertJSONArray(JSONArray json)
      */
     private Object getMapping(DocumentReference doc, String mappingName)
     {
-        String docName = this.serializer.serialize(doc);
-        if (!this.cache.containsKey(docName)) {
-            return null;
-        }
-        return this.cache.get(docName).get(mappingName);
+        Map<String, Object> mappings = this.cache.get(getCacheKey(doc));
+        return mappings == null ? null : mappings.get(mappingName);
     }
 
     /**
@@ -312,7 +371,21 @@ private Object getMapping(DocumentReference doc, String mappingName)
      */
     private void setMappings(DocumentReference doc, Map<String, Object> mappings)
     {
-        this.cache.put(this.serializer.serialize(doc), mappings);
+        if (mappings != null) {
+            this.cache.put(getCacheKey(doc), mappings);
+        }
+    }
+
+    /**
+     * The key under which the mappings defined in a document are cached. Mapping documents may be translated, so the
+     * content read in one locale must not be served in another one.
+     *
+     * @param doc the reference of the document containing the mapping
+     * @return the serialized document reference, followed by the current locale
+     */
+    private String getCacheKey(DocumentReference doc)
+    {
+        return this.serializer.serialize(doc) + LOCALE_SEPARATOR + this.lc.getCurrentLocale();
     }
 
     /**
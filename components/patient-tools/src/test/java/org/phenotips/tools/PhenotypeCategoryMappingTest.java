@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.tools;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for the {@link PhenotypeCategoryMapping}.
+ *
+ * @version $Id$
+ */
+public class PhenotypeCategoryMappingTest
+{
+    private Vocabulary hpo;
+
+    private List<Object> raw;
+
+    @Before
+    public void setUp()
+    {
+        this.hpo = Mockito.mock(Vocabulary.class);
+        mockTerm("HP:0000271", "HP:0000152", "HP:0000118");
+        mockTerm("HP:0001250", "HP:0000707", "HP:0000118");
+        mockTerm("HP:0000252", "HP:0000240", "HP:0000118");
+        mockTerm("HP:0000118");
+
+        this.raw = new ArrayList<>();
+        this.raw.add(section("Craniofacial", Arrays.asList("HP:0000152"), "HP:0000240"));
+        this.raw.add(section("Nervous system", Arrays.asList("HP:0000707", "HP:0000152")));
+    }
+
+    /** Sections keep their order, and list both their categories and their subcategories. */
+    @Test
+    public void sectionsAreParsedInOrder()
+    {
+        PhenotypeCategoryMapping mapping = PhenotypeCategoryMapping.parse(this.raw, this.hpo);
+        Map<String, List<String>> sections = mapping.getSections();
+        Assert.assertEquals(Arrays.asList("Craniofacial", "Nervous system"), new ArrayList<>(sections.keySet()));
+        Assert.assertEquals(Arrays.asList("HP:0000152", "HP:0000240"), sections.get("Craniofacial"));
+        Assert.assertEquals(Arrays.asList("HP:0000707", "HP:0000152"), sections.get("Nervous system"));
+    }
+
+    /** The raw mapping, which is shared through the mapping cache, is not modified while parsing. */
+    @Test
+    public void rawMappingIsNotModified()
+    {
+        PhenotypeCategoryMapping.parse(this.raw, this.hpo);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> first = (Map<String, Object>) this.raw.get(0);
+        Assert.assertEquals(Arrays.asList("HP:0000152"), first.get("categories"));
+    }
+
+    /** Phenotypes belong to the first section listing one of their ancestors, and are ranked within that section. */
+    @Test
+    public void phenotypesAreAssignedToTheFirstMatchingSection()
+    {
+        PhenotypeCategoryMapping mapping = PhenotypeCategoryMapping.parse(this.raw, this.hpo);
+        Assert.assertEquals("Craniofacial", mapping.getSection("HP:0000271"));
+        Assert.assertEquals("Craniofacial", mapping.getSection("HP:0000252"));
+        Assert.assertEquals("Nervous system", mapping.getSection("HP:0001250"));
+        Assert.assertNull(mapping.getSection("HP:0000118"));
+        Assert.assertNull(mapping.getSection("HP:9999999"));
+        Assert.assertNull(mapping.getSection("MIM:123456"));
+        Assert.assertNull(mapping.getSection(null));
+
+        Assert.assertTrue(mapping.getRank("HP:0000271") < mapping.getRank("HP:0000252"));
+        Assert.assertTrue(mapping.getRank("HP:0000252") < mapping.getRank("HP:0001250"));
+        Assert.assertEquals(PhenotypeCategoryMapping.NO_RANK, mapping.getRank("HP:0000118"));
+    }
+
+    /** The ancestors of each phenotype are only looked up once. */
+    @Test
+    public void ranksAreMemoized()
+    {
+        PhenotypeCategoryMapping mapping = PhenotypeCategoryMapping.parse(this.raw, this.hpo);
+        mapping.getSection("HP:0000271");
+        mapping.getRank("HP:0000271");
+        mapping.getSection("HP:0000271");
+        Mockito.verify(this.hpo, Mockito.times(1)).getTerm("HP:0000271");
+    }
+
+    @Test
+    public void invalidMappingsAreRejected()
+    {
+        Assert.assertNull(PhenotypeCategoryMapping.parse(null, this.hpo));
+        Assert.assertNull(PhenotypeCategoryMapping.parse(Collections.emptyMap(), this.hpo));
+    }
+
+    private void mockTerm(String id, String... ancestors)
+    {
+        VocabularyTerm term = Mockito.mock(VocabularyTerm.class);
+        Mockito.doReturn(Arrays.asList(ancestors)).when(term).get(PropertyDisplayer.INDEXED_CATEGORY_KEY);
+        Mockito.doReturn(term).when(this.hpo).getTerm(id);
+    }
+
+    private Map<String, Object> section(String title, List<String> categories, String... subcategories)
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("title", title);
+        result.put("categories", new ArrayList<>(categories));
+        List<Object> data = new ArrayList<>();
+        for (String subcategory : subcategories) {
+            data.add(Collections.singletonMap("id", subcategory));
+        }
+        result.put("data", data);
+        return result;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.differentialPhenotypes;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Computes the phenotypes to suggest from the disorders matching the phenotypes already selected for a patient. The
+ * candidate symptoms are numbered once, the ones that are already selected, or implied by the selected phenotypes, are
+ * pruned before any vocabulary access, and the remaining ones are resolved together with a few batched queries. The
+ * scores are then accumulated in primitive arrays indexed by the candidate number, and only the best candidates are
+ * kept.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class DifferentialPhenotypeEngine
+{
+    /** The root of the phenotypic abnormality branch, only its descendants are suggested. */
+    static final String PHENOTYPIC_ABNORMALITY = "HP:0000118";
+
+    /** The disorder field listing its symptoms. */
+    static final String SYMPTOM_FIELD = "actual_symptom";
+
+    /** The disorder field holding the score of the disorder in the query. */
+    static final String SCORE_FIELD = "score";
+
+    private static final String NAME_FIELD = "name";
+
+    /** The term field listing all the ancestors of the term. */
+    private static final String ANCESTORS_FIELD = "term_category";
+
+    /** How many terms are resolved in one query, below the default Solr limit on the number of boolean clauses. */
+    private static final int LOOKUP_BATCH_SIZE = 500;
+
+    /** Provides access to the HPO ontology. */
+    private final Vocabulary hpo;
+
+    /**
+     * Simple constructor.
+     *
+     * @param hpo the HPO vocabulary
+     */
+    DifferentialPhenotypeEngine(Vocabulary hpo)
+    {
+        this.hpo = hpo;
+    }
+
+    /**
+     * Computes the phenotypes to investigate. The score of a suggested phenotype is the sum of the scores of the
+     * disorders it appears in, divided by the square of the number of such disorders. No suggestions are made if every
+     * candidate appears in more than half of the disorders.
+     *
+     * @param disorders the disorders matching the patient, with their {@link #SYMPTOM_FIELD symptoms} and
+     *            {@link #SCORE_FIELD score}
+     * @param phenotypes the list of already selected phenotypes
+     * @param nphenotypes phenotypes that are not observed in the patient
+     * @param limit the maximum number of phenotypes to return
+     * @return a list of phenotype suggestions, best first
+     */
+    List<SuggestedPhenotype> suggest(Collection<SolrDocument> disorders, Collection<String> phenotypes,
+        Collection<String> nphenotypes, int limit)
+    {
+        if (limit <= 0 || disorders.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Set<String> excluded = new HashSet<>(nphenotypes);
+        excluded.addAll(phenotypes);
+        for (VocabularyTerm phenotype : lookup(phenotypes).values()) {
+            addAncestors(phenotype, excluded);
+        }
+
+        // Number the remaining candidates, in the order they are first encountered
+        Map<String, Integer> candidates = new LinkedHashMap<>();
+        int[][] symptoms = new int[disorders.size()][];
+        float[] disorderScores = new float[disorders.size()];
+        int d = 0;
+        for (SolrDocument disorder : disorders) {
+            Collection<Object> values = disorder.getFieldValues(SYMPTOM_FIELD);
+            if (values == null) {
+                values = Collections.emptyList();
+            }
+            int[] positions = new int[values.size()];
+            int n = 0;
+            for (Object value : values) {
+                String id = String.valueOf(value);
+                if (!excluded.contains(id)) {
+                    Integer position = candidates.get(id);
+                    if (position == null) {
+                        position = candidates.size();
+                        candidates.put(id, position);
+                    }
+                    positions[n++] = position;
+                }
+            }
+            symptoms[d] = Arrays.copyOf(positions, n);
+            Object score = disorder.getFieldValue(SCORE_FIELD);
+            disorderScores[d++] = score instanceof Number ? ((Number) score).floatValue() : 0;
+        }
+
+        // Resolve each candidate only once, and only keep phenotypic abnormalities
+        String[] ids = candidates.keySet().toArray(new String[candidates.size()]);
+        Map<String, VocabularyTerm> resolved = lookup(candidates.keySet());
+        VocabularyTerm[] terms = new VocabularyTerm[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            VocabularyTerm term = resolved.get(ids[i]);
+            if (term != null && isPhenotypicAbnormality(term)) {
+                terms[i] = term;
+            }
+        }
+
+        double[] sums = new double[ids.length];
+        int[] counts = new int[ids.length];
+        for (d = 0; d < symptoms.length; ++d) {
+            for (int position : symptoms[d]) {
+                if (terms[position] != null) {
+                    sums[position] += disorderScores[d];
+                    ++counts[position];
+                }
+            }
+        }
+
+        return selectTop(ids, terms, sums, counts, disorders.size(), limit);
+    }
+
+    private List<SuggestedPhenotype> selectTop(String[] ids, VocabularyTerm[] terms, double[] sums, int[] counts,
+        int disorders, int limit)
+    {
+        int minCount = Integer.MAX_VALUE;
+        for (int count : counts) {
+            if (count > 0 && count < minCount) {
+                minCount = count;
+            }
+        }
+        if (minCount == Integer.MAX_VALUE || minCount > disorders / 2) {
+            return Collections.emptyList();
+        }
+
+        final double[] scores = new double[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            scores[i] = counts[i] == 0 ? 0 : sums[i] / (counts[i] * counts[i]);
+        }
+        // Worst first, ties are broken in favor of the candidate encountered first
+        Comparator<Integer> worstFirst = (a, b) -> scores[a] != scores[b] ? Double.compare(scores[a], scores[b])
+            : Integer.compare(b, a);
+        PriorityQueue<Integer> top = new PriorityQueue<>(Math.min(limit, ids.length) + 1, worstFirst);
+        for (int i = 0; i < ids.length; ++i) {
+            if (counts[i] > 0) {
+                top.add(i);
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+
+        List<SuggestedPhenotype> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            int i = top.poll();
+            result.add(new SuggestedPhenotype(ids[i], (String) terms[i].get(NAME_FIELD), scores[i]));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Resolves terms in batches, falling back to individual lookups for identifiers not found directly, such as
+     * alternative identifiers.
+     *
+     * @param ids the identifiers to resolve
+     * @return the resolved terms, keyed by the requested identifier
+     */
+    private Map<String, VocabularyTerm> lookup(Collection<String> ids)
+    {
+        Map<String, VocabularyTerm> result = new HashMap<>();
+        List<String> batch = new ArrayList<>(Math.min(ids.size(), LOOKUP_BATCH_SIZE));
+        for (String id : ids) {
+            batch.add(id);
+            if (batch.size() == LOOKUP_BATCH_SIZE) {
+                lookupBatch(batch, result);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookupBatch(batch, result);
+        }
+        for (String id : ids) {
+            if (!result.containsKey(id)) {
+                VocabularyTerm term = this.hpo.getTerm(id);
+                if (term != null) {
+                    result.put(id, term);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void lookupBatch(List<String> ids, Map<String, VocabularyTerm> result)
+    {
+        // Goes through the vocabulary's term cache, only querying the index for the terms not already cached
+        for (VocabularyTerm term : this.hpo.getTerms(ids)) {
+            if (term != null && term.getId() != null) {
+                result.put(term.getId(), term);
+            }
+        }
+    }
+
+    private static boolean isPhenotypicAbnormality(VocabularyTerm term)
+    {
+        if (PHENOTYPIC_ABNORMALITY.equals(term.getId())) {
+            return true;
+        }
+        Object ancestors = term.get(ANCESTORS_FIELD);
+        return ancestors instanceof Collection ? ((Collection<?>) ancestors).contains(PHENOTYPIC_ABNORMALITY)
+            : PHENOTYPIC_ABNORMALITY.equals(ancestors);
+    }
+
+    private static void addAncestors(VocabularyTerm term, Set<String> target)
+    {
+        target.add(term.getId());
+        Object ancestors = term.get(ANCESTORS_FIELD);
+        if (ancestors instanceof Collection) {
+            for (Object ancestor : (Collection<?>) ancestors) {
+                target.add(String.valueOf(ancestor));
+            }
+        } else if (ancestors != null) {
+            target.add(String.valueOf(ancestors));
+        }
+    }
+}
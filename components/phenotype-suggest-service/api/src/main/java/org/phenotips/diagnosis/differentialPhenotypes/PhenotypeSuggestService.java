@@ -17,8 +17,6 @@
  */
 package org.phenotips.diagnosis.differentialPhenotypes;
 
-import org.phenotips.obo2solr.maps.CounterMap;
-import org.phenotips.obo2solr.maps.SumMap;
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
@@ -28,11 +26,9 @@
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -43,10 +39,7 @@
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
-import org.apache.solr.common.util.SimpleOrderedMap;
 import org.slf4j.Logger;
 
 /**
@@ -84,47 +77,14 @@ public List<SuggestedPhenotype> getDifferentialPhenotypes(Collection<String> phe
         Collection<String> nphenotypes, int limit)
     {
         QueryResponse response;
-        List<SuggestedPhenotype> result = new LinkedList<>();
         try {
             response = this.solrManager.getSolrConnection("omim").query(prepareParams(phenotypes, nphenotypes));
         } catch (SolrServerException | IOException ex) {
             this.logger.warn("Failed to query OMIM index: {}", ex.getMessage());
-            return result;
+            return new LinkedList<>();
         }
-        SolrDocumentList matchingDisorders = response.getResults();
-        Map<?, ?> explanations = response.getExplainMap();
-        SumMap<String> cummulativeScore = new SumMap<>();
-        CounterMap<String> matchCounter = new CounterMap<>();
-        Set<String> allAncestors = new HashSet<>();
-        for (String phenotype : phenotypes) {
-            allAncestors.addAll(this.getAllAncestorsAndSelfIDs(phenotype));
-        }
-        for (SolrDocument disorder : matchingDisorders) {
-            String omimId = (String) disorder.getFieldValue("id");
-            @SuppressWarnings("unchecked")
-            SimpleOrderedMap<Float> omimTerm = (SimpleOrderedMap<Float>) explanations.get(omimId);
-            float score = omimTerm.get("value");
-            for (Object hpoId : disorder.getFieldValues("actual_symptom")) {
-                if (allAncestors.contains(hpoId) || nphenotypes.contains(hpoId)
-                    || !this.getAllAncestorsAndSelfIDs((String) hpoId).contains("HP:0000118")) {
-                    continue;
-                }
-                cummulativeScore.addTo((String) hpoId, (double) score);
-                matchCounter.addTo((String) hpoId);
-            }
-        }
-        if (matchCounter.getMinValue() <= matchingDisorders.size() / 2) {
-            for (String hpoId : cummulativeScore.keySet()) {
-                VocabularyTerm term = this.hpo.getTerm(hpoId);
-                if (term == null) {
-                    continue;
-                }
-                result.add(new SuggestedPhenotype(hpoId, (String) term.get("name"),
-                    cummulativeScore.get(hpoId) / (matchCounter.get(hpoId) * matchCounter.get(hpoId))));
-            }
-            Collections.sort(result);
-        }
-        return result.subList(0, Math.min(limit, result.size()));
+        return new DifferentialPhenotypeEngine(this.hpo).suggest(response.getResults(), phenotypes, nphenotypes,
+            limit);
     }
 
     /**
@@ -146,8 +106,9 @@ private SolrQuery prepareParams(Collection<String> phenotypes, Collection<String
         result.set(CommonParams.Q, q.replaceAll("HP:", "HP\\\\:"));
         result.set(CommonParams.ROWS, "100");
         result.set(CommonParams.START, "0");
-        result.set(CommonParams.DEBUG_QUERY, Boolean.toString(true));
-        result.set(CommonParams.EXPLAIN_STRUCT, Boolean.toString(true));
+        // The disorder scores are read directly from the results, which is much cheaper than a debug explanation
+        result.set(CommonParams.FL, "id," + DifferentialPhenotypeEngine.SYMPTOM_FIELD + ","
+            + DifferentialPhenotypeEngine.SCORE_FIELD);
 
         return result;
     }
@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.differentialPhenotypes;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.solr.common.SolrDocument;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares {@link DifferentialPhenotypeEngine} with the previous per-symptom implementation, on a synthetic ontology
+ * and disorder set shaped like the real ones: a 5000 terms deep hierarchy, and the 100 best matching disorders with 20
+ * to 60 symptoms each, favoring common symptoms. Every vocabulary query is charged a simulated Solr round-trip, except
+ * for the terms already in the vocabulary's term cache, which is kept across requests, as in a running instance. Not
+ * run as part of the build, start it with {@code main}; the optional argument is the simulated query latency, in
+ * microseconds.
+ *
+ * @version $Id$
+ */
+public final class DifferentialPhenotypeEngineBenchmark
+{
+    private static final int TERMS = 5000;
+
+    private static final int DISORDERS = 100;
+
+    private static final int ROUNDS = 20;
+
+    private static final String ABNORMALITY = DifferentialPhenotypeEngine.PHENOTYPIC_ABNORMALITY;
+
+    private static final AtomicInteger QUERIES = new AtomicInteger();
+
+    private static final Set<String> CACHED = new HashSet<>();
+
+    private static long latency;
+
+    private DifferentialPhenotypeEngineBenchmark()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the simulated query latency, in microseconds, defaults to 200
+     */
+    public static void main(String[] args)
+    {
+        latency = TimeUnit.MICROSECONDS.toNanos(args.length > 0 ? Long.parseLong(args[0]) : 200);
+        Random random = new Random(42);
+        Map<String, VocabularyTerm> terms = buildOntology(random);
+        Vocabulary hpo = mockVocabulary(terms);
+        List<SolrDocument> disorders = buildDisorders(random);
+        Set<String> phenotypes = new HashSet<>();
+        for (int i = 0; i < 5; ++i) {
+            phenotypes.add(id(1 + random.nextInt(TERMS - 1)));
+        }
+        Set<String> nphenotypes = Collections.singleton(id(1 + random.nextInt(TERMS - 1)));
+
+        DifferentialPhenotypeEngine engine = new DifferentialPhenotypeEngine(hpo);
+        for (int i = 0; i < 3; ++i) {
+            legacy(hpo, disorders, phenotypes, nphenotypes, 20);
+            engine.suggest(disorders, phenotypes, nphenotypes, 20);
+        }
+
+        QUERIES.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            legacy(hpo, disorders, phenotypes, nphenotypes, 20);
+        }
+        report("per-symptom", start, QUERIES.getAndSet(0));
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            engine.suggest(disorders, phenotypes, nphenotypes, 20);
+        }
+        report("engine", start, QUERIES.getAndSet(0));
+    }
+
+    private static void report(String name, long start, int queries)
+    {
+        System.out.println(String.format("%-12s %8.2f ms/request %8d queries/request", name,
+            (System.nanoTime() - start) / 1e6 / ROUNDS, queries / ROUNDS));
+    }
+
+    /** The previous implementation, expanding the ancestors of each symptom of each disorder. */
+    private static List<SuggestedPhenotype> legacy(Vocabulary hpo, List<SolrDocument> disorders,
+        Collection<String> phenotypes, Collection<String> nphenotypes, int limit)
+    {
+        Map<String, Double> cummulativeScore = new LinkedHashMap<>();
+        Map<String, Integer> matchCounter = new LinkedHashMap<>();
+        Set<String> allAncestors = new HashSet<>();
+        for (String phenotype : phenotypes) {
+            allAncestors.addAll(ancestorsAndSelf(hpo, phenotype));
+        }
+        for (SolrDocument disorder : disorders) {
+            float score = (Float) disorder.getFieldValue(DifferentialPhenotypeEngine.SCORE_FIELD);
+            for (Object hpoId : disorder.getFieldValues(DifferentialPhenotypeEngine.SYMPTOM_FIELD)) {
+                if (allAncestors.contains(hpoId) || nphenotypes.contains(hpoId)
+                    || !ancestorsAndSelf(hpo, (String) hpoId).contains(ABNORMALITY)) {
+                    continue;
+                }
+                cummulativeScore.merge((String) hpoId, (double) score, Double::sum);
+                matchCounter.merge((String) hpoId, 1, Integer::sum);
+            }
+        }
+        List<SuggestedPhenotype> result = new ArrayList<>();
+        if (Collections.min(matchCounter.values()) <= disorders.size() / 2) {
+            for (String hpoId : cummulativeScore.keySet()) {
+                VocabularyTerm term = hpo.getTerm(hpoId);
+                int count = matchCounter.get(hpoId);
+                result.add(new SuggestedPhenotype(hpoId, (String) term.get("name"),
+                    cummulativeScore.get(hpoId) / (count * count)));
+            }
+            Collections.sort(result);
+        }
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    private static Set<String> ancestorsAndSelf(Vocabulary hpo, String id)
+    {
+        Set<String> result = new HashSet<>();
+        for (VocabularyTerm term : hpo.getTerm(id).getAncestorsAndSelf()) {
+            result.add(term.getId());
+        }
+        return result;
+    }
+
+    private static Map<String, VocabularyTerm> buildOntology(Random random)
+    {
+        Map<String, VocabularyTerm> result = new LinkedHashMap<>();
+        List<Set<String>> ancestors = new ArrayList<>();
+        for (int i = 0; i < TERMS; ++i) {
+            Set<String> termAncestors = new LinkedHashSet<>();
+            if (i > 0) {
+                // Each term has one or two parents among the previous terms, closer to the root for the first ones
+                int parent = random.nextInt(Math.max(1, i / 4) + 1);
+                termAncestors.add(id(parent));
+                termAncestors.addAll(ancestors.get(parent));
+                if (i > 10 && random.nextInt(4) == 0) {
+                    int other = random.nextInt(i);
+                    termAncestors.add(id(other));
+                    termAncestors.addAll(ancestors.get(other));
+                }
+            }
+            ancestors.add(termAncestors);
+            VocabularyTerm term = mock(VocabularyTerm.class);
+            when(term.getId()).thenReturn(id(i));
+            when(term.get("name")).thenReturn("Phenotype " + i);
+            when(term.get("term_category")).thenReturn(new ArrayList<>(termAncestors));
+            result.put(id(i), term);
+        }
+        for (int i = 0; i < TERMS; ++i) {
+            final Set<VocabularyTerm> resolved = new LinkedHashSet<>();
+            resolved.add(result.get(id(i)));
+            for (String ancestor : ancestors.get(i)) {
+                resolved.add(result.get(ancestor));
+            }
+            when(result.get(id(i)).getAncestorsAndSelf()).thenAnswer(invocation -> {
+                // Resolving the ancestors of a real term is another query
+                query();
+                return resolved;
+            });
+        }
+        return result;
+    }
+
+    private static Vocabulary mockVocabulary(final Map<String, VocabularyTerm> terms)
+    {
+        Vocabulary result = mock(Vocabulary.class);
+        when(result.getTerm(anyString())).thenAnswer(invocation -> {
+            String id = (String) invocation.getArguments()[0];
+            if (CACHED.add(id)) {
+                query();
+            }
+            return terms.get(id);
+        });
+        when(result.getTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            // Cached terms are served directly, the others are fetched from the index with a single query
+            Set<VocabularyTerm> found = new LinkedHashSet<>();
+            boolean missed = false;
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                missed |= CACHED.add((String) id);
+                if (terms.containsKey(id)) {
+                    found.add(terms.get(id));
+                }
+            }
+            if (missed) {
+                query();
+            }
+            return found;
+        });
+        return result;
+    }
+
+    private static List<SolrDocument> buildDisorders(Random random)
+    {
+        List<SolrDocument> result = new ArrayList<>();
+        for (int i = 0; i < DISORDERS; ++i) {
+            Set<String> symptoms = new LinkedHashSet<>();
+            int size = 20 + random.nextInt(41);
+            while (symptoms.size() < size) {
+                // Skewed towards the lower identifiers, so that common symptoms are shared by many disorders
+                double skewed = Math.pow(random.nextDouble(), 2);
+                symptoms.add(id(1 + (int) (skewed * (TERMS - 1))));
+            }
+            SolrDocument disorder = new SolrDocument();
+            disorder.setField("id", "MIM:" + (100000 + i));
+            disorder.setField(DifferentialPhenotypeEngine.SCORE_FIELD, (float) (DISORDERS - i) / DISORDERS);
+            disorder.setField(DifferentialPhenotypeEngine.SYMPTOM_FIELD, new ArrayList<>(symptoms));
+            result.add(disorder);
+        }
+        return result;
+    }
+
+    private static void query()
+    {
+        QUERIES.incrementAndGet();
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+    }
+
+    private static String id(int i)
+    {
+        return i == 0 ? ABNORMALITY : String.format("HP:1%06d", i);
+    }
+}
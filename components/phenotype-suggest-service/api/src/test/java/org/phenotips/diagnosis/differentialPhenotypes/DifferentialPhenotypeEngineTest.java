@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.differentialPhenotypes;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DifferentialPhenotypeEngine} class.
+ *
+ * @version $Id$
+ */
+public class DifferentialPhenotypeEngineTest
+{
+    private static final String ROOT = "HP:0000001";
+
+    private static final String ABNORMALITY = "HP:0000118";
+
+    private static final String INHERITANCE = "HP:0000005";
+
+    private final Map<String, VocabularyTerm> terms = new HashMap<>();
+
+    /** The number of identifiers requested by each term lookup. */
+    private final List<Integer> lookups = new ArrayList<>();
+
+    private Vocabulary hpo;
+
+    private DifferentialPhenotypeEngine engine;
+
+    @Before
+    public void setUp()
+    {
+        this.hpo = mock(Vocabulary.class);
+        addTerm("HP:0000100", "Selected", ABNORMALITY, ROOT);
+        addTerm("HP:0000101", "Parent of selected", ABNORMALITY, ROOT);
+        addTerm("HP:0000102", "Common", ABNORMALITY, ROOT);
+        addTerm("HP:0000103", "Rare", ABNORMALITY, ROOT);
+        addTerm("HP:0000104", "Other rare", ABNORMALITY, ROOT);
+        addTerm("HP:0000105", "Absent", ABNORMALITY, ROOT);
+        addTerm("HP:0000006", "Autosomal dominant", INHERITANCE, ROOT);
+        when(this.terms.get("HP:0000100").get("term_category"))
+            .thenReturn(Arrays.asList("HP:0000101", ABNORMALITY, ROOT));
+
+        when(this.hpo.getTerms(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Collection<?> ids = (Collection<?>) invocation.getArguments()[0];
+            this.lookups.add(ids.size());
+            Set<VocabularyTerm> result = new LinkedHashSet<>();
+            for (Object id : ids) {
+                if (this.terms.containsKey(id)) {
+                    result.add(this.terms.get(id));
+                }
+            }
+            return result;
+        });
+        when(this.hpo.getTerm(anyString())).thenAnswer(invocation -> this.terms.get(invocation.getArguments()[0]));
+
+        this.engine = new DifferentialPhenotypeEngine(this.hpo);
+    }
+
+    @Test
+    public void scoresAreAggregatedAcrossDisorders()
+    {
+        List<SuggestedPhenotype> result = this.engine.suggest(Arrays.asList(
+            disorder(2, "HP:0000102", "HP:0000101"),
+            disorder(1, "HP:0000102", "HP:0000103"),
+            disorder(1, "HP:0000104")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 10);
+
+        Assert.assertEquals(3, result.size());
+        // Equal scores keep the order in which the phenotypes were first encountered
+        Assert.assertEquals(new SuggestedPhenotype("HP:0000103", "Rare", 1.0), result.get(0));
+        Assert.assertEquals(new SuggestedPhenotype("HP:0000104", "Other rare", 1.0), result.get(1));
+        Assert.assertEquals(new SuggestedPhenotype("HP:0000102", "Common", 0.75), result.get(2));
+        Assert.assertEquals("Common", result.get(2).getName());
+    }
+
+    @Test
+    public void selectedNegativeAndNonAbnormalityPhenotypesAreNotSuggested()
+    {
+        List<SuggestedPhenotype> result = this.engine.suggest(Arrays.asList(
+            disorder(1, "HP:0000100", "HP:0000103", "HP:0000105", "HP:0000006"),
+            disorder(1, "HP:0000104")), Collections.singleton("HP:0000100"), Collections.singleton("HP:0000105"), 10);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("HP:0000103", result.get(0).getId());
+        Assert.assertEquals("HP:0000104", result.get(1).getId());
+    }
+
+    @Test
+    public void limitIsRespected()
+    {
+        List<SuggestedPhenotype> result = this.engine.suggest(Arrays.asList(
+            disorder(3, "HP:0000103"),
+            disorder(2, "HP:0000104"),
+            disorder(1, "HP:0000102")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 2);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("HP:0000103", result.get(0).getId());
+        Assert.assertEquals("HP:0000104", result.get(1).getId());
+        Assert.assertTrue(this.engine.suggest(Arrays.asList(disorder(3, "HP:0000103")),
+            Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 0).isEmpty());
+    }
+
+    @Test
+    public void noSuggestionsWhenAllPhenotypesAreCommon()
+    {
+        Assert.assertTrue(this.engine.suggest(Arrays.asList(
+            disorder(1, "HP:0000102", "HP:0000103"),
+            disorder(1, "HP:0000102", "HP:0000103"),
+            disorder(1, "HP:0000102")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 10)
+            .isEmpty());
+    }
+
+    @Test
+    public void termsAreResolvedOnlyOnceInBatches()
+    {
+        this.engine.suggest(Arrays.asList(
+            disorder(2, "HP:0000102", "HP:0000103", "HP:0000006"),
+            disorder(1, "HP:0000102", "HP:0000104", "HP:0000006"),
+            disorder(1, "HP:0000104")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 10);
+
+        // One lookup for the selected phenotypes, one for all the candidates, both through the term cache
+        Mockito.verify(this.hpo, Mockito.times(2)).getTerms(anyCollectionOf(String.class));
+        Mockito.verify(this.hpo, Mockito.never()).search(anyMapOf(String.class, Object.class),
+            anyMapOf(String.class, String.class));
+        Mockito.verify(this.hpo, Mockito.never()).getTerm(anyString());
+        Mockito.verify(this.terms.get("HP:0000102"), Mockito.never()).getAncestorsAndSelf();
+    }
+
+    @Test
+    public void manyCandidatesAreResolvedInBoundedBatches()
+    {
+        String[] symptoms = new String[1200];
+        for (int i = 0; i < symptoms.length; ++i) {
+            symptoms[i] = String.format("HP:%07d", 1000 + i);
+            addTerm(symptoms[i], "Generated " + i, ABNORMALITY, ROOT);
+        }
+
+        List<SuggestedPhenotype> result = this.engine.suggest(Arrays.asList(disorder(1, symptoms),
+            disorder(1, "HP:0000104")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(),
+            symptoms.length + 1);
+
+        Assert.assertEquals(symptoms.length + 1, result.size());
+        // The selected phenotype, then the candidates in batches of at most 500 identifiers
+        Assert.assertEquals(Arrays.asList(1, 500, 500, 201), this.lookups);
+        Mockito.verify(this.hpo, Mockito.never()).getTerm(anyString());
+    }
+
+    @Test
+    public void unknownTermsAreResolvedIndividually()
+    {
+        VocabularyTerm renamed = this.terms.remove("HP:0000103");
+        when(this.hpo.getTerm("HP:0000103")).thenReturn(renamed);
+
+        List<SuggestedPhenotype> result = this.engine.suggest(Arrays.asList(
+            disorder(1, "HP:0000103", "HP:0000999"),
+            disorder(1, "HP:0000104")), Collections.singleton("HP:0000100"), Collections.<String>emptySet(), 10);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("HP:0000103", result.get(0).getId());
+    }
+
+    private void addTerm(String id, String name, String... ancestors)
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(term.get("name")).thenReturn(name);
+        when(term.get("term_category")).thenReturn(Arrays.asList(ancestors));
+        this.terms.put(id, term);
+    }
+
+    private SolrDocument disorder(float score, String... symptoms)
+    {
+        SolrDocument result = new SolrDocument();
+        result.setField("score", score);
+        result.setField("actual_symptom", Arrays.asList(symptoms));
+        return result;
+    }
+}
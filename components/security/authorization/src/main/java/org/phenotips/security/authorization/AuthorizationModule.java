@@ -23,6 +23,10 @@
 import org.xwiki.stability.Unstable;
 import org.xwiki.users.User;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Modular authorization service which checks if a specific operation on an entity should be granted or not. This can be
  * implemented by different components, each one with a different priority. When a specific access is requested, each of
@@ -57,4 +61,33 @@
      *         determine if access should be granted or denied
      */
     Boolean hasAccess(User user, Right access, EntityReference entity);
+
+    /**
+     * Checks if the specified user has the requested access level on each of the target entities. The decisions must be
+     * the same as calling {@link #hasAccess(User, Right, EntityReference)} for each entity; modules that look up data
+     * for each entity should override this to look up the data for all the entities at once. The default
+     * implementation checks each entity separately, leaving undecided the entities for which the check fails.
+     *
+     * @param user the user whose rights should be checked
+     * @param access the requested access level
+     * @param entities the target entities (documents, spaces, wikis...)
+     * @return a map holding the decisions of this module: {@code True} if access is granted, {@code False} if access is
+     *         denied; entities for which this module cannot decide are either missing from the map, or mapped to
+     *         {@code null}
+     * @since 1.4
+     */
+    default Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        for (EntityReference entity : entities) {
+            try {
+                result.put(entity, hasAccess(user, access, entity));
+            } catch (Exception ex) {
+                // Same as the authorization service does for single checks, leave this entity undecided
+                result.put(entity, null);
+            }
+        }
+        return result;
+    }
 }
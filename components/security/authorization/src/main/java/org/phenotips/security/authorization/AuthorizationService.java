@@ -23,6 +23,10 @@
 import org.xwiki.stability.Unstable;
 import org.xwiki.users.User;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Service which checks if a specific operation on an entity should be granted or not. The default implementation
  * forwards the decision to implementations of the {@link AuthorizationModule} role, in descending order of their
@@ -44,4 +48,26 @@
      * @return {@code true} if access is granted, {@code false} if access is denied
      */
     boolean hasAccess(User user, Right access, EntityReference entity);
+
+    /**
+     * Checks if the specified user has the requested access level on each of the target entities. The decisions are
+     * the same as calling {@link #hasAccess(User, Right, EntityReference)} for each entity, but implementations can
+     * check all the entities at once, which is faster for many entities.
+     *
+     * @param user the user whose rights should be checked
+     * @param access the requested access level
+     * @param entities the target entities (documents, spaces, wikis...)
+     * @return a map holding, for each target entity, {@code true} if access is granted, {@code false} if access is
+     *         denied
+     * @since 1.4
+     */
+    default Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        for (EntityReference entity : entities) {
+            result.put(entity, hasAccess(user, access, entity));
+        }
+        return result;
+    }
 }
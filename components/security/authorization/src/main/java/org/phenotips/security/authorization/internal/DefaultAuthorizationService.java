@@ -25,7 +25,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -70,4 +76,34 @@ public boolean hasAccess(User user, Right access, EntityReference entity)
 
         return false;
     }
+
+    @Override
+    public Map<EntityReference, Boolean> checkAccess(User user, Right access,
+        Collection<? extends EntityReference> entities)
+    {
+        Map<EntityReference, Boolean> result = new LinkedHashMap<>();
+        Set<EntityReference> undecided = new LinkedHashSet<>(entities);
+        for (AuthorizationModule service : this.modules.get()) {
+            if (undecided.isEmpty()) {
+                break;
+            }
+            try {
+                // Each module is asked once, about all the entities that previous modules didn't decide on
+                Map<EntityReference, Boolean> decisions = service.checkAccess(user, access, new ArrayList<>(undecided));
+                for (Map.Entry<EntityReference, Boolean> decision : decisions.entrySet()) {
+                    if (decision.getValue() != null && undecided.remove(decision.getKey())) {
+                        result.put(decision.getKey(), decision.getValue());
+                    }
+                }
+            } catch (Exception ex) {
+                // Don't fail because of bad authorization modules
+                this.logger.warn("Failed to invoke authorization service [{}]: {}",
+                    service.getClass().getCanonicalName(), ex.getMessage());
+            }
+        }
+        for (EntityReference entity : undecided) {
+            result.put(entity, false);
+        }
+        return result;
+    }
 }
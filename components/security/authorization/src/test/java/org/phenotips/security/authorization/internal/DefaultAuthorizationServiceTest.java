@@ -23,14 +23,18 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Provider;
 
@@ -43,8 +47,12 @@
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -180,6 +188,97 @@ public void exceptionsInModulesAreIgnored() throws Exception
         Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
     }
 
+    @Test
+    public void bulkChecksAskEachModuleOnceAboutUndecidedEntities() throws Exception
+    {
+        DocumentReference granted = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReference denied = new DocumentReference("xwiki", "data", "P0000002");
+        DocumentReference undecided = new DocumentReference("xwiki", "data", "P0000003");
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+
+        Map<EntityReference, Boolean> firstDecisions = new HashMap<>();
+        firstDecisions.put(granted, true);
+        firstDecisions.put(undecided, null);
+        when(this.moduleOne.checkAccess(eq(this.user), eq(this.access), anyCollectionOf(EntityReference.class)))
+            .thenReturn(firstDecisions);
+        Map<EntityReference, Boolean> secondDecisions = new HashMap<>();
+        secondDecisions.put(granted, false);
+        secondDecisions.put(denied, false);
+        when(this.moduleTwo.checkAccess(eq(this.user), eq(this.access), anyCollectionOf(EntityReference.class)))
+            .thenReturn(secondDecisions);
+
+        Map<EntityReference, Boolean> result = this.mocker.getComponentUnderTest().checkAccess(this.user, this.access,
+            Arrays.asList(granted, denied, undecided));
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertTrue(result.get(granted));
+        Assert.assertFalse(result.get(denied));
+        Assert.assertFalse(result.get(undecided));
+        verify(this.moduleOne).checkAccess(this.user, this.access, Arrays.asList(granted, denied, undecided));
+        verify(this.moduleTwo).checkAccess(this.user, this.access, Arrays.asList(denied, undecided));
+        verify(this.moduleOne, never()).hasAccess(eq(this.user), eq(this.access), any(EntityReference.class));
+    }
+
+    @Test
+    public void bulkChecksStopWhenAllEntitiesAreDecided() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.checkAccess(eq(this.user), eq(this.access), anyCollectionOf(EntityReference.class)))
+            .thenReturn(Collections.<EntityReference, Boolean>singletonMap(this.document, true));
+
+        Map<EntityReference, Boolean> result = this.mocker.getComponentUnderTest().checkAccess(this.user, this.access,
+            Collections.singletonList(this.document));
+
+        Assert.assertTrue(result.get(this.document));
+        verify(this.moduleTwo, never()).checkAccess(eq(this.user), eq(this.access),
+            anyCollectionOf(EntityReference.class));
+    }
+
+    @Test
+    public void exceptionsInModulesAreIgnoredInBulkChecks() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.checkAccess(eq(this.user), eq(this.access), anyCollectionOf(EntityReference.class)))
+            .thenThrow(new NullPointerException());
+        when(this.moduleTwo.checkAccess(eq(this.user), eq(this.access), anyCollectionOf(EntityReference.class)))
+            .thenReturn(Collections.<EntityReference, Boolean>singletonMap(this.document, true));
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().checkAccess(this.user, this.access,
+            Collections.singletonList(this.document)).get(this.document));
+    }
+
+    @Test
+    public void defaultModuleBulkCheckDelegatesToSingleChecks()
+    {
+        DocumentReference granted = new DocumentReference("xwiki", "data", "P0000001");
+        DocumentReference failing = new DocumentReference("xwiki", "data", "P0000002");
+        AuthorizationModule module = new AuthorizationModule()
+        {
+            @Override
+            public int getPriority()
+            {
+                return 100;
+            }
+
+            @Override
+            public Boolean hasAccess(User user, Right access, EntityReference entity)
+            {
+                if (failing.equals(entity)) {
+                    throw new IllegalStateException();
+                }
+                return true;
+            }
+        };
+
+        Collection<EntityReference> entities = Arrays.<EntityReference>asList(granted, failing);
+        Map<EntityReference, Boolean> result = module.checkAccess(this.user, this.access, entities);
+        Assert.assertTrue(result.get(granted));
+        Assert.assertNull(result.get(failing));
+    }
+
     private void resetMocks()
     {
         Mockito.reset(this.moduleOne, this.moduleTwo, this.moduleThree);
@@ -22,16 +22,13 @@
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
 
-import org.xwiki.cache.Cache;
-import org.xwiki.cache.CacheException;
-import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
-import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -39,12 +36,22 @@
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Consts;
@@ -55,13 +62,17 @@
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
 /**
- * Patient scorer that uses the remote service offered by the MONARCH initiative.
+ * Patient scorer that uses the remote service offered by the MONARCH initiative. Computed scores are persisted in a
+ * local store, keyed by a hash of the scored feature set, so that they survive restarts and are shared by all the
+ * patients with the same features. Concurrent requests for the same feature set are merged into a single remote call,
+ * and the number of simultaneous remote calls is bounded.
  *
  * @version $Id$
  * @since 1.0M12
@@ -73,6 +84,15 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
 {
     private static final String SCORER_NAME = "monarchinitiative.org";
 
+    /** The maximum number of simultaneous requests sent to the MONARCH server. */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /** The default request timeout, in milliseconds. */
+    private static final Integer DEFAULT_TIMEOUT = 2000;
+
+    /** How long a stored score is valid: one week. */
+    private static final long SCORE_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(7);
+
     @Inject
     private Logger logger;
 
@@ -80,41 +100,52 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
 
+    @Inject
+    private Environment environment;
+
     private String scorerURL;
 
+    /** The request timeout, in milliseconds. */
+    private int timeout;
+
     /** The HTTP client used for contacting the MONARCH server. */
     private CloseableHttpClient client;
 
-    @Inject
-    private CacheManager cacheManager;
+    private MonarchScoreStore store;
 
-    private Cache<PatientSpecificity> cache;
+    /** The remote requests currently running, keyed by the hash of the feature set being scored. */
+    private final ConcurrentMap<String, CompletableFuture<PatientSpecificity>> inFlight = new ConcurrentHashMap<>();
 
     @Override
     public void initialize() throws InitializationException
     {
-        try {
-            this.scorerURL = this.configuration
-                .getProperty("phenotips.patientScoring.monarch.serviceURL", "https://monarchinitiative.org/score");
-            CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", 2048, 3600);
-            this.cache = this.cacheManager.createNewCache(config);
-            this.client = HttpClients.createSystem();
-        } catch (CacheException ex) {
-            throw new InitializationException("Failed to create cache", ex);
-        }
+        this.scorerURL = this.configuration
+            .getProperty("phenotips.patientScoring.monarch.serviceURL", "https://monarchinitiative.org/score");
+        Integer configuredTimeout =
+            this.configuration.getProperty("phenotips.patientScoring.monarch.timeout", DEFAULT_TIMEOUT);
+        this.timeout = configuredTimeout == null ? DEFAULT_TIMEOUT : configuredTimeout;
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(MAX_CONNECTIONS);
+        connections.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        this.client = HttpClients.custom().useSystemProperties().setConnectionManager(connections).build();
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        this.store = new MonarchScoreStore(
+            permanentDirectory == null ? null : new File(permanentDirectory, "cache/monarch-scores.tsv"),
+            SCORE_TIME_TO_LIVE, SCORER_NAME, this.logger);
+        this.store.load();
     }
 
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
     {
-        String key = getCacheKey(patient);
-        PatientSpecificity result = this.cache.get(key);
+        SortedMap<String, Boolean> profile = getProfile(patient);
+        if (profile.isEmpty()) {
+            return new PatientSpecificity(0, now(), SCORER_NAME);
+        }
+        String key = getKey(profile);
+        PatientSpecificity result = this.store.get(key);
         if (result == null) {
-            double score = getScore(patient);
-            if (score != -1.0) {
-                // getScore populates the cache
-                result = this.cache.get(key);
-            }
+            result = fetch(key, profile, patient);
         }
         return result;
     }
@@ -122,71 +153,109 @@ public PatientSpecificity getSpecificity(Patient patient)
     @Override
     public double getScore(Patient patient)
     {
-        String key = getCacheKey(patient);
-        PatientSpecificity specificity = this.cache.get(key);
-        if (specificity != null) {
-            return specificity.getScore();
-        }
-        if (patient.getFeatures().isEmpty()) {
-            this.cache.set(key, new PatientSpecificity(0, now(), SCORER_NAME));
-            return 0;
+        PatientSpecificity specificity = getSpecificity(patient);
+        return specificity == null ? -1 : specificity.getScore();
+    }
+
+    /**
+     * Requests the score of a feature set from the MONARCH server, or waits for the result of an identical request
+     * that is already running.
+     *
+     * @param key the hash of the feature set
+     * @param profile the feature set
+     * @param patient the patient being scored, used for logging
+     * @return the computed score, or {@code null} if the server is not available
+     */
+    private PatientSpecificity fetch(String key, SortedMap<String, Boolean> profile, Patient patient)
+    {
+        CompletableFuture<PatientSpecificity> request = new CompletableFuture<>();
+        CompletableFuture<PatientSpecificity> running = this.inFlight.putIfAbsent(key, request);
+        if (running != null) {
+            try {
+                return running.get(2L * this.timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException ex) {
+                return null;
+            }
         }
-        CloseableHttpResponse response = null;
+        PatientSpecificity result = null;
         try {
-            JSONObject data = new JSONObject();
-            JSONArray features = new JSONArray();
-            for (Feature f : patient.getFeatures()) {
-                if (StringUtils.isNotEmpty(f.getId())) {
-                    JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getId()));
-                    if (!f.isPresent()) {
-                        featureObj.put("isPresent", false);
-                    }
-                    features.put(featureObj);
-                }
+            result = request(profile);
+            if (result != null) {
+                this.store.put(key, result);
             }
-            data.put("features", features);
-
-            HttpPost method = new HttpPost(this.scorerURL);
-            method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data.toString(), "UTF-8"),
-                ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8)));
-
-            RequestConfig config = RequestConfig.custom().setSocketTimeout(2000).setConnectTimeout(1000).build();
-            method.setConfig(config);
-            response = this.client.execute(method);
-            JSONObject score =
-                new JSONObject(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-            specificity = new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
-            this.cache.set(key, specificity);
-            return specificity.getScore();
         } catch (Exception ex) {
             // Just return failure below
             this.logger.error("Failed to compute specificity score for patient [{}] using the monarch server [{}]: {}",
                 patient.getDocumentReference(), this.scorerURL, ex.getMessage());
         } finally {
-            if (response != null) {
-                try {
-                    EntityUtils.consumeQuietly(response.getEntity());
-                    response.close();
-                } catch (IOException ex) {
-                    // Not dangerous
-                }
+            this.inFlight.remove(key, request);
+            request.complete(result);
+        }
+        return result;
+    }
+
+    private PatientSpecificity request(SortedMap<String, Boolean> profile) throws IOException
+    {
+        JSONObject data = new JSONObject();
+        JSONArray features = new JSONArray();
+        for (Map.Entry<String, Boolean> f : profile.entrySet()) {
+            JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getKey()));
+            if (!f.getValue()) {
+                featureObj.put("isPresent", false);
+            }
+            features.put(featureObj);
+        }
+        data.put("features", features);
+
+        HttpPost method = new HttpPost(this.scorerURL);
+        method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data.toString(), "UTF-8"),
+            ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8)));
+
+        RequestConfig config = RequestConfig.custom().setSocketTimeout(this.timeout)
+            .setConnectTimeout(this.timeout / 2).setConnectionRequestTimeout(this.timeout).build();
+        method.setConfig(config);
+        try (CloseableHttpResponse response = this.client.execute(method)) {
+            try {
+                JSONObject score =
+                    new JSONObject(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+                return new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
             }
         }
-        return -1;
     }
 
-    private String getCacheKey(Patient patient)
+    /**
+     * The canonical form of the scored features: the identifiers of the features, sorted, and whether they are
+     * observed or not. Features without an identifier are ignored, since they cannot be scored.
+     *
+     * @param patient the patient to score
+     * @return a sorted map from feature identifiers to their status
+     */
+    private SortedMap<String, Boolean> getProfile(Patient patient)
     {
-        StringBuilder result = new StringBuilder();
+        SortedMap<String, Boolean> result = new TreeMap<>();
         for (Feature f : patient.getFeatures()) {
             if (StringUtils.isNotEmpty(f.getId())) {
-                if (!f.isPresent()) {
-                    result.append('-');
-                }
-                result.append(f.getId());
+                result.put(f.getId(), f.isPresent());
+            }
+        }
+        return result;
+    }
+
+    private String getKey(SortedMap<String, Boolean> profile)
+    {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, Boolean> f : profile.entrySet()) {
+            if (!f.getValue()) {
+                result.append('-');
             }
+            result.append(f.getKey()).append(' ');
         }
-        return result.toString();
+        return DigestUtils.sha256Hex(result.toString());
     }
 
     private Date now()
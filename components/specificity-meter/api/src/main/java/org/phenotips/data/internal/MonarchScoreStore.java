@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * A local, persistent store for the scores computed by the MONARCH service, keyed by a hash of the scored feature set.
+ * At most {@link #MAX_ENTRIES} scores are kept, the least recently used ones being discarded first. Scores are kept in
+ * memory and appended to a file, one per line, so that they survive restarts; the file is compacted, keeping only the
+ * scores still held in memory, when the store is loaded and whenever it grows to more than twice the maximum number of
+ * kept scores.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class MonarchScoreStore
+{
+    /** The maximum number of scores kept. */
+    static final int MAX_ENTRIES = 2048;
+
+    private static final char SEPARATOR = '\t';
+
+    private final File file;
+
+    private final long timeToLive;
+
+    private final String computingMethod;
+
+    private final Logger logger;
+
+    /** The kept scores, the least recently used first. */
+    private final Map<String, PatientSpecificity> scores =
+        new LinkedHashMap<String, PatientSpecificity>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PatientSpecificity> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /** The number of lines in the file, including the ones holding replaced, expired or discarded scores. */
+    private int lines;
+
+    /**
+     * Simple constructor.
+     *
+     * @param file the file where scores are persisted, or {@code null} for a store that is only kept in memory
+     * @param timeToLive how long a score is valid, in milliseconds
+     * @param computingMethod the computing method reported for the stored scores
+     * @param logger the logger to report problems to
+     */
+    MonarchScoreStore(File file, long timeToLive, String computingMethod, Logger logger)
+    {
+        this.file = file;
+        this.timeToLive = timeToLive;
+        this.computingMethod = computingMethod;
+        this.logger = logger;
+    }
+
+    /**
+     * Loads the persisted scores, dropping the expired ones.
+     */
+    synchronized void load()
+    {
+        if (this.file == null || !this.file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ++this.lines;
+                String[] fields = StringUtils.split(line, SEPARATOR);
+                PatientSpecificity score = fields.length == 3 ? parse(fields[1], fields[2]) : null;
+                if (score != null && !isExpired(score)) {
+                    this.scores.put(fields[0], score);
+                }
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to load the stored MONARCH scores: {}", ex.getMessage());
+        }
+        if (this.lines > this.scores.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the stored score for a feature set, if one exists and hasn't expired.
+     *
+     * @param key the hash of the feature set
+     * @return the stored score, or {@code null}
+     */
+    synchronized PatientSpecificity get(String key)
+    {
+        PatientSpecificity result = this.scores.get(key);
+        if (result != null && isExpired(result)) {
+            this.scores.remove(key);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Stores a new score.
+     *
+     * @param key the hash of the feature set
+     * @param score the score to store
+     */
+    synchronized void put(String key, PatientSpecificity score)
+    {
+        this.scores.put(key, score);
+        if (this.file == null) {
+            return;
+        }
+        try {
+            this.file.getParentFile().mkdirs();
+            try (Writer out = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(format(key, score));
+            }
+            if (++this.lines > 2 * MAX_ENTRIES) {
+                compact();
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the MONARCH score: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of lines in the file
+     */
+    synchronized int getStoredLines()
+    {
+        return this.lines;
+    }
+
+    /**
+     * Rewrites the file with only the kept scores.
+     */
+    private void compact()
+    {
+        File tempFile = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, PatientSpecificity> score : this.scores.entrySet()) {
+                    out.write(format(score.getKey(), score.getValue()));
+                }
+            }
+            Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.lines = this.scores.size();
+        } catch (IOException ex) {
+            this.logger.warn("Failed to compact the stored MONARCH scores: {}", ex.getMessage());
+        }
+    }
+
+    private boolean isExpired(PatientSpecificity score)
+    {
+        return score.getComputationDate().getTime() + this.timeToLive < System.currentTimeMillis();
+    }
+
+    private String format(String key, PatientSpecificity score)
+    {
+        return key + SEPARATOR + score.getScore() + SEPARATOR + score.getComputationDate().getTime() + '\n';
+    }
+
+    private PatientSpecificity parse(String score, String date)
+    {
+        try {
+            return new PatientSpecificity(Double.parseDouble(score), new Date(Long.parseLong(date)),
+                this.computingMethod);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
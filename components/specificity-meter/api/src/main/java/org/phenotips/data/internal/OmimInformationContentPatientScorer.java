@@ -21,18 +21,12 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
-import org.phenotips.vocabulary.Vocabulary;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.component.phase.Initializable;
-import org.xwiki.component.phase.InitializationException;
 
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Set;
 import java.util.TimeZone;
 
 import javax.inject.Inject;
@@ -53,28 +47,11 @@
 @Component
 @Named("omimInformationContent")
 @Singleton
-public class OmimInformationContentPatientScorer implements PatientScorer, Initializable
+public class OmimInformationContentPatientScorer implements PatientScorer
 {
-    private static final String SEARCH_FOR = "symptom";
-
-    /** Provides access to the OMIM ontology, where the information content is checked. */
-    @Inject
-    @Named("omim")
-    private Vocabulary omim;
-
-    /** The HPO ontology, needed for accessing the ancestors of a term that might not be present in OMIM. */
+    /** The precomputed information content of each phenotype. */
     @Inject
-    @Named("hpo")
-    private Vocabulary hpo;
-
-    /** The total information present in OMIM that is reachable through phenotypes. */
-    private double totalTerms;
-
-    @Override
-    public void initialize() throws InitializationException
-    {
-        this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, "HP:0000001"));
-    }
+    private OmimInformationContentTable informationContent;
 
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
@@ -110,53 +87,13 @@ private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
         int count = 0;
         for (Feature f : p.getFeatures()) {
             if (StringUtils.isNotEmpty(f.getId()) && f.isPresent() == presentFeatures) {
-                score += informationContent(f);
+                score += this.informationContent.getInformationContent(f.getId());
                 count++;
             }
         }
         return new ImmutablePair<Double, Integer>(score, count);
     }
 
-    /**
-     * How much information is captured by a feature? In other words, how many diseases are selected by a feature out of
-     * the total selectable diseases. If a feature doesn't select any diseases at all, the information content of its
-     * nearest represented ancestor is considered, with a slight boost for even more specificity.
-     *
-     * @param f the target feature to measure
-     * @return the information content captured by this term
-     */
-    private double informationContent(Feature f)
-    {
-        String toSearch = f.getId();
-        double ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
-        int i = 0;
-
-        while (ic == 0 && ++i < 5) {
-            VocabularyTerm term = this.hpo.getTerm(toSearch);
-            if (term == null) {
-                break;
-            }
-            Set<VocabularyTerm> parents = term.getParents();
-            if (parents.isEmpty()) {
-                break;
-            }
-            toSearch = parents.iterator().next().getId();
-            ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
-        }
-        return ic * (1 + i / 5);
-    }
-
-    /**
-     * How much information is contained in {@code n} terms out of the whole ontology?
-     *
-     * @param n the number of selected terms
-     * @return the information content captured by the selected terms
-     */
-    private double informationContent(long n)
-    {
-        return n == 0 ? 0 : -Math.log((n * 1.0) / this.totalTerms) / Math.log(2);
-    }
-
     private Date now()
     {
         return Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT).getTime();
@@ -0,0 +1,335 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The information content of each HPO term with regards to identifying OMIM disorders. The number of disorders
+ * annotated with each term, or one of its descendants, is counted in a single pass over the OMIM vocabulary, by
+ * expanding the direct annotations of each disorder with their HPO ancestors. The resulting information content is
+ * stored in primitive arrays keyed by the numeric part of the HPO identifier, so that scoring a patient doesn't need
+ * any further vocabulary queries. The table is built when first needed, and {@link #clear() cleared} whenever the OMIM
+ * or HPO vocabularies are reindexed.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = OmimInformationContentTable.class)
+@Singleton
+public class OmimInformationContentTable
+{
+    /** The stored field holding the phenotypes directly annotated on a disorder, without their ancestors. */
+    private static final String DIRECT_SYMPTOMS = "actual_symptom";
+
+    /** The stored HPO field holding the ancestors of a term. */
+    private static final String ANCESTORS = "term_category";
+
+    private static final String ROOT = "HP:0000001";
+
+    private static final String HPO_PREFIX = "HP:";
+
+    private static final int PAGE_SIZE = 1000;
+
+    /** The maximum number of phenotypes looked up in one request, well below the Solr limit on boolean clauses. */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /** How many ancestors are checked for a term that doesn't select any disorders. */
+    private static final int MAX_ANCESTORS = 5;
+
+    /** Provides access to the OMIM ontology, where the information content is checked. */
+    @Inject
+    @Named("omim")
+    private Vocabulary omim;
+
+    /** The HPO ontology, needed for accessing the ancestors of a term that might not be present in OMIM. */
+    @Inject
+    @Named("hpo")
+    private Vocabulary hpo;
+
+    /** The current table, {@code null} until it is first needed. */
+    private volatile Table table;
+
+    /**
+     * The computed information content, for the terms selecting at least one disorder.
+     */
+    private static final class Table
+    {
+        /** The numeric part of the HPO identifiers, sorted. */
+        private final int[] ordinals;
+
+        /** The information content of the term found at the same position in {@link #ordinals}. */
+        private final double[] informationContent;
+
+        /** The final information content of terms not found in the table, computed from their ancestors. */
+        private final ConcurrentMap<String, Double> inherited = new ConcurrentHashMap<>();
+
+        Table(int[] ordinals, double[] informationContent)
+        {
+            this.ordinals = ordinals;
+            this.informationContent = informationContent;
+        }
+
+        double get(String termId)
+        {
+            int ordinal = getOrdinal(termId);
+            int position = ordinal < 0 ? -1 : Arrays.binarySearch(this.ordinals, ordinal);
+            return position < 0 ? 0 : this.informationContent[position];
+        }
+    }
+
+    /** Default constructor, used when this is instantiated as a component. */
+    public OmimInformationContentTable()
+    {
+        // Nothing to do, the vocabularies are injected
+    }
+
+    /**
+     * Constructor for a standalone table.
+     *
+     * @param omim the OMIM vocabulary
+     * @param hpo the HPO vocabulary
+     */
+    OmimInformationContentTable(Vocabulary omim, Vocabulary hpo)
+    {
+        this.omim = omim;
+        this.hpo = hpo;
+    }
+
+    /**
+     * How much information is captured by a feature? In other words, how many diseases are selected by a feature out of
+     * the total selectable diseases. If a feature doesn't select any diseases at all, the information content of its
+     * nearest represented ancestor is considered.
+     *
+     * @param termId the identifier of the target term
+     * @return the information content captured by this term
+     * @throws IllegalStateException if the table cannot be computed from the vocabularies
+     */
+    public double getInformationContent(String termId)
+    {
+        Table current = getTable();
+        double ic = current.get(termId);
+        if (ic != 0) {
+            return ic;
+        }
+        Double result = current.inherited.get(termId);
+        if (result == null) {
+            result = getInheritedInformationContent(termId, current);
+            current.inherited.put(termId, result);
+        }
+        return result;
+    }
+
+    /**
+     * Discards the computed table, so that it is built again from the vocabularies when next needed.
+     */
+    public void clear()
+    {
+        this.table = null;
+    }
+
+    private double getInheritedInformationContent(String termId, Table current)
+    {
+        String toSearch = termId;
+        double ic = 0;
+        int i = 0;
+
+        while (ic == 0 && ++i < MAX_ANCESTORS) {
+            VocabularyTerm term = this.hpo.getTerm(toSearch);
+            if (term == null) {
+                break;
+            }
+            Set<VocabularyTerm> parents = term.getParents();
+            if (parents.isEmpty()) {
+                break;
+            }
+            toSearch = parents.iterator().next().getId();
+            ic = current.get(toSearch);
+        }
+        return ic * (1 + i / MAX_ANCESTORS);
+    }
+
+    private Table getTable()
+    {
+        Table result = this.table;
+        if (result == null) {
+            synchronized (this) {
+                result = this.table;
+                if (result == null) {
+                    result = build();
+                    this.table = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the table from the vocabularies.
+     *
+     * @return the computed table
+     * @throws IllegalStateException if no disorder could be traced back to the root phenotype, which means that the
+     *             vocabularies are not available or that the lookups failed; the table is not kept, so that it is built
+     *             again on the next request instead of scoring every phenotype with 0
+     */
+    private Table build()
+    {
+        Map<String, Integer> counts = countDisorders();
+        Integer total = counts.get(ROOT);
+        if (total == null) {
+            throw new IllegalStateException(String.format("Failed to compute the OMIM information content:"
+                + " none of the %d annotated phenotypes could be traced back to %s", counts.size(), ROOT));
+        }
+
+        Map<Integer, Double> sorted = new TreeMap<>();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            int ordinal = getOrdinal(count.getKey());
+            if (ordinal >= 0) {
+                sorted.put(ordinal, -Math.log(count.getValue() * 1.0 / total) / Math.log(2));
+            }
+        }
+
+        int[] ordinals = new int[sorted.size()];
+        double[] informationContent = new double[sorted.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Double> entry : sorted.entrySet()) {
+            ordinals[i] = entry.getKey();
+            informationContent[i++] = entry.getValue();
+        }
+        return new Table(ordinals, informationContent);
+    }
+
+    /**
+     * Counts how many OMIM disorders are annotated with each phenotype, or one of its descendants. The indexed
+     * {@code symptom} field already holds the ancestors of the annotated phenotypes, but it isn't stored, so the stored
+     * direct annotations are expanded with their ancestors here, the same way the index does it.
+     *
+     * @return the number of disorders for each phenotype identifier
+     */
+    private Map<String, Integer> countDisorders()
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Collection<String>> selfAndAncestors = new HashMap<>();
+        Map<String, String> options = new HashMap<>();
+        options.put("rows", String.valueOf(PAGE_SIZE));
+        options.put("sort", "id asc");
+        options.put("spellcheck", Boolean.toString(false));
+        int start = 0;
+        List<VocabularyTerm> page;
+        do {
+            options.put("start", String.valueOf(start));
+            page = this.omim.search(Collections.singletonMap(DIRECT_SYMPTOMS, "*"), options);
+            List<Collection<String>> annotations = new ArrayList<>(page.size());
+            Set<String> unknown = new HashSet<>();
+            for (VocabularyTerm disorder : page) {
+                Collection<String> symptoms = getValues(disorder.get(DIRECT_SYMPTOMS));
+                annotations.add(symptoms);
+                for (String symptom : symptoms) {
+                    if (!selfAndAncestors.containsKey(symptom)) {
+                        unknown.add(symptom);
+                    }
+                }
+            }
+            resolveAncestors(unknown, selfAndAncestors);
+            for (Collection<String> symptoms : annotations) {
+                // Each disorder is counted once for a phenotype, even if several of its symptoms descend from it
+                Set<String> selected = new HashSet<>();
+                for (String symptom : symptoms) {
+                    selected.addAll(selfAndAncestors.get(symptom));
+                }
+                for (String phenotype : selected) {
+                    counts.merge(phenotype, 1, Integer::sum);
+                }
+            }
+            start += page.size();
+        } while (page.size() == PAGE_SIZE);
+        return counts;
+    }
+
+    /**
+     * Looks up the ancestors of the given phenotypes with as few HPO requests as the Solr query limits allow.
+     *
+     * @param termIds the identifiers of the phenotypes to resolve
+     * @param selfAndAncestors where the identifiers of each phenotype and its ancestors are stored; unknown phenotypes
+     *            only select themselves
+     */
+    private void resolveAncestors(Set<String> termIds, Map<String, Collection<String>> selfAndAncestors)
+    {
+        List<String> remaining = new ArrayList<>(termIds);
+        for (int start = 0; start < remaining.size(); start += MAX_BATCH_SIZE) {
+            List<String> batch = remaining.subList(start, Math.min(remaining.size(), start + MAX_BATCH_SIZE));
+            for (VocabularyTerm term : this.hpo.getTerms(batch)) {
+                Set<String> ids = new HashSet<>(getValues(term.get(ANCESTORS)));
+                ids.add(term.getId());
+                selfAndAncestors.put(term.getId(), ids);
+            }
+        }
+        for (String termId : termIds) {
+            selfAndAncestors.putIfAbsent(termId, Collections.singleton(termId));
+        }
+    }
+
+    private static Collection<String> getValues(Object value)
+    {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        Collection<?> values = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+        List<String> result = new ArrayList<>(values.size());
+        for (Object item : values) {
+            if (item != null) {
+                result.add(String.valueOf(item));
+            }
+        }
+        return result;
+    }
+
+    private static int getOrdinal(String termId)
+    {
+        if (!StringUtils.startsWith(termId, HPO_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(termId.substring(HPO_PREFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
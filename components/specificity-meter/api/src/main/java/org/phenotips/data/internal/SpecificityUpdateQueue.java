@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.Constants;
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.PatientSpecificityService;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Computes patient specificity in the background and stores it in the patient record, in a
+ * {@code PhenoTips.PatientSpecificityClass} object, so that loading or exporting a patient never waits for the,
+ * possibly remote, scorers. Each stored score records a fingerprint of the features it was computed from, so that it
+ * is only recomputed when the features change. The score is saved as a minor edit of a copy of the patient document,
+ * in the patient's own wiki, so that readers of the cached document never see a partly updated record. Requests for a
+ * patient that is already waiting in the queue are merged, and patients that don't fit in the queue are scheduled
+ * again once there is room.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = SpecificityUpdateQueue.class)
+@Singleton
+public class SpecificityUpdateQueue implements Initializable, Disposable
+{
+    /** The XClass used for storing the computed specificity. */
+    public static final EntityReference CLASS_REFERENCE = new EntityReference("PatientSpecificityClass",
+        EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+
+    /** The name of the property holding the score. */
+    public static final String SCORE = "score";
+
+    /** The name of the property holding the computation date. */
+    public static final String DATE = "date";
+
+    /** The name of the property holding the computing method. */
+    public static final String SERVER = "server";
+
+    /** The name of the property holding the fingerprint of the scored features. */
+    public static final String FEATURES = "features";
+
+    /** The maximum number of patients waiting for their specificity to be computed. */
+    private static final int MAX_PENDING = 1000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PatientSpecificityService service;
+
+    @Inject
+    private PatientRepository repository;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** The patients waiting in the queue. */
+    private final Set<DocumentReference> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The patients whose specificity is being computed right now. */
+    private final Set<DocumentReference> running = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The patients that didn't fit in the queue, to be scheduled again once there is room. */
+    private final Set<DocumentReference> dropped = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING), runnable -> {
+                Thread thread = new Thread(runnable, "PhenoTips patient specificity updater");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Computes a fingerprint of the features of a patient, so that a stored score can be matched to the features it
+     * was computed from.
+     *
+     * @param patient the patient whose features are checked
+     * @return a SHA-256 fingerprint, which changes whenever a feature is added, removed, or changes its status
+     */
+    public static String getFingerprint(Patient patient)
+    {
+        Set<String> features = new TreeSet<>();
+        for (Feature feature : patient.getFeatures()) {
+            features.add(StringUtils.defaultIfEmpty(feature.getId(), feature.getName()) + (feature.isPresent() ? '+'
+                : '-'));
+        }
+        return DigestUtils.sha256Hex(StringUtils.join(features, ','));
+    }
+
+    /**
+     * Checks if the specificity stored in the patient record, if any, still matches the patient's features.
+     *
+     * @param patient the patient to check
+     * @return {@code true} if a specificity is stored and was computed from the current features
+     */
+    public static boolean isUpToDate(Patient patient)
+    {
+        XWikiDocument doc = patient.getXDocument();
+        BaseObject stored = doc == null ? null : doc.getXObject(CLASS_REFERENCE);
+        return stored != null && getFingerprint(patient).equals(stored.getStringValue(FEATURES));
+    }
+
+    /**
+     * Schedules the computation of a patient's specificity, unless the stored one is up to date or the patient is
+     * already waiting in the queue. Patients that previously didn't fit in the queue are scheduled again as well, if
+     * there is room. Returns immediately.
+     *
+     * @param patient the patient to score
+     */
+    public void schedule(Patient patient)
+    {
+        if (patient != null && patient.getDocumentReference() != null && !isUpToDate(patient)) {
+            enqueue(patient.getDocumentReference());
+        }
+        retryDropped();
+    }
+
+    /**
+     * Schedules the computation of the specificity of a patient that doesn't have one stored yet. The patient's
+     * features are not checked here, since this is called while the patient is still being loaded; they are checked
+     * once the computation starts. Returns immediately.
+     *
+     * @param reference the document of the patient to score
+     */
+    public void schedule(DocumentReference reference)
+    {
+        // Loading the patient for computing its specificity must not schedule it again
+        if (reference != null && !this.running.contains(reference)) {
+            enqueue(reference);
+        }
+        retryDropped();
+    }
+
+    /**
+     * Adds a patient to the queue, unless it is already waiting.
+     *
+     * @param reference the patient to score
+     * @return {@code false} if the queue is full, {@code true} otherwise
+     */
+    private boolean enqueue(final DocumentReference reference)
+    {
+        if (!this.pending.add(reference)) {
+            return true;
+        }
+        try {
+            this.executor.execute(() -> update(reference));
+            this.dropped.remove(reference);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            this.pending.remove(reference);
+            if (this.dropped.add(reference)) {
+                this.logger.warn("Too many pending specificity computations, [{}] will be scheduled again later",
+                    reference);
+            }
+            return false;
+        }
+    }
+
+    private void retryDropped()
+    {
+        for (DocumentReference reference : this.dropped) {
+            if (this.executor.getQueue().remainingCapacity() == 0 || !enqueue(reference)) {
+                return;
+            }
+        }
+    }
+
+    private void update(DocumentReference reference)
+    {
+        this.running.add(reference);
+        // Changes made from now on will need a new computation
+        this.pending.remove(reference);
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            this.xcontextProvider.get().setWikiId(reference.getWikiReference().getName());
+            Patient patient = this.repository.get(reference);
+            if (patient == null || isUpToDate(patient)) {
+                return;
+            }
+            String fingerprint = getFingerprint(patient);
+            PatientSpecificity spec = this.service.getSpecificity(patient);
+            if (spec != null) {
+                store(reference, spec, fingerprint);
+            }
+        } catch (ExecutionContextException | XWikiException | RuntimeException ex) {
+            this.logger.warn("Failed to update the specificity of [{}]: {}", reference, ex.getMessage());
+        } finally {
+            this.running.remove(reference);
+            this.execution.removeContext();
+            retryDropped();
+        }
+    }
+
+    private void store(DocumentReference reference, PatientSpecificity spec, String fingerprint)
+        throws XWikiException
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        // Other threads read the cached document, so the score is set on a copy, which replaces it once saved
+        XWikiDocument doc = context.getWiki().getDocument(reference, context).clone();
+        BaseObject stored = doc.getXObject(CLASS_REFERENCE, true, context);
+        stored.setDoubleValue(SCORE, spec.getScore());
+        stored.setDateValue(DATE, spec.getComputationDate());
+        stored.setStringValue(SERVER, spec.getComputingMethod());
+        stored.setStringValue(FEATURES, fingerprint);
+        context.getWiki().saveDocument(doc, "Updated the patient specificity", true, context);
+    }
+}
@@ -21,9 +21,8 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
-import org.phenotips.data.PatientSpecificity;
-import org.phenotips.data.PatientSpecificityService;
 import org.phenotips.data.PatientWritePolicy;
+import org.phenotips.data.internal.SpecificityUpdateQueue;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
@@ -46,6 +45,9 @@
 
 import org.json.JSONObject;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
 /**
  * Exposes the patient profile specificity.
  *
@@ -61,9 +63,9 @@ public class SpecificityController implements PatientDataController<Object>, Ini
     /** The name of the data module exposed by this class. */
     private static final String NAME = "specificity";
 
-    /** The actual service performing the specificity computation. */
+    /** Computes the specificity in the background, for patients that don't have one stored yet. */
     @Inject
-    private PatientSpecificityService service;
+    private SpecificityUpdateQueue queue;
 
     private DateFormat isoDateFormat;
 
@@ -77,12 +79,19 @@ public void initialize() throws InitializationException
     @Override
     public PatientData<Object> load(Patient patient)
     {
-        PatientSpecificity spec = this.service.getSpecificity(patient);
-        if (spec != null) {
+        // The score is never computed here, since the scorers may be slow or remote; it is computed in the background
+        // when missing or when the features change, and outdated scores are still returned until the new ones are
+        // available
+        XWikiDocument doc = patient.getXDocument();
+        BaseObject stored = doc == null ? null : doc.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE);
+        if (doc != null && stored == null) {
+            this.queue.schedule(patient.getDocumentReference());
+        }
+        if (stored != null && stored.getDateValue(SpecificityUpdateQueue.DATE) != null) {
             Map<String, Object> data = new LinkedHashMap<String, Object>();
-            data.put("score", spec.getScore());
-            data.put("date", this.isoDateFormat.format(spec.getComputationDate()));
-            data.put("server", spec.getComputingMethod());
+            data.put("score", stored.getDoubleValue(SpecificityUpdateQueue.SCORE));
+            data.put("date", this.isoDateFormat.format(stored.getDateValue(SpecificityUpdateQueue.DATE)));
+            data.put("server", stored.getStringValue(SpecificityUpdateQueue.SERVER));
             return new DictionaryPatientData<Object>(NAME, data);
         }
         return null;
@@ -97,7 +106,7 @@ public void save(Patient patient)
     @Override
     public void save(final Patient patient, final PatientWritePolicy policy)
     {
-        // Nothing to save, the score is always computed
+        // Nothing to save, the score is stored by the update queue
     }
 
     @Override
@@ -130,7 +139,7 @@ public void writeJSON(Patient patient, JSONObject json, Collection<String> selec
     @Override
     public PatientData<Object> readJSON(JSONObject json)
     {
-        // No need to read this, the score is not persisted
+        // No need to read this, the score is always computed locally
         return null;
     }
 
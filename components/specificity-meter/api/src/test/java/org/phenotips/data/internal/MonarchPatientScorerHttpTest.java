@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientScorer;
+
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link MonarchPatientScorer} component talking to a local stub of the MONARCH server.
+ *
+ * @version $Id$
+ */
+public class MonarchPatientScorerHttpTest
+{
+    private static final String TIMEOUT_PROPERTY = "phenotips.patientScoring.monarch.timeout";
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientScorer> mocker =
+        new MockitoComponentMockingRule<PatientScorer>(MonarchPatientScorer.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /** How long the stub server waits before answering, in milliseconds. */
+    private volatile long delay;
+
+    /** Released when the stub server receives a request. */
+    private final CountDownLatch received = new CountDownLatch(1);
+
+    private HttpServer server;
+
+    private ConfigurationSource configuration;
+
+    private Patient patient;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/score", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
+            "https://monarchinitiative.org/score"))
+                .thenReturn("http://localhost:" + this.server.getAddress().getPort() + "/score");
+        when(this.configuration.getProperty(TIMEOUT_PROPERTY, 2000)).thenReturn(2000);
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+
+        Feature feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:1");
+        when(feature.isPresent()).thenReturn(true);
+        this.patient = mock(Patient.class);
+        Mockito.doReturn(Collections.singleton(feature)).when(this.patient).getFeatures();
+
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void scoreIsRequestedFromTheServer() throws Exception
+    {
+        Assert.assertEquals(0.5, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+        Assert.assertEquals(1, this.requests.get());
+    }
+
+    @Test
+    public void slowServerReturnsNegative1() throws Exception
+    {
+        this.delay = 2000;
+        when(this.configuration.getProperty(TIMEOUT_PROPERTY, 2000)).thenReturn(200);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(-1.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameFeaturesAreMerged() throws Exception
+    {
+        this.delay = 500;
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Double>> scores = new ArrayList<>();
+            scores.add(threads.submit(() -> this.mocker.getComponentUnderTest().getScore(this.patient)));
+            Assert.assertTrue(this.received.await(2, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; ++i) {
+                scores.add(threads.submit(() -> this.mocker.getComponentUnderTest().getScore(this.patient)));
+            }
+            for (Future<Double> score : scores) {
+                Assert.assertEquals(0.5, score.get(), 0.0);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        Assert.assertEquals(1, this.requests.get());
+    }
+
+    @Test
+    public void scoresAreStoredAcrossRestarts() throws Exception
+    {
+        Assert.assertEquals(0.5, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+        Assert.assertEquals(0.5, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+        Assert.assertEquals(1, this.requests.get());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        this.requests.incrementAndGet();
+        this.received.countDown();
+        try {
+            Thread.sleep(this.delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] response = "{\"scaled_score\":0.5}".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(200, response.length);
+            out.write(response);
+        } catch (IOException ex) {
+            // The client gave up waiting
+        }
+    }
+}
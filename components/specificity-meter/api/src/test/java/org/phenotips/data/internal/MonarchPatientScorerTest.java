@@ -22,10 +22,6 @@
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
 
-import org.xwiki.cache.Cache;
-import org.xwiki.cache.CacheException;
-import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -38,9 +34,11 @@
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
@@ -85,22 +83,18 @@
     @Mock
     private HttpEntity responseEntity;
 
-    @Mock
-    private Cache<PatientSpecificity> cache;
-
     private Set<Feature> features = new LinkedHashSet<>();
 
     @Before
-    public void setup() throws CacheException, ComponentLookupException
+    public void setup() throws ComponentLookupException
     {
         MockitoAnnotations.initMocks(this);
-        CacheManager cm = this.mocker.getInstance(CacheManager.class);
-        when(cm.<PatientSpecificity>createNewCache(any(CacheConfiguration.class))).thenReturn(this.cache);
 
         this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
         when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
             "https://monarchinitiative.org/score"))
                 .thenReturn("https://monarchinitiative.org/score");
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.timeout", 2000)).thenReturn(2000);
 
         Feature feature = mock(Feature.class);
         when(feature.getId()).thenReturn("HP:1");
@@ -151,16 +145,23 @@ public void getScoreSearchesRemotely() throws ComponentLookupException, URISynta
     }
 
     @Test
-    public void getScoreUsesCache() throws ComponentLookupException, URISyntaxException,
+    public void getScoreUsesStoredScores() throws ComponentLookupException, URISyntaxException,
         ClientProtocolException, IOException
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        PatientSpecificity spec = mock(PatientSpecificity.class);
-        when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
-        when(spec.getScore()).thenReturn(2.0);
-        double score = this.mocker.getComponentUnderTest().getScore(this.patient);
-        Assert.assertEquals(2.0, score, 0.0);
-        Mockito.verifyZeroInteractions(this.client);
+        when(this.client.execute(any(HttpUriRequest.class))).thenReturn(this.response);
+        when(this.response.getEntity()).thenReturn(this.responseEntity);
+        when(this.responseEntity.getContent())
+            .thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}", StandardCharsets.UTF_8));
+        Assert.assertEquals(2.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+
+        // Another patient with the same features, listed in a different order
+        Patient other = mock(Patient.class);
+        List<Feature> reversed = new ArrayList<>(this.features);
+        Collections.reverse(reversed);
+        Mockito.doReturn(new LinkedHashSet<>(reversed)).when(other).getFeatures();
+        Assert.assertEquals(2.0, this.mocker.getComponentUnderTest().getScore(other), 0.0);
+        Mockito.verify(this.client, Mockito.times(1)).execute(any(HttpUriRequest.class));
     }
 
     @Test
@@ -185,19 +186,18 @@ public void getScoreWithExceptionReturnsNegative1() throws Exception
         when(this.client.execute(any(HttpUriRequest.class))).thenThrow(new IOException());
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
         Assert.assertEquals(-1.0, score, 0.0);
-        Mockito.verify(this.cache, Mockito.never()).set(any(String.class), any(PatientSpecificity.class));
+        // Failures are not stored
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+        Mockito.verify(this.client, Mockito.times(2)).execute(any(HttpUriRequest.class));
     }
 
     @Test
     public void getSpecificityWithNoFeaturesReturns0() throws ComponentLookupException
     {
         Mockito.doReturn(Collections.emptySet()).when(this.patient).getFeatures();
-        CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
-        Mockito.doNothing().when(this.cache).set(Matchers.eq(""), Matchers.argThat(specCapture));
         Date d1 = new Date();
-        this.mocker.getComponentUnderTest().getSpecificity(this.patient);
+        PatientSpecificity spec = this.mocker.getComponentUnderTest().getSpecificity(this.patient);
         Date d2 = new Date();
-        PatientSpecificity spec = specCapture.getLastValue();
         Assert.assertEquals(0.0, spec.getScore(), 0.0);
         Assert.assertEquals("monarchinitiative.org", spec.getComputingMethod());
         Assert.assertFalse(d1.after(spec.getComputationDate()));
@@ -214,12 +214,9 @@ public void getSpecificitySearchesRemotely() throws Exception
         when(this.response.getEntity()).thenReturn(this.responseEntity);
         when(this.responseEntity.getContent())
             .thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}", StandardCharsets.UTF_8));
-        CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
-        Mockito.doNothing().when(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
         Date d1 = new Date();
-        this.mocker.getComponentUnderTest().getSpecificity(this.patient);
+        PatientSpecificity spec = this.mocker.getComponentUnderTest().getSpecificity(this.patient);
         Date d2 = new Date();
-        PatientSpecificity spec = specCapture.getLastValue();
         Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
         String content =
             URLDecoder.decode(IOUtils.toString(reqCapture.getLastValue().getEntity().getContent(), "UTF-8"), "UTF-8");
@@ -237,13 +234,16 @@ public void getSpecificitySearchesRemotely() throws Exception
     }
 
     @Test
-    public void getSpecificityUsesCache() throws Exception
+    public void getSpecificityUsesStoredScores() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        PatientSpecificity spec = mock(PatientSpecificity.class);
-        when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
+        when(this.client.execute(any(HttpUriRequest.class))).thenReturn(this.response);
+        when(this.response.getEntity()).thenReturn(this.responseEntity);
+        when(this.responseEntity.getContent())
+            .thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}", StandardCharsets.UTF_8));
+        PatientSpecificity spec = this.mocker.getComponentUnderTest().getSpecificity(this.patient);
         Assert.assertSame(spec, this.mocker.getComponentUnderTest().getSpecificity(this.patient));
-        Mockito.verifyZeroInteractions(this.client);
+        Mockito.verify(this.client, Mockito.times(1)).execute(any(HttpUriRequest.class));
     }
 
     @Test
@@ -256,16 +256,6 @@ public void getSpecificityWithNoResponseReturnsNull() throws Exception
         Assert.assertNull(this.mocker.getComponentUnderTest().getSpecificity(this.patient));
     }
 
-    @Test(expected = InitializationException.class)
-    public void initializationFailsWhenCreatingCacheFails() throws ComponentLookupException, CacheException,
-        InitializationException
-    {
-        CacheManager cm = this.mocker.getInstance(CacheManager.class);
-        when(cm.<PatientSpecificity>createNewCache(any(CacheConfiguration.class))).thenThrow(
-            new CacheException("failed"));
-        ((org.xwiki.component.phase.Initializable) this.mocker.getComponentUnderTest()).initialize();
-    }
-
     @Test
     public void checkURLConfigurable() throws ComponentLookupException, URISyntaxException,
         ClientProtocolException, IOException, InitializationException
@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificity;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the {@link MonarchScoreStore}.
+ *
+ * @version $Id$
+ */
+public class MonarchScoreStoreTest
+{
+    private static final long TTL = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setup()
+    {
+        this.file = new File(this.folder.getRoot(), "cache/monarch-scores.tsv");
+    }
+
+    @Test
+    public void storedScoresSurviveRestarts()
+    {
+        MonarchScoreStore store = newStore();
+        store.put("a", score(0.5));
+
+        store = newStore();
+        store.load();
+        Assert.assertEquals(0.5, store.get("a").getScore(), 0.0);
+        Assert.assertNull(store.get("b"));
+    }
+
+    @Test
+    public void leastRecentlyUsedScoresAreDiscarded()
+    {
+        MonarchScoreStore store = newStore();
+        for (int i = 0; i < MonarchScoreStore.MAX_ENTRIES; ++i) {
+            store.put("k" + i, score(i));
+        }
+        store.get("k0");
+        store.put("new", score(1));
+
+        Assert.assertNotNull(store.get("k0"));
+        Assert.assertNull(store.get("k1"));
+        Assert.assertNotNull(store.get("new"));
+    }
+
+    @Test
+    public void fileIsCompactedWhenItGrows() throws Exception
+    {
+        MonarchScoreStore store = newStore();
+        for (int i = 0; i <= 2 * MonarchScoreStore.MAX_ENTRIES; ++i) {
+            store.put("same", score(i));
+        }
+
+        Assert.assertEquals(1, store.getStoredLines());
+        Assert.assertEquals(1, Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8).size());
+        Assert.assertEquals(2 * MonarchScoreStore.MAX_ENTRIES, store.get("same").getScore(), 0.0);
+    }
+
+    @Test
+    public void fileIsCompactedOnLoad() throws Exception
+    {
+        MonarchScoreStore store = newStore();
+        store.put("a", score(1));
+        store.put("a", score(2));
+        store.put("b", new PatientSpecificity(3, new Date(System.currentTimeMillis() - 2 * TTL), "monarchinitiative"));
+
+        store = newStore();
+        store.load();
+        Assert.assertEquals(1, store.getStoredLines());
+        Assert.assertEquals(1, Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8).size());
+        Assert.assertEquals(2, store.get("a").getScore(), 0.0);
+        Assert.assertNull(store.get("b"));
+    }
+
+    private MonarchScoreStore newStore()
+    {
+        return new MonarchScoreStore(this.file, TTL, "monarchinitiative", mock(Logger.class));
+    }
+
+    private PatientSpecificity score(double value)
+    {
+        return new PatientSpecificity(value, new Date(), "monarchinitiative");
+    }
+}
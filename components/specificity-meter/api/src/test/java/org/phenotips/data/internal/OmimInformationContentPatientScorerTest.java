@@ -24,27 +24,42 @@
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
-import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OmimInformationContentPatientScorerTest
 {
+    private static final String DIRECT_SYMPTOM = "actual_symptom";
+
+    private static final String ANCESTORS = "term_category";
+
+    private static final String ROOT = "HP:0000001";
+
     @Rule
     public final MockitoComponentMockingRule<PatientScorer> mocker =
         new MockitoComponentMockingRule<>(OmimInformationContentPatientScorer.class);
@@ -52,45 +67,73 @@
     @Mock
     private Patient patient;
 
-    private Set<Feature> features = new LinkedHashSet<>();
-
+    @Mock
     private Vocabulary hpo;
 
+    @Mock
     private Vocabulary omim;
 
+    private Set<Feature> features = new LinkedHashSet<>();
+
+    private OmimInformationContentTable table;
+
     @Before
-    public void setup() throws CacheException, ComponentLookupException
+    public void setup() throws ComponentLookupException
     {
         MockitoAnnotations.initMocks(this);
         Feature feature = mock(Feature.class);
-        when(feature.getId()).thenReturn("HP:1");
+        when(feature.getId()).thenReturn("HP:0000101");
         when(feature.isPresent()).thenReturn(true);
         this.features.add(feature);
         feature = mock(Feature.class);
-        when(feature.getId()).thenReturn("HP:2");
+        when(feature.getId()).thenReturn("HP:0000102");
         when(feature.isPresent()).thenReturn(false);
         this.features.add(feature);
         feature = mock(Feature.class);
-        when(feature.getId()).thenReturn("HP:3");
+        when(feature.getId()).thenReturn("HP:0000103");
         when(feature.isPresent()).thenReturn(true);
         this.features.add(feature);
         feature = mock(Feature.class);
         when(feature.getName()).thenReturn("custom");
         this.features.add(feature);
 
-        this.hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
-        VocabularyTerm hp3 = mock(VocabularyTerm.class);
-        VocabularyTerm hp4 = mock(VocabularyTerm.class);
-        when(this.hpo.getTerm("HP:3")).thenReturn(hp3);
-        when(hp3.getParents()).thenReturn(Collections.singleton(hp4));
-        when(hp4.getId()).thenReturn("HP:4");
-
-        this.omim = this.mocker.getInstance(Vocabulary.class, "omim");
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:0000001"))).thenReturn(60L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:1"))).thenReturn(3L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:2"))).thenReturn(1L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:3"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:4"))).thenReturn(2L);
+        VocabularyTerm hp103 = mock(VocabularyTerm.class);
+        VocabularyTerm hp104 = mock(VocabularyTerm.class);
+        when(this.hpo.getTerm("HP:0000103")).thenReturn(hp103);
+        when(hp103.getParents()).thenReturn(Collections.singleton(hp104));
+        when(hp104.getId()).thenReturn("HP:0000104");
+
+        // 60 disorders with phenotypes: 3 with HP:0000101, 1 with HP:0000102, 2 with HP:0000104;
+        // like in the OMIM index, only the direct annotations are stored, the ancestors come from HPO
+        List<VocabularyTerm> disorders = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            VocabularyTerm disorder = mock(VocabularyTerm.class);
+            if (i < 3) {
+                when(disorder.get(DIRECT_SYMPTOM)).thenReturn(Arrays.asList("HP:0000101"));
+            } else if (i < 4) {
+                when(disorder.get(DIRECT_SYMPTOM)).thenReturn(Arrays.asList("HP:0000102"));
+            } else if (i < 6) {
+                when(disorder.get(DIRECT_SYMPTOM)).thenReturn(Arrays.asList("HP:0000104"));
+            } else {
+                when(disorder.get(DIRECT_SYMPTOM)).thenReturn(Collections.singletonList("HP:0000118"));
+            }
+            disorders.add(disorder);
+        }
+        when(this.hpo.getTerms(Matchers.anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Set<VocabularyTerm> result = new LinkedHashSet<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                VocabularyTerm term = mock(VocabularyTerm.class);
+                when(term.getId()).thenReturn((String) id);
+                when(term.get(ANCESTORS)).thenReturn(Collections.singletonList(ROOT));
+                result.add(term);
+            }
+            return result;
+        });
+        when(this.omim.search(Matchers.<Map<String, ?>>any(), Matchers.<Map<String, String>>any()))
+            .thenReturn(disorders);
+
+        this.table = new OmimInformationContentTable(this.omim, this.hpo);
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "informationContent", this.table);
     }
 
     @Test
@@ -127,42 +170,41 @@ public void getSpecificityUsesInformationContent() throws Exception
         Assert.assertEquals("local-omim", spec.getComputingMethod());
     }
 
+    @Test
+    public void informationContentIsComputedOnlyOnce() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        PatientScorer scorer = this.mocker.getComponentUnderTest();
+        scorer.getScore(this.patient);
+        Assert.assertEquals(0.56, scorer.getScore(this.patient), 0.01);
+
+        verify(this.omim, times(1)).search(Matchers.<Map<String, ?>>any(), Matchers.<Map<String, String>>any());
+        verify(this.omim, never()).count(Matchers.<Map<String, ?>>any());
+        verify(this.hpo, times(1)).getTerm("HP:0000103");
+        verify(this.hpo, times(1)).getTerms(Matchers.anyCollectionOf(String.class));
+
+        this.table.clear();
+        scorer.getScore(this.patient);
+        verify(this.omim, times(2)).search(Matchers.<Map<String, ?>>any(), Matchers.<Map<String, String>>any());
+    }
+
     @Test
     public void getScoreWithNonInformativeFeaturesReturns0() throws ComponentLookupException
     {
-        VocabularyTerm hp10 = mock(VocabularyTerm.class);
-        VocabularyTerm hp11 = mock(VocabularyTerm.class);
-        VocabularyTerm hp12 = mock(VocabularyTerm.class);
-        VocabularyTerm hp13 = mock(VocabularyTerm.class);
-        VocabularyTerm hp14 = mock(VocabularyTerm.class);
-        VocabularyTerm hp15 = mock(VocabularyTerm.class);
-        when(this.hpo.getTerm("HP:10")).thenReturn(hp10);
-        when(this.hpo.getTerm("HP:11")).thenReturn(hp11);
-        when(this.hpo.getTerm("HP:12")).thenReturn(hp12);
-        when(this.hpo.getTerm("HP:13")).thenReturn(hp13);
-        when(this.hpo.getTerm("HP:14")).thenReturn(hp14);
-        when(this.hpo.getTerm("HP:15")).thenReturn(hp15);
-        when(hp10.getId()).thenReturn("HP:10");
-        when(hp11.getId()).thenReturn("HP:11");
-        when(hp12.getId()).thenReturn("HP:12");
-        when(hp13.getId()).thenReturn("HP:13");
-        when(hp14.getId()).thenReturn("HP:14");
-        when(hp15.getId()).thenReturn("HP:15");
-        when(hp10.getParents()).thenReturn(Collections.singleton(hp11));
-        when(hp11.getParents()).thenReturn(Collections.singleton(hp12));
-        when(hp12.getParents()).thenReturn(Collections.singleton(hp13));
-        when(hp13.getParents()).thenReturn(Collections.singleton(hp14));
-        when(hp14.getParents()).thenReturn(Collections.singleton(hp15));
-
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:10"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:11"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:12"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:13"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:14"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:15"))).thenReturn(0L);
+        VocabularyTerm previous = null;
+        for (int i = 115; i >= 110; i--) {
+            VocabularyTerm term = mock(VocabularyTerm.class);
+            String id = "HP:0000" + i;
+            when(this.hpo.getTerm(id)).thenReturn(term);
+            when(term.getId()).thenReturn(id);
+            if (previous != null) {
+                when(term.getParents()).thenReturn(Collections.singleton(previous));
+            }
+            previous = term;
+        }
 
         Feature feature = mock(Feature.class);
-        when(feature.getId()).thenReturn("HP:10");
+        when(feature.getId()).thenReturn("HP:0000110");
         when(feature.isPresent()).thenReturn(true);
         Mockito.doReturn(Collections.singleton(feature)).when(this.patient).getFeatures();
 
@@ -172,14 +214,13 @@ public void getScoreWithNonInformativeFeaturesReturns0() throws ComponentLookupE
     @Test
     public void getScoreWithParentlessTermDoesntThrowException() throws ComponentLookupException
     {
-        VocabularyTerm hp10 = mock(VocabularyTerm.class);
-        when(this.hpo.getTerm("HP:10")).thenReturn(hp10);
-        when(hp10.getId()).thenReturn("HP:10");
-        when(hp10.getParents()).thenReturn(Collections.<VocabularyTerm>emptySet());
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:10"))).thenReturn(0L);
+        VocabularyTerm hp110 = mock(VocabularyTerm.class);
+        when(this.hpo.getTerm("HP:0000110")).thenReturn(hp110);
+        when(hp110.getId()).thenReturn("HP:0000110");
+        when(hp110.getParents()).thenReturn(Collections.<VocabularyTerm>emptySet());
 
         Feature feature = mock(Feature.class);
-        when(feature.getId()).thenReturn("HP:10");
+        when(feature.getId()).thenReturn("HP:0000110");
         when(feature.isPresent()).thenReturn(true);
         Mockito.doReturn(Collections.singleton(feature)).when(this.patient).getFeatures();
 
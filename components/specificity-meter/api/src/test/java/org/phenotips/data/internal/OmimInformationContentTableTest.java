@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link OmimInformationContentTable}, with vocabulary terms that only expose the stored fields of the
+ * OMIM and HPO indexes.
+ *
+ * @version $Id$
+ */
+public class OmimInformationContentTableTest
+{
+    private static final String ROOT = "HP:0000001";
+
+    private Vocabulary omim = mock(Vocabulary.class);
+
+    private Vocabulary hpo = mock(Vocabulary.class);
+
+    private Map<String, List<String>> ancestors = new HashMap<>();
+
+    /** The number of identifiers requested from the HPO vocabulary in each lookup. */
+    private List<Integer> batches = new ArrayList<>();
+
+    private OmimInformationContentTable table;
+
+    @Before
+    public void setup()
+    {
+        this.ancestors.put("HP:0000101", Arrays.asList("HP:0000100", ROOT));
+        this.ancestors.put("HP:0000102", Arrays.asList("HP:0000100", ROOT));
+        this.ancestors.put("HP:0000200", Collections.singletonList(ROOT));
+
+        List<VocabularyTerm> disorders = new ArrayList<>();
+        disorders.add(disorder("HP:0000101", "HP:0000102"));
+        disorders.add(disorder("HP:0000101"));
+        disorders.add(disorder("HP:0000200"));
+        disorders.add(disorder("HP:0000200"));
+        when(this.omim.search(Matchers.<Map<String, ?>>any(), Matchers.<Map<String, String>>any()))
+            .thenReturn(disorders);
+
+        when(this.hpo.getTerms(Matchers.anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Collection<?> ids = (Collection<?>) invocation.getArguments()[0];
+            this.batches.add(ids.size());
+            Set<VocabularyTerm> result = new LinkedHashSet<>();
+            for (Object id : ids) {
+                if (this.ancestors.containsKey(id)) {
+                    VocabularyTerm term = mock(VocabularyTerm.class);
+                    when(term.getId()).thenReturn((String) id);
+                    when(term.get("term_category")).thenReturn(this.ancestors.get(id));
+                    result.add(term);
+                }
+            }
+            return result;
+        });
+
+        this.table = new OmimInformationContentTable(this.omim, this.hpo);
+    }
+
+    @Test
+    public void annotationsAreReadFromTheStoredField()
+    {
+        this.table.getInformationContent(ROOT);
+
+        verify(this.omim).search(Matchers.eq(Collections.singletonMap("actual_symptom", "*")),
+            Matchers.<Map<String, String>>any());
+        Assert.assertEquals(2.0, this.table.getInformationContent("HP:0000102"), 0.0001);
+        Assert.assertEquals(1.0, this.table.getInformationContent("HP:0000101"), 0.0001);
+        Assert.assertEquals(1.0, this.table.getInformationContent("HP:0000200"), 0.0001);
+    }
+
+    @Test
+    public void ancestorsSelectTheDisordersOfTheirDescendants()
+    {
+        // Two of the four disorders have descendants of HP:0000100, one of them through two different phenotypes
+        Assert.assertEquals(1.0, this.table.getInformationContent("HP:0000100"), 0.0001);
+        // The root selects all the disorders
+        Assert.assertEquals(0.0, this.table.getInformationContent(ROOT), 0.0001);
+    }
+
+    @Test
+    public void unknownPhenotypesOnlySelectThemselves()
+    {
+        this.ancestors.remove("HP:0000200");
+        this.table.clear();
+
+        // Only the two disorders annotated with a known phenotype are reached from the root
+        Assert.assertEquals(0.0, this.table.getInformationContent("HP:0000100"), 0.0001);
+        Assert.assertEquals(0.0, this.table.getInformationContent("HP:0000200"), 0.0001);
+        Assert.assertEquals(1.0, this.table.getInformationContent("HP:0000102"), 0.0001);
+    }
+
+    @Test
+    public void manyPhenotypesAreResolvedInBoundedBatches()
+    {
+        List<VocabularyTerm> disorders = new ArrayList<>();
+        for (int i = 1000; i < 2200; ++i) {
+            String symptom = String.format("HP:%07d", i);
+            this.ancestors.put(symptom, Collections.singletonList(ROOT));
+            disorders.add(disorder(symptom));
+        }
+        when(this.omim.search(Matchers.<Map<String, ?>>any(), Matchers.<Map<String, String>>any()))
+            .thenReturn(disorders);
+        this.table.clear();
+        this.batches.clear();
+
+        Assert.assertEquals(0.0, this.table.getInformationContent(ROOT), 0.0001);
+        Assert.assertEquals(Math.log(1200) / Math.log(2), this.table.getInformationContent("HP:0001000"), 0.0001);
+        Assert.assertEquals(Math.log(1200) / Math.log(2), this.table.getInformationContent("HP:0002199"), 0.0001);
+        Assert.assertEquals(Arrays.asList(500, 500, 200), this.batches);
+    }
+
+    @Test
+    public void failedLookupsAreReportedAndRetried()
+    {
+        Map<String, List<String>> available = new HashMap<>(this.ancestors);
+        // The HPO vocabulary swallows errors and returns no terms
+        this.ancestors.clear();
+
+        try {
+            this.table.getInformationContent("HP:0000102");
+            Assert.fail("An empty table must not be used for scoring");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        this.ancestors.putAll(available);
+        Assert.assertEquals(2.0, this.table.getInformationContent("HP:0000102"), 0.0001);
+    }
+
+    private VocabularyTerm disorder(String... symptoms)
+    {
+        VocabularyTerm disorder = mock(VocabularyTerm.class);
+        when(disorder.get("actual_symptom")).thenReturn(Arrays.asList(symptoms));
+        // Not stored in the OMIM index, so never returned
+        when(disorder.get("symptom")).thenReturn(null);
+        return disorder;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.PatientSpecificityService;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SpecificityUpdateQueueTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<SpecificityUpdateQueue> mocker =
+        new MockitoComponentMockingRule<>(SpecificityUpdateQueue.class);
+
+    @Mock
+    private Patient patient;
+
+    @Mock
+    private XWikiDocument doc;
+
+    @Mock
+    private BaseObject stored;
+
+    @Mock
+    private XWikiContext context;
+
+    private Feature present;
+
+    private Feature absent;
+
+    @Before
+    public void setup() throws ComponentLookupException
+    {
+        MockitoAnnotations.initMocks(this);
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        this.present = mock(Feature.class);
+        when(this.present.getId()).thenReturn("HP:0000001");
+        when(this.present.isPresent()).thenReturn(true);
+        this.absent = mock(Feature.class);
+        when(this.absent.getId()).thenReturn("HP:0000002");
+        when(this.absent.isPresent()).thenReturn(false);
+        setFeatures(this.present, this.absent);
+
+        when(this.patient.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "P0000001"));
+        when(this.patient.getXDocument()).thenReturn(this.doc);
+    }
+
+    @Test
+    public void fingerprintIgnoresFeatureOrder()
+    {
+        String fingerprint = SpecificityUpdateQueue.getFingerprint(this.patient);
+        setFeatures(this.absent, this.present);
+        Assert.assertEquals(fingerprint, SpecificityUpdateQueue.getFingerprint(this.patient));
+    }
+
+    @Test
+    public void fingerprintChangesWithFeatureStatus()
+    {
+        String fingerprint = SpecificityUpdateQueue.getFingerprint(this.patient);
+        when(this.absent.isPresent()).thenReturn(true);
+        Assert.assertNotEquals(fingerprint, SpecificityUpdateQueue.getFingerprint(this.patient));
+    }
+
+    @Test
+    public void fingerprintIsASHA256Digest()
+    {
+        String fingerprint = SpecificityUpdateQueue.getFingerprint(this.patient);
+        Assert.assertEquals(64, fingerprint.length());
+        Assert.assertTrue(fingerprint.matches("[0-9a-f]+"));
+    }
+
+    @Test
+    public void storedSpecificityIsUpToDateOnlyForTheSameFeatures()
+    {
+        Assert.assertFalse(SpecificityUpdateQueue.isUpToDate(this.patient));
+
+        when(this.doc.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE)).thenReturn(this.stored);
+        when(this.stored.getStringValue("features")).thenReturn(SpecificityUpdateQueue.getFingerprint(this.patient));
+        Assert.assertTrue(SpecificityUpdateQueue.isUpToDate(this.patient));
+
+        setFeatures(this.present);
+        Assert.assertFalse(SpecificityUpdateQueue.isUpToDate(this.patient));
+    }
+
+    @Test
+    public void upToDatePatientsAreNotScheduled() throws ComponentLookupException
+    {
+        when(this.doc.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE)).thenReturn(this.stored);
+        when(this.stored.getStringValue("features")).thenReturn(SpecificityUpdateQueue.getFingerprint(this.patient));
+
+        this.mocker.getComponentUnderTest().schedule(this.patient);
+        this.mocker.getComponentUnderTest().schedule((Patient) null);
+
+        Mockito.verifyZeroInteractions(this.mocker.getInstance(PatientSpecificityService.class));
+        Mockito.verifyZeroInteractions(this.mocker.getInstance(PatientRepository.class));
+    }
+
+    @Test
+    public void scoreIsSavedOnACopyInThePatientWiki() throws Exception
+    {
+        this.patient = mock(Patient.class);
+        when(this.patient.getDocumentReference()).thenReturn(new DocumentReference("other", "data", "P0000001"));
+        when(this.patient.getXDocument()).thenReturn(this.doc);
+        setFeatures(this.present, this.absent);
+        XWikiContext context = this.context;
+        XWiki xwiki = mock(XWiki.class);
+        XWikiDocument copy = mock(XWikiDocument.class);
+        when(context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getDocument(this.patient.getDocumentReference(), context)).thenReturn(this.doc);
+        when(this.doc.clone()).thenReturn(copy);
+        when(copy.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE, true, context)).thenReturn(this.stored);
+        when(this.mocker.getInstance(PatientRepository.class).get(this.patient.getDocumentReference()))
+            .thenReturn(this.patient);
+        PatientSpecificity spec = new PatientSpecificity(0.5, new Date(), "local-omim");
+        when(this.mocker.getInstance(PatientSpecificityService.class).getSpecificity(this.patient)).thenReturn(spec);
+
+        this.mocker.getComponentUnderTest().schedule(this.patient);
+
+        verify(xwiki, timeout(10000)).saveDocument(eq(copy), anyString(), eq(true), eq(context));
+        InOrder order = inOrder(context, this.stored, xwiki);
+        order.verify(context).setWikiId("other");
+        order.verify(this.stored).setDoubleValue("score", 0.5);
+        order.verify(this.stored).setStringValue("features", SpecificityUpdateQueue.getFingerprint(this.patient));
+        order.verify(xwiki).saveDocument(eq(copy), anyString(), eq(true), eq(context));
+        // The shared cached document is left untouched
+        verify(this.doc, never()).getXObject(eq(SpecificityUpdateQueue.CLASS_REFERENCE), anyBoolean(),
+            any(XWikiContext.class));
+        verify(xwiki, never()).getHibernateStore();
+    }
+
+    @Test
+    public void patientsWithoutStoredSpecificityAreScheduledByReference() throws Exception
+    {
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        DocumentReference reference = this.patient.getDocumentReference();
+        final SpecificityUpdateQueue queue = this.mocker.getComponentUnderTest();
+        // Loading the patient for the computation schedules it again, which must be ignored
+        when(repository.get(reference)).thenAnswer(invocation -> {
+            queue.schedule(reference);
+            return null;
+        });
+
+        queue.schedule(reference);
+        queue.schedule((DocumentReference) null);
+
+        verify(repository, timeout(10000)).get(reference);
+        Thread.sleep(200);
+        verify(repository, times(1)).get(reference);
+    }
+
+    @Test
+    public void droppedPatientsAreScheduledAgainLater() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        when(repository.get(any(DocumentReference.class))).thenAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return null;
+        });
+
+        // One patient is being processed, 1000 are waiting, and the last one doesn't fit
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 1002; i++) {
+            Patient other = mock(Patient.class);
+            when(other.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "P" + i));
+            patients.add(other);
+        }
+        SpecificityUpdateQueue queue = this.mocker.getComponentUnderTest();
+        queue.schedule(patients.get(0));
+        verify(repository, timeout(10000)).get(patients.get(0).getDocumentReference());
+        for (Patient other : patients.subList(1, patients.size())) {
+            queue.schedule(other);
+        }
+        DocumentReference last = patients.get(1001).getDocumentReference();
+        verify(this.mocker.getMockedLogger()).warn(anyString(), eq(last));
+
+        release.countDown();
+        verify(repository, timeout(10000)).get(last);
+        verify(repository, times(1002)).get(any(DocumentReference.class));
+    }
+
+    private void setFeatures(Feature... features)
+    {
+        Set<Feature> result = new LinkedHashSet<>(Arrays.asList(features));
+        Mockito.doReturn(result).when(this.patient).getFeatures();
+    }
+}
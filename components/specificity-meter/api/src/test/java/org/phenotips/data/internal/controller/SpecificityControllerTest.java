@@ -22,11 +22,11 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
-import org.phenotips.data.PatientSpecificity;
-import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.internal.SpecificityUpdateQueue;
 
 import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.text.DateFormat;
@@ -48,6 +48,9 @@
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
 import static org.mockito.Mockito.when;
 
 public class SpecificityControllerTest
@@ -60,9 +63,10 @@
     private Patient patient;
 
     @Mock
-    private PatientSpecificity spec;
+    private XWikiDocument doc;
 
-    private PatientSpecificityService service;
+    @Mock
+    private BaseObject stored;
 
     private Date date;
 
@@ -76,17 +80,16 @@ public void setup() throws CacheException, ComponentLookupException
         MockitoAnnotations.initMocks(this);
         this.isoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
         this.isoDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        this.service = this.mocker.getInstance(PatientSpecificityService.class);
-        when(this.spec.getComputingMethod()).thenReturn("monarchinitiative.org");
+        when(this.patient.getXDocument()).thenReturn(this.doc);
+        when(this.doc.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE)).thenReturn(this.stored);
+        when(this.stored.getStringValue("server")).thenReturn("monarchinitiative.org");
         Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT+02:00"), Locale.ROOT);
         c.set(2010, 2, 20, 14, 20, 0);
         c.set(Calendar.MILLISECOND, 12);
         this.date = c.getTime();
         this.dateStr = this.isoDateFormat.format(this.date);
-        when(this.spec.getComputationDate()).thenReturn(this.date);
-        when(this.spec.getScore()).thenReturn(0.25);
-
-        when(this.service.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.stored.getDateValue("date")).thenReturn(this.date);
+        when(this.stored.getDoubleValue("score")).thenReturn(0.25);
     }
 
     @Test
@@ -101,10 +104,21 @@ public void load() throws ComponentLookupException
     }
 
     @Test
-    public void loadWithNoSpecificityDoesNothing() throws ComponentLookupException
+    public void loadWithNoSpecificitySchedulesIt() throws ComponentLookupException
     {
-        when(this.service.getSpecificity(this.patient)).thenReturn(null);
+        DocumentReference reference = new DocumentReference("xwiki", "data", "P0000001");
+        when(this.patient.getDocumentReference()).thenReturn(reference);
+        when(this.doc.getXObject(SpecificityUpdateQueue.CLASS_REFERENCE)).thenReturn(null);
         Assert.assertNull(this.mocker.getComponentUnderTest().load(this.patient));
+        Mockito.verify(this.mocker.<SpecificityUpdateQueue>getInstance(SpecificityUpdateQueue.class))
+            .schedule(reference);
+    }
+
+    @Test
+    public void loadWithStoredSpecificityDoesNotScheduleIt() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().load(this.patient);
+        Mockito.verifyZeroInteractions(this.mocker.<SpecificityUpdateQueue>getInstance(SpecificityUpdateQueue.class));
     }
 
     @Test
@@ -193,7 +207,7 @@ public void saveDoesNothing() throws ComponentLookupException
     {
         this.mocker.getComponentUnderTest().save(this.patient);
         this.mocker.getComponentUnderTest().save(null);
-        Mockito.verifyZeroInteractions(this.service);
+        Mockito.verifyZeroInteractions(this.patient);
     }
 
     @Test
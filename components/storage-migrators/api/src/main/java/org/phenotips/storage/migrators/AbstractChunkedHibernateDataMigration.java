@@ -0,0 +1,292 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.migration.DataMigrationException;
+import com.xpn.xwiki.store.migration.hibernate.AbstractHibernateDataMigration;
+
+/**
+ * Base class for Hibernate data migrations going through many documents. Instead of loading the names of all the
+ * matching documents at once and migrating them in a single session, documents are processed in chunks:
+ * <ul>
+ * <li>the names of the documents are fetched one chunk at a time, using keyset pagination, so that each query stays
+ * cheap regardless of the size of the database</li>
+ * <li>each chunk is saved and committed in its own transaction</li>
+ * <li>after each committed chunk, the name of its last document is stored as a checkpoint in the permanent directory,
+ * so that an interrupted migration resumes from there instead of starting over</li>
+ * <li>optionally, the documents of a chunk are migrated by several {@link #getWorkers() workers} in parallel, which is
+ * only safe if migrating a document doesn't read or change other documents</li>
+ * </ul>
+ * A document may be migrated twice if the migration is interrupted before the checkpoint is stored, so
+ * {@link #migrate(XWikiDocument, XWikiContext)} must be idempotent; a documents query that only selects documents still
+ * needing the migration is usually enough.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public abstract class AbstractChunkedHibernateDataMigration extends AbstractHibernateDataMigration
+{
+    /** The name of the query parameter holding the name of the last document already processed. */
+    protected static final String LAST_DOCUMENT_PARAMETER = "lastDocument";
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+
+    private static final String CHECKPOINTS_DIRECTORY = "migrations";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the permanent directory, where checkpoints are stored. */
+    @Inject
+    private Environment environment;
+
+    /** Resolves document names to the migrated wiki. */
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /**
+     * Creates the query listing the documents to migrate. The query must select document names, only those greater
+     * than the {@value #LAST_DOCUMENT_PARAMETER} named parameter, ordered by name, for example:
+     * {@code select distinct o.name from BaseObject o where o.className = 'PhenoTips.PatientClass'
+     * and o.name > :lastDocument order by o.name}. The parameter value and the maximum number of results are set by
+     * this class.
+     *
+     * @param session the current Hibernate session
+     * @return the documents query
+     */
+    protected abstract Query createDocumentsQuery(Session session);
+
+    /**
+     * Migrates one document. The document is saved afterwards, if needed, along with the rest of its chunk.
+     *
+     * @param document the document to migrate
+     * @param context the context to use for loading other data; when running with several workers, this is the
+     *            worker's own context
+     * @return {@code true} if the document was changed and must be saved, {@code false} otherwise
+     * @throws XWikiException if migrating the document fails; the current chunk is not committed, and the migration
+     *             stops, to be resumed at the next startup
+     */
+    protected abstract boolean migrate(XWikiDocument document, XWikiContext context) throws XWikiException;
+
+    /**
+     * The number of documents migrated and committed together.
+     *
+     * @return a positive number, {@code 100} by default
+     */
+    protected int getChunkSize()
+    {
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * The number of documents migrated in parallel. Override only if migrating a document doesn't depend on other
+     * documents being migrated or not.
+     *
+     * @return a positive number, {@code 1} by default
+     */
+    protected int getWorkers()
+    {
+        return 1;
+    }
+
+    @Override
+    public void hibernateMigrate() throws DataMigrationException, XWikiException
+    {
+        XWikiContext context = getXWikiContext();
+        File checkpoint = getCheckpointFile(context.getWikiId());
+        String lastDocument = readCheckpoint(checkpoint);
+        if (!lastDocument.isEmpty()) {
+            this.logger.info("Resuming migration [{}] after document [{}]", getName(), lastDocument);
+        }
+
+        ExecutorService workers = getWorkers() > 1 ? Executors.newFixedThreadPool(getWorkers()) : null;
+        int count = 0;
+        try {
+            List<String> chunk;
+            do {
+                chunk = getNextChunk(lastDocument, context);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                if (workers == null) {
+                    migrateChunk(chunk, context);
+                } else {
+                    migrateInParallel(chunk, context.getWikiId(), workers);
+                }
+                lastDocument = chunk.get(chunk.size() - 1);
+                writeCheckpoint(checkpoint, lastDocument);
+                count += chunk.size();
+                this.logger.info("Migration [{}]: processed [{}] documents", getName(), count);
+            } while (chunk.size() >= getChunkSize());
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+
+        if (checkpoint.exists() && !checkpoint.delete()) {
+            this.logger.warn("Failed to delete the checkpoint [{}] of the finished migration [{}]", checkpoint,
+                getName());
+        }
+    }
+
+    private List<String> getNextChunk(final String lastDocument, XWikiContext context) throws XWikiException
+    {
+        List<String> result = getStore().executeRead(context, session -> {
+            Query query = createDocumentsQuery(session);
+            query.setString(LAST_DOCUMENT_PARAMETER, lastDocument);
+            query.setMaxResults(getChunkSize());
+            @SuppressWarnings("unchecked")
+            List<String> names = query.list();
+            return names;
+        });
+        return result == null ? Collections.<String>emptyList() : result;
+    }
+
+    private void migrateChunk(final List<String> documents, final XWikiContext context) throws XWikiException
+    {
+        final WikiReference wiki = new WikiReference(context.getWikiId());
+        getStore().executeWrite(context, session -> {
+            for (String name : documents) {
+                XWikiDocument doc = context.getWiki().getDocument(this.resolver.resolve(name, wiki), context);
+                if (!migrate(doc, context)) {
+                    continue;
+                }
+                // There's a bug in XWiki which prevents saving an object in the same session that it was loaded,
+                // so we must clear the session cache first.
+                session.clear();
+                ((XWikiHibernateStore) getStore()).saveXWikiDoc(doc, context, false);
+                session.flush();
+            }
+            return null;
+        });
+    }
+
+    private void migrateInParallel(List<String> chunk, final String wikiId, ExecutorService workers)
+        throws DataMigrationException
+    {
+        int partSize = (chunk.size() + getWorkers() - 1) / getWorkers();
+        List<Future<Void>> results = new ArrayList<>();
+        for (int start = 0; start < chunk.size(); start += partSize) {
+            final List<String> part = chunk.subList(start, Math.min(chunk.size(), start + partSize));
+            results.add(workers.submit(() -> {
+                migrateInWorker(part, wikiId);
+                return null;
+            }));
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new DataMigrationException("Interrupted while running migration " + getName(), ex);
+            } catch (ExecutionException ex) {
+                throw new DataMigrationException("Failed to run migration " + getName(), ex.getCause());
+            }
+        }
+    }
+
+    private void migrateInWorker(List<String> documents, String wikiId) throws Exception
+    {
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            XWikiContext context = this.xcontextProvider.get();
+            context.setWikiId(wikiId);
+            migrateChunk(documents, context);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private File getCheckpointFile(String wikiId)
+    {
+        return new File(new File(this.environment.getPermanentDirectory(), CHECKPOINTS_DIRECTORY),
+            wikiId + '-' + getName() + ".checkpoint");
+    }
+
+    private String readCheckpoint(File checkpoint)
+    {
+        if (!checkpoint.exists()) {
+            return "";
+        }
+        try {
+            return new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the checkpoint of migration [{}], starting over: {}", getName(),
+                ex.getMessage());
+            return "";
+        }
+    }
+
+    private void writeCheckpoint(File checkpoint, String lastDocument)
+    {
+        try {
+            Files.createDirectories(checkpoint.getParentFile().toPath());
+            File temp = new File(checkpoint.getParentFile(), checkpoint.getName() + ".tmp");
+            Files.write(temp.toPath(), lastDocument.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Not fatal, the migration will just start over if interrupted
+            this.logger.warn("Failed to store the checkpoint of migration [{}]: {}", getName(), ex.getMessage());
+        }
+    }
+}
@@ -25,20 +25,37 @@
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
 /**
  * Implementation for the {@link DataTypeMigrator} role, which tries to use all available {@link DataReader}s that
  * {@link DataReader#hasData() have data} and {@link DataWriter#storeEntity(Object) write} the retrieved data to the
- * currently enabled {@link DataWriter storage engine}.
+ * currently enabled {@link DataWriter storage engine}. By default each entity is read, stored and discarded before
+ * reading the next one; migrators of large entities can {@link #getPipelineWorkers() enable a pipeline}, where entities
+ * are stored and discarded by background workers while the next ones are read.
  *
  * @param <T> the type of data managed by this migrator, one of the classes from the data model
  * @version $Id$
@@ -49,6 +66,16 @@
     /** The current default storage engine assumed by XWiki if no specific store is enabled. */
     private static final String DEFAULT_STORE = "hibernate";
 
+    /** Marks the end of the data in the pipeline queue. */
+    private static final Object END_OF_DATA = new Object();
+
+    /** How long to wait for room in the pipeline queue before checking that the workers are still running. */
+    private static final long QUEUE_WAIT_SECONDS = 1;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     /** Provides access tot the configuration file where the storage engines are configured. */
     @Inject
     @Named("legacy")
@@ -58,6 +85,15 @@
     @Inject
     private Provider<ComponentManager> cm;
 
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
     @Override
     public boolean migrate()
     {
@@ -80,16 +116,140 @@ public boolean migrate()
             }
 
             Iterator<T> data = reader.getData();
-            while (data.hasNext()) {
+            if (getPipelineWorkers() > 0) {
+                allDataMigrated = migratePipelined(data, reader, writer) && allDataMigrated;
+            } else {
+                while (data.hasNext()) {
+                    T item = data.next();
+                    if (writer.storeEntity(item)) {
+                        reader.discardEntity(item);
+                    } else {
+                        allDataMigrated = false;
+                    }
+                }
+            }
+        }
+        return allDataMigrated;
+    }
+
+    /**
+     * The number of background workers storing and discarding entities while the next ones are read. Entities waiting
+     * for a worker are kept in a queue twice as large, so at most {@code 3 * workers + 1} entities are held at once.
+     *
+     * @return {@code 0}, the default, to migrate entities one at a time, or a positive number of workers
+     */
+    protected int getPipelineWorkers()
+    {
+        return 0;
+    }
+
+    private boolean migratePipelined(Iterator<T> data, DataReader<T> reader, DataWriter<T> writer)
+    {
+        int workers = getPipelineWorkers();
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(2 * workers);
+        AtomicBoolean allDataMigrated = new AtomicBoolean(true);
+        AtomicInteger liveWorkers = new AtomicInteger(workers);
+        String wikiId = this.xcontextProvider.get().getWikiId();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; ++i) {
+            executor.execute(() -> {
+                try {
+                    storeQueued(queue, wikiId, reader, writer, allDataMigrated);
+                } finally {
+                    liveWorkers.decrementAndGet();
+                }
+            });
+        }
+        try {
+            boolean workersAlive = true;
+            while (workersAlive && data.hasNext()) {
                 T item = data.next();
-                if (writer.storeEntity(item)) {
-                    reader.discardEntity(item);
+                if (item == null) {
+                    // Failed to read this entity, keep it in the old store
+                    allDataMigrated.set(false);
                 } else {
-                    allDataMigrated = false;
+                    workersAlive = enqueue(queue, item, liveWorkers);
                 }
             }
+            for (int i = 0; workersAlive && i < workers; ++i) {
+                workersAlive = enqueue(queue, END_OF_DATA, liveWorkers);
+            }
+            if (!workersAlive) {
+                this.logger.error("All the data migration workers stopped, aborting the migration");
+                allDataMigrated.set(false);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            allDataMigrated.set(false);
+        } finally {
+            executor.shutdownNow();
         }
-        return allDataMigrated;
+        return allDataMigrated.get();
+    }
+
+    /**
+     * Waits for room in the queue, as long as there still are workers to empty it.
+     *
+     * @return {@code false} if the item could not be queued because no worker is left
+     */
+    private boolean enqueue(BlockingQueue<Object> queue, Object item, AtomicInteger liveWorkers)
+        throws InterruptedException
+    {
+        while (!queue.offer(item, QUEUE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            if (liveWorkers.get() <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private void storeQueued(BlockingQueue<Object> queue, String wikiId, DataReader<T> reader, DataWriter<T> writer,
+        AtomicBoolean allDataMigrated)
+    {
+        boolean ready = false;
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+            this.xcontextProvider.get().setWikiId(wikiId);
+            ready = true;
+        } catch (ExecutionContextException ex) {
+            this.logger.error("Failed to initialize the data migration context: {}", ex.getMessage(), ex);
+        }
+        try {
+            Object item;
+            while ((item = queue.take()) != END_OF_DATA) {
+                // Keep consuming the queue even after failures, so that the reader is never blocked
+                @SuppressWarnings("unchecked")
+                T entity = (T) item;
+                if (!ready || !store(entity, reader, writer)) {
+                    allDataMigrated.set(false);
+                }
+            }
+        } catch (InterruptedException ex) {
+            allDataMigrated.set(false);
+        } catch (Throwable ex) {
+            allDataMigrated.set(false);
+            this.logger.error("Data migration worker stopped: {}", ex.getMessage(), ex);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private boolean store(T entity, DataReader<T> reader, DataWriter<T> writer)
+    {
+        try {
+            if (writer.storeEntity(entity)) {
+                reader.discardEntity(entity);
+                return true;
+            }
+        } catch (Throwable ex) {
+            // Errors, such as running out of memory on a large entity, only fail this entity
+            this.logger.error("Failed to migrate entity: {}", ex.getMessage(), ex);
+        }
+        return false;
     }
 
     private DataWriter<T> getCurrentWriter()
@@ -0,0 +1,339 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.store.migration.XWikiDBVersion;
+import com.xpn.xwiki.store.migration.hibernate.HibernateDataMigration;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link AbstractChunkedHibernateDataMigration}: chunk boundaries, checkpoints and resuming.
+ *
+ * @version $Id$
+ */
+public class AbstractChunkedHibernateDataMigrationTest
+{
+    private static final String WIKI_ID = "wiki";
+
+    private static final int CHUNK_SIZE = 2;
+
+    @Rule
+    public final MockitoComponentMockingRule<HibernateDataMigration> mocker =
+        new MockitoComponentMockingRule<>(ChunkedMigration.class);
+
+    @Rule
+    public final TemporaryFolder permanentDirectory = new TemporaryFolder();
+
+    private ChunkedMigration migration;
+
+    private XWikiHibernateStore store;
+
+    private XWikiContext context;
+
+    private XWiki xwiki;
+
+    private Session session;
+
+    private Query query;
+
+    /** All the documents matching the migration query, in order. */
+    private List<String> documents = new ArrayList<>();
+
+    /** The values of the {@code lastDocument} query parameter, in the order in which the chunks were requested. */
+    private List<String> lastDocuments = new ArrayList<>();
+
+    private File checkpoint;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.mocker.registerMockComponent(ComponentManager.class);
+        ComponentManager cm = this.mocker.getInstance(ComponentManager.class);
+        this.store = mock(XWikiHibernateStore.class);
+        when(cm.getInstance(XWikiStoreInterface.class, "hibernate")).thenReturn(this.store);
+
+        this.migration = (ChunkedMigration) this.mocker.getComponentUnderTest();
+
+        Execution execution = this.mocker.getInstance(Execution.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        when(execution.getContext()).thenReturn(executionContext);
+        this.context = mock(XWikiContext.class);
+        when(executionContext.getProperty("xwikicontext")).thenReturn(this.context);
+        when(this.context.getWikiId()).thenReturn(WIKI_ID);
+        this.xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.permanentDirectory.getRoot());
+        this.checkpoint = new File(new File(this.permanentDirectory.getRoot(), "migrations"),
+            WIKI_ID + '-' + this.migration.getName() + ".checkpoint");
+
+        for (int i = 1; i <= 5; ++i) {
+            this.documents.add(String.format("data.P%07d", i));
+        }
+
+        this.session = mock(Session.class);
+        this.query = mock(Query.class);
+        when(this.session.createQuery(anyString())).thenReturn(this.query);
+        when(this.query.setString(eq("lastDocument"), anyString())).thenAnswer(invocation -> {
+            this.lastDocuments.add((String) invocation.getArguments()[1]);
+            return this.query;
+        });
+        when(this.query.list()).thenAnswer(invocation -> {
+            String last = this.lastDocuments.get(this.lastDocuments.size() - 1);
+            List<String> result = new ArrayList<>();
+            for (String name : this.documents) {
+                if (name.compareTo(last) > 0 && result.size() < CHUNK_SIZE) {
+                    result.add(name);
+                }
+            }
+            return result;
+        });
+        doAnswer(invocation -> ((HibernateCallback<?>) invocation.getArguments()[1]).doInHibernate(this.session))
+            .when(this.store).executeRead(same(this.context), any(HibernateCallback.class));
+        doAnswer(invocation -> ((HibernateCallback<?>) invocation.getArguments()[1]).doInHibernate(this.session))
+            .when(this.store).executeWrite(same(this.context), any(HibernateCallback.class));
+
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(anyString(), Matchers.<Object>anyVararg())).thenAnswer(invocation -> {
+            String name = (String) invocation.getArguments()[0];
+            return new DocumentReference(WIKI_ID, "data", name.substring(name.indexOf('.') + 1));
+        });
+        when(this.xwiki.getDocument(any(DocumentReference.class), same(this.context))).thenAnswer(invocation -> {
+            XWikiDocument document = mock(XWikiDocument.class);
+            when(document.getDocumentReference()).thenReturn((DocumentReference) invocation.getArguments()[0]);
+            return document;
+        });
+    }
+
+    @Test
+    public void eachChunkStartsAfterTheLastDocumentOfThePreviousChunk() throws Exception
+    {
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(Arrays.asList("", "data.P0000002", "data.P0000004"), this.lastDocuments);
+        verify(this.query, times(3)).setMaxResults(CHUNK_SIZE);
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002", "P0000003", "P0000004", "P0000005"),
+            this.migration.migrated);
+        verify(this.store, times(5)).saveXWikiDoc(any(XWikiDocument.class), same(this.context), eq(false));
+        verify(this.store, times(3)).executeWrite(same(this.context), any(HibernateCallback.class));
+    }
+
+    @Test
+    public void migrationStopsAfterAnEmptyChunkWhenTheLastChunkIsFull() throws Exception
+    {
+        this.documents.remove(4);
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(Arrays.asList("", "data.P0000002", "data.P0000004"), this.lastDocuments);
+        Assert.assertEquals(Arrays.asList("P0000001", "P0000002", "P0000003", "P0000004"), this.migration.migrated);
+        verify(this.store, times(2)).executeWrite(same(this.context), any(HibernateCallback.class));
+        Assert.assertFalse(this.checkpoint.exists());
+    }
+
+    @Test
+    public void unchangedDocumentsAreNotSaved() throws Exception
+    {
+        this.migration.unchanged = "P0000003";
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(5, this.migration.migrated.size());
+        verify(this.store, times(4)).saveXWikiDoc(any(XWikiDocument.class), same(this.context), eq(false));
+    }
+
+    @Test
+    public void checkpointIsKeptWhenTheMigrationFails() throws Exception
+    {
+        this.migration.failing = "P0000005";
+
+        try {
+            this.migration.hibernateMigrate();
+            Assert.fail("The migration error should have been propagated");
+        } catch (XWikiException ex) {
+            // Expected
+        }
+
+        Assert.assertTrue(this.checkpoint.exists());
+        Assert.assertEquals("data.P0000004", readCheckpoint());
+        verify(this.store, times(4)).saveXWikiDoc(any(XWikiDocument.class), same(this.context), eq(false));
+    }
+
+    @Test
+    public void interruptedMigrationResumesFromTheCheckpoint() throws Exception
+    {
+        this.checkpoint.getParentFile().mkdirs();
+        Files.write(this.checkpoint.toPath(), "data.P0000003".getBytes(StandardCharsets.UTF_8));
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(Arrays.asList("data.P0000003", "data.P0000005"), this.lastDocuments);
+        Assert.assertEquals(Arrays.asList("P0000004", "P0000005"), this.migration.migrated);
+        verify(this.xwiki, never()).getDocument(
+            eq(new DocumentReference(WIKI_ID, "data", "P0000001")), any(XWikiContext.class));
+    }
+
+    @Test
+    public void failedMigrationResumesAfterTheLastCommittedChunk() throws Exception
+    {
+        this.migration.failing = "P0000003";
+        try {
+            this.migration.hibernateMigrate();
+            Assert.fail("The migration error should have been propagated");
+        } catch (XWikiException ex) {
+            // Expected
+        }
+        this.migration.failing = null;
+        this.migration.migrated.clear();
+        this.lastDocuments.clear();
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(Arrays.asList("data.P0000002", "data.P0000004"), this.lastDocuments);
+        Assert.assertEquals(Arrays.asList("P0000003", "P0000004", "P0000005"), this.migration.migrated);
+    }
+
+    @Test
+    public void checkpointIsDeletedAfterSuccess() throws Exception
+    {
+        this.checkpoint.getParentFile().mkdirs();
+        Files.write(this.checkpoint.toPath(), "data.P0000001".getBytes(StandardCharsets.UTF_8));
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertFalse(this.checkpoint.exists());
+        Assert.assertFalse(new File(this.checkpoint.getParentFile(), this.checkpoint.getName() + ".tmp").exists());
+    }
+
+    @Test
+    public void noCheckpointIsStoredWhenThereIsNothingToMigrate() throws Exception
+    {
+        this.documents.clear();
+
+        this.migration.hibernateMigrate();
+
+        Assert.assertEquals(Arrays.asList(""), this.lastDocuments);
+        Assert.assertTrue(this.migration.migrated.isEmpty());
+        verify(this.store, never()).executeWrite(any(XWikiContext.class), any(HibernateCallback.class));
+        Assert.assertFalse(this.checkpoint.getParentFile().exists());
+    }
+
+    private String readCheckpoint() throws Exception
+    {
+        return new String(Files.readAllBytes(this.checkpoint.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /** A migration going through the test documents two at a time. */
+    @Component
+    @Named("R0-chunked-test")
+    @Singleton
+    public static class ChunkedMigration extends AbstractChunkedHibernateDataMigration
+    {
+        /** The names of the documents passed to {@link #migrate}, in order. */
+        private List<String> migrated = new ArrayList<>();
+
+        /** The name of a document to leave unchanged. */
+        private String unchanged;
+
+        /** The name of a document which fails to be migrated. */
+        private String failing;
+
+        @Override
+        public String getDescription()
+        {
+            return "Test migration";
+        }
+
+        @Override
+        public XWikiDBVersion getVersion()
+        {
+            return new XWikiDBVersion(0);
+        }
+
+        @Override
+        protected int getChunkSize()
+        {
+            return CHUNK_SIZE;
+        }
+
+        @Override
+        protected Query createDocumentsQuery(Session session)
+        {
+            return session.createQuery("select distinct o.name from BaseObject o where o.name > :"
+                + LAST_DOCUMENT_PARAMETER + " order by o.name");
+        }
+
+        @Override
+        protected boolean migrate(XWikiDocument document, XWikiContext context) throws XWikiException
+        {
+            String name = document.getDocumentReference().getName();
+            if (name.equals(this.failing)) {
+                throw new XWikiException();
+            }
+            this.migrated.add(name);
+            return !name.equals(this.unchanged);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators.internal;
+
+import org.phenotips.storage.migrators.DataReader;
+import org.phenotips.storage.migrators.DataTypeMigrator;
+import org.phenotips.storage.migrators.DataWriter;
+import org.phenotips.storage.migrators.Type;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the sequential and pipelined migrations of the {@link AbstractDataTypeMigrator} base class.
+ *
+ * @version $Id$
+ */
+public class AbstractDataTypeMigratorTest
+{
+    private static final int ENTITIES = 50;
+
+    @Rule
+    public final MockitoComponentMockingRule<DataTypeMigrator<String>> mocker =
+        new MockitoComponentMockingRule<DataTypeMigrator<String>>(EntitiesMigrator.class);
+
+    private EntitiesMigrator migrator;
+
+    private DataReader<String> reader;
+
+    private DataWriter<String> writer;
+
+    private XWikiContext context;
+
+    private ExecutionContextManager contextManager;
+
+    private final List<String> entities = new ArrayList<>();
+
+    /** What happened to each entity, in the order it happened. */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        this.migrator = (EntitiesMigrator) this.mocker.getComponentUnderTest();
+
+        ConfigurationSource config = this.mocker.getInstance(ConfigurationSource.class, "legacy");
+        when(config.getProperty("xwiki.store.entities.hint", "hibernate")).thenReturn("filesystem");
+
+        this.reader = mock(DataReader.class);
+        this.writer = mock(DataWriter.class);
+        when(this.reader.getType()).thenReturn(new Type("entities", "hibernate"));
+        when(this.writer.getType()).thenReturn(new Type("entities", "filesystem"));
+        ComponentManager cm = mock(ComponentManager.class);
+        Provider<ComponentManager> cmProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, ComponentManager.class));
+        when(cmProvider.get()).thenReturn(cm);
+        doReturn(this.writer).when(cm).getInstance(any(java.lang.reflect.Type.class), eq("entities/filesystem"));
+        doReturn(Collections.singletonMap("entities/hibernate", this.reader)).when(cm)
+            .getInstanceMap(any(java.lang.reflect.Type.class));
+
+        this.context = mock(XWikiContext.class);
+        when(this.context.getWikiId()).thenReturn("wiki");
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        this.contextManager = this.mocker.getInstance(ExecutionContextManager.class);
+
+        for (int i = 1; i <= ENTITIES; ++i) {
+            this.entities.add("E" + i);
+        }
+        when(this.reader.hasData()).thenReturn(true);
+        when(this.reader.getData()).thenAnswer(invocation -> this.entities.iterator());
+        when(this.writer.storeEntity(anyString())).thenAnswer(invocation -> {
+            this.events.add("store " + invocation.getArguments()[0]);
+            return true;
+        });
+        when(this.reader.discardEntity(anyString())).thenAnswer(invocation -> {
+            this.events.add("discard " + invocation.getArguments()[0]);
+            return true;
+        });
+    }
+
+    @Test
+    public void sequentialMigrationStoresAndDiscardsEachEntityInTurn() throws Exception
+    {
+        Assert.assertTrue(this.migrator.migrate());
+
+        List<String> expected = new ArrayList<>();
+        for (String entity : this.entities) {
+            expected.add("store " + entity);
+            expected.add("discard " + entity);
+        }
+        Assert.assertEquals(expected, this.events);
+        verify(this.contextManager, never()).initialize(any(ExecutionContext.class));
+    }
+
+    @Test(timeout = 30000)
+    public void pipelinedMigrationDiscardsEachEntityOnlyAfterStoringIt() throws Exception
+    {
+        this.migrator.workers = 2;
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        Assert.assertEquals(2 * ENTITIES, this.events.size());
+        for (String entity : this.entities) {
+            int stored = this.events.indexOf("store " + entity);
+            Assert.assertTrue(stored >= 0);
+            Assert.assertTrue(this.events.indexOf("discard " + entity) > stored);
+        }
+        // Each worker works in its own context, in the migrated wiki
+        verify(this.contextManager, times(2)).initialize(any(ExecutionContext.class));
+        verify(this.context, times(2)).setWikiId("wiki");
+        verify(this.mocker.<Execution>getInstance(Execution.class), times(2)).removeContext();
+    }
+
+    @Test(timeout = 30000)
+    public void pipelineWithOneWorkerKeepsTheReadOrder() throws Exception
+    {
+        this.migrator.workers = 1;
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        List<String> stored = new ArrayList<>();
+        for (String event : this.events) {
+            if (event.startsWith("store ")) {
+                stored.add(event.substring(6));
+            }
+        }
+        Assert.assertEquals(this.entities, stored);
+    }
+
+    @Test(timeout = 30000)
+    public void entitiesThatFailToStoreAreNotDiscarded() throws Exception
+    {
+        this.migrator.workers = 2;
+        when(this.writer.storeEntity("E7")).thenReturn(false);
+
+        Assert.assertFalse(this.migrator.migrate());
+
+        verify(this.reader, never()).discardEntity("E7");
+        verify(this.reader).discardEntity("E8");
+        verify(this.reader, times(ENTITIES - 1)).discardEntity(anyString());
+    }
+
+    @Test(timeout = 30000)
+    public void unreadableEntitiesFailTheMigration() throws Exception
+    {
+        this.migrator.workers = 2;
+        this.entities.set(3, null);
+
+        Assert.assertFalse(this.migrator.migrate());
+
+        verify(this.writer, times(ENTITIES - 1)).storeEntity(anyString());
+        verify(this.reader, times(ENTITIES - 1)).discardEntity(anyString());
+    }
+
+    @Test(timeout = 30000)
+    public void errorsOnOneEntityOnlyFailThatEntity() throws Exception
+    {
+        this.migrator.workers = 2;
+        when(this.writer.storeEntity("E5")).thenThrow(new OutOfMemoryError("Java heap space"));
+        when(this.writer.storeEntity("E6")).thenThrow(new IllegalStateException());
+
+        Assert.assertFalse(this.migrator.migrate());
+
+        verify(this.reader, never()).discardEntity("E5");
+        verify(this.reader, never()).discardEntity("E6");
+        verify(this.reader, times(ENTITIES - 2)).discardEntity(anyString());
+    }
+
+    @Test(timeout = 30000)
+    public void migrationIsAbortedWhenNoWorkerIsLeft() throws Exception
+    {
+        this.migrator.workers = 2;
+        doThrow(new IllegalStateException()).when(this.contextManager).initialize(any(ExecutionContext.class));
+
+        Assert.assertFalse(this.migrator.migrate());
+
+        verify(this.writer, never()).storeEntity(anyString());
+        verify(this.reader, never()).discardEntity(anyString());
+    }
+
+    @Test
+    public void nothingIsMigratedWhenTheReaderUsesTheCurrentStore() throws Exception
+    {
+        when(this.reader.getType()).thenReturn(new Type("entities", "filesystem"));
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        verify(this.reader, never()).getData();
+    }
+
+    @Test
+    public void readerWithoutDataIsSkipped() throws Exception
+    {
+        when(this.reader.hasData()).thenReturn(false);
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        verify(this.reader, never()).getData();
+    }
+
+    /** A migrator for simple string entities, with a configurable number of pipeline workers. */
+    @Component(roles = { DataTypeMigrator.class })
+    @Named("entities")
+    @Singleton
+    public static class EntitiesMigrator extends AbstractDataTypeMigrator<String>
+    {
+        private int workers;
+
+        @Override
+        public String getDataType()
+        {
+            return "entities";
+        }
+
+        @Override
+        protected String getStoreConfigurationKey()
+        {
+            return "xwiki.store.entities.hint";
+        }
+
+        @Override
+        protected int getPipelineWorkers()
+        {
+            return this.workers;
+        }
+    }
+}
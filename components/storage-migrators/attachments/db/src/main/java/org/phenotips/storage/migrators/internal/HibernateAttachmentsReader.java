@@ -28,6 +28,7 @@
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -48,7 +49,8 @@
 
 /**
  * {@link DataReader} that can read {@link XWikiAttachment attachment} contents and history from a Hibernate-managed
- * database (the default storage engine of XWiki).
+ * database (the default storage engine of XWiki). Attachments are listed one page at a time, and loaded one at a
+ * time through the store.
  *
  * @version $Id$
  * @since 1.0RC1
@@ -61,9 +63,14 @@ public class HibernateAttachmentsReader implements DataReader<XWikiAttachment>
     private static final Type TYPE = new Type("attachments", "hibernate");
 
     private static final String DATA_RETRIEVE_QUERY =
-        "select d.fullName, a.filename from XWikiDocument d, XWikiAttachment a, XWikiAttachmentContent c"
+        "select d.fullName, a.filename, a.id from XWikiDocument d, XWikiAttachment a, XWikiAttachmentContent c"
             + " where a.docId = d.id and c.id = a.id";
 
+    /** Keyset pagination, so that attachments discarded while iterating don't shift the next pages. */
+    private static final String DATA_PAGE_QUERY = DATA_RETRIEVE_QUERY + " and a.id > ? order by a.id";
+
+    private static final int PAGE_SIZE = 500;
+
     @Inject
     private Logger logger;
 
@@ -106,45 +113,29 @@ public boolean hasData()
     @Override
     public Iterator<EntityReference> listData()
     {
-        try {
-            List<Object[]> data = this.docStore.search(DATA_RETRIEVE_QUERY, 0, 0, this.context.get());
-            return new ReferenceIterator(data);
-        } catch (XWikiException ex) {
-            this.logger.warn("Failed to list the database attachments: {}", ex.getMessage());
-            return Collections.emptyIterator();
-        }
+        return new ReferenceIterator();
     }
 
     @Override
     public Iterator<XWikiAttachment> getData()
     {
-        try {
-            List<Object[]> data = this.docStore.search(DATA_RETRIEVE_QUERY, 0, 0, this.context.get());
-            this.logger.debug("Found [{}] attachments in the database", data.size());
-            return new AttachmentIterator(data);
-        } catch (XWikiException ex) {
-            this.logger.warn("Failed to get the list of database attachments: {}", ex.getMessage());
-            return Collections.emptyIterator();
-        }
+        return new AttachmentIterator();
     }
 
     @Override
-    public boolean discardEntity(XWikiAttachment entity)
+    public boolean discardEntity(final XWikiAttachment entity)
     {
-        boolean transaction = false;
         try {
-            transaction = ((XWikiHibernateBaseStore) this.store).beginTransaction(this.context.get());
-            Session session = ((XWikiHibernateBaseStore) this.store).getSession(this.context.get());
-            session.delete(entity.getAttachment_content());
-            session.delete(entity.getAttachment_archive());
+            // Called from the migration workers, each with its own context, so the store manages the session
+            ((XWikiHibernateBaseStore) this.store).executeWrite(this.context.get(), session -> {
+                session.delete(entity.getAttachment_content());
+                session.delete(entity.getAttachment_archive());
+                return null;
+            });
             this.logger.debug("Deleted attachment [{}] from the database", entity.getReference());
         } catch (XWikiException ex) {
             this.logger.warn("Failed to cleanup attachment from the database: {}", ex.getMessage());
             return false;
-        } finally {
-            if (transaction) {
-                ((XWikiHibernateBaseStore) this.store).endTransaction(this.context.get(), transaction);
-            }
         }
         return true;
     }
@@ -169,27 +160,37 @@ public boolean discardAllData()
         return true;
     }
 
-    private class ReferenceIterator implements Iterator<EntityReference>
+    /**
+     * Iterates over the attachments found in the database, fetching them one page at a time.
+     *
+     * @param <T> the type of items returned
+     */
+    private abstract class AbstractPagedIterator<T> implements Iterator<T>
     {
-        private Iterator<Object[]> data;
+        private Iterator<Object[]> page = Collections.emptyIterator();
 
-        ReferenceIterator(List<Object[]> data)
-        {
-            this.data = data.iterator();
-        }
+        private long lastId = Long.MIN_VALUE;
+
+        private boolean lastPage;
 
         @Override
         public boolean hasNext()
         {
-            return this.data.hasNext();
+            if (!this.page.hasNext() && !this.lastPage) {
+                fetchNextPage();
+            }
+            return this.page.hasNext();
         }
 
         @Override
-        public EntityReference next()
+        public T next()
         {
-            Object[] item = this.data.next();
-            return new AttachmentReference(String.valueOf(item[1]),
-                HibernateAttachmentsReader.this.resolver.resolve(String.valueOf(item[0])));
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] item = this.page.next();
+            this.lastId = ((Number) item[2]).longValue();
+            return convert(item);
         }
 
         @Override
@@ -197,27 +198,41 @@ public void remove()
         {
             throw new UnsupportedOperationException();
         }
-    }
 
-    private class AttachmentIterator implements Iterator<XWikiAttachment>
-    {
-        private Iterator<Object[]> data;
+        protected abstract T convert(Object[] item);
 
-        AttachmentIterator(List<Object[]> data)
+        private void fetchNextPage()
         {
-            this.data = data.iterator();
+            try {
+                List<Object[]> data = HibernateAttachmentsReader.this.docStore.search(DATA_PAGE_QUERY, PAGE_SIZE, 0,
+                    Collections.singletonList(this.lastId), HibernateAttachmentsReader.this.context.get());
+                HibernateAttachmentsReader.this.logger.debug("Found [{}] more attachments in the database",
+                    data.size());
+                this.page = data.iterator();
+                this.lastPage = data.size() < PAGE_SIZE;
+            } catch (XWikiException ex) {
+                HibernateAttachmentsReader.this.logger.warn("Failed to list the database attachments: {}",
+                    ex.getMessage());
+                this.lastPage = true;
+            }
         }
+    }
 
+    private class ReferenceIterator extends AbstractPagedIterator<EntityReference>
+    {
         @Override
-        public boolean hasNext()
+        protected EntityReference convert(Object[] item)
         {
-            return this.data.hasNext();
+            return new AttachmentReference(String.valueOf(item[1]),
+                HibernateAttachmentsReader.this.resolver.resolve(String.valueOf(item[0])));
         }
+    }
 
+    private class AttachmentIterator extends AbstractPagedIterator<XWikiAttachment>
+    {
         @Override
-        public XWikiAttachment next()
+        protected XWikiAttachment convert(Object[] item)
         {
-            Object[] item = this.data.next();
             try {
                 XWikiDocument doc =
                     new XWikiDocument(HibernateAttachmentsReader.this.resolver.resolve(String.valueOf(item[0])));
@@ -234,11 +249,5 @@ public XWikiAttachment next()
             }
             return null;
         }
-
-        @Override
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
-        }
     }
 }
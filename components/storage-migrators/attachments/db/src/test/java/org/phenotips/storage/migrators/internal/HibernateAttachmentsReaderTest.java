@@ -0,0 +1,237 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators.internal;
+
+import org.phenotips.storage.migrators.DataReader;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.store.AttachmentVersioningStore;
+import com.xpn.xwiki.store.XWikiHibernateAttachmentStore;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link HibernateAttachmentsReader} component.
+ *
+ * @version $Id$
+ */
+public class HibernateAttachmentsReaderTest
+{
+    /** One full page, and a partial one. */
+    private static final int ATTACHMENTS = 700;
+
+    @Rule
+    public final MockitoComponentMockingRule<DataReader<XWikiAttachment>> mocker =
+        new MockitoComponentMockingRule<DataReader<XWikiAttachment>>(HibernateAttachmentsReader.class);
+
+    private DataReader<XWikiAttachment> reader;
+
+    private XWikiContext context;
+
+    private XWikiStoreInterface docStore;
+
+    private XWikiHibernateAttachmentStore store;
+
+    private AttachmentVersioningStore archiveStore;
+
+    private Session session;
+
+    /** The rows stored in the database, ordered by attachment id. */
+    private final List<Object[]> rows = new ArrayList<>();
+
+    /** The attachment id after which each listed page starts. */
+    private final List<Long> pageStarts = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // The reader needs a Hibernate based store, not just any attachment store
+        this.reader = this.mocker.getComponentUnderTest();
+        this.store = mock(XWikiHibernateAttachmentStore.class);
+        ReflectionUtils.setFieldValue(this.reader, "store", this.store);
+        this.docStore = this.mocker.getInstance(XWikiStoreInterface.class, "hibernate");
+        this.archiveStore = this.mocker.getInstance(AttachmentVersioningStore.class, "hibernate");
+
+        this.context = mock(XWikiContext.class);
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(anyString(), Matchers.<Object>anyVararg())).thenAnswer(invocation -> {
+            String name = (String) invocation.getArguments()[0];
+            return new DocumentReference("xwiki", "data", name.substring(name.indexOf('.') + 1));
+        });
+
+        for (int i = 1; i <= ATTACHMENTS; ++i) {
+            this.rows.add(new Object[] { String.format("data.P%07d", i), "file" + i + ".txt", Long.valueOf(10 * i) });
+        }
+        when(this.docStore.search(Matchers.endsWith("order by a.id"), anyInt(), eq(0), anyListOf(Object.class),
+            same(this.context))).thenAnswer(invocation -> {
+                int limit = (Integer) invocation.getArguments()[1];
+                long lastId = ((Number) ((List<?>) invocation.getArguments()[3]).get(0)).longValue();
+                this.pageStarts.add(lastId);
+                List<Object[]> page = new ArrayList<>();
+                for (Object[] row : this.rows) {
+                    if ((Long) row[2] > lastId && page.size() < limit) {
+                        page.add(row);
+                    }
+                }
+                return page;
+            });
+
+        this.session = mock(Session.class);
+        doAnswer(invocation -> ((HibernateCallback<?>) invocation.getArguments()[1]).doInHibernate(this.session))
+            .when(this.store).executeWrite(same(this.context), any(HibernateCallback.class));
+    }
+
+    @Test
+    public void hasDataChecksForOneAttachment() throws Exception
+    {
+        when(this.docStore.search(anyString(), eq(1), eq(0), same(this.context)))
+            .thenReturn(Collections.<Object>singletonList(this.rows.get(0)));
+        Assert.assertTrue(this.reader.hasData());
+
+        when(this.docStore.search(anyString(), eq(1), eq(0), same(this.context)))
+            .thenReturn(Collections.emptyList());
+        Assert.assertFalse(this.reader.hasData());
+    }
+
+    @Test
+    public void listDataFetchesPagesAfterTheLastListedAttachment() throws Exception
+    {
+        Iterator<EntityReference> data = this.reader.listData();
+
+        int count = 0;
+        while (data.hasNext()) {
+            EntityReference reference = data.next();
+            ++count;
+            Assert.assertEquals(new AttachmentReference("file" + count + ".txt",
+                new DocumentReference("xwiki", "data", String.format("P%07d", count))), reference);
+        }
+
+        Assert.assertEquals(ATTACHMENTS, count);
+        Assert.assertEquals(2, this.pageStarts.size());
+        Assert.assertEquals(Long.MIN_VALUE, this.pageStarts.get(0).longValue());
+        Assert.assertEquals(5000L, this.pageStarts.get(1).longValue());
+    }
+
+    @Test
+    public void discardedAttachmentsDoNotShiftTheNextPage() throws Exception
+    {
+        Iterator<EntityReference> data = this.reader.listData();
+        for (int i = 0; i < 500; ++i) {
+            data.next();
+        }
+        // The first page was migrated and discarded in the meantime
+        this.rows.subList(0, 500).clear();
+
+        Assert.assertTrue(data.hasNext());
+        Assert.assertEquals("file501.txt", data.next().getName());
+    }
+
+    @Test
+    public void getDataLoadsContentAndArchiveThroughTheStores() throws Exception
+    {
+        Iterator<XWikiAttachment> data = this.reader.getData();
+
+        XWikiAttachment attachment = data.next();
+
+        Assert.assertEquals("file1.txt", attachment.getFilename());
+        Assert.assertEquals(new DocumentReference("xwiki", "data", "P0000001"),
+            attachment.getDoc().getDocumentReference());
+        verify(this.store).loadAttachmentContent(attachment, this.context, true);
+        verify(this.archiveStore).loadArchive(attachment, this.context, true);
+    }
+
+    @Test
+    public void attachmentsThatFailToLoadAreReturnedAsNull() throws Exception
+    {
+        doThrow(new XWikiException()).doNothing().when(this.store)
+            .loadAttachmentContent(any(XWikiAttachment.class), same(this.context), anyBoolean());
+        Iterator<XWikiAttachment> data = this.reader.getData();
+
+        Assert.assertNull(data.next());
+        Assert.assertEquals("file2.txt", data.next().getFilename());
+    }
+
+    @Test
+    public void discardEntityDeletesContentAndArchiveInOneWrite() throws Exception
+    {
+        XWikiAttachment attachment = mock(XWikiAttachment.class);
+        XWikiAttachmentContent content = mock(XWikiAttachmentContent.class);
+        XWikiAttachmentArchive archive = mock(XWikiAttachmentArchive.class);
+        when(attachment.getAttachment_content()).thenReturn(content);
+        when(attachment.getAttachment_archive()).thenReturn(archive);
+
+        Assert.assertTrue(this.reader.discardEntity(attachment));
+
+        verify(this.store, times(1)).executeWrite(same(this.context), any(HibernateCallback.class));
+        verify(this.session).delete(content);
+        verify(this.session).delete(archive);
+    }
+
+    @Test
+    public void discardEntityReportsFailures() throws Exception
+    {
+        doThrow(new XWikiException()).when(this.store).executeWrite(same(this.context), any(HibernateCallback.class));
+
+        Assert.assertFalse(this.reader.discardEntity(mock(XWikiAttachment.class)));
+        verify(this.session, never()).delete(any());
+    }
+}
@@ -38,6 +38,9 @@
 @Singleton
 public class AttachmentsMigrator extends AbstractDataTypeMigrator<XWikiAttachment>
 {
+    /** Attachments can be large, so overlap reading the next one from the old store with storing the previous ones. */
+    private static final int PIPELINE_WORKERS = 2;
+
     @Override
     protected String getStoreConfigurationKey()
     {
@@ -49,4 +52,10 @@ public String getDataType()
     {
         return "attachments";
     }
+
+    @Override
+    protected int getPipelineWorkers()
+    {
+        return PIPELINE_WORKERS;
+    }
 }
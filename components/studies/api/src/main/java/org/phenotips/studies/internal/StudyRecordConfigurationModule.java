@@ -195,6 +195,26 @@ public boolean supportsRecordType(String recordType)
         return "patient".equals(recordType);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The configuration depends on the study bound to the current document, so the key is the reference and version of
+     * the study document, or an empty string if no valid study is bound.
+     * </p>
+     */
+    @Override
+    public String getCacheKey(String recordType)
+    {
+        try {
+            XWikiDocument study = getBoundStudyDocument();
+            return study == null ? "" : study.getDocumentReference() + "@" + study.getVersion();
+        } catch (Exception ex) {
+            this.logger.warn("Failed to read the bound configuration for [{}]: {}",
+                this.dab.getCurrentDocumentReference(), ex.getMessage());
+        }
+        return null;
+    }
+
     /**
      * If the current document is a patient record, and it has a valid specific study binding specified, then return
      * that configuration.
@@ -202,6 +222,25 @@ public boolean supportsRecordType(String recordType)
      * @return a form configuration, if one is bound to the current document, or {@code null} otherwise
      */
     private StudyConfiguration getBoundConfiguration()
+    {
+        try {
+            XWikiDocument study = getBoundStudyDocument();
+            return study == null ? null : new StudyConfiguration(study.getXObject(STUDY_CLASS_REFERENCE));
+        } catch (Exception ex) {
+            this.logger.warn("Failed to read the bound configuration for [{}]: {}",
+                this.dab.getCurrentDocumentReference(), ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * If the current document is a patient record, and it has a valid specific study binding specified, then return
+     * the document of that study.
+     *
+     * @return the study document, if one is bound to the current document, or {@code null} otherwise
+     * @throws Exception if the study document cannot be read
+     */
+    private XWikiDocument getBoundStudyDocument() throws Exception
     {
         if (this.dab.getCurrentDocumentReference() == null) {
             // Non-interactive requests, use the default configuration
@@ -209,20 +248,15 @@ private StudyConfiguration getBoundConfiguration()
         }
         String boundConfig = (String) this.dab.getProperty(this.dab.getCurrentDocumentReference(),
             this.resolver.resolve(STUDY_BINDING_CLASS_REFERENCE), STUDY_REFERENCE_PROPERTY_LABEL);
-        if (StringUtils.isNotBlank(boundConfig)) {
-            try {
-                XWikiContext context = this.xcontextProvider.get();
-                XWikiDocument doc = context.getWiki().getDocument(this.referenceParser.resolve(boundConfig), context);
-                if (doc == null || doc.isNew() || doc.getXObject(STUDY_CLASS_REFERENCE) == null) {
-                    // Inaccessible, deleted, or invalid document, use default configuration
-                    return null;
-                }
-                return new StudyConfiguration(doc.getXObject(STUDY_CLASS_REFERENCE));
-            } catch (Exception ex) {
-                this.logger.warn("Failed to read the bound configuration [{}] for [{}]: {}", boundConfig,
-                    this.dab.getCurrentDocumentReference(), ex.getMessage());
-            }
+        if (StringUtils.isBlank(boundConfig)) {
+            return null;
         }
-        return null;
+        XWikiContext context = this.xcontextProvider.get();
+        XWikiDocument doc = context.getWiki().getDocument(this.referenceParser.resolve(boundConfig), context);
+        if (doc == null || doc.isNew() || doc.getXObject(STUDY_CLASS_REFERENCE) == null) {
+            // Inaccessible, deleted, or invalid document, use default configuration
+            return null;
+        }
+        return doc;
     }
 }
@@ -294,6 +294,35 @@ public void supportsRecordTypeReturnsFalseIfNullOrEmpty() throws ComponentLookup
         Assert.assertFalse(this.mocker.getComponentUnderTest().supportsRecordType(""));
     }
 
+    @Test
+    public void cacheKeyIdentifiesTheBoundStudyVersion() throws ComponentLookupException
+    {
+        when(this.studyDocument.getDocumentReference()).thenReturn(this.studyDocumentReference);
+        when(this.studyDocument.getVersion()).thenReturn("3.1");
+        Assert.assertEquals(this.studyDocumentReference + "@3.1",
+            this.mocker.getComponentUnderTest().getCacheKey("patient"));
+    }
+
+    @Test
+    public void cacheKeyIsEmptyWithoutABoundStudy() throws ComponentLookupException
+    {
+        when(this.dab.getProperty(this.currentDocument, this.bindingClassDocument,
+            StudyRecordConfigurationModule.STUDY_REFERENCE_PROPERTY_LABEL))
+                .thenReturn(null);
+        Assert.assertEquals("", this.mocker.getComponentUnderTest().getCacheKey("patient"));
+
+        when(this.dab.getCurrentDocumentReference()).thenReturn(null);
+        Assert.assertEquals("", this.mocker.getComponentUnderTest().getCacheKey("patient"));
+    }
+
+    @Test
+    public void cacheKeyIsNullWhenTheStudyCannotBeRead() throws ComponentLookupException, XWikiException
+    {
+        when(this.xwiki.getDocument(any(DocumentReference.class), any(XWikiContext.class)))
+            .thenThrow(new XWikiException());
+        Assert.assertNull(this.mocker.getComponentUnderTest().getCacheKey("patient"));
+    }
+
     private RecordSection mockSection(String sectionId, RecordElement... elements)
     {
         RecordSection section = mock(RecordSection.class);
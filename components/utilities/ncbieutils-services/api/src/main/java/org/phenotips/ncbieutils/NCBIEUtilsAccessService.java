@@ -18,13 +18,17 @@
 package org.phenotips.ncbieutils;
 
 import org.phenotips.ncbieutils.internal.AbstractSpecializedNCBIEUtilsAccessService;
+import org.phenotips.ncbieutils.internal.NCBIEUtilsClient;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.script.service.ScriptService;
 
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
+
 /**
  * Script service exposing services provided by the online NCBI Entrez Utilities webserver.
  *
@@ -36,9 +40,16 @@
 @Singleton
 public class NCBIEUtilsAccessService implements ScriptService
 {
+    @Inject
+    private Logger logger;
+
+    /** The client shared by all the services, so that they use the same cache and request quota. */
+    @Inject
+    private NCBIEUtilsClient client;
+
     public NCBIEUtilsService get(final String name)
     {
-        return new AbstractSpecializedNCBIEUtilsAccessService()
+        return new AbstractSpecializedNCBIEUtilsAccessService(this.client, this.logger)
         {
             @Override
             public String getDatabaseName()
@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Streaming parsers for the XML responses of the NCBI Entrez Utilities. Responses are read with StAX, without building
+ * a DOM and without fetching the DTD they declare. All the returned values are unmodifiable, so that they can be
+ * safely cached and shared.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class EUtilsResponseParser
+{
+    private static final String ITEM = "Item";
+
+    private static final String DOC_SUM = "DocSum";
+
+    private static final String ID = "Id";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /** An {@code Item} element being read. */
+    private static final class Item
+    {
+        private final String name;
+
+        private final boolean list;
+
+        private final StringBuilder text = new StringBuilder();
+
+        private final List<String> values = new ArrayList<>();
+
+        Item(String name, String type)
+        {
+            this.name = name;
+            this.list = "List".equals(type);
+        }
+    }
+
+    private EUtilsResponseParser()
+    {
+        // Utility class
+    }
+
+    /**
+     * Parses an {@code espell} response.
+     *
+     * @param in the response
+     * @return the trimmed content of the {@code CorrectedQuery} element, or an empty string if there is none
+     * @throws XMLStreamException if the response is not valid XML
+     */
+    static String parseCorrectedQuery(InputStream in) throws XMLStreamException
+    {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                    && "CorrectedQuery".equals(reader.getLocalName())) {
+                    return StringUtils.trimToEmpty(reader.getElementText());
+                }
+            }
+            return "";
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses an {@code esearch} response.
+     *
+     * @param in the response
+     * @return the identifiers listed in the {@code IdList} element
+     * @throws XMLStreamException if the response is not valid XML
+     */
+    static List<String> parseMatches(InputStream in) throws XMLStreamException
+    {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            List<String> result = new ArrayList<>();
+            boolean inList = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("IdList".equals(reader.getLocalName())) {
+                        inList = true;
+                    } else if (inList && ID.equals(reader.getLocalName())) {
+                        result.add(reader.getElementText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "IdList".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+            return Collections.unmodifiableList(result);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses an {@code esummary} response. Each {@code DocSum} becomes a map holding its identifier, under the
+     * {@code id} key, and the non-empty value of each {@code Item}, under its name. {@code List} items are stored as
+     * the list of their sub-items. Titles written in all uppercase, as in OMIM, are converted to sentence case.
+     *
+     * @param in the response
+     * @return the parsed summaries, in the order they were returned
+     * @throws XMLStreamException if the response is not valid XML
+     */
+    static List<Map<String, Object>> parseSummaries(InputStream in) throws XMLStreamException
+    {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            List<Map<String, Object>> result = new ArrayList<>();
+            Map<String, Object> doc = null;
+            Deque<Item> items = new ArrayDeque<>();
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (DOC_SUM.equals(reader.getLocalName())) {
+                            doc = new HashMap<>();
+                        } else if (doc != null && ITEM.equals(reader.getLocalName())) {
+                            items.push(new Item(reader.getAttributeValue(null, "Name"),
+                                reader.getAttributeValue(null, "Type")));
+                        } else if (doc != null && items.isEmpty() && ID.equals(reader.getLocalName())
+                            && !doc.containsKey("id")) {
+                            doc.put("id", reader.getElementText());
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (!items.isEmpty()) {
+                            items.peek().text.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (ITEM.equals(reader.getLocalName()) && !items.isEmpty()) {
+                            endItem(items.pop(), items, doc);
+                        } else if (DOC_SUM.equals(reader.getLocalName()) && doc != null) {
+                            result.add(Collections.unmodifiableMap(doc));
+                            doc = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return Collections.unmodifiableList(result);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copies an {@code esummary} response, converting the uppercase titles to sentence case and dropping the DTD.
+     *
+     * @param in the response
+     * @return the serialized response
+     * @throws XMLStreamException if the response is not valid XML
+     */
+    static String copySummaries(InputStream in) throws XMLStreamException
+    {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        StringWriter result = new StringWriter();
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(result);
+        try {
+            Deque<String> elements = new ArrayDeque<>();
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.getEventType() == XMLStreamConstants.DTD) {
+                    continue;
+                }
+                if (event.isStartElement()) {
+                    elements.push(event.asStartElement().getName().getLocalPart());
+                } else if (event.isEndElement()) {
+                    elements.poll();
+                } else if (event.isCharacters() && ITEM.equals(elements.peek())) {
+                    event = EVENT_FACTORY.createCharacters(fixCase(event.asCharacters().getData()));
+                }
+                writer.add(event);
+            }
+            writer.flush();
+            return result.toString();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    private static void endItem(Item item, Deque<Item> parents, Map<String, Object> doc)
+    {
+        if (item.list) {
+            if (!item.values.isEmpty()) {
+                doc.put(item.name, Collections.unmodifiableList(item.values));
+            }
+            return;
+        }
+        String value = fixCase(item.text.toString());
+        if (StringUtils.isNotEmpty(value)) {
+            doc.put(item.name, value);
+        }
+        for (Item parent : parents) {
+            if (parent.list) {
+                parent.values.add(value);
+            }
+        }
+    }
+
+    /**
+     * OMIM titles are all UPPERCASE, try to fix this.
+     *
+     * @param text the text to fix
+     * @return the text, converted to sentence case if it was all uppercase
+     */
+    static String fixCase(String text)
+    {
+        if (text == null || text.length() == 0) {
+            return "";
+        }
+        if (StringUtils.isAllUpperCase(text.replaceAll("[^a-zA-Z]", ""))) {
+            return StringUtils.capitalize(text.toLowerCase());
+        }
+        return text;
+    }
+}
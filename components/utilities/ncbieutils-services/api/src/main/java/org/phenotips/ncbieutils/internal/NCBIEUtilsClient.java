@@ -0,0 +1,272 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Client for the NCBI Entrez Utilities server, shared by all the {@link AbstractSpecializedNCBIEUtilsAccessService
+ * specialized services}. Parsed responses are kept in a bounded cache for a limited time, keyed by the request, which
+ * includes the database and the query. Identical requests made while the first one is still running wait for its
+ * result instead of contacting the server again. Requests actually sent to the server go through a pool of persistent
+ * connections, and are throttled to stay within the NCBI usage limits: by default 3 requests per second, or 10 when an
+ * API key is configured.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = NCBIEUtilsClient.class)
+@Singleton
+public class NCBIEUtilsClient implements Initializable, Disposable
+{
+    private static final String CONFIGURATION_PREFIX = "phenotips.ncbieutils.";
+
+    /** The maximum number of cached responses. */
+    private static final int CACHE_SIZE = 1000;
+
+    /** The default lifespan of cached responses, in seconds. */
+    private static final int DEFAULT_CACHE_LIFESPAN = 3600;
+
+    /** The request rate allowed by NCBI without an API key. */
+    private static final int DEFAULT_RATE = 3;
+
+    /** The request rate allowed by NCBI with an API key. */
+    private static final int API_KEY_RATE = 10;
+
+    private static final int MAX_CONNECTIONS = 4;
+
+    /** The request timeout, in milliseconds. */
+    private static final int TIMEOUT = 5000;
+
+    private static final String ENCODING = "UTF-8";
+
+    /** Reads a server response. */
+    interface Parser<T>
+    {
+        T parse(InputStream in) throws XMLStreamException;
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private String serverURL;
+
+    private String apiKey;
+
+    private CloseableHttpClient client;
+
+    private RequestConfig requestConfig;
+
+    private RateLimiter rateLimiter;
+
+    /** Parsed responses, keyed by the kind of response and the request URL. */
+    private Cache<String, Object> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.serverURL = StringUtils.defaultIfBlank(
+            this.configuration.getProperty(CONFIGURATION_PREFIX + "serverURL", String.class),
+            AbstractSpecializedNCBIEUtilsAccessService.SERVER_URL);
+        this.apiKey = this.configuration.getProperty(CONFIGURATION_PREFIX + "apiKey", String.class);
+        int rate = getIntProperty("requestsPerSecond", StringUtils.isBlank(this.apiKey) ? DEFAULT_RATE : API_KEY_RATE);
+        this.rateLimiter = RateLimiter.create(Math.max(1, rate));
+        this.cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE)
+            .expireAfterWrite(getIntProperty("cacheLifespan", DEFAULT_CACHE_LIFESPAN), TimeUnit.SECONDS).build();
+
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(MAX_CONNECTIONS);
+        connections.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        this.client = HttpClients.custom().useSystemProperties().setConnectionManager(connections).build();
+        this.requestConfig = RequestConfig.custom().setSocketTimeout(TIMEOUT).setConnectTimeout(TIMEOUT)
+            .setConnectionRequestTimeout(TIMEOUT).build();
+    }
+
+    @Override
+    public void dispose()
+    {
+        try {
+            this.client.close();
+        } catch (IOException ex) {
+            // Nothing to do, the connections are discarded anyway
+        }
+    }
+
+    /**
+     * Gets the spelling correction suggested for a query.
+     *
+     * @param database the name of the target database
+     * @param query the query to check
+     * @return the corrected query, or an empty string if no correction is suggested
+     * @throws IOException if the server cannot be reached or its response cannot be parsed
+     */
+    public String getCorrectedQuery(String database, String query) throws IOException
+    {
+        return fetch("espell",
+            composeURL(AbstractSpecializedNCBIEUtilsAccessService.SPELL_CHECK_QUERY_SCRIPT, database,
+                AbstractSpecializedNCBIEUtilsAccessService.SPELL_CHECK_PARAM_NAME, query),
+            EUtilsResponseParser::parseCorrectedQuery);
+    }
+
+    /**
+     * Gets the identifiers of the records matching a query.
+     *
+     * @param database the name of the target database
+     * @param query the query to search for
+     * @param rows the maximum number of identifiers to return
+     * @param start the index of the first identifier to return
+     * @return an unmodifiable list of identifiers
+     * @throws IOException if the server cannot be reached or its response cannot be parsed
+     */
+    public List<String> getMatches(String database, String query, int rows, int start) throws IOException
+    {
+        return fetch("esearch",
+            composeURL(AbstractSpecializedNCBIEUtilsAccessService.TERM_SEARCH_QUERY_SCRIPT, database,
+                AbstractSpecializedNCBIEUtilsAccessService.TERM_SEARCH_PARAM_NAME, query)
+                + "&RetMax=" + rows + "&RetStart=" + start,
+            EUtilsResponseParser::parseMatches);
+    }
+
+    /**
+     * Gets the summaries of some records.
+     *
+     * @param database the name of the target database
+     * @param ids the identifiers of the records
+     * @return an unmodifiable list of summaries, as parsed by {@link EUtilsResponseParser#parseSummaries}
+     * @throws IOException if the server cannot be reached or its response cannot be parsed
+     */
+    public List<Map<String, Object>> getSummaries(String database, List<String> ids) throws IOException
+    {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return fetch("esummary", composeSummaryURL(database, ids), EUtilsResponseParser::parseSummaries);
+    }
+
+    /**
+     * Gets the summaries of some records, as XML.
+     *
+     * @param database the name of the target database
+     * @param ids the identifiers of the records
+     * @return the serialized summaries
+     * @throws IOException if the server cannot be reached or its response cannot be parsed
+     */
+    public String getSummariesXML(String database, List<String> ids) throws IOException
+    {
+        return fetch("esummary-xml", composeSummaryURL(database, ids), EUtilsResponseParser::copySummaries);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T fetch(String kind, final String url, final Parser<T> parser) throws IOException
+    {
+        try {
+            // The cache only lets one thread load a given key, the others wait for its result
+            return (T) this.cache.get(kind + ' ' + url, () -> request(url, parser));
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private <T> T request(String url, Parser<T> parser) throws IOException, XMLStreamException
+    {
+        this.rateLimiter.acquire();
+        this.logger.debug("Requesting [{}]", url);
+        HttpGet method = new HttpGet(url);
+        method.setConfig(this.requestConfig);
+        try (CloseableHttpResponse response = this.client.execute(method)) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                throw new IOException("Unexpected response from the NCBI server: " + response.getStatusLine());
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                return parser.parse(in);
+            }
+        }
+    }
+
+    private String composeSummaryURL(String database, List<String> ids)
+    {
+        return composeURL(AbstractSpecializedNCBIEUtilsAccessService.TERM_SUMMARY_QUERY_SCRIPT, database,
+            AbstractSpecializedNCBIEUtilsAccessService.TERM_SUMMARY_PARAM_NAME, StringUtils.join(ids, ','));
+    }
+
+    private String composeURL(String scriptName, String database, String paramName, String value)
+    {
+        StringBuilder result = new StringBuilder(this.serverURL).append(scriptName).append('?')
+            .append(AbstractSpecializedNCBIEUtilsAccessService.DB_PARAM_NAME).append('=').append(encode(database))
+            .append('&').append(paramName).append('=').append(encode(value));
+        if (StringUtils.isNotBlank(this.apiKey)) {
+            result.append("&api_key=").append(encode(this.apiKey));
+        }
+        return result.toString();
+    }
+
+    private int getIntProperty(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null ? defaultValue : value;
+    }
+
+    private static String encode(String value)
+    {
+        try {
+            return URLEncoder.encode(StringUtils.defaultString(value), ENCODING);
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always available
+            return value;
+        }
+    }
+}
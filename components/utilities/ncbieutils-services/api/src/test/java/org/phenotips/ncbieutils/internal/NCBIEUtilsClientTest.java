@@ -0,0 +1,270 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import org.phenotips.ncbieutils.NCBIEUtilsService;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link NCBIEUtilsClient} component, running against a local stub of the NCBI server.
+ *
+ * @version $Id$
+ */
+public class NCBIEUtilsClientTest
+{
+    private static final String DOCTYPE = "<!DOCTYPE eSummaryResult PUBLIC \"-//NLM//DTD esummary v1 20041029//EN\" "
+        + "\"%s/dtd/esummary.dtd\">";
+
+    private static final String SUMMARY = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n%s\n<eSummaryResult>\n"
+        + "<DocSum>\n\t<Id>190685</Id>\n\t<Item Name=\"Title\" Type=\"String\">DOWN SYNDROME</Item>\n"
+        + "\t<Item Name=\"AuthorList\" Type=\"List\">\n\t\t<Item Name=\"Author\" Type=\"String\">Smith J</Item>\n"
+        + "\t\t<Item Name=\"Author\" Type=\"String\">Doe A</Item>\n\t</Item>\n"
+        + "\t<Item Name=\"Volume\" Type=\"String\"></Item>\n</DocSum>\n"
+        + "<DocSum>\n\t<Id>605298</Id>\n\t<Item Name=\"Title\" Type=\"String\">Mixed Case &amp; Title</Item>\n"
+        + "</DocSum>\n</eSummaryResult>\n";
+
+    @Rule
+    public final MockitoComponentMockingRule<NCBIEUtilsClient> mocker =
+        new MockitoComponentMockingRule<NCBIEUtilsClient>(NCBIEUtilsClient.class);
+
+    /** The number of requests received for each script. */
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    private final CountDownLatch searchReceived = new CountDownLatch(1);
+
+    private volatile long searchDelay;
+
+    private volatile int searchStatus = 200;
+
+    private HttpServer server;
+
+    private String serverURL;
+
+    private ConfigurationSource configuration;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+        this.serverURL = "http://localhost:" + this.server.getAddress().getPort();
+
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(this.configuration.getProperty("phenotips.ncbieutils.serverURL", String.class))
+            .thenReturn(this.serverURL + "/eutils/");
+        when(this.configuration.getProperty("phenotips.ncbieutils.requestsPerSecond", Integer.class)).thenReturn(100);
+        this.mocker.getComponentUnderTest().initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.mocker.getComponentUnderTest().dispose();
+        this.server.stop(0);
+    }
+
+    @Test
+    public void suggestionsAreParsed() throws Exception
+    {
+        List<Map<String, Object>> result = getService().getSuggestions("down sindrome", 2, 0);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("190685", result.get(0).get("id"));
+        Assert.assertEquals("Down syndrome", result.get(0).get("Title"));
+        Assert.assertEquals(Arrays.asList("Smith J", "Doe A"), result.get(0).get("AuthorList"));
+        Assert.assertFalse(result.get(0).containsKey("Volume"));
+        Assert.assertEquals("Mixed Case & Title", result.get(1).get("Title"));
+        Assert.assertEquals(1, count("espell.fcgi"));
+        Assert.assertEquals(1, count("esearch.fcgi"));
+        Assert.assertEquals(1, count("esummary.fcgi"));
+        // The declared DTD is never fetched
+        Assert.assertEquals(0, count("esummary.dtd"));
+    }
+
+    @Test
+    public void namesAreExtractedFromSummaries() throws Exception
+    {
+        Map<String, String> names = getService().getNames(Arrays.asList("190685", "605298"));
+        Assert.assertEquals("Down syndrome", names.get("190685"));
+        Assert.assertEquals("Mixed Case & Title", names.get("605298"));
+    }
+
+    @Test
+    public void summariesXMLIsFixedAndSerialized() throws Exception
+    {
+        String result = getService().getSuggestionsXML("down", 2, 0);
+        Assert.assertTrue(result.contains("<Item Name=\"Title\" Type=\"String\">Down syndrome</Item>"));
+        Assert.assertTrue(result.contains("<Id>605298</Id>"));
+        Assert.assertFalse(result.contains("DOCTYPE"));
+    }
+
+    @Test
+    public void repeatedQueriesAreServedFromTheCache() throws Exception
+    {
+        NCBIEUtilsService service = getService();
+        List<Map<String, Object>> first = service.getSuggestions("down", 2, 0);
+        Assert.assertEquals(first, service.getSuggestions("down", 2, 0));
+        Assert.assertEquals(1, count("esearch.fcgi"));
+        Assert.assertEquals(1, count("esummary.fcgi"));
+
+        // A different page is a different query
+        service.getSuggestions("down", 2, 2);
+        Assert.assertEquals(2, count("esearch.fcgi"));
+    }
+
+    @Test
+    public void concurrentIdenticalQueriesAreMerged() throws Exception
+    {
+        this.searchDelay = 500;
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            results.add(threads.submit(() -> this.mocker.getComponentUnderTest().getMatches("pubmed", "down", 2, 0)));
+            Assert.assertTrue(this.searchReceived.await(2, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; ++i) {
+                results.add(
+                    threads.submit(() -> this.mocker.getComponentUnderTest().getMatches("pubmed", "down", 2, 0)));
+            }
+            for (Future<List<String>> result : results) {
+                Assert.assertEquals(Arrays.asList("190685", "605298"), result.get());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        Assert.assertEquals(1, count("esearch.fcgi"));
+    }
+
+    @Test
+    public void failuresAreNotCached() throws Exception
+    {
+        this.searchStatus = 500;
+        Assert.assertTrue(getService().getMatches("down", 2, 0).isEmpty());
+
+        this.searchStatus = 200;
+        Assert.assertEquals(Arrays.asList("190685", "605298"), getService().getMatches("down", 2, 0));
+        Assert.assertEquals(2, count("esearch.fcgi"));
+    }
+
+    @Test
+    public void requestsAreThrottled() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.ncbieutils.requestsPerSecond", Integer.class)).thenReturn(2);
+        this.mocker.getComponentUnderTest().initialize();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; ++i) {
+            this.mocker.getComponentUnderTest().getMatches("pubmed", "query" + i, 2, 0);
+        }
+        // The first request is immediate, the next ones are spaced by half a second
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+        Assert.assertEquals(3, count("esearch.fcgi"));
+    }
+
+    private NCBIEUtilsService getService() throws Exception
+    {
+        return new AbstractSpecializedNCBIEUtilsAccessService(this.mocker.getComponentUnderTest(),
+            mock(Logger.class))
+        {
+            @Override
+            protected String getDatabaseName()
+            {
+                return "omim";
+            }
+        };
+    }
+
+    private int count(String script)
+    {
+        AtomicInteger result = this.requests.get(script);
+        return result == null ? 0 : result.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        String script = path.substring(path.lastIndexOf('/') + 1);
+        this.requests.computeIfAbsent(script, k -> new AtomicInteger()).incrementAndGet();
+
+        int status = 200;
+        String response;
+        if ("espell.fcgi".equals(script)) {
+            response = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<eSpellResult><Database>omim</Database>"
+                + "<Query>down sindrome</Query><CorrectedQuery> down syndrome </CorrectedQuery></eSpellResult>";
+        } else if ("esearch.fcgi".equals(script)) {
+            this.searchReceived.countDown();
+            sleep(this.searchDelay);
+            status = this.searchStatus;
+            response = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<eSearchResult><Count>2</Count>"
+                + "<IdList>\n<Id>190685</Id>\n<Id>605298</Id>\n</IdList><TranslationSet/></eSearchResult>";
+        } else if ("esummary.fcgi".equals(script)) {
+            response = String.format(SUMMARY, String.format(DOCTYPE, this.serverURL));
+        } else {
+            status = 404;
+            response = "";
+        }
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            out.write(body);
+        }
+    }
+
+    private void sleep(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
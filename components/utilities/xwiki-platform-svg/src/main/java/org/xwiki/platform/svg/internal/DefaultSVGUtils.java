@@ -18,6 +18,9 @@
 package org.xwiki.platform.svg.internal;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.container.Container;
 import org.xwiki.container.servlet.ServletResponse;
 import org.xwiki.environment.Environment;
@@ -28,10 +31,13 @@
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -47,18 +53,25 @@
 import org.slf4j.Logger;
 
 /**
- * The straight-forward implementation of the {@link SVGUtils} role.
+ * The straight-forward implementation of the {@link SVGUtils} role. Rasterized images are stored in files named after a
+ * SHA-256 hash of the SVG content and the requested size, so identical requests reuse the same image, and concurrent
+ * identical requests wait for a single rasterization. Rasterization runs on a small pool of threads, and the total size
+ * of the stored images is bounded, the least recently used ones being deleted first.
  *
  * @version $Id$
  * @since 1.3M1
  */
 @Component
 @Singleton
-public class DefaultSVGUtils implements SVGUtils
+public class DefaultSVGUtils implements SVGUtils, Initializable, Disposable
 {
     private static final String TEMP_DIR_NAME = "svg";
 
-    private static final String RASTER_FILE_EXTENSION = ".png";
+    /** The maximum total size of the stored raster images, 256MB. */
+    private static final long CACHE_MAX_SIZE = 256L * 1024 * 1024;
+
+    /** The maximum number of images waiting to be rasterized. */
+    private static final int MAX_PENDING_RASTERIZATIONS = 256;
 
     @Inject
     private Logger logger;
@@ -76,12 +89,32 @@ public class DefaultSVGUtils implements SVGUtils
     @Inject
     private Container container;
 
+    private RasterCache cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        File baseDir = getBaseTempDir();
+        baseDir.mkdirs();
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        this.cache = new RasterCache(baseDir, CACHE_MAX_SIZE, threads, MAX_PENDING_RASTERIZATIONS);
+        try {
+            this.cache.load(baseDir);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read existing raster images: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.cache.dispose();
+    }
+
     @Override
     public File rasterizeToTemporaryFile(String content, int width, int height) throws IOException
     {
-        File out = getTempFile(content.hashCode());
-        rasterizeToFile(content, out, width, height);
-        return out;
+        return this.cache.get(getKey(content, width, height), out -> rasterize(content, out, width, height));
     }
 
     @Override
@@ -95,8 +128,13 @@ public TemporaryResourceReference rasterizeToTemporaryResource(String content, i
     public TemporaryResourceReference rasterizeToTemporaryResource(String content, int width, int height,
         DocumentReference targetContext) throws IOException
     {
-        File out = getContextTempFile((content + "w" + width + "h" + height).hashCode(), targetContext);
-        rasterizeToFile(content, out, width, height);
+        File result = rasterizeToTemporaryFile(content, width, height);
+        File out = new File(getTempDir(targetContext), result.getName());
+        if (!out.exists()) {
+            this.logger.debug("Copying raster image to temp file: {}", out.getAbsolutePath());
+            FileUtils.copyFile(result, out);
+        }
+        this.cache.add(out);
         return new TemporaryResourceReference(TEMP_DIR_NAME, out.getName(), targetContext);
     }
 
@@ -115,21 +153,29 @@ public void rasterizeToResponse(String content, int width, int height) throws IO
         os.flush();
     }
 
-    private void rasterizeToFile(String content, File out, int width, int height) throws IOException
+    /**
+     * Computes the name of the raster image for an SVG image rendered at a specific size.
+     *
+     * @param content the SVG image
+     * @param width the requested width, non-positive values meaning the natural width
+     * @param height the requested height, non-positive values meaning the natural height
+     * @return a hexadecimal SHA-256 hash
+     */
+    static String getKey(String content, int width, int height)
     {
-        if (out.exists()) {
-            this.logger.debug("Reusing existing temporary raster image: {}", out.getAbsolutePath());
-            return;
-        }
-        try (OutputStream fout = new FileOutputStream(out)) {
-            this.logger.debug("Rasterizing to temp file: {}", out.getAbsolutePath());
-            TranscoderInput input = new TranscoderInput(new StringReader(content));
-            TranscoderOutput output = new TranscoderOutput(fout);
-            rasterize(input, output, width, height);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String size = Math.max(width, 0) + "x" + Math.max(height, 0) + ":";
+            digest.update(size.getBytes(StandardCharsets.UTF_8));
+            digest.update(content.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available
+            throw new IllegalStateException(ex);
         }
     }
 
-    private void rasterize(TranscoderInput input, TranscoderOutput output, int width, int height)
+    private void rasterize(String content, OutputStream out, int width, int height) throws IOException
     {
         PNGTranscoder transcoder = new PNGTranscoder();
 
@@ -145,22 +191,13 @@ private void rasterize(TranscoderInput input, TranscoderOutput output, int width
         transcoder.addTranscodingHint(SVGAbstractTranscoder.KEY_MAX_HEIGHT, new Float(8192));
 
         try {
-            transcoder.transcode(input, output);
+            transcoder.transcode(new TranscoderInput(new StringReader(content)), new TranscoderOutput(out));
         } catch (TranscoderException ex) {
             this.logger.warn("Failed to rasterize SVG image: {}", ex.getMessage());
+            throw new IOException("Failed to rasterize SVG image", ex);
         }
     }
 
-    private File getTempFile(int hashcode)
-    {
-        return new File(getBaseTempDir(), Math.abs(hashcode) + RASTER_FILE_EXTENSION);
-    }
-
-    private File getContextTempFile(int hashcode, DocumentReference targetContext)
-    {
-        return new File(getTempDir(targetContext), Math.abs(hashcode) + RASTER_FILE_EXTENSION);
-    }
-
     private File getTempDir(DocumentReference targetContext)
     {
         File tempDir = getBaseTempDir();
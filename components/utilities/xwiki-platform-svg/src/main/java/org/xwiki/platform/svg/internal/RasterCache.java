@@ -0,0 +1,255 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.platform.svg.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps rendered raster images on disk, in files named after a content key, so that each image is only rendered once:
+ * <ul>
+ * <li>requests for an image that is already rendered are served from the existing file</li>
+ * <li>concurrent requests for an image that is being rendered wait for that render instead of starting another one</li>
+ * <li>images are rendered by a fixed number of threads, so that many different requests can't exhaust the CPU and
+ * memory</li>
+ * <li>the total size of the files is bounded, the least recently used files being deleted first; copies of the images
+ * made elsewhere can be {@link #add(File) tracked} as well, so they count towards the same limit</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class RasterCache
+{
+    private static final String RASTER_FILE_EXTENSION = ".png";
+
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+    /** Writes a raster image. */
+    interface Renderer
+    {
+        /**
+         * Renders the image.
+         *
+         * @param out where to write the image
+         * @throws IOException if rendering the image fails
+         */
+        void render(OutputStream out) throws IOException;
+    }
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final ExecutorService renderers;
+
+    /** The renders currently running or waiting for a thread, by key. */
+    private final ConcurrentMap<String, Future<File>> pending = new ConcurrentHashMap<>();
+
+    /** The tracked files and their sizes, the least recently used first. */
+    private final LinkedHashMap<File, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The total size of the tracked files. */
+    private long totalSize;
+
+    /**
+     * Simple constructor passing all the needed data.
+     *
+     * @param directory where rendered images are stored, must exist
+     * @param maxSize the maximum total size of the tracked files, in bytes
+     * @param threads the number of images rendered in parallel
+     * @param maxPending the number of renders that can wait for a thread; further requests fail
+     */
+    RasterCache(File directory, long maxSize, int threads, int maxPending)
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.renderers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(maxPending), runnable -> {
+                Thread thread = new Thread(runnable, "SVG rasterizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Gets the image with the given key, rendering it if it isn't already stored.
+     *
+     * @param key identifies the image, must be usable as a file name; images with the same key must be identical
+     * @param renderer renders the image, if needed
+     * @return the file where the image is stored
+     * @throws IOException if rendering the image fails, or too many images are waiting to be rendered
+     */
+    File get(final String key, final Renderer renderer) throws IOException
+    {
+        final File result = new File(this.directory, key + RASTER_FILE_EXTENSION);
+        if (touch(result)) {
+            return result;
+        }
+        FutureTask<File> render = new FutureTask<>(() -> {
+            try {
+                return render(result, renderer);
+            } finally {
+                this.pending.remove(key);
+            }
+        });
+        Future<File> existing = this.pending.putIfAbsent(key, render);
+        if (existing == null) {
+            // Another render of the same image may have finished in the meantime
+            if (touch(result)) {
+                this.pending.remove(key, render);
+                return result;
+            }
+            try {
+                this.renderers.execute(render);
+            } catch (RejectedExecutionException ex) {
+                this.pending.remove(key, render);
+                throw new IOException("Too many images waiting to be rasterized");
+            }
+            existing = render;
+        }
+        return await(existing);
+    }
+
+    /**
+     * Starts tracking a file, so that it counts towards the size limit and is deleted when it becomes the least
+     * recently used file.
+     *
+     * @param file an existing file
+     */
+    synchronized void add(File file)
+    {
+        long size = file.length();
+        Long previous = this.files.put(file, size);
+        this.totalSize += size - (previous == null ? 0 : previous);
+        Iterator<Map.Entry<File, Long>> eldest = this.files.entrySet().iterator();
+        // Never evict the file that was just added, which is the last one
+        while (this.totalSize > this.maxSize && this.files.size() > 1) {
+            Map.Entry<File, Long> entry = eldest.next();
+            eldest.remove();
+            this.totalSize -= entry.getValue();
+            entry.getKey().delete();
+        }
+    }
+
+    /**
+     * Tracks the files left in a directory by previous runs, the least recently modified first, and removes unfinished
+     * renders.
+     *
+     * @param root the directory to scan, recursively; may not exist
+     * @throws IOException if the directory can't be read
+     */
+    void load(File root) throws IOException
+    {
+        if (!root.isDirectory()) {
+            return;
+        }
+        List<File> existing;
+        try (Stream<File> found = Files.walk(root.toPath()).map(path -> path.toFile()).filter(File::isFile)) {
+            existing = found.collect(Collectors.toCollection(ArrayList::new));
+        }
+        existing.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : existing) {
+            if (file.getName().endsWith(TEMPORARY_FILE_EXTENSION)) {
+                file.delete();
+            } else {
+                add(file);
+            }
+        }
+    }
+
+    /** Stops the rendering threads; renders still waiting fail. */
+    void dispose()
+    {
+        this.renderers.shutdownNow();
+    }
+
+    /**
+     * Marks a tracked file as recently used.
+     *
+     * @param file the file to look for
+     * @return {@code true} if the file is tracked and still exists, {@code false} otherwise
+     */
+    private synchronized boolean touch(File file)
+    {
+        Long size = this.files.get(file);
+        if (size == null) {
+            return false;
+        }
+        if (!file.exists()) {
+            this.files.remove(file);
+            this.totalSize -= size;
+            return false;
+        }
+        // Keep the order across restarts
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private File render(File result, Renderer renderer) throws IOException
+    {
+        // Render into a temporary file first, so that no one sees a partial image
+        File temp = File.createTempFile(result.getName(), TEMPORARY_FILE_EXTENSION, this.directory);
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                renderer.render(out);
+            }
+            Files.move(temp.toPath(), result.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        add(result);
+        return result;
+    }
+
+    private File await(Future<File> render) throws IOException
+    {
+        try {
+            return render.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an image to be rasterized");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+}
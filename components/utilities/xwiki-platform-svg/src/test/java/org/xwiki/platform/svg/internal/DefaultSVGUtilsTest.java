@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.platform.svg.internal;
+
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.platform.svg.SVGUtils;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.mockito.Mockito.when;
+
+public class DefaultSVGUtilsTest
+{
+    private static final String SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"10\" height=\"10\">"
+        + "<rect width=\"10\" height=\"10\" fill=\"red\"/></svg>";
+
+    private static final byte[] PNG_SIGNATURE = new byte[] { (byte) 0x89, 'P', 'N', 'G' };
+
+    @Rule
+    public final MockitoComponentMockingRule<SVGUtils> mocker =
+        new MockitoComponentMockingRule<SVGUtils>(DefaultSVGUtils.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setupHeadless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Before
+    public void setup() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getTemporaryDirectory()).thenReturn(this.folder.getRoot());
+    }
+
+    @Test
+    public void rasterizeProducesPNG() throws Exception
+    {
+        File result = this.mocker.getComponentUnderTest().rasterizeToTemporaryFile(SVG, 20, 20);
+
+        byte[] start = Arrays.copyOf(FileUtils.readFileToByteArray(result), PNG_SIGNATURE.length);
+        Assert.assertArrayEquals(PNG_SIGNATURE, start);
+    }
+
+    @Test
+    public void sameImageReusesTheSameFile() throws Exception
+    {
+        File first = this.mocker.getComponentUnderTest().rasterizeToTemporaryFile(SVG, 20, 20);
+        long size = first.length();
+        File second = this.mocker.getComponentUnderTest().rasterizeToTemporaryFile(SVG, 20, 20);
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(size, second.length());
+    }
+
+    @Test
+    public void differentSizesUseDifferentFiles() throws Exception
+    {
+        File small = this.mocker.getComponentUnderTest().rasterizeToTemporaryFile(SVG, 20, 20);
+        File large = this.mocker.getComponentUnderTest().rasterizeToTemporaryFile(SVG, 40, 40);
+
+        Assert.assertNotEquals(small, large);
+        Assert.assertTrue(small.exists());
+        Assert.assertTrue(large.exists());
+    }
+
+    @Test
+    public void temporaryResourcesAreCopiedInTheContextDirectory() throws Exception
+    {
+        DocumentReference document = new DocumentReference("wiki", "Space", "Page");
+        TemporaryResourceReference reference =
+            this.mocker.getComponentUnderTest().rasterizeToTemporaryResource(SVG, 20, 20, document);
+
+        Assert.assertEquals(DefaultSVGUtils.getKey(SVG, 20, 20) + ".png", reference.getResourceName());
+        File copy = new File(this.folder.getRoot(), "temp/svg/wiki/Space/Page/" + reference.getResourceName());
+        Assert.assertTrue(copy.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidImagesFail() throws Exception
+    {
+        this.mocker.getComponentUnderTest().rasterizeToTemporaryFile("<svg", 20, 20);
+    }
+
+    @Test
+    public void keysIdentifyContentAndSize()
+    {
+        String key = DefaultSVGUtils.getKey(SVG, 20, 30);
+        Assert.assertEquals(64, key.length());
+        Assert.assertEquals(key, DefaultSVGUtils.getKey(SVG, 20, 30));
+        Assert.assertNotEquals(key, DefaultSVGUtils.getKey(SVG, 30, 20));
+        Assert.assertNotEquals(key, DefaultSVGUtils.getKey(SVG + " ", 20, 30));
+        Assert.assertEquals(DefaultSVGUtils.getKey(SVG, 0, 0), DefaultSVGUtils.getKey(SVG, -1, -5));
+    }
+}
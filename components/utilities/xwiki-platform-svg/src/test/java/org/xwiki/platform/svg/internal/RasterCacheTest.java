@@ -0,0 +1,176 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.platform.svg.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RasterCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RasterCache cache;
+
+    private AtomicInteger renders = new AtomicInteger();
+
+    private RasterCache.Renderer renderer = out -> {
+        this.renders.incrementAndGet();
+        out.write(new byte[100]);
+    };
+
+    @Before
+    public void setup()
+    {
+        this.cache = new RasterCache(this.folder.getRoot(), 250, 2, 10);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.cache.dispose();
+    }
+
+    @Test
+    public void imagesAreRenderedOnce() throws IOException
+    {
+        File first = this.cache.get("a", this.renderer);
+        File second = this.cache.get("a", this.renderer);
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(new File(this.folder.getRoot(), "a.png"), first);
+        Assert.assertEquals(100, first.length());
+        Assert.assertEquals(1, this.renders.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneRender() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RasterCache.Renderer slowRenderer = out -> {
+            this.renders.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            out.write(new byte[100]);
+        };
+
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        List<Future<File>> results = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            results.add(requests.submit(() -> this.cache.get("a", slowRenderer)));
+        }
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        for (Future<File> result : results) {
+            Assert.assertEquals(new File(this.folder.getRoot(), "a.png"), result.get(10, TimeUnit.SECONDS));
+        }
+        requests.shutdown();
+        Assert.assertEquals(1, this.renders.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedImagesAreEvicted() throws IOException
+    {
+        File a = this.cache.get("a", this.renderer);
+        File b = this.cache.get("b", this.renderer);
+        this.cache.get("a", this.renderer);
+        File c = this.cache.get("c", this.renderer);
+
+        Assert.assertTrue(a.exists());
+        Assert.assertFalse(b.exists());
+        Assert.assertTrue(c.exists());
+
+        this.cache.get("b", this.renderer);
+        Assert.assertEquals(4, this.renders.get());
+    }
+
+    @Test
+    public void addedFilesCountTowardsTheLimit() throws IOException
+    {
+        File a = this.cache.get("a", this.renderer);
+        File copy = new File(this.folder.newFolder("context"), "a.png");
+        FileUtils.copyFile(a, copy);
+        this.cache.add(copy);
+        this.cache.get("b", this.renderer);
+
+        Assert.assertFalse(a.exists());
+        Assert.assertTrue(copy.exists());
+    }
+
+    @Test
+    public void failedRendersAreNotStored() throws IOException
+    {
+        try {
+            this.cache.get("a", out -> {
+                out.write(new byte[10]);
+                throw new IOException("Broken image");
+            });
+            Assert.fail("The failure should be reported");
+        } catch (IOException ex) {
+            Assert.assertEquals("Broken image", ex.getMessage());
+        }
+
+        Assert.assertEquals(0, this.folder.getRoot().list().length);
+        Assert.assertEquals(100, this.cache.get("a", this.renderer).length());
+        Assert.assertEquals(1, this.renders.get());
+    }
+
+    @Test
+    public void existingFilesAreReused() throws IOException
+    {
+        FileUtils.writeByteArrayToFile(new File(this.folder.getRoot(), "a.png"), new byte[100]);
+        File leftover = new File(this.folder.getRoot(), "b.png123.tmp");
+        FileUtils.writeByteArrayToFile(leftover, new byte[10]);
+
+        this.cache.load(this.folder.getRoot());
+
+        Assert.assertFalse(leftover.exists());
+        this.cache.get("a", this.renderer);
+        Assert.assertEquals(0, this.renders.get());
+    }
+
+    @Test
+    public void deletedFilesAreRenderedAgain() throws IOException
+    {
+        this.cache.get("a", this.renderer).delete();
+        Assert.assertTrue(this.cache.get("a", this.renderer).exists());
+        Assert.assertEquals(2, this.renders.get());
+    }
+}
@@ -23,9 +23,11 @@
 import org.phenotips.vocabulary.VocabularyInputTerm;
 import org.phenotips.vocabulary.VocabularySourceRelocationService;
 import org.phenotips.vocabulary.VocabularyTerm;
+import org.phenotips.vocabulary.events.VocabularyReindexedEvent;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.ObservationManager;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -83,6 +85,10 @@ public abstract class AbstractSolrVocabulary implements Vocabulary
     @Inject
     protected VocabularySourceRelocationService relocationService;
 
+    /** Notifies the listeners of data derived from this vocabulary once a new index is in place. */
+    @Inject
+    protected Provider<ObservationManager> observationManager;
+
     // Dilemma:
     // In an ideal world there should be a getter methods for server and cache instances.
     // However the point of splitting up the server was to lessen the number of imports
@@ -121,6 +127,7 @@ public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
         Map<String, VocabularyTerm> rawResult = new HashMap<>();
         StringBuilder query = new StringBuilder("id:(");
+        int missing = 0;
         Cache<VocabularyTerm> cache = this.externalServicesAccess.getTermCache(getCoreName());
         for (String id : ids) {
             VocabularyTerm cachedTerm = cache.get(id);
@@ -131,13 +138,15 @@ public Set<VocabularyTerm> getTerms(Collection<String> ids)
             } else {
                 query.append(ClientUtils.escapeQueryChars(id));
                 query.append(' ');
+                ++missing;
             }
         }
         query.append(')');
 
         // There's at least one more term not found in the cache
-        if (query.length() > 5) {
-            for (SolrDocument doc : this.search(new SolrQuery(query.toString()))) {
+        if (missing > 0) {
+            // Without an explicit limit, Solr only returns the first few matches
+            for (SolrDocument doc : this.search(new SolrQuery(query.toString()).setRows(missing))) {
                 String id = (String) doc.getFieldValue(ID_FIELD_NAME);
                 VocabularyTerm term = cacheTerm(id, doc);
                 rawResult.put(term.getId(), term);
@@ -205,6 +214,8 @@ public int reindex(String sourceUrl)
             if (retval == 0) {
                 this.externalServicesAccess.replaceCore(getCoreName());
                 this.externalServicesAccess.getTermCache(getCoreName()).removeAll();
+                // Only now can the new data be read back, so caches derived from it are discarded after this point
+                this.observationManager.get().notify(new VocabularyReindexedEvent(getIdentifier()), this);
             }
             return retval;
         } catch (InitializationException ex) {
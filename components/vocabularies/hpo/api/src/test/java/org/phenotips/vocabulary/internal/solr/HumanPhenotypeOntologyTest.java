@@ -20,10 +20,12 @@
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
+import org.phenotips.vocabulary.events.VocabularyReindexedEvent;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
@@ -43,11 +45,14 @@
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -98,6 +103,27 @@ public void testHumanPhenotypeOntologyReindex()
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
 
+    @Test
+    public void reindexingIsAnnouncedAfterTheNewCoreIsInPlace() throws ComponentLookupException
+    {
+        SolrVocabularyResourceManager externalServicesAccess =
+            this.mocker.getInstance(SolrVocabularyResourceManager.class);
+        ObservationManager observationManager = this.mocker.getInstance(ObservationManager.class);
+
+        InOrder order = inOrder(externalServicesAccess, this.cache, observationManager);
+        order.verify(externalServicesAccess).replaceCore("hpo");
+        order.verify(this.cache).removeAll();
+        order.verify(observationManager).notify(argThat(new ArgumentMatcher<VocabularyReindexedEvent>()
+        {
+            @Override
+            public boolean matches(Object argument)
+            {
+                return argument instanceof VocabularyReindexedEvent
+                    && "hpo".equals(((VocabularyReindexedEvent) argument).getVocabularyId());
+            }
+        }), same(this.ontologyService));
+    }
+
     @Test
     public void testHumanPhenotypeOntologyVersion() throws SolrServerException, IOException
     {